@@ -0,0 +1,136 @@
+package org.thoughtcrime.securesms.database.helpers;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.session.libsignal.utilities.Log;
+import org.thoughtcrime.securesms.crypto.DatabaseSecret;
+import org.thoughtcrime.securesms.database.SmsDatabase;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures bulk message insert throughput into the sms table with and without compiled statement
+ * reuse, for a couple of {@link DatabaseTuning} setups. Results are reported through logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class BulkMessageInsertBenchmark {
+
+  private static final String TAG           = BulkMessageInsertBenchmark.class.getSimpleName();
+  private static final String DATABASE_NAME = "insert-benchmark.db";
+  private static final int    MESSAGES      = 5000;
+
+  private static final String INSERT_MESSAGE = "INSERT INTO " + SmsDatabase.TABLE_NAME + " (address, date, date_sent, read, body, type, thread_id) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+  private Context context;
+
+  @Before
+  public void setUp() {
+    context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    SQLiteDatabase.loadLibs(context);
+    context.deleteDatabase(DATABASE_NAME);
+  }
+
+  @After
+  public void tearDown() {
+    context.deleteDatabase(DATABASE_NAME);
+  }
+
+  @Test
+  public void insertWithContentValues() {
+    runBenchmark("ContentValues", DatabaseTuning.DEFAULT, false, helper -> {
+      SQLiteDatabase db = helper.getWritableDatabase();
+
+      for (int i = 0; i < MESSAGES; i++) {
+        ContentValues values = new ContentValues(7);
+        values.put("address", "05" + i);
+        values.put("date", 1000L + i);
+        values.put("date_sent", 1000L + i);
+        values.put("read", 0);
+        values.put("body", "Message body " + i);
+        values.put("type", 20L);
+        values.put("thread_id", i % 50);
+        db.insert(SmsDatabase.TABLE_NAME, null, values);
+      }
+    });
+  }
+
+  @Test
+  public void insertWithCachedStatement() {
+    runBenchmark("cached statement", DatabaseTuning.DEFAULT, false, this::insertWithStatementCache);
+  }
+
+  @Test
+  public void insertWithCachedStatementInTransaction() {
+    runBenchmark("cached statement, one transaction", DatabaseTuning.DEFAULT, true, this::insertWithStatementCache);
+  }
+
+  @Test
+  public void insertWithCachedStatementSynchronousFull() {
+    DatabaseTuning tuning = DatabaseTuning.DEFAULT.buildUpon().setSynchronous(DatabaseTuning.SYNCHRONOUS_FULL).build();
+    runBenchmark("cached statement, synchronous=FULL", tuning, false, this::insertWithStatementCache);
+  }
+
+  private void insertWithStatementCache(SQLCipherOpenHelper helper) {
+    StatementCache cache = helper.getStatementCache();
+
+    for (int i = 0; i < MESSAGES; i++) {
+      final int index = i;
+      cache.executeInsert(INSERT_MESSAGE, statement -> {
+        statement.bindString(1, "05" + index);
+        statement.bindLong(2, 1000L + index);
+        statement.bindLong(3, 1000L + index);
+        statement.bindLong(4, 0);
+        statement.bindString(5, "Message body " + index);
+        statement.bindLong(6, 20L);
+        statement.bindLong(7, index % 50);
+      });
+    }
+  }
+
+  private void runBenchmark(String name, DatabaseTuning tuning, boolean transaction, Workload workload) {
+    SQLCipherOpenHelper helper = new SQLCipherOpenHelper(context, DATABASE_NAME, new DatabaseSecret(new byte[32]), tuning);
+
+    try {
+      SQLiteDatabase db    = helper.getWritableDatabase();
+      long           start = System.nanoTime();
+
+      if (transaction) db.beginTransaction();
+
+      try {
+        workload.run(helper);
+        if (transaction) db.setTransactionSuccessful();
+      } finally {
+        if (transaction) db.endTransaction();
+      }
+
+      long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+      Log.i(TAG, name + " (" + tuning + "): " + MESSAGES + " rows in " + elapsedMs + " ms, " + (MESSAGES * 1000L / elapsedMs) + " rows/s");
+      helper.getStatementCache().getTimings().log();
+
+      try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME, null)) {
+        cursor.moveToFirst();
+        assertEquals(MESSAGES, cursor.getInt(0));
+      }
+    } finally {
+      helper.close();
+    }
+  }
+
+  private interface Workload {
+    void run(SQLCipherOpenHelper helper);
+  }
+}
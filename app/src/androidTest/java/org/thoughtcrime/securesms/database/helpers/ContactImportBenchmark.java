@@ -0,0 +1,175 @@
+package org.thoughtcrime.securesms.database.helpers;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.session.libsession.utilities.Address;
+import org.session.libsignal.utilities.Log;
+import org.thoughtcrime.securesms.crypto.DatabaseSecret;
+import org.thoughtcrime.securesms.database.RecipientDatabase;
+import org.thoughtcrime.securesms.database.ThreadDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares importing the contacts of a configuration message one at a time, the way it used to be
+ * done, with the batched import. Results are reported through logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class ContactImportBenchmark {
+
+  private static final String TAG           = ContactImportBenchmark.class.getSimpleName();
+  private static final String DATABASE_NAME = "contact-import-benchmark.db";
+  private static final int    CONTACTS      = 5000;
+
+  private static final String RECIPIENT_TABLE = "recipient_preferences";
+
+  private Context             context;
+  private SQLCipherOpenHelper helper;
+
+  @Before
+  public void setUp() {
+    context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    SQLiteDatabase.loadLibs(context);
+    context.deleteDatabase(DATABASE_NAME);
+    helper = new SQLCipherOpenHelper(context, DATABASE_NAME, new DatabaseSecret(new byte[32]), DatabaseTuning.DEFAULT);
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+    context.deleteDatabase(DATABASE_NAME);
+  }
+
+  @Test
+  public void importOneContactAtATime() {
+    SQLiteDatabase db    = helper.getWritableDatabase();
+    long           start = System.nanoTime();
+
+    for (ContactProfileRow contact : contacts()) {
+      // Avatar, profile key, name, profile sharing and registered state were each saved separately
+      updateOrInsert(db, contact.address, "signal_profile_avatar", contact.avatar);
+      updateOrInsert(db, contact.address, "profile_key", contact.profileKey);
+      updateOrInsert(db, contact.address, "system_display_name", contact.name);
+      updateOrInsert(db, contact.address, "profile_sharing_approval", 1);
+      updateOrInsert(db, contact.address, "registered", 1);
+
+      try (Cursor cursor = db.query(ThreadDatabase.TABLE_NAME, new String[]{ThreadDatabase.ID}, ThreadDatabase.ADDRESS + " = ?", new String[]{contact.address}, null, null, null)) {
+        if (!cursor.moveToFirst()) {
+          ContentValues values = new ContentValues(3);
+          values.put(ThreadDatabase.DATE, System.currentTimeMillis());
+          values.put(ThreadDatabase.ADDRESS, contact.address);
+          values.put(ThreadDatabase.MESSAGE_COUNT, 0);
+          db.insert(ThreadDatabase.TABLE_NAME, null, values);
+        }
+      }
+    }
+
+    report("one contact at a time", start);
+  }
+
+  @Test
+  public void importInBulk() {
+    List<RecipientDatabase.ContactProfile> profiles  = new ArrayList<>(CONTACTS);
+    List<Address>                          addresses = new ArrayList<>(CONTACTS);
+
+    for (ContactProfileRow contact : contacts()) {
+      Address address = Address.fromSerialized(contact.address);
+      profiles.add(new RecipientDatabase.ContactProfile(address, contact.name, new byte[32], contact.avatar));
+      addresses.add(address);
+    }
+
+    SQLiteDatabase db    = helper.getWritableDatabase();
+    long           start = System.nanoTime();
+
+    db.beginTransaction();
+
+    try {
+      new RecipientDatabase(context, helper).setContactProfiles(profiles);
+      new ThreadDatabase(context, helper).createThreadsIfNeeded(addresses);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    report("in bulk", start);
+  }
+
+  private void report(String name, long start) {
+    long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+    Log.i(TAG, name + ": " + CONTACTS + " contacts in " + elapsedMs + " ms, " + (CONTACTS * 1000L / elapsedMs) + " contacts/s");
+
+    SQLiteDatabase db = helper.getReadableDatabase();
+
+    try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + RECIPIENT_TABLE + " WHERE profile_sharing_approval = 1", null)) {
+      cursor.moveToFirst();
+      assertEquals(CONTACTS, cursor.getInt(0));
+    }
+
+    try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + ThreadDatabase.TABLE_NAME, null)) {
+      cursor.moveToFirst();
+      assertEquals(CONTACTS, cursor.getInt(0));
+    }
+  }
+
+  private static void updateOrInsert(SQLiteDatabase db, String address, String column, Object value) {
+    ContentValues values = new ContentValues(1);
+
+    if (value instanceof Integer) values.put(column, (Integer) value);
+    else                          values.put(column, (String) value);
+
+    db.beginTransaction();
+
+    try {
+      int updated = db.update(RECIPIENT_TABLE, values, RecipientDatabase.ADDRESS + " = ?", new String[]{address});
+
+      if (updated < 1) {
+        values.put(RecipientDatabase.ADDRESS, address);
+        db.insert(RECIPIENT_TABLE, null, values);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static List<ContactProfileRow> contacts() {
+    List<ContactProfileRow> contacts = new ArrayList<>(CONTACTS);
+
+    for (int i = 0; i < CONTACTS; i++) {
+      contacts.add(new ContactProfileRow(String.format("05%064d", i), "Contact " + i, "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=", "https://example.com/avatar/" + i));
+    }
+
+    return contacts;
+  }
+
+  private static final class ContactProfileRow {
+    final String address;
+    final String name;
+    final String profileKey;
+    final String avatar;
+
+    ContactProfileRow(String address, String name, String profileKey, String avatar) {
+      this.address    = address;
+      this.name       = name;
+      this.profileKey = profileKey;
+      this.avatar     = avatar;
+    }
+  }
+}
@@ -4,6 +4,8 @@ package org.thoughtcrime.securesms.attachments;
 import android.content.Context;
 import android.net.Uri;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import org.session.libsignal.utilities.Log;
 import org.thoughtcrime.securesms.mms.PartAuthority;
@@ -12,12 +14,11 @@ import org.session.libsignal.utilities.Hex;
 import org.session.libsession.utilities.Util;
 import org.session.libsession.messaging.sending_receiving.attachments.Attachment;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
@@ -25,348 +26,378 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
-import java.util.StringTokenizer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * @author      Stefan "frostymarvelous" Froelich <stefan d0t froelich At whisppa DoT com>
+ * Serves a decrypted attachment to media players over loopback HTTP.
+ *
+ * Every connection is served on its own thread, so a player can open a new connection (e.g. to
+ * seek) while a previous one is still streaming. Range requests open the attachment at the
+ * requested offset rather than decrypting it from the start, and connections are kept alive
+ * between requests.
  */
-public class AttachmentServer implements Runnable {
+public class AttachmentServer {
 
   private static final String TAG = AttachmentServer.class.getSimpleName();
 
-  private final Context      context;
-  private final Attachment   attachment;
-  private final ServerSocket socket;
-  private final int          port;
-  private final String       auth;
+  private static final int MAX_HEADER_SIZE     = 8 * 1024;
+  private static final int BUFFER_SIZE         = 16 * 1024;
+  private static final int IDLE_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * The decrypted data to serve.
+   */
+  interface MediaSource {
+    long getSize();
+    @Nullable String getContentType();
+
+    /**
+     * Opens the data at the given offset, without going through the data that precedes it.
+     */
+    @NonNull InputStream open(long offset) throws IOException;
+  }
+
+  private final MediaSource     source;
+  private final ServerSocket    socket;
+  private final int             port;
+  private final String          auth;
+  private final ExecutorService executor;
+  private final Set<Socket>     clients = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
   private volatile boolean isRunning;
 
   public AttachmentServer(Context context, Attachment attachment)
       throws IOException
   {
-    try {
-      this.context      = context;
-      this.attachment   = attachment;
-      this.socket       = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-      this.port         = socket.getLocalPort();
-      this.auth         = Hex.toStringCondensed(Util.getSecretBytes(16));
+    this(new AttachmentSource(context, attachment));
+  }
 
-      this.socket.setSoTimeout(5000);
+  @VisibleForTesting
+  AttachmentServer(@NonNull MediaSource source)
+      throws IOException
+  {
+    try {
+      this.source   = source;
+      this.socket   = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
+      this.port     = socket.getLocalPort();
+      this.auth     = Hex.toStringCondensed(Util.getSecretBytes(16));
+      this.executor = Executors.newCachedThreadPool();
     } catch (UnknownHostException e) {
       throw new AssertionError(e);
     }
   }
 
   public Uri getUri() {
-    return Uri.parse(String.format(Locale.ROOT, "http://127.0.0.1:%d/%s", port, auth));
+    return Uri.parse(getUrl());
+  }
+
+  @VisibleForTesting
+  String getUrl() {
+    return String.format(Locale.ROOT, "http://127.0.0.1:%d/%s", port, auth);
   }
 
   public void start() {
     isRunning = true;
-    new Thread(this).start();
+    new Thread(this::acceptConnections, TAG).start();
   }
 
   public void stop() {
     isRunning = false;
-  }
-
-  @Override
-  public void run() {
-    while (isRunning) {
-      Socket client = null;
 
-      try {
-        client = socket.accept();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
 
-        if (client != null) {
-          StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client, "/" + auth);
+    for (Socket client : clients) {
+      closeQuietly(client);
+    }
 
-          if (task.processRequest()) {
-            task.execute();
-          }
-        }
+    executor.shutdownNow();
+  }
 
-      } catch (SocketTimeoutException e) {
-        Log.w(TAG, e);
+  private void acceptConnections() {
+    while (isRunning) {
+      try {
+        Socket client = socket.accept();
+        clients.add(client);
+        executor.execute(() -> serve(client));
       } catch (IOException e) {
-        Log.e(TAG, "Error connecting to client", e);
-      } finally {
-        try {if (client != null) client.close();} catch (IOException e) {}
+        if (isRunning) Log.e(TAG, "Error connecting to client", e);
       }
     }
 
     Log.d(TAG, "Proxy interrupted. Shutting down.");
   }
 
+  private void serve(@NonNull Socket client) {
+    try {
+      client.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+
+      InputStream  input  = new BufferedInputStream(client.getInputStream());
+      OutputStream output = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+      Request      request;
 
-  private class StreamToMediaPlayerTask {
+      while (isRunning && (request = Request.read(input)) != null) {
+        if (!respond(request, output)) break;
+      }
+    } catch (SocketTimeoutException e) {
+      Log.d(TAG, "Closing idle connection.");
+    } catch (SocketException e) {
+      Log.d(TAG, "Client closed the connection.");
+    } catch (IOException e) {
+      Log.w(TAG, "Error serving client", e);
+    } finally {
+      clients.remove(client);
+      closeQuietly(client);
+    }
+  }
 
-    private final @NonNull Socket client;
-    private final @NonNull String auth;
+  /**
+   * @return true if the connection can be kept alive.
+   */
+  private boolean respond(@NonNull Request request, @NonNull OutputStream output) throws IOException {
+    if (request.uri == null || !MessageDigest.isEqual(request.uri.getBytes(), ("/" + auth).getBytes())) {
+      Log.w(TAG, "Bad auth token!");
+      writeHeaders(output, "403 Forbidden", 0, null, false);
+      return false;
+    }
 
-    private long       cbSkip;
-    private Properties parameters;
-    private Properties request;
-    private Properties requestHeaders;
-//    private String filePath;
+    boolean isHead = "HEAD".equals(request.method);
 
-    public StreamToMediaPlayerTask(@NonNull Socket client, @NonNull String auth) {
-      this.client = client;
-      this.auth   = auth;
+    if (!isHead && !"GET".equals(request.method)) {
+      Log.w(TAG, "Only GET and HEAD are supported: " + request.method);
+      writeHeaders(output, "405 Method Not Allowed", 0, null, false);
+      return false;
     }
 
-    public boolean processRequest() throws IOException {
-            InputStream is         = client.getInputStream();
-      final int         bufferSize = 8192;
-            byte[]      buffer     = new byte[bufferSize];
-            int         splitByte  = 0;
-            int         readLength = 0;
-
-      {
-        int read = is.read(buffer, 0, bufferSize);
-        while (read > 0) {
-          readLength += read;
-          splitByte = findHeaderEnd(buffer, readLength);
-          if (splitByte > 0)
-            break;
-          read = is.read(buffer, readLength, bufferSize - readLength);
-        }
-      }
+    long      size      = source.getSize();
+    boolean   keepAlive = request.isKeepAlive();
+    ByteRange range     = ByteRange.parse(request.headers.get("range"), size);
 
-      // Create a BufferedReader for parsing the header.
-      ByteArrayInputStream hbis = new ByteArrayInputStream(buffer, 0, readLength);
-      BufferedReader       hin  = new BufferedReader(new InputStreamReader(hbis));
+    if (range == ByteRange.UNSATISFIABLE) {
+      writeHeaders(output, "416 Range Not Satisfiable", 0, "bytes */" + size, keepAlive);
+      return keepAlive;
+    }
 
-      request        = new Properties();
-      parameters     = new Properties();
-      requestHeaders = new Properties();
+    long start  = range != null ? range.start : 0;
+    long length = range != null ? range.end - range.start + 1 : size;
 
-      try {
-        decodeHeader(hin, request, parameters, requestHeaders);
-      } catch (InterruptedException e1) {
-        Log.e(TAG, "Exception: " + e1.getMessage());
-        e1.printStackTrace();
-      }
+    if (range != null) {
+      writeHeaders(output, "206 Partial Content", length, "bytes " + range.start + "-" + range.end + "/" + size, keepAlive);
+    } else {
+      writeHeaders(output, "200 OK", length, null, keepAlive);
+    }
 
-      for (Map.Entry<Object, Object> e : requestHeaders.entrySet()) {
-        Log.i(TAG, "Header: " + e.getKey() + " : " + e.getValue());
+    if (!isHead && length > 0) {
+      try (InputStream data = source.open(start)) {
+        copy(data, output, length);
       }
+    }
 
-      String range = requestHeaders.getProperty("range");
+    output.flush();
+    return keepAlive;
+  }
 
-      if (range != null) {
-        Log.i(TAG, "range is: " + range);
-        range = range.substring(6);
-        int charPos = range.indexOf('-');
-        if (charPos > 0) {
-          range = range.substring(0, charPos);
-        }
-        cbSkip = Long.parseLong(range);
-        Log.i(TAG, "range found!! " + cbSkip);
-      }
+  private void writeHeaders(@NonNull OutputStream output, @NonNull String status, long contentLength, @Nullable String contentRange, boolean keepAlive)
+      throws IOException
+  {
+    StringBuilder headers = new StringBuilder();
+    headers.append("HTTP/1.1 ").append(status).append("\r\n");
 
-      if (!"GET".equals(request.get("method"))) {
-        Log.e(TAG, "Only GET is supported: " + request.get("method"));
-        return false;
-      }
+    if (source.getContentType() != null) {
+      headers.append("Content-Type: ").append(source.getContentType()).append("\r\n");
+    }
 
-      String receivedAuth = request.getProperty("uri");
+    headers.append("Accept-Ranges: bytes\r\n");
+    headers.append("Content-Length: ").append(contentLength).append("\r\n");
 
-      if (receivedAuth == null || !MessageDigest.isEqual(receivedAuth.getBytes(), auth.getBytes())) {
-        Log.w(TAG, "Bad auth token!");
-        return false;
-      }
+    if (contentRange != null) {
+      headers.append("Content-Range: ").append(contentRange).append("\r\n");
+    }
 
-//      filePath = request.getProperty("uri");
+    headers.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+    headers.append("\r\n");
 
-      return true;
+    output.write(headers.toString().getBytes(StandardCharsets.US_ASCII));
+    output.flush();
+  }
+
+  private static void copy(@NonNull InputStream input, @NonNull OutputStream output, long length) throws IOException {
+    byte[] buffer    = new byte[BUFFER_SIZE];
+    long   remaining = length;
+
+    while (remaining > 0) {
+      int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (read == -1) throw new EOFException("Attachment ended " + remaining + " bytes early");
+
+      output.write(buffer, 0, read);
+      remaining -= read;
     }
+  }
 
-    protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
-
-      String headers = "";
-      if (cbSkip > 0) {// It is a seek or skip request if there's a Range
-        // header
-        headers += "HTTP/1.1 206 Partial Content\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + (fileSize - cbSkip) + "\r\n";
-        headers += "Content-Range: bytes " + cbSkip + "-" + (fileSize - 1) + "/" + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
-      } else {
-        headers += "HTTP/1.1 200 OK\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
-      }
+  private static void closeQuietly(@NonNull Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
 
-      Log.i(TAG, "headers: " + headers);
+  private static class AttachmentSource implements MediaSource {
 
-      OutputStream output = null;
-      byte[] buff = new byte[64 * 1024];
-      try {
-        output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-        output.write(headers.getBytes());
+    private final Context    context;
+    private final Attachment attachment;
 
-        inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
+    private AttachmentSource(@NonNull Context context, @NonNull Attachment attachment) {
+      this.context    = context;
+      this.attachment = attachment;
+    }
 
-        // Loop as long as there's stuff to send and client has not closed
-        int cbRead;
-        while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
-          output.write(buff, 0, cbRead);
-        }
-      }
-      catch (SocketException socketException) {
-        Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
-      }
-      catch (Exception e) {
-        Log.e(TAG, "Exception thrown from streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-      }
+    @Override
+    public long getSize() {
+      return attachment.getSize();
+    }
 
-      // Cleanup
-      try {
-        if (output != null) {
-          output.close();
-        }
-        client.close();
-      }
-      catch (IOException e) {
-        Log.e(TAG, "IOException while cleaning up streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-        e.printStackTrace();
-      }
+    @Override
+    public @Nullable String getContentType() {
+      return attachment.getContentType();
     }
 
-    /**
-     * Find byte index separating header from body. It must be the last byte of
-     * the first two sequential new lines.
-     **/
-    private int findHeaderEnd(final byte[] buf, int rlen) {
-      int splitbyte = 0;
-      while (splitbyte + 3 < rlen) {
-        if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n'
-            && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n')
-          return splitbyte + 4;
-        splitbyte++;
-      }
-      return 0;
+    @Override
+    public @NonNull InputStream open(long offset) throws IOException {
+      return PartAuthority.getAttachmentStream(context, attachment.getDataUri(), offset);
     }
+  }
 
+  private static class Request {
+
+    private final String              method;
+    private final String              uri;
+    private final String              version;
+    private final Map<String, String> headers;
+
+    private Request(@NonNull String method, @Nullable String uri, @Nullable String version, @NonNull Map<String, String> headers) {
+      this.method  = method;
+      this.uri     = uri;
+      this.version = version;
+      this.headers = headers;
+    }
+
+    private boolean isKeepAlive() {
+      String connection = headers.get("connection");
+
+      if ("HTTP/1.1".equals(version)) return !"close".equalsIgnoreCase(connection);
+      else                            return "keep-alive".equalsIgnoreCase(connection);
+    }
 
     /**
-     * Decodes the sent headers and loads the data into java Properties' key -
-     * value pairs
-     **/
-    private void decodeHeader(BufferedReader in, Properties pre,
-                              Properties parms, Properties header) throws InterruptedException {
-      try {
-        // Read the request line
-        String inLine = in.readLine();
-        if (inLine == null)
-          return;
-        StringTokenizer st = new StringTokenizer(inLine);
-        if (!st.hasMoreTokens())
-          Log.e(TAG, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-
-        String method = st.nextToken();
-        pre.put("method", method);
-
-        if (!st.hasMoreTokens())
-          Log.e(TAG, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-
-        String uri = st.nextToken();
-
-        // Decode parameters from the URI
-        int qmi = uri.indexOf('?');
-        if (qmi >= 0) {
-          decodeParms(uri.substring(qmi + 1), parms);
-          uri = decodePercent(uri.substring(0, qmi));
-        } else
-          uri = decodePercent(uri);
-
-        // If there's another token, it's protocol version,
-        // followed by HTTP headers. Ignore version but parse headers.
-        // NOTE: this now forces header names lowercase since they are
-        // case insensitive and vary by client.
-        if (st.hasMoreTokens()) {
-          String line = in.readLine();
-          while (line != null && line.trim().length() > 0) {
-            int p = line.indexOf(':');
-            if (p >= 0)
-              header.put(line.substring(0, p).trim().toLowerCase(),
-                         line.substring(p + 1).trim());
-            line = in.readLine();
-          }
+     * @return the next request on the connection, or null if the client closed it.
+     */
+    private static @Nullable Request read(@NonNull InputStream input) throws IOException {
+      int[]  headerSize  = new int[1];
+      String requestLine = readLine(input, headerSize);
+
+      if (requestLine == null) return null;
+
+      String[] parts = requestLine.split(" ");
+
+      Map<String, String> headers = new HashMap<>();
+      String              line;
+
+      while ((line = readLine(input, headerSize)) != null && !line.isEmpty()) {
+        int separator = line.indexOf(':');
+
+        if (separator > 0) {
+          // Header names are case insensitive
+          headers.put(line.substring(0, separator).trim().toLowerCase(Locale.ROOT), line.substring(separator + 1).trim());
         }
+      }
+
+      if (line == null) throw new EOFException("Connection closed within the request headers");
+
+      String uri = parts.length > 1 ? parts[1] : null;
 
-        pre.put("uri", uri);
-      } catch (IOException ioe) {
-        Log.e(TAG, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+      // The auth token is all that's expected
+      if (uri != null && uri.indexOf('?') >= 0) {
+        uri = uri.substring(0, uri.indexOf('?'));
       }
+
+      return new Request(parts[0], uri, parts.length > 2 ? parts[2] : null, headers);
     }
 
-    /**
-     * Decodes parameters in percent-encoded URI-format ( e.g.
-     * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given
-     * Properties. NOTE: this doesn't support multiple identical keys due to the
-     * simplicity of Properties -- if you need multiples, you might want to
-     * replace the Properties with a Hashtable of Vectors or such.
-     */
-    private void decodeParms(String parms, Properties p)
-        throws InterruptedException {
-      if (parms == null)
-        return;
-
-      StringTokenizer st = new StringTokenizer(parms, "&");
-      while (st.hasMoreTokens()) {
-        String e = st.nextToken();
-        int sep = e.indexOf('=');
-        if (sep >= 0)
-          p.put(decodePercent(e.substring(0, sep)).trim(),
-                decodePercent(e.substring(sep + 1)));
+    private static @Nullable String readLine(@NonNull InputStream input, @NonNull int[] headerSize) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int           read;
+
+      while ((read = input.read()) != -1) {
+        if (++headerSize[0] > MAX_HEADER_SIZE) throw new IOException("Request headers are too large");
+        if (read == '\n') break;
+        if (read != '\r') line.append((char) read);
       }
+
+      if (read == -1 && line.length() == 0) return null;
+      return line.toString();
+    }
+  }
+
+  @VisibleForTesting
+  static class ByteRange {
+
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    final long start;
+    final long end;
+
+    private ByteRange(long start, long end) {
+      this.start = start;
+      this.end   = end;
     }
 
     /**
-     * Decodes the percent encoding scheme. <br/>
-     * For example: "an+example%20string" -> "an example string"
+     * Parses a single range of a Range header, e.g. "bytes=100-199", "bytes=100-" or "bytes=-100".
+     *
+     * @return null if the whole content should be served, which includes headers that can't be
+     * parsed or that specify multiple ranges, or {@link #UNSATISFIABLE}.
      */
-    private String decodePercent(String str) throws InterruptedException {
+    static @Nullable ByteRange parse(@Nullable String header, long size) {
+      if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+
+      String spec      = header.substring("bytes=".length()).trim();
+      int    separator = spec.indexOf('-');
+
+      if (separator < 0) return null;
+
       try {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < str.length(); i++) {
-          char c = str.charAt(i);
-          switch (c) {
-            case '+':
-              sb.append(' ');
-              break;
-            case '%':
-              sb.append((char) Integer.parseInt(
-                  str.substring(i + 1, i + 3), 16));
-              i += 2;
-              break;
-            default:
-              sb.append(c);
-              break;
-          }
+        String first = spec.substring(0, separator).trim();
+        String last  = spec.substring(separator + 1).trim();
+
+        if (first.isEmpty()) {
+          long suffixLength = Long.parseLong(last);
+          if (suffixLength <= 0 || size == 0) return UNSATISFIABLE;
+          return new ByteRange(Math.max(0, size - suffixLength), size - 1);
         }
-        return sb.toString();
-      } catch (Exception e) {
-        Log.e(TAG, "BAD REQUEST: Bad percent-encoding.");
+
+        long start = Long.parseLong(first);
+        long end   = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+
+        if (start >= size) return UNSATISFIABLE;
+        if (end < start)   return null;
+
+        return new ByteRange(start, end);
+      } catch (NumberFormatException e) {
         return null;
       }
     }
   }
-}
\ No newline at end of file
+}
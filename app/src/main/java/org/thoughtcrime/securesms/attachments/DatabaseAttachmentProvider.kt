@@ -15,6 +15,7 @@ import org.session.libsignal.messages.SignalServiceAttachmentPointer
 import org.session.libsignal.messages.SignalServiceAttachmentStream
 import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.Log
+import org.thoughtcrime.securesms.ApplicationContext
 import org.thoughtcrime.securesms.database.AttachmentDatabase
 import org.thoughtcrime.securesms.database.Database
 import org.thoughtcrime.securesms.database.DatabaseFactory
@@ -146,6 +147,8 @@ class DatabaseAttachmentProvider(context: Context, helper: SQLCipherOpenHelper)
             db.delete(messageID)
         }
         DatabaseFactory.getLokiMessageDatabase(context).deleteMessage(messageID, isSms)
+        // The message may not have been read yet, and mustn't stay in the notification
+        ApplicationContext.getInstance(context).messageNotifier.updateNotification(context)
     }
 
     override fun getDatabaseAttachment(attachmentId: Long): DatabaseAttachment? {
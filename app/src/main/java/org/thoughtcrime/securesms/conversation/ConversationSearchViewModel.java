@@ -1,40 +1,53 @@
 package org.thoughtcrime.securesms.conversation;
 
 import android.app.Application;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.thoughtcrime.securesms.contacts.ContactAccessor;
-import org.thoughtcrime.securesms.database.CursorList;
+import org.thoughtcrime.securesms.database.DatabaseContentProviders;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.search.MessageSearchEngine;
 import org.thoughtcrime.securesms.search.SearchRepository;
 import org.thoughtcrime.securesms.search.model.MessageResult;
-import org.thoughtcrime.securesms.util.CloseableLiveData;
 import org.session.libsession.utilities.Debouncer;
 import org.session.libsession.utilities.Util;
 import org.session.libsession.utilities.concurrent.SignalExecutors;
 
-import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class ConversationSearchViewModel extends AndroidViewModel {
 
+  /** Loads the next page once the user gets this close to the oldest loaded result. */
+  private static final int PREFETCH_DISTANCE = 10;
+
   private final SearchRepository                searchRepository;
-  private final CloseableLiveData<SearchResult> result;
+  private final MutableLiveData<SearchResult>   result;
   private final Debouncer                       debouncer;
+  private final ThreadObserver                  threadObserver;
 
-  private boolean firstSearch;
-  private boolean searchOpen;
-  private String  activeQuery;
-  private long    activeThreadId;
+  private boolean                    firstSearch;
+  private boolean                    searchOpen;
+  private String                     activeQuery;
+  private long                       activeThreadId;
+  private long                       observedThreadId = -1;
+  private MessageSearchEngine.Search activeSearch;
 
   public ConversationSearchViewModel(@NonNull Application application) {
     super(application);
     Context context = application.getApplicationContext();
-    result           = new CloseableLiveData<>();
+    result           = new MutableLiveData<>();
     debouncer        = new Debouncer(500);
+    threadObserver   = new ThreadObserver(new Handler());
     searchRepository = new SearchRepository(context,
                                             DatabaseFactory.getSearchDatabase(context),
                                             DatabaseFactory.getThreadDatabase(context),
@@ -48,7 +61,7 @@ public class ConversationSearchViewModel extends AndroidViewModel {
 
   void onQueryUpdated(@NonNull String query, long threadId) {
     if (firstSearch && query.length() < 2) {
-      result.postValue(new SearchResult(CursorList.emptyList(), 0));
+      result.postValue(SearchResult.EMPTY);
       return;
     }
 
@@ -68,19 +81,23 @@ public class ConversationSearchViewModel extends AndroidViewModel {
   void onMoveUp() {
     debouncer.clear();
 
-    CursorList<MessageResult> messages = (CursorList<MessageResult>) result.getValue().getResults();
-    int                       position = Math.min(result.getValue().getPosition() + 1, messages.size() - 1);
+    SearchResult current  = result.getValue();
+    int          position = Math.min(current.getPosition() + 1, current.getResults().size() - 1);
+
+    if (current.hasMore() && position >= current.getResults().size() - PREFETCH_DISTANCE && activeSearch != null) {
+      activeSearch.loadNextPage();
+    }
 
-    result.setValue(new SearchResult(messages, position), false);
+    result.setValue(new SearchResult(current.getResults(), position, current.hasMore()));
   }
 
   void onMoveDown() {
     debouncer.clear();
 
-    CursorList<MessageResult> messages = (CursorList<MessageResult>) result.getValue().getResults();
-    int                       position = Math.max(result.getValue().getPosition() - 1, 0);
+    SearchResult current  = result.getValue();
+    int          position = Math.max(current.getPosition() - 1, 0);
 
-    result.setValue(new SearchResult(messages, position), false);
+    result.setValue(new SearchResult(current.getResults(), position, current.hasMore()));
   }
 
 
@@ -92,42 +109,129 @@ public class ConversationSearchViewModel extends AndroidViewModel {
   void onSearchClosed() {
     searchOpen = false;
     debouncer.clear();
-    result.close();
+    cancelActiveSearch();
+    stopObservingThread();
   }
 
   @Override
   protected void onCleared() {
     super.onCleared();
-    result.close();
+    cancelActiveSearch();
+    stopObservingThread();
+  }
+
+  private void observeThread(long threadId) {
+    if (threadId == observedThreadId) return;
+
+    stopObservingThread();
+
+    Uri uri = DatabaseContentProviders.Conversation.getUriForThread(threadId);
+    getApplication().getContentResolver().registerContentObserver(uri, true, threadObserver);
+    observedThreadId = threadId;
+  }
+
+  private void stopObservingThread() {
+    if (observedThreadId != -1) {
+      getApplication().getContentResolver().unregisterContentObserver(threadObserver);
+      observedThreadId = -1;
+    }
+  }
+
+  private void cancelActiveSearch() {
+    if (activeSearch != null) {
+      activeSearch.cancel();
+      activeSearch = null;
+    }
   }
 
   private void updateQuery(@NonNull String query, long threadId) {
+    updateQuery(query, threadId, null);
+  }
+
+  /**
+   * @param selected the result to keep selected once the new results come in, if it's still among them.
+   */
+  private void updateQuery(@NonNull String query, long threadId, @Nullable MessageResult selected) {
     activeQuery    = query;
     activeThreadId = threadId;
 
     debouncer.publish(() -> {
       firstSearch = false;
 
-      searchRepository.query(query, threadId, messages -> {
+      cancelActiveSearch();
+      observeThread(threadId);
+
+      activeSearch = searchRepository.query(query, threadId, page -> {
         Util.runOnMain(() -> {
-          if (searchOpen && query.equals(activeQuery)) {
-            result.setValue(new SearchResult(messages, 0));
+          if (!searchOpen || !query.equals(activeQuery)) {
+            return;
+          }
+
+          if (page.isFirstPage()) {
+            result.setValue(new SearchResult(page.getResults(), Math.max(indexOf(page.getResults(), selected), 0), page.hasMore()));
           } else {
-            messages.close();
+            SearchResult        current  = result.getValue();
+            List<MessageResult> messages = new ArrayList<>(current.getResults());
+
+            messages.addAll(page.getResults());
+            result.setValue(new SearchResult(messages, current.getPosition(), page.hasMore()));
           }
         });
       });
     });
   }
 
-  static class SearchResult implements Closeable {
+  private static int indexOf(@NonNull List<MessageResult> results, @Nullable MessageResult result) {
+    if (result == null) return -1;
+
+    for (int i = 0; i < results.size(); i++) {
+      MessageResult candidate = results.get(i);
+
+      if (candidate.receivedTimestampMs == result.receivedTimestampMs &&
+          candidate.messageRecipient.getAddress().equals(result.messageRecipient.getAddress()))
+      {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Searches the thread again when its messages change, so that the results don't go stale.
+   */
+  private class ThreadObserver extends ContentObserver {
+    ThreadObserver(Handler handler) {
+      super(handler);
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+      if (!searchOpen || activeQuery == null) return;
+
+      SearchResult  current  = result.getValue();
+      MessageResult selected = null;
+
+      if (current != null && current.getPosition() < current.getResults().size()) {
+        selected = current.getResults().get(current.getPosition());
+      }
+
+      updateQuery(activeQuery, activeThreadId, selected);
+    }
+  }
+
+  static class SearchResult {
 
-    private final CursorList<MessageResult> results;
-    private final int                       position;
+    static final SearchResult EMPTY = new SearchResult(Collections.emptyList(), 0, false);
 
-    SearchResult(CursorList<MessageResult> results, int position) {
+    private final List<MessageResult> results;
+    private final int                 position;
+    private final boolean             hasMore;
+
+    SearchResult(List<MessageResult> results, int position, boolean hasMore) {
       this.results  = results;
       this.position = position;
+      this.hasMore  = hasMore;
     }
 
     public List<MessageResult> getResults() {
@@ -138,9 +242,8 @@ public class ConversationSearchViewModel extends AndroidViewModel {
       return position;
     }
 
-    @Override
-    public void close() {
-      results.close();
+    public boolean hasMore() {
+      return hasMore;
     }
   }
 }
@@ -0,0 +1,164 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import androidx.annotation.NonNull;
+
+import org.session.libsession.utilities.Conversions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access to a file written by {@link ModernEncryptingPartOutputStream}.
+ *
+ * The file and cipher stay open between reads. Reads are served from a decrypted read-ahead
+ * buffer, and a seek only repositions the CTR counter, so playing media back decrypts each byte
+ * about once instead of reopening the file and deriving the key for every read.
+ */
+public class ModernDecryptingPartReader implements Closeable {
+
+  private static final int BLOCK_SIZE          = 16;
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final FileInputStream inputStream;
+  private final FileChannel     channel;
+  private final SecretKeySpec   key;
+  private final Cipher          cipher;
+  private final ByteBuffer      encrypted;
+  private final byte[]          decrypted;
+
+  private long bufferPosition = -1;
+  private int  bufferLength;
+  private long cipherPosition = -1;
+  private long decryptedByteCount;
+
+  public ModernDecryptingPartReader(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    this(attachmentSecret, random, file, DEFAULT_BUFFER_SIZE);
+  }
+
+  ModernDecryptingPartReader(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file, int bufferSize)
+      throws IOException
+  {
+    if (bufferSize <= 0 || bufferSize % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("Buffer size must be a multiple of " + BLOCK_SIZE + ": " + bufferSize);
+    }
+
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.key    = new SecretKeySpec(mac.doFinal(random), "AES");
+      this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+
+    this.inputStream = new FileInputStream(file);
+    this.channel     = inputStream.getChannel();
+    this.encrypted   = ByteBuffer.allocate(bufferSize);
+    this.decrypted   = new byte[bufferSize];
+  }
+
+  /**
+   * Reads decrypted data starting at the given position.
+   *
+   * @return The number of bytes read, or -1 if the position is at or past the end of the data.
+   */
+  public synchronized int read(long position, @NonNull byte[] bytes, int offset, int length) throws IOException {
+    if (position < 0) throw new IOException("Negative position: " + position);
+    if (length == 0)  return 0;
+
+    int total = 0;
+
+    while (total < length) {
+      long current = position + total;
+
+      if (current < bufferPosition || current >= bufferPosition + bufferLength) {
+        if (current >= channel.size()) break;
+
+        fill(current);
+
+        if (current >= bufferPosition + bufferLength) break;
+      }
+
+      int start = (int) (current - bufferPosition);
+      int count = Math.min(length - total, bufferLength - start);
+
+      System.arraycopy(decrypted, start, bytes, offset + total, count);
+      total += count;
+    }
+
+    return total > 0 ? total : -1;
+  }
+
+  /**
+   * @return The number of bytes this reader has decrypted so far.
+   */
+  synchronized long getDecryptedByteCount() {
+    return decryptedByteCount;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    inputStream.close();
+  }
+
+  private void fill(long position) throws IOException {
+    // Buffers cover aligned windows, so that reads slightly behind the last one still hit
+    long blockStart = position - position % decrypted.length;
+
+    // Sequential reads carry on with the cipher as it is, anything else moves its counter
+    if (blockStart != cipherPosition) {
+      seek(blockStart);
+    }
+
+    encrypted.clear();
+
+    while (encrypted.hasRemaining()) {
+      if (channel.read(encrypted, blockStart + encrypted.position()) == -1) break;
+    }
+
+    encrypted.flip();
+
+    int count = encrypted.remaining();
+
+    try {
+      bufferLength = count > 0 ? cipher.update(encrypted.array(), 0, count, decrypted, 0) : 0;
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    bufferPosition      = blockStart;
+    cipherPosition      = count % BLOCK_SIZE == 0 ? blockStart + count : -1;
+    decryptedByteCount += count;
+  }
+
+  private void seek(long blockStart) {
+    byte[] iv = new byte[16];
+    Conversions.longTo4ByteArray(iv, 12, blockStart / BLOCK_SIZE);
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+
+    cipherPosition = blockStart;
+  }
+}
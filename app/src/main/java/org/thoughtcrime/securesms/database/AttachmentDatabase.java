@@ -17,6 +17,7 @@
 package org.thoughtcrime.securesms.database;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -167,6 +168,22 @@ public class AttachmentDatabase extends Database {
     else                    return dataStream;
   }
 
+  /**
+   * Provides random access to the decrypted attachment data without loading it in memory.
+   */
+  @TargetApi(Build.VERSION_CODES.M)
+  public @Nullable EncryptedMediaDataSource getMediaDataSource(@NonNull AttachmentId attachmentId) {
+    DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+    if (dataInfo == null) {
+      return null;
+    }
+
+    dataInfo = migrateToModern(attachmentId, dataInfo);
+
+    return new EncryptedMediaDataSource(attachmentSecret, dataInfo.file, dataInfo.random, dataInfo.length);
+  }
+
   public @NonNull InputStream getThumbnailStream(@NonNull AttachmentId attachmentId)
       throws IOException
   {
@@ -613,6 +630,42 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Classic files can only be decrypted from the start, which makes seeking through them cost as
+   * much as reading everything before the new position. They're rewritten in the modern format the
+   * first time random access is needed.
+   */
+  private @NonNull DataInfo migrateToModern(@NonNull AttachmentId attachmentId, @NonNull DataInfo dataInfo) {
+    if (dataInfo.random != null && dataInfo.random.length == 32) {
+      return dataInfo;
+    }
+
+    try {
+      DataInfo      migrated = setAttachmentData(ClassicDecryptingPartInputStream.createFor(attachmentSecret, dataInfo.file));
+      ContentValues values   = new ContentValues();
+
+      values.put(DATA, migrated.file.getAbsolutePath());
+      values.put(DATA_RANDOM, migrated.random);
+
+      String   where = PART_ID_WHERE + " AND " + DATA + " = ?";
+      String[] args  = new String[] { String.valueOf(attachmentId.getRowId()), String.valueOf(attachmentId.getUniqueId()), dataInfo.file.getAbsolutePath() };
+
+      if (databaseHelper.getWritableDatabase().update(TABLE_NAME, values, where, args) == 0) {
+        // Migrated or replaced in the meantime
+        migrated.file.delete();
+        return dataInfo;
+      }
+
+      dataInfo.file.delete();
+
+      Log.i(TAG, "Migrated " + attachmentId + " to the modern format.");
+      return new DataInfo(migrated.file, dataInfo.length, migrated.random);
+    } catch (IOException | MmsException e) {
+      Log.w(TAG, "Failed to migrate " + attachmentId + " to the modern format.", e);
+      return dataInfo;
+    }
+  }
+
   public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
     try {
       if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
@@ -886,6 +939,8 @@ public class AttachmentDatabase extends Database {
         return null;
       }
 
+      dataInfo = migrateToModern(attachmentId, dataInfo);
+
       EncryptedMediaDataSource dataSource = new EncryptedMediaDataSource(attachmentSecret, dataInfo.file, dataInfo.random, dataInfo.length);
       MediaMetadataRetriever   retriever  = new MediaMetadataRetriever();
       retriever.setDataSource(dataSource);
@@ -0,0 +1,121 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs a batch of message inserts in a single transaction.
+ *
+ * While a batch is running on the current thread, thread summary updates and listener
+ * notifications are collected instead of being applied right away. Each thread is then updated
+ * once before the transaction commits, and listeners are notified once after it did. As thread
+ * updates are deferred, deletions within a batch can't tell whether they emptied (and so deleted)
+ * their thread.
+ */
+public final class BatchedUpdates {
+
+  public interface Target {
+    void beginTransaction();
+    void setTransactionSuccessful();
+    void endTransaction();
+    void updateThread(long threadId, boolean unarchive);
+    void notifyConversationListeners(long threadId);
+    void notifyConversationListListeners();
+  }
+
+  private static final ThreadLocal<BatchedUpdates> ACTIVE = new ThreadLocal<>();
+
+  private final Map<Long, Boolean> threadUpdates             = new LinkedHashMap<>();
+  private final Set<Long>          conversationNotifications = new LinkedHashSet<>();
+
+  private boolean conversationListNotification;
+  private boolean flushing;
+
+  private BatchedUpdates() {}
+
+  /**
+   * Runs {@code batch} in a transaction, deferring thread updates and notifications until it's
+   * done. A batch started from within another one simply joins it.
+   */
+  public static void run(@NonNull Target target, @NonNull Runnable batch) {
+    if (ACTIVE.get() != null) {
+      batch.run();
+      return;
+    }
+
+    BatchedUpdates updates    = new BatchedUpdates();
+    boolean        successful = false;
+
+    ACTIVE.set(updates);
+    target.beginTransaction();
+
+    try {
+      batch.run();
+
+      updates.flushing = true;
+
+      for (Map.Entry<Long, Boolean> threadUpdate : updates.threadUpdates.entrySet()) {
+        target.updateThread(threadUpdate.getKey(), threadUpdate.getValue());
+      }
+
+      target.setTransactionSuccessful();
+      successful = true;
+    } finally {
+      ACTIVE.remove();
+      target.endTransaction();
+    }
+
+    if (successful) {
+      for (long threadId : updates.conversationNotifications) {
+        target.notifyConversationListeners(threadId);
+      }
+
+      if (updates.conversationListNotification) {
+        target.notifyConversationListListeners();
+      }
+    }
+  }
+
+  /**
+   * @return true if the update was deferred to the end of the running batch.
+   */
+  static boolean deferThreadUpdate(long threadId, boolean unarchive) {
+    BatchedUpdates updates = active();
+    if (updates == null || updates.flushing) return false;
+
+    Boolean previous = updates.threadUpdates.get(threadId);
+    updates.threadUpdates.put(threadId, unarchive || (previous != null && previous));
+    return true;
+  }
+
+  /**
+   * @return true if the notification was deferred to the end of the running batch.
+   */
+  static boolean deferConversationNotification(long threadId) {
+    BatchedUpdates updates = active();
+    if (updates == null) return false;
+
+    updates.conversationNotifications.add(threadId);
+    return true;
+  }
+
+  /**
+   * @return true if the notification was deferred to the end of the running batch.
+   */
+  static boolean deferConversationListNotification() {
+    BatchedUpdates updates = active();
+    if (updates == null) return false;
+
+    updates.conversationListNotification = true;
+    return true;
+  }
+
+  private static @Nullable BatchedUpdates active() {
+    return ACTIVE.get();
+  }
+}
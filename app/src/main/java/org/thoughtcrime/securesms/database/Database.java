@@ -50,10 +50,12 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
+    if (BatchedUpdates.deferConversationNotification(threadId)) return;
     ConversationNotificationDebouncer.Companion.get(context).notify(threadId);
   }
 
   protected void notifyConversationListListeners() {
+    if (BatchedUpdates.deferConversationListNotification()) return;
     conversationListNotificationDebouncer.publish(()->context.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null));
   }
 
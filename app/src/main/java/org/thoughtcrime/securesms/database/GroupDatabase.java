@@ -140,30 +140,23 @@ public class GroupDatabase extends Database implements LokiOpenGroupDatabaseProt
   }
 
   public @NonNull List<Recipient> getGroupMembers(String groupId, boolean includeSelf) {
-    List<Address>   members     = getCurrentMembers(groupId, false);
-    List<Recipient> recipients  = new LinkedList<>();
+    List<Address> members  = getCurrentMembers(groupId, false);
+    List<Address> contacts = new LinkedList<>();
 
     for (Address member : members) {
       if (!includeSelf && Util.isOwnNumber(context, member.serialize()))
         continue;
 
       if (member.isContact()) {
-        recipients.add(Recipient.from(context, member, false));
+        contacts.add(member);
       }
     }
 
-    return recipients;
+    return Recipient.from(context, contacts, false);
   }
 
   public @NonNull List<Recipient> getGroupZombieMembers(String groupId) {
-    List<Address>   members     = getCurrentZombieMembers(groupId);
-    List<Recipient> recipients  = new LinkedList<>();
-
-    for (Address member : members) {
-        recipients.add(Recipient.from(context, member, false));
-    }
-
-    return recipients;
+    return Recipient.from(context, getCurrentZombieMembers(groupId), false);
   }
 
   public long create(@NonNull String groupId, @Nullable String title, @NonNull List<Address> members,
@@ -198,7 +191,7 @@ public class GroupDatabase extends Database implements LokiOpenGroupDatabaseProt
     Recipient.applyCached(Address.fromSerialized(groupId), recipient -> {
       recipient.setName(title);
       recipient.setGroupAvatarId(avatar != null ? avatar.getId() : null);
-      recipient.setParticipants(Stream.of(members).map(memberAddress -> Recipient.from(context, memberAddress, true)).toList());
+      recipient.setParticipants(Recipient.from(context, members, true));
     });
 
     notifyConversationListListeners();
@@ -285,7 +278,7 @@ public class GroupDatabase extends Database implements LokiOpenGroupDatabaseProt
                                                 new String[] {groupId});
 
     Recipient.applyCached(Address.fromSerialized(groupId), recipient -> {
-      recipient.setParticipants(Stream.of(members).map(a -> Recipient.from(context, a, false)).toList());
+      recipient.setParticipants(Recipient.from(context, members, false));
     });
   }
 
@@ -26,6 +26,12 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   private static final String TAG = MessagingDatabase.class.getSimpleName();
 
+  /**
+   * The time at which a message whose expiration timer started disappears. Queries need to use
+   * this exact expression (and filter on {@code EXPIRE_STARTED > 0}) to hit the expiration index.
+   */
+  protected static final String EXPIRES_AT = EXPIRE_STARTED + " + " + EXPIRES_IN;
+
   public MessagingDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -35,6 +41,16 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
   public abstract void markExpireStarted(long messageId);
   public abstract void markExpireStarted(long messageId, long startTime);
 
+  /**
+   * @return the ID and the expiration time of every message whose expiration timer started, soonest
+   * first, in the first and second column respectively.
+   */
+  public Cursor getExpiringMessages() {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    return database.rawQuery("SELECT " + ID + ", " + EXPIRES_AT + " FROM " + getTableName() +
+                             " WHERE " + EXPIRE_STARTED + " > 0 ORDER BY " + EXPIRES_AT, null);
+  }
+
   public abstract void markAsSent(long messageId, boolean secure);
   public abstract void markUnidentified(long messageId, boolean unidentified);
 
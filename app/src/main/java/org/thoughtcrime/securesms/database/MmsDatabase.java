@@ -128,6 +128,9 @@ public class MmsDatabase extends MessagingDatabase {
     QUOTE_MISSING + " INTEGER DEFAULT 0, " + SHARED_CONTACTS + " TEXT, " + UNIDENTIFIED + " INTEGER DEFAULT 0, " +
     LINK_PREVIEWS + " TEXT);";
 
+  public static final String CREATE_EXPIRES_AT_INDEX =
+    "CREATE INDEX IF NOT EXISTS mms_expires_at_index ON " + TABLE_NAME + " (" + EXPIRES_AT + ") WHERE " + EXPIRE_STARTED + " > 0;";
+
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS mms_thread_id_index ON " + TABLE_NAME + " (" + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS mms_read_index ON " + TABLE_NAME + " (" + READ + ");",
@@ -135,6 +138,7 @@ public class MmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");",
     "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
     "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    CREATE_EXPIRES_AT_INDEX,
   };
 
   private static final String[] MMS_PROJECTION = new String[] {
@@ -175,6 +179,12 @@ public class MmsDatabase extends MessagingDatabase {
 
   private static final String RAW_ID_WHERE = TABLE_NAME + "._id = ?";
 
+  private static final String INCREMENT_DELIVERY_RECEIPT_COUNT = "UPDATE " + TABLE_NAME + " SET " +
+      DELIVERY_RECEIPT_COUNT + " = " + DELIVERY_RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?";
+
+  private static final String INCREMENT_READ_RECEIPT_COUNT = "UPDATE " + TABLE_NAME + " SET " +
+      READ_RECEIPT_COUNT + " = " + READ_RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?";
+
   private final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
   private final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
 
@@ -252,7 +262,7 @@ public class MmsDatabase extends MessagingDatabase {
         if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
           Address theirAddress = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
           Address ourAddress   = messageId.getAddress();
-          String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
+          String  sql          = deliveryReceipt ? INCREMENT_DELIVERY_RECEIPT_COUNT : INCREMENT_READ_RECEIPT_COUNT;
 
           if (ourAddress.equals(theirAddress) || theirAddress.isGroup()) {
             long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
@@ -261,9 +271,7 @@ public class MmsDatabase extends MessagingDatabase {
 
             found = true;
 
-            database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                             columnName + " = " + columnName + " + 1 WHERE " + ID + " = ?",
-                             new String[] {String.valueOf(id)});
+            databaseHelper.getStatementCache().execute(sql, statement -> statement.bindLong(1, id));
 
             DatabaseFactory.getGroupReceiptDatabase(context).update(ourAddress, id, status, timestamp);
             DatabaseFactory.getThreadDatabase(context).update(threadId, false);
@@ -333,11 +341,6 @@ public class MmsDatabase extends MessagingDatabase {
     return cursor;
   }
 
-  public Reader getExpireStartedMessages() {
-    String where = EXPIRE_STARTED + " > 0";
-    return readerFor(rawQuery(where, null));
-  }
-
   private void updateMailboxBitmask(long id, long maskOff, long maskOn, Optional<Long> threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.execSQL("UPDATE " + TABLE_NAME +
@@ -18,6 +18,7 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -31,6 +32,7 @@ import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -110,6 +112,29 @@ public class MmsSmsDatabase extends Database {
     return getMessageFor(timestamp, author.serialize());
   }
 
+  /**
+   * Deletes the given messages in a single transaction. Each affected thread is updated, and its
+   * listeners notified, only once.
+   */
+  public void deleteMessages(@NonNull Collection<Long> smsIds, @NonNull Collection<Long> mmsIds) {
+    SmsDatabase    smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase    mmsDatabase    = DatabaseFactory.getMmsDatabase(context);
+    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    SQLiteDatabase database       = databaseHelper.getWritableDatabase();
+
+    BatchedUpdates.run(new BatchedUpdates.Target() {
+      @Override public void beginTransaction()                               { database.beginTransaction(); }
+      @Override public void setTransactionSuccessful()                       { database.setTransactionSuccessful(); }
+      @Override public void endTransaction()                                 { database.endTransaction(); }
+      @Override public void updateThread(long threadId, boolean unarchive)   { threadDatabase.update(threadId, unarchive); }
+      @Override public void notifyConversationListeners(long threadId)       { MmsSmsDatabase.this.notifyConversationListeners(threadId); }
+      @Override public void notifyConversationListListeners()                { MmsSmsDatabase.this.notifyConversationListListeners(); }
+    }, () -> {
+      for (long id : smsIds) smsDatabase.deleteMessage(id);
+      for (long id : mmsIds) mmsDatabase.delete(id);
+    });
+  }
+
   public Cursor getConversation(long threadId, long offset, long limit) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
@@ -139,6 +164,14 @@ public class MmsSmsDatabase extends Database {
     return queryTables(PROJECTION, selection, order, null);
   }
 
+  public Cursor getUnread(@NonNull Collection<Long> threadIds) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " +
+                       MmsSmsColumns.THREAD_ID + " IN (" + TextUtils.join(",", threadIds) + ")";
+
+    return queryTables(PROJECTION, selection, order, null);
+  }
+
   public int getUnreadCount(long threadId) {
     String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
     Cursor cursor    = queryTables(PROJECTION, selection, null, null);
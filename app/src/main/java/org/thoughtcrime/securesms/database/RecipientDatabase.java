@@ -11,6 +11,7 @@ import com.annimon.stream.Stream;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.helpers.StatementCache;
 
 import org.session.libsession.utilities.MaterialColor;
 import org.session.libsession.utilities.Address;
@@ -24,7 +25,10 @@ import org.session.libsignal.utilities.Log;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class RecipientDatabase extends Database {
 
@@ -95,6 +99,16 @@ public class RecipientDatabase extends Database {
           UNIDENTIFIED_ACCESS_MODE + " INTEGER DEFAULT 0, " +
           FORCE_SMS_SELECTION + " INTEGER DEFAULT 0);";
 
+  private static final String INSERT_IF_MISSING = "INSERT OR IGNORE INTO " + TABLE_NAME + " (" + ADDRESS + ") VALUES (?)";
+
+  private static final String UPDATE_CONTACT_PROFILE = "UPDATE " + TABLE_NAME + " SET " +
+      SYSTEM_DISPLAY_NAME + " = COALESCE(?, " + SYSTEM_DISPLAY_NAME + "), " +
+      PROFILE_KEY + " = COALESCE(?, " + PROFILE_KEY + "), " +
+      SIGNAL_PROFILE_AVATAR + " = COALESCE(?, " + SIGNAL_PROFILE_AVATAR + "), " +
+      PROFILE_SHARING + " = 1, " +
+      REGISTERED + " = " + RegisteredState.REGISTERED.getId() +
+      " WHERE " + ADDRESS + " = ?";
+
   public RecipientDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -124,6 +138,35 @@ public class RecipientDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the settings of all the given addresses with a single query. Addresses without any
+   * settings are left out of the result. Keep the number of addresses below SQLite's limit of 999
+   * bound arguments.
+   */
+  public @NonNull Map<Address, RecipientSettings> getRecipientSettings(@NonNull List<Address> addresses) {
+    Map<Address, RecipientSettings> results = new HashMap<>(addresses.size());
+
+    if (addresses.isEmpty()) return results;
+
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    String[]       args     = new String[addresses.size()];
+
+    for (int i = 0; i < addresses.size(); i++) {
+      args[i] = addresses.get(i).serialize();
+    }
+
+    String query = ADDRESS + " IN (" + Util.join(Collections.nCopies(args.length, "?"), ",") + ")";
+
+    try (Cursor cursor = database.query(TABLE_NAME, null, query, args, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        Address address = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+        results.put(address, getRecipientSettings(cursor).get());
+      }
+    }
+
+    return results;
+  }
+
   Optional<RecipientSettings> getRecipientSettings(@NonNull Cursor cursor) {
     boolean blocked                = cursor.getInt(cursor.getColumnIndexOrThrow(BLOCK))                == 1;
     String  messageRingtone        = cursor.getString(cursor.getColumnIndexOrThrow(NOTIFICATION));
@@ -273,6 +316,36 @@ public class RecipientDatabase extends Database {
     recipient.setRegistered(registeredState);
   }
 
+  /**
+   * Saves the profiles of many contacts at once, marking them as registered and sharing our
+   * profile with them. Null profile fields are left untouched. Runs in a single transaction; cached
+   * recipients aren't updated, see {@link Recipient#setContactProfile(String, byte[], String)}.
+   */
+  public void setContactProfiles(@NonNull List<ContactProfile> profiles) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    StatementCache statements = databaseHelper.getStatementCache();
+
+    database.beginTransaction();
+
+    try {
+      for (ContactProfile profile : profiles) {
+        String address = profile.address.serialize();
+
+        statements.execute(INSERT_IF_MISSING, statement -> statement.bindString(1, address));
+        statements.execute(UPDATE_CONTACT_PROFILE, statement -> {
+          StatementCache.bindStringOrNull(statement, 1, profile.name);
+          StatementCache.bindStringOrNull(statement, 2, profile.profileKey == null ? null : Base64.encodeBytes(profile.profileKey));
+          StatementCache.bindStringOrNull(statement, 3, profile.profileAvatar);
+          statement.bindString(4, address);
+        });
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
   private void updateOrInsert(Address address, ContentValues contentValues) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
@@ -290,6 +363,37 @@ public class RecipientDatabase extends Database {
     database.endTransaction();
   }
 
+  public static class ContactProfile {
+
+    private final @NonNull  Address address;
+    private final @Nullable String  name;
+    private final @Nullable byte[]  profileKey;
+    private final @Nullable String  profileAvatar;
+
+    public ContactProfile(@NonNull Address address, @Nullable String name, @Nullable byte[] profileKey, @Nullable String profileAvatar) {
+      this.address       = address;
+      this.name          = name;
+      this.profileKey    = profileKey;
+      this.profileAvatar = profileAvatar;
+    }
+
+    public @NonNull Address getAddress() {
+      return address;
+    }
+
+    public @Nullable String getName() {
+      return name;
+    }
+
+    public @Nullable byte[] getProfileKey() {
+      return profileKey;
+    }
+
+    public @Nullable String getProfileAvatar() {
+      return profileAvatar;
+    }
+  }
+
   public static class RecipientReader implements Closeable {
 
     private final Context context;
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
@@ -9,8 +10,10 @@ import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.search.model.MessageHit;
 import org.session.libsession.utilities.Util;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -27,6 +30,15 @@ public class SearchDatabase extends Database {
   public static final String SNIPPET              = "snippet";
   public static final String CONVERSATION_ADDRESS = "conversation_address";
   public static final String MESSAGE_ADDRESS      = "message_address";
+  public static final String MESSAGE_ID           = "message_id";
+  public static final String IS_MMS               = "is_mms";
+  public static final String RANK                 = "rank_key";
+
+  /**
+   * FTS ranks are floating point, so they're scaled and rounded to an integer {@link #RANK} that
+   * compares exactly when it's read back to resume paging.
+   */
+  private static final long RANK_SCALE = 1_000_000L;
 
   public static final String[] CREATE_TABLE = {
       "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
@@ -57,77 +69,108 @@ public class SearchDatabase extends Database {
           "END;"
   };
 
-  private static final String MESSAGES_QUERY =
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-        "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        SMS_FTS_TABLE_NAME + "."  + THREAD_ID + " " +
-      "FROM " + SmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? " +
-      "UNION ALL " +
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-        "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        MMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-      "FROM " + MmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? " +
-      "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-      "LIMIT 500";
-
-  private static final String MESSAGES_FOR_THREAD_QUERY =
-      "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-          MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-          "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-          SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          SMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-        "FROM " + SmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? AND " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "UNION ALL " +
-        "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-          MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-          "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-          MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          MMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-        "FROM " + MmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? AND " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-        "LIMIT 500";
-
   public SearchDatabase(@NonNull Context context, @NonNull SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
-  public Cursor queryMessages(@NonNull String query) {
+  /**
+   * Returns a page of matching messages, without snippets. Pages are ordered by
+   * ({@link #RANK}, {@link MmsSmsColumns#NORMALIZED_DATE_RECEIVED} descending, {@link #IS_MMS},
+   * {@link #MESSAGE_ID} descending) and resume strictly after the {@code after} hit.
+   *
+   * @param threadId the thread to search in, or -1 to search all threads.
+   * @param byRelevance whether to rank by FTS relevance. Otherwise all the hits share the same rank
+   *                    and the page is ordered by date only.
+   */
+  public Cursor queryMessagePage(@NonNull String query, long threadId, boolean byRelevance, @Nullable MessageHit after, int limit) {
     SQLiteDatabase db          = databaseHelper.getReadableDatabase();
     String         prefixQuery = adjustQuery(query);
-
-    Cursor cursor = db.rawQuery(MESSAGES_QUERY, new String[] { prefixQuery, prefixQuery });
+    List<String>   args        = new ArrayList<>(4);
+    StringBuilder  sql         = new StringBuilder();
+
+    sql.append("SELECT * FROM (");
+    appendPageSelect(sql, args, false, SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, SMS_FTS_TABLE_NAME, prefixQuery, threadId, byRelevance);
+    sql.append(" UNION ALL ");
+    appendPageSelect(sql, args, true, MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, MMS_FTS_TABLE_NAME, prefixQuery, threadId, byRelevance);
+    sql.append(")");
+
+    if (after != null) {
+      // The keyset values are numbers read back from a previous page, they're inlined to keep their
+      // numeric type (string arguments would never compare equal to the computed rank).
+      String rank = Long.toString(after.rank);
+      String date = Long.toString(after.receivedTimestampMs);
+      String mms  = after.mms ? "1" : "0";
+
+      sql.append(" WHERE ").append(RANK).append(" > ").append(rank)
+         .append(" OR (").append(RANK).append(" = ").append(rank).append(" AND (")
+         .append(MmsSmsColumns.NORMALIZED_DATE_RECEIVED).append(" < ").append(date)
+         .append(" OR (").append(MmsSmsColumns.NORMALIZED_DATE_RECEIVED).append(" = ").append(date).append(" AND (")
+         .append(IS_MMS).append(" > ").append(mms)
+         .append(" OR (").append(IS_MMS).append(" = ").append(mms).append(" AND ")
+         .append(MESSAGE_ID).append(" < ").append(after.messageId).append(")))))");
+    }
+
+    sql.append(" ORDER BY ").append(RANK).append(" ASC, ")
+       .append(MmsSmsColumns.NORMALIZED_DATE_RECEIVED).append(" DESC, ")
+       .append(IS_MMS).append(" ASC, ")
+       .append(MESSAGE_ID).append(" DESC")
+       .append(" LIMIT ").append(limit);
+
+    Cursor cursor = db.rawQuery(sql.toString(), args.toArray(new String[0]));
     setNotifyConverationListListeners(cursor);
     return cursor;
   }
 
-  public Cursor queryMessages(@NonNull String query, long threadId) {
+  /**
+   * Computes the snippets for the given messages of a single table.
+   * The cursor contains the {@link #ID} and {@link #SNIPPET} columns.
+   */
+  public Cursor querySnippets(@NonNull String query, boolean mms, @NonNull long[] messageIds) {
     SQLiteDatabase db          = databaseHelper.getReadableDatabase();
-    String         prefixQuery = adjustQuery(query);
+    String         ftsTable    = mms ? MMS_FTS_TABLE_NAME : SMS_FTS_TABLE_NAME;
+    StringBuilder  ids         = new StringBuilder();
 
-    Cursor cursor = db.rawQuery(MESSAGES_FOR_THREAD_QUERY, new String[] { prefixQuery, String.valueOf(threadId), prefixQuery, String.valueOf(threadId) });
-    setNotifyConverationListListeners(cursor);
-    return cursor;
+    for (int i = 0; i < messageIds.length; i++) {
+      if (i > 0) ids.append(", ");
+      ids.append(messageIds[i]);
+    }
+
+    String sql = "SELECT " + ID + ", snippet(" + ftsTable + ", -1, '', '', '...', 7) AS " + SNIPPET + " " +
+                 "FROM " + ftsTable + " " +
+                 "WHERE " + ftsTable + " MATCH ? AND " + ID + " IN (" + ids + ")";
+
+    return db.rawQuery(sql, new String[] { adjustQuery(query) });
+  }
 
+  private static void appendPageSelect(@NonNull StringBuilder sql,
+                                       @NonNull List<String> args,
+                                       boolean mms,
+                                       @NonNull String table,
+                                       @NonNull String dateColumn,
+                                       @NonNull String ftsTable,
+                                       @NonNull String prefixQuery,
+                                       long threadId,
+                                       boolean byRelevance)
+  {
+    sql.append("SELECT ")
+       .append(mms ? "1" : "0").append(" AS ").append(IS_MMS).append(", ")
+       .append(table).append(".").append(MmsSmsColumns.ID).append(" AS ").append(MESSAGE_ID).append(", ")
+       .append(ftsTable).append(".").append(THREAD_ID).append(" AS ").append(THREAD_ID).append(", ")
+       .append(byRelevance ? "CAST(round(" + ftsTable + ".rank * " + RANK_SCALE + ") AS INTEGER)" : "0").append(" AS ").append(RANK).append(", ")
+       .append(table).append(".").append(dateColumn).append(" AS ").append(MmsSmsColumns.NORMALIZED_DATE_RECEIVED).append(", ")
+       .append(ThreadDatabase.TABLE_NAME).append(".").append(ThreadDatabase.ADDRESS).append(" AS ").append(CONVERSATION_ADDRESS).append(", ")
+       .append(table).append(".").append(MmsSmsColumns.ADDRESS).append(" AS ").append(MESSAGE_ADDRESS)
+       .append(" FROM ").append(table)
+       .append(" INNER JOIN ").append(ftsTable).append(" ON ").append(ftsTable).append(".").append(ID).append(" = ").append(table).append(".").append(MmsSmsColumns.ID)
+       .append(" INNER JOIN ").append(ThreadDatabase.TABLE_NAME).append(" ON ").append(ftsTable).append(".").append(THREAD_ID).append(" = ").append(ThreadDatabase.TABLE_NAME).append(".").append(ThreadDatabase.ID)
+       .append(" WHERE ").append(ftsTable).append(" MATCH ?");
+
+    args.add(prefixQuery);
+
+    if (threadId >= 0) {
+      sql.append(" AND ").append(table).append(".").append(MmsSmsColumns.THREAD_ID).append(" = ?");
+      args.add(String.valueOf(threadId));
+    }
   }
 
   private String adjustQuery(@NonNull String query) {
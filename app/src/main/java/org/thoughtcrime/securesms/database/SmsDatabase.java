@@ -33,6 +33,7 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.session.libsession.utilities.IdentityKeyMismatch;
 import org.session.libsession.utilities.IdentityKeyMismatchList;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.helpers.StatementCache;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.session.libsession.messaging.messages.signal.IncomingGroupMessage;
@@ -82,13 +83,17 @@ public class SmsDatabase extends MessagingDatabase {
     EXPIRES_IN + " INTEGER DEFAULT 0, " + EXPIRE_STARTED + " INTEGER DEFAULT 0, " + NOTIFIED + " DEFAULT 0, " +
     READ_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + UNIDENTIFIED + " INTEGER DEFAULT 0);";
 
+  public static final String CREATE_EXPIRES_AT_INDEX =
+    "CREATE INDEX IF NOT EXISTS sms_expires_at_index ON " + TABLE_NAME + " (" + EXPIRES_AT + ") WHERE " + EXPIRE_STARTED + " > 0;";
+
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS sms_thread_id_index ON " + TABLE_NAME + " (" + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + ","  + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
     "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    CREATE_EXPIRES_AT_INDEX
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -101,6 +106,18 @@ public class SmsDatabase extends MessagingDatabase {
       NOTIFIED, READ_RECEIPT_COUNT, UNIDENTIFIED
   };
 
+  private static final String INSERT_INBOX_MESSAGE = "INSERT INTO " + TABLE_NAME + " (" +
+      ADDRESS + ", " + ADDRESS_DEVICE_ID + ", " + DATE_RECEIVED + ", " + DATE_SENT + ", " + PROTOCOL + ", " +
+      READ + ", " + SUBSCRIPTION_ID + ", " + EXPIRES_IN + ", " + UNIDENTIFIED + ", " + SUBJECT + ", " +
+      REPLY_PATH_PRESENT + ", " + SERVICE_CENTER + ", " + BODY + ", " + TYPE + ", " + THREAD_ID +
+      ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  private static final String INCREMENT_DELIVERY_RECEIPT_COUNT = "UPDATE " + TABLE_NAME + " SET " +
+      DELIVERY_RECEIPT_COUNT + " = " + DELIVERY_RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?";
+
+  private static final String INCREMENT_READ_RECEIPT_COUNT = "UPDATE " + TABLE_NAME + " SET " +
+      READ_RECEIPT_COUNT + " = " + READ_RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?";
+
   private static final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
   private static final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
 
@@ -253,15 +270,13 @@ public class SmsDatabase extends MessagingDatabase {
         if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
           Address theirAddress = messageId.getAddress();
           Address ourAddress   = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-          String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
+          String  sql          = deliveryReceipt ? INCREMENT_DELIVERY_RECEIPT_COUNT : INCREMENT_READ_RECEIPT_COUNT;
 
           if (ourAddress.equals(theirAddress)) {
+            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
             long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
 
-            database.execSQL("UPDATE " + TABLE_NAME +
-                             " SET " + columnName + " = " + columnName + " + 1 WHERE " +
-                             ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+            databaseHelper.getStatementCache().execute(sql, statement -> statement.bindLong(1, id));
 
             DatabaseFactory.getThreadDatabase(context).update(threadId, false);
             notifyConversationListeners(threadId);
@@ -371,35 +386,34 @@ public class SmsDatabase extends MessagingDatabase {
     if (groupRecipient == null) threadId = DatabaseFactory.getThreadDatabase(context).getOrCreateThreadIdFor(recipient);
     else                        threadId = DatabaseFactory.getThreadDatabase(context).getOrCreateThreadIdFor(groupRecipient);
 
-    ContentValues values = new ContentValues(6);
-    values.put(ADDRESS, message.getSender().serialize());
-    values.put(ADDRESS_DEVICE_ID,  message.getSenderDeviceId());
     // In open groups messages should be sorted by their server timestamp
     long receivedTimestamp = serverTimestamp;
     if (serverTimestamp == 0) { receivedTimestamp = message.getSentTimestampMillis(); }
-    values.put(DATE_RECEIVED, receivedTimestamp); // Loki - This is important due to how we handle GIFs
-    values.put(DATE_SENT, message.getSentTimestampMillis());
-    values.put(PROTOCOL, message.getProtocol());
-    values.put(READ, unread ? 0 : 1);
-    values.put(SUBSCRIPTION_ID, message.getSubscriptionId());
-    values.put(EXPIRES_IN, message.getExpiresIn());
-    values.put(UNIDENTIFIED, message.isUnidentified());
-
-    if (!TextUtils.isEmpty(message.getPseudoSubject()))
-      values.put(SUBJECT, message.getPseudoSubject());
-
-    values.put(REPLY_PATH_PRESENT, message.isReplyPathPresent());
-    values.put(SERVICE_CENTER, message.getServiceCenterAddress());
-    values.put(BODY, message.getMessageBody());
-    values.put(TYPE, type);
-    values.put(THREAD_ID, threadId);
+    final long messageType      = type;
+    final long messageThreadId  = threadId;
+    final long messageTimestamp = receivedTimestamp; // Loki - This is important due to how we handle GIFs
 
     if (message.isPush() && isDuplicate(message, threadId)) {
       Log.w(TAG, "Duplicate message (" + message.getSentTimestampMillis() + "), ignoring...");
       return Optional.absent();
     } else {
-      SQLiteDatabase db        = databaseHelper.getWritableDatabase();
-      long           messageId = db.insert(TABLE_NAME, null, values);
+      long messageId = databaseHelper.getStatementCache().executeInsert(INSERT_INBOX_MESSAGE, statement -> {
+        statement.bindString(1, message.getSender().serialize());
+        statement.bindLong(2, message.getSenderDeviceId());
+        statement.bindLong(3, messageTimestamp);
+        statement.bindLong(4, message.getSentTimestampMillis());
+        statement.bindLong(5, message.getProtocol());
+        statement.bindLong(6, unread ? 0 : 1);
+        statement.bindLong(7, message.getSubscriptionId());
+        statement.bindLong(8, message.getExpiresIn());
+        statement.bindLong(9, message.isUnidentified() ? 1 : 0);
+        StatementCache.bindStringOrNull(statement, 10, TextUtils.isEmpty(message.getPseudoSubject()) ? null : message.getPseudoSubject());
+        statement.bindLong(11, message.isReplyPathPresent() ? 1 : 0);
+        StatementCache.bindStringOrNull(statement, 12, message.getServiceCenterAddress());
+        StatementCache.bindStringOrNull(statement, 13, message.getMessageBody());
+        statement.bindLong(14, messageType);
+        statement.bindLong(15, messageThreadId);
+      });
 
       if (unread) {
         DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
@@ -486,12 +500,6 @@ public class SmsDatabase extends MessagingDatabase {
     return messageId;
   }
 
-  public Cursor getExpirationStartedMessages() {
-    String         where = EXPIRE_STARTED + " > 0";
-    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, where, null, null, null, null);
-  }
-
   public SmsMessageRecord getMessage(long messageId) throws NoSuchMessageException {
     SQLiteDatabase db     = databaseHelper.getReadableDatabase();
     Cursor         cursor = db.query(TABLE_NAME, MESSAGE_PROJECTION, ID_WHERE, new String[]{messageId + ""}, null, null, null);
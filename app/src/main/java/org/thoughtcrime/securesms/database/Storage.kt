@@ -93,6 +93,19 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         return database.getAttachmentsForMessage(messageID)
     }
 
+    override fun persistInBatch(batch: () -> Unit) {
+        val database = databaseHelper.writableDatabase
+        val threadDatabase = DatabaseFactory.getThreadDatabase(context)
+        BatchedUpdates.run(object : BatchedUpdates.Target {
+            override fun beginTransaction() { database.beginTransaction() }
+            override fun setTransactionSuccessful() { database.setTransactionSuccessful() }
+            override fun endTransaction() { database.endTransaction() }
+            override fun updateThread(threadId: Long, unarchive: Boolean) { threadDatabase.update(threadId, unarchive) }
+            override fun notifyConversationListeners(threadId: Long) { this@Storage.notifyConversationListeners(threadId) }
+            override fun notifyConversationListListeners() { this@Storage.notifyConversationListListeners() }
+        }, Runnable { batch() })
+    }
+
     override fun persist(message: VisibleMessage, quotes: QuoteModel?, linkPreview: List<LinkPreview?>, groupPublicKey: String?, openGroupID: String?, attachments: List<Attachment>): Long? {
         var messageID: Long? = null
         val senderAddress = Address.fromSerialized(message.sender!!)
@@ -160,18 +173,18 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         return messageID
     }
 
-    override fun persistJob(job: Job) {
-        DatabaseFactory.getSessionJobDatabase(context).persistJob(job)
-    }
-
-    override fun markJobAsSucceeded(jobId: String) {
-        DatabaseFactory.getSessionJobDatabase(context).markJobAsSucceeded(jobId)
+    override fun persistJobChanges(added: List<Job>, updated: List<Job>, finishedJobIds: List<String>) {
+        DatabaseFactory.getSessionJobDatabase(context).persistJobChanges(added, updated, finishedJobIds)
     }
 
     override fun markJobAsFailedPermanently(jobId: String) {
         DatabaseFactory.getSessionJobDatabase(context).markJobAsFailedPermanently(jobId)
     }
 
+    override fun cancelPendingAttachmentUploadJobs(messageID: Long) {
+        DatabaseFactory.getSessionJobDatabase(context).cancelPendingAttachmentUploadJobs(messageID)
+    }
+
     override fun getAllPendingJobs(type: String): Map<String, Job?> {
         return DatabaseFactory.getSessionJobDatabase(context).getAllPendingJobs(type)
     }
@@ -190,7 +203,7 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
 
     override fun resumeMessageSendJobIfNeeded(messageSendJobID: String) {
         val job = DatabaseFactory.getSessionJobDatabase(context).getMessageSendJob(messageSendJobID) ?: return
-        JobQueue.shared.add(job)
+        JobQueue.shared.resume(job)
     }
 
     override fun isJobCanceled(job: Job): Boolean {
@@ -492,6 +505,10 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         return DatabaseFactory.getSessionContactDatabase(context).getContactWithSessionID(sessionID)
     }
 
+    override fun getContactsWithSessionIDs(sessionIDs: Collection<String>): List<Contact> {
+        return DatabaseFactory.getSessionContactDatabase(context).getContactsWithSessionIDs(sessionIDs)
+    }
+
     override fun getAllContacts(): Set<Contact> {
         return DatabaseFactory.getSessionContactDatabase(context).getAllContacts()
     }
@@ -505,29 +522,37 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         return if (recipientSettings.isPresent) { recipientSettings.get() } else null
     }
 
+    override fun getRecipientSettings(addresses: List<Address>): Map<Address, Recipient.RecipientSettings> {
+        return DatabaseFactory.getRecipientDatabase(context).getRecipientSettings(addresses)
+    }
+
     override fun addContacts(contacts: List<ConfigurationMessage.Contact>) {
+        if (contacts.isEmpty()) { return }
         val recipientDatabase = DatabaseFactory.getRecipientDatabase(context)
         val threadDatabase = DatabaseFactory.getThreadDatabase(context)
-        for (contact in contacts) {
-            val address = Address.fromSerialized(contact.publicKey)
-            val recipient = Recipient.from(context, address, true)
-            if (!contact.profilePicture.isNullOrEmpty()) {
-                recipientDatabase.setProfileAvatar(recipient, contact.profilePicture)
-            }
-            if (contact.profileKey?.isNotEmpty() == true) {
-                recipientDatabase.setProfileKey(recipient, contact.profileKey)
-            }
-            if (contact.name.isNotEmpty()) {
-                recipientDatabase.setProfileName(recipient, contact.name)
-            }
-            recipientDatabase.setProfileSharing(recipient, true)
-            recipientDatabase.setRegistered(recipient, Recipient.RegisteredState.REGISTERED)
-            // create Thread if needed
-            threadDatabase.getOrCreateThreadIdFor(recipient)
+        val profiles = contacts.map { contact ->
+            RecipientDatabase.ContactProfile(
+                Address.fromSerialized(contact.publicKey),
+                contact.name.takeIf { it.isNotEmpty() },
+                contact.profileKey?.takeIf { it.isNotEmpty() },
+                contact.profilePicture.takeIf { !it.isNullOrEmpty() }
+            )
+        }
+        // Save all the profiles and create the missing threads in one go, rather than
+        // with a handful of transactions per contact
+        val database = databaseHelper.writableDatabase
+        database.beginTransaction()
+        try {
+            recipientDatabase.setContactProfiles(profiles)
+            threadDatabase.createThreadsIfNeeded(profiles.map { it.address })
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
         }
-        if (contacts.isNotEmpty()) {
-            threadDatabase.notifyConversationListListeners()
+        for (profile in profiles) {
+            Recipient.applyCached(profile.address) { it.setContactProfile(profile.name, profile.profileKey, profile.profileAvatar) }
         }
+        threadDatabase.notifyConversationListListeners()
     }
 
     override fun getLastUpdated(threadID: Long): Long {
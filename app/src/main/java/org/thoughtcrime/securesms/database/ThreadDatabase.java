@@ -54,7 +54,12 @@ import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.mms.SlideDeck;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -117,6 +122,10 @@ public class ThreadDatabase extends Database {
                                                                                                Stream.of(GroupDatabase.TYPED_GROUP_PROJECTION))
                                                                                        .toList();
 
+  private static final String INSERT_THREAD = "INSERT INTO " + TABLE_NAME + " (" + DATE + ", " + ADDRESS + ", " + MESSAGE_COUNT + ") VALUES (?, ?, 0)";
+
+  private static final int MAX_QUERY_ARGS = 500;
+
   public ThreadDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -137,6 +146,53 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
+  /**
+   * Creates a default thread for each of the given individual addresses that doesn't have one yet.
+   * Existing threads are looked up in batches and the missing ones are inserted in a single
+   * transaction.
+   */
+  public void createThreadsIfNeeded(@NonNull Collection<Address> addresses) {
+    SQLiteDatabase db       = databaseHelper.getWritableDatabase();
+    List<String>   missing  = new ArrayList<>(addresses.size());
+    Set<String>    existing = new HashSet<>();
+    List<String>   unique   = new ArrayList<>(new LinkedHashSet<>(Stream.of(addresses).map(Address::serialize).toList()));
+
+    for (int i = 0; i < unique.size(); i += MAX_QUERY_ARGS) {
+      List<String> chunk = unique.subList(i, Math.min(unique.size(), i + MAX_QUERY_ARGS));
+      String       query = ADDRESS + " IN (" + Util.join(Collections.nCopies(chunk.size(), "?"), ",") + ")";
+
+      try (Cursor cursor = db.query(TABLE_NAME, new String[]{ADDRESS}, query, chunk.toArray(new String[0]), null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          existing.add(cursor.getString(0));
+        }
+      }
+    }
+
+    for (String address : unique) {
+      if (!existing.contains(address)) missing.add(address);
+    }
+
+    if (missing.isEmpty()) return;
+
+    long now  = System.currentTimeMillis();
+    long date = now - now % 1000;
+
+    db.beginTransaction();
+
+    try {
+      for (String address : missing) {
+        databaseHelper.getStatementCache().executeInsert(INSERT_THREAD, statement -> {
+          statement.bindLong(1, date);
+          statement.bindString(2, address);
+        });
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
                             long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
                             long expiresIn, int readReceiptCount)
@@ -521,6 +577,8 @@ public class ThreadDatabase extends Database {
   }
 
   public boolean update(long threadId, boolean unarchive) {
+    if (BatchedUpdates.deferThreadUpdate(threadId, unarchive)) return false;
+
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
 
@@ -0,0 +1,119 @@
+package org.thoughtcrime.securesms.database.helpers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+/**
+ * Connection level pragmas applied by {@link SQLCipherOpenHelper#onConfigure(SQLiteDatabase)}.
+ *
+ * Any value left unset keeps the SQLCipher default.
+ */
+public final class DatabaseTuning {
+
+  public static final String SYNCHRONOUS_OFF    = "OFF";
+  public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+  public static final String SYNCHRONOUS_FULL   = "FULL";
+
+  public static final String TEMP_STORE_DEFAULT = "DEFAULT";
+  public static final String TEMP_STORE_FILE    = "FILE";
+  public static final String TEMP_STORE_MEMORY  = "MEMORY";
+
+  /**
+   * NORMAL synchronous mode is safe against corruption in WAL mode, a power loss can only roll back
+   * the most recent transactions. Temp tables and indices (e.g. for sorting search results) are
+   * kept in memory.
+   */
+  public static final DatabaseTuning DEFAULT = new Builder().setCacheSize(10000)
+                                                            .setSynchronous(SYNCHRONOUS_NORMAL)
+                                                            .setTempStore(TEMP_STORE_MEMORY)
+                                                            .setWalAutoCheckpoint(1000)
+                                                            .build();
+
+  private final @Nullable Integer cacheSize;
+  private final @Nullable Long    mmapSize;
+  private final @Nullable String  synchronous;
+  private final @Nullable String  tempStore;
+  private final @Nullable Integer walAutoCheckpoint;
+
+  private DatabaseTuning(@NonNull Builder builder) {
+    this.cacheSize         = builder.cacheSize;
+    this.mmapSize          = builder.mmapSize;
+    this.synchronous       = builder.synchronous;
+    this.tempStore         = builder.tempStore;
+    this.walAutoCheckpoint = builder.walAutoCheckpoint;
+  }
+
+  void apply(@NonNull SQLiteDatabase db) {
+    // Some of these pragmas return a row, so they can't go through execSQL(...).
+    if (cacheSize != null)         db.rawExecSQL("PRAGMA cache_size = " + cacheSize);
+    if (mmapSize != null)          db.rawExecSQL("PRAGMA mmap_size = " + mmapSize);
+    if (synchronous != null)       db.rawExecSQL("PRAGMA synchronous = " + synchronous);
+    if (tempStore != null)         db.rawExecSQL("PRAGMA temp_store = " + tempStore);
+    if (walAutoCheckpoint != null) db.rawExecSQL("PRAGMA wal_autocheckpoint = " + walAutoCheckpoint);
+  }
+
+  public @NonNull Builder buildUpon() {
+    return new Builder().setCacheSize(cacheSize)
+                        .setMmapSize(mmapSize)
+                        .setSynchronous(synchronous)
+                        .setTempStore(tempStore)
+                        .setWalAutoCheckpoint(walAutoCheckpoint);
+  }
+
+  @Override
+  public @NonNull String toString() {
+    return "DatabaseTuning{cache_size=" + cacheSize +
+           ", mmap_size=" + mmapSize +
+           ", synchronous=" + synchronous +
+           ", temp_store=" + tempStore +
+           ", wal_autocheckpoint=" + walAutoCheckpoint + "}";
+  }
+
+  public static final class Builder {
+
+    private Integer cacheSize;
+    private Long    mmapSize;
+    private String  synchronous;
+    private String  tempStore;
+    private Integer walAutoCheckpoint;
+
+    /** Number of pages kept in the page cache. */
+    public @NonNull Builder setCacheSize(@Nullable Integer cacheSize) {
+      this.cacheSize = cacheSize;
+      return this;
+    }
+
+    /**
+     * Maximum number of bytes to memory map. Note that SQLCipher doesn't memory map encrypted
+     * databases, so this only has an effect on plaintext ones.
+     */
+    public @NonNull Builder setMmapSize(@Nullable Long mmapSize) {
+      this.mmapSize = mmapSize;
+      return this;
+    }
+
+    /** One of the SYNCHRONOUS_* constants. */
+    public @NonNull Builder setSynchronous(@Nullable String synchronous) {
+      this.synchronous = synchronous;
+      return this;
+    }
+
+    /** One of the TEMP_STORE_* constants. */
+    public @NonNull Builder setTempStore(@Nullable String tempStore) {
+      this.tempStore = tempStore;
+      return this;
+    }
+
+    /** Number of WAL pages after which an automatic checkpoint runs, 0 or less disables it. */
+    public @NonNull Builder setWalAutoCheckpoint(@Nullable Integer walAutoCheckpoint) {
+      this.walAutoCheckpoint = walAutoCheckpoint;
+      return this;
+    }
+
+    public @NonNull DatabaseTuning build() {
+      return new DatabaseTuning(this);
+    }
+  }
+}
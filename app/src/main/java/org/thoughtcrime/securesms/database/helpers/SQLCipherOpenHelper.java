@@ -5,6 +5,7 @@ import android.content.Context;
 import android.database.Cursor;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteDatabaseHook;
@@ -59,16 +60,25 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int lokiV24                          = 45;
   private static final int lokiV25                          = 46;
   private static final int lokiV26                          = 47;
+  private static final int lokiV27                          = 48;
+  private static final int lokiV28                          = 49;
 
   // Loki - onUpgrade(...) must be updated to use Loki version numbers if Signal makes any database changes
-  private static final int    DATABASE_VERSION = lokiV26;
+  private static final int    DATABASE_VERSION = lokiV28;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
   private final DatabaseSecret databaseSecret;
+  private final DatabaseTuning tuning;
+  private final StatementCache statementCache;
 
   public SQLCipherOpenHelper(@NonNull Context context, @NonNull DatabaseSecret databaseSecret) {
-    super(context, DATABASE_NAME, null, DATABASE_VERSION, new SQLiteDatabaseHook() {
+    this(context, DATABASE_NAME, databaseSecret, DatabaseTuning.DEFAULT);
+  }
+
+  @VisibleForTesting
+  SQLCipherOpenHelper(@NonNull Context context, @NonNull String databaseName, @NonNull DatabaseSecret databaseSecret, @NonNull DatabaseTuning tuning) {
+    super(context, databaseName, null, DATABASE_VERSION, new SQLiteDatabaseHook() {
       @Override
       public void preKey(SQLiteDatabase db) {
         db.rawExecSQL("PRAGMA cipher_default_kdf_iter = 1;");
@@ -84,6 +94,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
 
     this.context        = context.getApplicationContext();
     this.databaseSecret = databaseSecret;
+    this.tuning         = tuning;
+    this.statementCache = new StatementCache(this, new StatementTimings());
   }
 
   @Override
@@ -128,6 +140,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(LokiUserDatabase.getCreateDisplayNameTableCommand());
     db.execSQL(LokiBackupFilesDatabase.getCreateTableCommand());
     db.execSQL(SessionJobDatabase.getCreateSessionJobTableCommand());
+    executeStatements(db, SessionJobDatabase.getAddLookupColumnsCommands());
     db.execSQL(LokiMessageDatabase.getUpdateMessageIDTableForType());
     db.execSQL(LokiMessageDatabase.getUpdateMessageMappingTable());
     db.execSQL(SessionContactDatabase.getCreateSessionContactTableCommand());
@@ -147,7 +160,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     // Loki - Enable write ahead logging mode and increase the cache size.
     // This should be disabled if we ever run into serious race condition bugs.
     db.enableWriteAheadLogging();
-    db.execSQL("PRAGMA cache_size = 10000");
+    tuning.apply(db);
   }
 
   @Override
@@ -304,6 +317,16 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         db.execSQL(SessionContactDatabase.getCreateSessionContactTableCommand());
       }
 
+      if (oldVersion < lokiV27) {
+        db.execSQL(SmsDatabase.CREATE_EXPIRES_AT_INDEX);
+        db.execSQL(MmsDatabase.CREATE_EXPIRES_AT_INDEX);
+      }
+
+      if (oldVersion < lokiV28) {
+        executeStatements(db, SessionJobDatabase.getAddLookupColumnsCommands());
+        SessionJobDatabase.backfillLookupColumns(db);
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -318,6 +341,19 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     return getWritableDatabase(databaseSecret.asString());
   }
 
+  /**
+   * Compiled statements for hot inserts and updates on the writable database.
+   */
+  public StatementCache getStatementCache() {
+    return statementCache;
+  }
+
+  @Override
+  public synchronized void close() {
+    statementCache.clear();
+    super.close();
+  }
+
   public void markCurrent(SQLiteDatabase db) {
     db.setVersion(DATABASE_VERSION);
   }
@@ -0,0 +1,132 @@
+package org.thoughtcrime.securesms.database.helpers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps compiled statements around for hot inserts and updates, so their SQL doesn't have to be
+ * parsed and planned on every call.
+ *
+ * A compiled statement holds its bindings, so each one is used by a single thread at a time.
+ * Statements are recompiled whenever the helper hands out a different database instance.
+ * Clearing the cache may close a statement between the moment a caller gets it and the moment it
+ * gets to use it, in which case the caller fetches a fresh one.
+ */
+public final class StatementCache {
+
+  private final SQLCipherOpenHelper          databaseHelper;
+  private final StatementTimings             timings;
+  private final Map<String, CachedStatement> statements = new HashMap<>();
+
+  private SQLiteDatabase database;
+
+  public interface Binder {
+    void bind(@NonNull SQLiteStatement statement);
+  }
+
+  StatementCache(@NonNull SQLCipherOpenHelper databaseHelper, @NonNull StatementTimings timings) {
+    this.databaseHelper = databaseHelper;
+    this.timings        = timings;
+  }
+
+  /**
+   * @return the row ID of the inserted row, or -1 if the insert failed.
+   */
+  public long executeInsert(@NonNull String sql, @NonNull Binder binder) {
+    while (true) {
+      CachedStatement cached = getStatement(sql);
+
+      synchronized (cached) {
+        if (cached.closed) continue;
+
+        cached.statement.clearBindings();
+        binder.bind(cached.statement);
+
+        long start = System.nanoTime();
+        long rowId = cached.statement.executeInsert();
+        timings.record(sql, System.nanoTime() - start);
+
+        return rowId;
+      }
+    }
+  }
+
+  public void execute(@NonNull String sql, @NonNull Binder binder) {
+    while (true) {
+      CachedStatement cached = getStatement(sql);
+
+      synchronized (cached) {
+        if (cached.closed) continue;
+
+        cached.statement.clearBindings();
+        binder.bind(cached.statement);
+
+        long start = System.nanoTime();
+        cached.statement.execute();
+        timings.record(sql, System.nanoTime() - start);
+
+        return;
+      }
+    }
+  }
+
+  public static void bindStringOrNull(@NonNull SQLiteStatement statement, int index, @Nullable String value) {
+    if (value == null) statement.bindNull(index);
+    else               statement.bindString(index, value);
+  }
+
+  public @NonNull StatementTimings getTimings() {
+    return timings;
+  }
+
+  public synchronized void clear() {
+    for (CachedStatement cached : statements.values()) {
+      synchronized (cached) {
+        cached.statement.close();
+        cached.closed = true;
+      }
+    }
+
+    statements.clear();
+    database = null;
+  }
+
+  private @NonNull CachedStatement getStatement(@NonNull String sql) {
+    // Not under this lock, as the helper's lock is taken before this one when it's closed
+    SQLiteDatabase current = databaseHelper.getWritableDatabase();
+
+    synchronized (this) {
+      if (current != database) {
+        clear();
+        database = current;
+      }
+
+      CachedStatement cached = statements.get(sql);
+
+      if (cached == null) {
+        cached = new CachedStatement(current.compileStatement(sql));
+        statements.put(sql, cached);
+      }
+
+      return cached;
+    }
+  }
+
+  /**
+   * Guarded by its own lock, which is held while the statement is in use.
+   */
+  private static final class CachedStatement {
+    private final SQLiteStatement statement;
+    private       boolean         closed;
+
+    private CachedStatement(@NonNull SQLiteStatement statement) {
+      this.statement = statement;
+    }
+  }
+}
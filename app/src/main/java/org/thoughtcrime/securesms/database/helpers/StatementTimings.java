@@ -0,0 +1,112 @@
+package org.thoughtcrime.securesms.database.helpers;
+
+import androidx.annotation.NonNull;
+
+import org.session.libsignal.utilities.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects execution time statistics per SQL statement.
+ */
+public final class StatementTimings {
+
+  private static final String TAG = StatementTimings.class.getSimpleName();
+
+  private static final long SLOW_STATEMENT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final ConcurrentHashMap<String, Timing> timings = new ConcurrentHashMap<>();
+
+  void record(@NonNull String sql, long elapsedNanos) {
+    Timing timing = timings.get(sql);
+
+    if (timing == null) {
+      timing = new Timing();
+      Timing existing = timings.putIfAbsent(sql, timing);
+      if (existing != null) timing = existing;
+    }
+
+    timing.record(elapsedNanos);
+
+    if (elapsedNanos > SLOW_STATEMENT_NANOS) {
+      Log.w(TAG, "Slow statement (" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms): " + sql);
+    }
+  }
+
+  public @NonNull Map<String, Snapshot> getSnapshot() {
+    Map<String, Snapshot> snapshot = new HashMap<>(timings.size());
+
+    for (Map.Entry<String, Timing> entry : timings.entrySet()) {
+      snapshot.put(entry.getKey(), entry.getValue().snapshot());
+    }
+
+    return snapshot;
+  }
+
+  public void reset() {
+    timings.clear();
+  }
+
+  public void log() {
+    for (Map.Entry<String, Snapshot> entry : getSnapshot().entrySet()) {
+      Log.d(TAG, entry.getValue() + " " + entry.getKey());
+    }
+  }
+
+  private static final class Timing {
+    private final AtomicLong count      = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos   = new AtomicLong();
+
+    void record(long elapsedNanos) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(elapsedNanos);
+
+      long max;
+      do {
+        max = maxNanos.get();
+      } while (elapsedNanos > max && !maxNanos.compareAndSet(max, elapsedNanos));
+    }
+
+    Snapshot snapshot() {
+      return new Snapshot(count.get(), totalNanos.get(), maxNanos.get());
+    }
+  }
+
+  public static final class Snapshot {
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    private Snapshot(long count, long totalNanos, long maxNanos) {
+      this.count      = count;
+      this.totalNanos = totalNanos;
+      this.maxNanos   = maxNanos;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    public long getAverageNanos() {
+      return count == 0 ? 0 : totalNanos / count;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "[count: " + count + ", avg: " + TimeUnit.NANOSECONDS.toMicros(getAverageNanos()) + " us, max: " + TimeUnit.NANOSECONDS.toMicros(maxNanos) + " us]";
+    }
+  }
+}
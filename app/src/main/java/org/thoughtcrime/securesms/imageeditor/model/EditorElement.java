@@ -60,11 +60,27 @@ public final class EditorElement implements Parcelable {
   }
 
   private EditorElement(Parcel in) {
+    this(in, null);
+  }
+
+  private EditorElement(@NonNull Parcel in, @Nullable List<EditorElement> children) {
     id       = ParcelUtils.readUUID(in);
     flags    = new EditorFlags(in.readInt());
     ParcelUtils.readMatrix(localMatrix, in);
     renderer = in.readParcelable(Renderer.class.getClassLoader());
-    in.readTypedList(children, EditorElement.CREATOR);
+
+    if (children == null) {
+      in.readTypedList(this.children, EditorElement.CREATOR);
+    } else {
+      this.children.addAll(children);
+    }
+  }
+
+  /**
+   * Reads an element written by {@link #writeStateWithoutChildren}, giving it the supplied children.
+   */
+  static @NonNull EditorElement readStateWithoutChildren(@NonNull Parcel in, @NonNull List<EditorElement> children) {
+    return new EditorElement(in, children);
   }
 
   UUID getId() {
@@ -324,10 +340,22 @@ public final class EditorElement implements Parcelable {
 
   @Override
   public void writeToParcel(Parcel dest, int flags) {
+    writeState(dest, flags);
+    dest.writeTypedList(children);
+  }
+
+  /**
+   * Writes the persisted state of this element alone, so that snapshots can hold each element
+   * separately and share the ones that didn't change.
+   */
+  void writeStateWithoutChildren(@NonNull Parcel dest) {
+    writeState(dest, 0);
+  }
+
+  private void writeState(@NonNull Parcel dest, int flags) {
     ParcelUtils.writeUUID(dest, id);
     dest.writeInt(this.flags.asInt());
     ParcelUtils.writeMatrix(dest, localMatrix);
     dest.writeParcelable(renderer, flags);
-    dest.writeTypedList(children);
   }
 }
@@ -0,0 +1,226 @@
+package org.thoughtcrime.securesms.imageeditor.model;
+
+import android.os.Parcel;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * An immutable, serialized copy of an {@link EditorElement} tree.
+ * <p>
+ * Each node holds the serialized state of a single element, without its children. A snapshot taken
+ * relative to a previous one reuses the previous nodes of every subtree that didn't change, so an
+ * undo step only costs the changed elements and their ancestors.
+ * <p>
+ * Snapshots taken relative to each other are equal iff they are the same instance, and comparing
+ * any two snapshots starts with a hash of the whole tree.
+ */
+final class ElementSnapshot {
+
+  private final UUID              id;
+  private final byte[]            state;
+  private final ElementSnapshot[] children;
+  private final int               hash;
+
+  private ElementSnapshot(@NonNull UUID id, @NonNull byte[] state, @NonNull ElementSnapshot[] children) {
+    this.id       = id;
+    this.state    = state;
+    this.children = children;
+    this.hash     = 31 * Arrays.hashCode(state) + Arrays.hashCode(children);
+  }
+
+  /**
+   * @param element  The tree to take a snapshot of.
+   * @param previous A snapshot to share unchanged subtrees with.
+   */
+  static @NonNull ElementSnapshot of(@NonNull EditorElement element, @Nullable ElementSnapshot previous) {
+    Map<UUID, ElementSnapshot> previousNodes = new HashMap<>();
+
+    if (previous != null) {
+      previous.buildMap(previousNodes);
+    }
+
+    return of(element, previousNodes);
+  }
+
+  private static @NonNull ElementSnapshot of(@NonNull EditorElement element, @NonNull Map<UUID, ElementSnapshot> previousNodes) {
+    ElementSnapshot[] children = new ElementSnapshot[element.getChildCount()];
+
+    for (int i = 0; i < children.length; i++) {
+      children[i] = of(element.getChild(i), previousNodes);
+    }
+
+    byte[]          state    = getState(element);
+    ElementSnapshot previous = previousNodes.get(element.getId());
+
+    if (previous != null && previous.hasState(state, children)) {
+      return previous;
+    }
+
+    return new ElementSnapshot(element.getId(), state, children);
+  }
+
+  private static @NonNull byte[] getState(@NonNull EditorElement element) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      element.writeStateWithoutChildren(parcel);
+      return parcel.marshall();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private boolean hasState(@NonNull byte[] state, @NonNull ElementSnapshot[] children) {
+    if (children.length != this.children.length || !Arrays.equals(state, this.state)) {
+      return false;
+    }
+
+    for (int i = 0; i < children.length; i++) {
+      if (children[i] != this.children[i]) return false;
+    }
+
+    return true;
+  }
+
+  private void buildMap(@NonNull Map<UUID, ElementSnapshot> map) {
+    map.put(id, this);
+    for (ElementSnapshot child : children) {
+      child.buildMap(map);
+    }
+  }
+
+  /**
+   * @return A new, mutable element tree with the state of this snapshot.
+   */
+  @NonNull EditorElement toElement() {
+    List<EditorElement> elements = new ArrayList<>(children.length);
+
+    for (ElementSnapshot child : children) {
+      elements.add(child.toElement());
+    }
+
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(state, 0, state.length);
+      parcel.setDataPosition(0);
+      return EditorElement.readStateWithoutChildren(parcel, elements);
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  @Override
+  public boolean equals(@Nullable Object o) {
+    if (this == o) return true;
+    if (!(o instanceof ElementSnapshot)) return false;
+
+    ElementSnapshot other = (ElementSnapshot) o;
+
+    return hash == other.hash &&
+           Arrays.equals(state, other.state) &&
+           Arrays.equals(children, other.children);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  /**
+   * @return The number of serialized bytes held by these snapshots, counting shared nodes once.
+   */
+  static long getRetainedByteCount(@NonNull List<ElementSnapshot> snapshots) {
+    long count = 0;
+
+    for (ElementSnapshot node : getUniqueNodes(snapshots)) {
+      count += node.state.length;
+    }
+
+    return count;
+  }
+
+  /**
+   * Writes the snapshots, keeping the nodes they share shared.
+   */
+  static void writeToParcel(@NonNull Parcel dest, @NonNull List<ElementSnapshot> snapshots) {
+    List<ElementSnapshot>                     nodes   = getUniqueNodes(snapshots);
+    IdentityHashMap<ElementSnapshot, Integer> indices = new IdentityHashMap<>();
+
+    dest.writeInt(nodes.size());
+
+    for (ElementSnapshot node : nodes) {
+      indices.put(node, indices.size());
+
+      ParcelUtils.writeUUID(dest, node.id);
+      dest.writeByteArray(node.state);
+      dest.writeInt(node.children.length);
+
+      for (ElementSnapshot child : node.children) {
+        dest.writeInt(indices.get(child));
+      }
+    }
+
+    dest.writeInt(snapshots.size());
+
+    for (ElementSnapshot snapshot : snapshots) {
+      dest.writeInt(indices.get(snapshot));
+    }
+  }
+
+  static @NonNull List<ElementSnapshot> readFromParcel(@NonNull Parcel in) {
+    int                   nodeCount = in.readInt();
+    List<ElementSnapshot> nodes     = new ArrayList<>(nodeCount);
+
+    for (int i = 0; i < nodeCount; i++) {
+      UUID              id       = ParcelUtils.readUUID(in);
+      byte[]            state    = in.createByteArray();
+      ElementSnapshot[] children = new ElementSnapshot[in.readInt()];
+
+      for (int j = 0; j < children.length; j++) {
+        children[j] = nodes.get(in.readInt());
+      }
+
+      nodes.add(new ElementSnapshot(id, state, children));
+    }
+
+    int                   count     = in.readInt();
+    List<ElementSnapshot> snapshots = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      snapshots.add(nodes.get(in.readInt()));
+    }
+
+    return snapshots;
+  }
+
+  /**
+   * @return Every node of the snapshots once, children before their parents.
+   */
+  private static @NonNull List<ElementSnapshot> getUniqueNodes(@NonNull List<ElementSnapshot> snapshots) {
+    IdentityHashMap<ElementSnapshot, Boolean> visited = new IdentityHashMap<>();
+    List<ElementSnapshot>                     nodes   = new ArrayList<>();
+
+    for (ElementSnapshot snapshot : snapshots) {
+      snapshot.addUniqueNodes(visited, nodes);
+    }
+
+    return nodes;
+  }
+
+  private void addUniqueNodes(@NonNull IdentityHashMap<ElementSnapshot, Boolean> visited, @NonNull List<ElementSnapshot> nodes) {
+    if (visited.put(this, Boolean.TRUE) != null) return;
+
+    for (ElementSnapshot child : children) {
+      child.addUniqueNodes(visited, nodes);
+    }
+
+    nodes.add(this);
+  }
+}
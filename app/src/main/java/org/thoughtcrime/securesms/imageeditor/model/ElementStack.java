@@ -5,13 +5,14 @@ import android.os.Parcelable;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.Arrays;
 import java.util.Stack;
 
 /**
  * Contains a stack of elements for undo and redo stacks.
  * <p>
- * Elements are mutable, so this stack serializes the element and keeps a stack of serialized data.
+ * Elements are mutable, so this stack keeps a stack of {@link ElementSnapshot}s. Each snapshot is
+ * taken relative to the top of the stack, so consecutive states share every element that didn't
+ * change between them.
  * <p>
  * The stack has a {@link #limit} and if it exceeds that limit during a push the second to earliest item
  * is removed so that it can always go back to the first state. Effectively collapsing the history for
@@ -19,8 +20,8 @@ import java.util.Stack;
  */
 final class ElementStack implements Parcelable {
 
-  private final int           limit;
-  private final Stack<byte[]> stack = new Stack<>();
+  private final int                    limit;
+  private final Stack<ElementSnapshot> stack = new Stack<>();
 
   ElementStack(int limit) {
     this.limit = limit;
@@ -28,15 +29,12 @@ final class ElementStack implements Parcelable {
 
   private ElementStack(@NonNull Parcel in) {
     this(in.readInt());
-    final int count = in.readInt();
-    for (int i = 0; i < count; i++) {
-      stack.add(i, in.createByteArray());
-    }
+    stack.addAll(ElementSnapshot.readFromParcel(in));
   }
 
   /**
-   * Pushes an element to the stack iff the element's serialized value is different to any found at
-   * the top of the stack.
+   * Pushes an element to the stack iff the element's state is different to the one found at the
+   * top of the stack.
    * <p>
    * Removes the second to earliest item if it is overflowing.
    *
@@ -44,11 +42,11 @@ final class ElementStack implements Parcelable {
    * @return true iff the pushed item was different to the top item.
    */
   boolean tryPush(@NonNull EditorElement element) {
-    byte[]  bytes = getBytes(element);
-    boolean push  = stack.isEmpty() || !Arrays.equals(bytes, stack.peek());
+    ElementSnapshot snapshot = ElementSnapshot.of(element, peek());
+    boolean         push     = stack.isEmpty() || !snapshot.equals(stack.peek());
 
     if (push) {
-      stack.push(bytes);
+      stack.push(snapshot);
       if (stack.size() > limit) {
         stack.remove(1);
       }
@@ -56,51 +54,43 @@ final class ElementStack implements Parcelable {
     return push;
   }
 
-  static byte[] getBytes(@NonNull Parcelable parcelable) {
-    Parcel parcel = Parcel.obtain();
-    byte[] bytes;
-    try {
-      parcel.writeParcelable(parcelable, 0);
-      bytes = parcel.marshall();
-    } finally {
-      parcel.recycle();
-    }
-    return bytes;
-  }
-
   /**
    * Pops the first different state from the supplied element.
    */
   @Nullable EditorElement pop(@NonNull EditorElement element) {
     if (stack.empty()) return null;
 
-    byte[] elementBytes = getBytes(element);
-    byte[] stackData    = null;
+    ElementSnapshot elementSnapshot = ElementSnapshot.of(element, stack.peek());
+    ElementSnapshot stackSnapshot   = null;
 
-    while (!stack.empty() && stackData == null) {
-      byte[] topData = stack.pop();
+    while (!stack.empty() && stackSnapshot == null) {
+      ElementSnapshot topSnapshot = stack.pop();
 
-      if (!Arrays.equals(topData, elementBytes)) {
-        stackData = topData;
+      if (!topSnapshot.equals(elementSnapshot)) {
+        stackSnapshot = topSnapshot;
       }
     }
 
-    if (stackData == null) return null;
+    if (stackSnapshot == null) return null;
 
-    Parcel parcel = Parcel.obtain();
-    try {
-      parcel.unmarshall(stackData, 0, stackData.length);
-      parcel.setDataPosition(0);
-      return parcel.readParcelable(EditorElement.class.getClassLoader());
-    } finally {
-      parcel.recycle();
-    }
+    return stackSnapshot.toElement();
   }
 
   void clear() {
     stack.clear();
   }
 
+  private @Nullable ElementSnapshot peek() {
+    return stack.isEmpty() ? null : stack.peek();
+  }
+
+  /**
+   * @return The number of serialized bytes held by this stack.
+   */
+  long getRetainedByteCount() {
+    return ElementSnapshot.getRetainedByteCount(stack);
+  }
+
   public static final Creator<ElementStack> CREATOR = new Creator<ElementStack>() {
     @Override
     public ElementStack createFromParcel(Parcel in) {
@@ -121,20 +111,16 @@ final class ElementStack implements Parcelable {
   @Override
   public void writeToParcel(Parcel dest, int flags) {
     dest.writeInt(limit);
-    final int count = stack.size();
-    dest.writeInt(count);
-    for (int i = 0; i < count; i++) {
-      dest.writeByteArray(stack.get(i));
-    }
+    ElementSnapshot.writeToParcel(dest, stack);
   }
 
   boolean stackContainsStateDifferentFrom(@NonNull EditorElement element) {
     if (stack.isEmpty()) return false;
 
-    byte[] currentStateBytes = getBytes(element);
+    ElementSnapshot currentState = ElementSnapshot.of(element, stack.peek());
 
-    for (byte[] item : stack) {
-      if (!Arrays.equals(item, currentStateBytes)) {
+    for (ElementSnapshot item : stack) {
+      if (!item.equals(currentState)) {
         return true;
       }
     }
@@ -5,34 +5,35 @@ import android.os.Parcelable;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 final class UndoRedoStacks implements Parcelable {
 
   private final ElementStack undoStack;
   private final ElementStack redoStack;
 
-  @NonNull
-  private byte[] unchangedState;
+  @Nullable
+  private ElementSnapshot unchangedState;
 
   UndoRedoStacks(int limit) {
     this(new ElementStack(limit), new ElementStack(limit), null);
   }
 
-  private UndoRedoStacks(ElementStack undoStack, ElementStack redoStack, @Nullable byte[] unchangedState) {
+  private UndoRedoStacks(ElementStack undoStack, ElementStack redoStack, @Nullable ElementSnapshot unchangedState) {
     this.undoStack = undoStack;
     this.redoStack = redoStack;
-    this.unchangedState = unchangedState != null ? unchangedState : new byte[0];
+    this.unchangedState = unchangedState;
   }
 
   public static final Creator<UndoRedoStacks> CREATOR = new Creator<UndoRedoStacks>() {
     @Override
     public UndoRedoStacks createFromParcel(Parcel in) {
-      return new UndoRedoStacks(
-      in.readParcelable(ElementStack.class.getClassLoader()),
-      in.readParcelable(ElementStack.class.getClassLoader()),
-      in.createByteArray()
-      );
+      ElementStack          undoStack      = in.readParcelable(ElementStack.class.getClassLoader());
+      ElementStack          redoStack      = in.readParcelable(ElementStack.class.getClassLoader());
+      List<ElementSnapshot> unchangedState = ElementSnapshot.readFromParcel(in);
+
+      return new UndoRedoStacks(undoStack, redoStack, unchangedState.isEmpty() ? null : unchangedState.get(0));
     }
 
     @Override
@@ -45,7 +46,8 @@ final class UndoRedoStacks implements Parcelable {
   public void writeToParcel(Parcel dest, int flags) {
     dest.writeParcelable(undoStack, flags);
     dest.writeParcelable(redoStack, flags);
-    dest.writeByteArray(unchangedState);
+    ElementSnapshot.writeToParcel(dest, unchangedState != null ? Collections.singletonList(unchangedState)
+                                                               : Collections.emptyList());
   }
 
   @Override
@@ -70,11 +72,11 @@ final class UndoRedoStacks implements Parcelable {
   void clear(@NonNull EditorElement element) {
     undoStack.clear();
     redoStack.clear();
-    unchangedState = ElementStack.getBytes(element);
+    unchangedState = ElementSnapshot.of(element, null);
   }
 
   boolean isChanged(@NonNull EditorElement element) {
-    return !Arrays.equals(ElementStack.getBytes(element), unchangedState);
+    return unchangedState == null || !unchangedState.equals(ElementSnapshot.of(element, unchangedState));
   }
 
   /**
@@ -0,0 +1,273 @@
+package org.thoughtcrime.securesms.linkpreview;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.session.libsignal.utilities.Hex;
+import org.session.libsignal.utilities.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Remembers the link previews that were fetched, so that the same link isn't downloaded and parsed
+ * again every time it's typed or pasted.
+ *
+ * Each preview is stored under a hash of its normalized URL, with its thumbnail stored separately.
+ * The storage is expected to encrypt what's written to it.
+ */
+final class LinkPreviewCache {
+
+  private static final String TAG = LinkPreviewCache.class.getSimpleName();
+
+  private static final int    VERSION          = 1;
+  private static final int    MAX_TITLE_LENGTH = 64 * 1024;
+  private static final String ENTRY_SUFFIX     = ".preview";
+  private static final String THUMBNAIL_SUFFIX = ".thumb";
+
+  interface Storage {
+    @NonNull OutputStream openForWriting(@NonNull String name) throws IOException;
+    @NonNull InputStream openForReading(@NonNull String name) throws IOException;
+    void delete(@NonNull String name);
+
+    /**
+     * @return The names of everything stored, least recently written first.
+     */
+    @NonNull List<String> list();
+  }
+
+  interface Clock {
+    long currentTimeMillis();
+  }
+
+  private final Storage storage;
+  private final Clock   clock;
+  private final long    ttlMillis;
+  private final int     maxEntries;
+
+  LinkPreviewCache(@NonNull Storage storage, @NonNull Clock clock, long ttlMillis, int maxEntries) {
+    this.storage    = storage;
+    this.clock      = clock;
+    this.ttlMillis  = ttlMillis;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @return The cached preview for the URL, or null if there's none or it has expired.
+   */
+  @Nullable Entry get(@NonNull String url) {
+    String normalizedUrl = normalizeUrl(url);
+    String key           = getKey(normalizedUrl);
+
+    try (DataInputStream in = new DataInputStream(storage.openForReading(key + ENTRY_SUFFIX))) {
+      if (in.readInt() != VERSION || !normalizedUrl.equals(readString(in))) {
+        return null;
+      }
+
+      long   expiresAt = in.readLong();
+      String title     = in.readBoolean() ? readString(in) : null;
+      String thumbnail = null;
+      int    width     = 0;
+      int    height    = 0;
+
+      if (in.readBoolean()) {
+        thumbnail = key + THUMBNAIL_SUFFIX;
+        width     = in.readInt();
+        height    = in.readInt();
+      }
+
+      if (expiresAt <= clock.currentTimeMillis()) {
+        remove(key);
+        return null;
+      }
+
+      return new Entry(title, thumbnail, width, height, expiresAt);
+    } catch (IOException e) {
+      // Most likely not cached, or partially written
+      return null;
+    }
+  }
+
+  /**
+   * Caches the preview of the URL, replacing any previous one.
+   */
+  @NonNull Entry put(@NonNull String url, @Nullable String title, @Nullable Thumbnail thumbnail) throws IOException {
+    String normalizedUrl = normalizeUrl(url);
+    String key           = getKey(normalizedUrl);
+    long   expiresAt     = clock.currentTimeMillis() + ttlMillis;
+
+    if (title != null && title.length() > MAX_TITLE_LENGTH) {
+      title = title.substring(0, MAX_TITLE_LENGTH);
+    }
+
+    // Write the thumbnail first, so that an entry never references a thumbnail that isn't there
+    if (thumbnail != null) {
+      try (OutputStream out = storage.openForWriting(key + THUMBNAIL_SUFFIX)) {
+        out.write(thumbnail.getData());
+      }
+    } else {
+      storage.delete(key + THUMBNAIL_SUFFIX);
+    }
+
+    try (DataOutputStream out = new DataOutputStream(storage.openForWriting(key + ENTRY_SUFFIX))) {
+      out.writeInt(VERSION);
+      writeString(out, normalizedUrl);
+      out.writeLong(expiresAt);
+      out.writeBoolean(title != null);
+      if (title != null) writeString(out, title);
+      out.writeBoolean(thumbnail != null);
+
+      if (thumbnail != null) {
+        out.writeInt(thumbnail.getWidth());
+        out.writeInt(thumbnail.getHeight());
+      }
+    }
+
+    trim();
+
+    return new Entry(title, thumbnail != null ? key + THUMBNAIL_SUFFIX : null,
+                     thumbnail != null ? thumbnail.getWidth() : 0,
+                     thumbnail != null ? thumbnail.getHeight() : 0,
+                     expiresAt);
+  }
+
+  @NonNull InputStream openThumbnail(@NonNull Entry entry) throws IOException {
+    if (entry.thumbnail == null) throw new IOException("No thumbnail");
+    return storage.openForReading(entry.thumbnail);
+  }
+
+  /**
+   * Lowercases the scheme and host, drops default ports and fragments, so that links to the same
+   * page share an entry.
+   */
+  static @NonNull String normalizeUrl(@NonNull String url) {
+    HttpUrl httpUrl = HttpUrl.parse(url);
+    if (httpUrl == null) return url;
+
+    return httpUrl.newBuilder().fragment(null).build().toString();
+  }
+
+  private void remove(@NonNull String key) {
+    storage.delete(key + ENTRY_SUFFIX);
+    storage.delete(key + THUMBNAIL_SUFFIX);
+  }
+
+  private void trim() {
+    List<String> entries = new ArrayList<>();
+
+    for (String name : storage.list()) {
+      if (name.endsWith(ENTRY_SUFFIX)) entries.add(name);
+    }
+
+    for (int i = 0; i < entries.size() - maxEntries; i++) {
+      String name = entries.get(i);
+      remove(name.substring(0, name.length() - ENTRY_SUFFIX.length()));
+    }
+  }
+
+  private static @NonNull String getKey(@NonNull String normalizedUrl) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return Hex.toStringCondensed(digest.digest(normalizedUrl.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void writeString(@NonNull DataOutputStream out, @NonNull String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static @NonNull String readString(@NonNull DataInputStream in) throws IOException {
+    int length = in.readInt();
+
+    if (length < 0 || length > MAX_TITLE_LENGTH * 4) {
+      Log.w(TAG, "Corrupt cache entry.");
+      throw new IOException("Bad string length: " + length);
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static final class Entry {
+    private final String title;
+    private final String thumbnail;
+    private final int    width;
+    private final int    height;
+    private final long   expiresAt;
+
+    private Entry(@Nullable String title, @Nullable String thumbnail, int width, int height, long expiresAt) {
+      this.title     = title;
+      this.thumbnail = thumbnail;
+      this.width     = width;
+      this.height    = height;
+      this.expiresAt = expiresAt;
+    }
+
+    /**
+     * A preview without a thumbnail that wasn't cached.
+     */
+    static @NonNull Entry uncached(@Nullable String title) {
+      return new Entry(title, null, 0, 0, 0);
+    }
+
+    @Nullable String getTitle() {
+      return title;
+    }
+
+    boolean hasThumbnail() {
+      return thumbnail != null;
+    }
+
+    int getWidth() {
+      return width;
+    }
+
+    int getHeight() {
+      return height;
+    }
+
+    long getExpiresAt() {
+      return expiresAt;
+    }
+  }
+
+  static final class Thumbnail {
+    private final byte[] data;
+    private final int    width;
+    private final int    height;
+
+    Thumbnail(@NonNull byte[] data, int width, int height) {
+      this.data   = data;
+      this.width  = width;
+      this.height = height;
+    }
+
+    @NonNull byte[] getData() {
+      return data;
+    }
+
+    int getWidth() {
+      return width;
+    }
+
+    int getHeight() {
+      return height;
+    }
+  }
+}
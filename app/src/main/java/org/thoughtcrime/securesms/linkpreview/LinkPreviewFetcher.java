@@ -0,0 +1,229 @@
+package org.thoughtcrime.securesms.linkpreview;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.session.libsignal.utilities.Log;
+import org.session.libsignal.utilities.guava.Optional;
+import org.thoughtcrime.securesms.linkpreview.LinkPreviewRepository.Callback;
+import org.thoughtcrime.securesms.net.RequestController;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Fetches the metadata and thumbnail of link previews, going through {@link LinkPreviewCache}.
+ *
+ * Fetches run on the given executor, which is expected to be bounded. Asking for a link that's
+ * already being fetched waits for that fetch rather than starting another one, and a fetch is only
+ * canceled once everyone waiting on it has canceled.
+ */
+final class LinkPreviewFetcher {
+
+  private static final String TAG = LinkPreviewFetcher.class.getSimpleName();
+
+  private static final CacheControl NO_CACHE = new CacheControl.Builder().noCache().build();
+
+  interface Parser {
+    /**
+     * @return The title and image URL of a page, leaving out an image URL that shouldn't be fetched.
+     */
+    @NonNull Metadata parseMetadata(@NonNull String html);
+
+    /**
+     * @return The thumbnail to show for the image data, or null if it isn't a valid image.
+     */
+    @Nullable LinkPreviewCache.Thumbnail parseThumbnail(@NonNull byte[] data);
+  }
+
+  private final OkHttpClient       client;
+  private final LinkPreviewCache   cache;
+  private final Executor           executor;
+  private final Parser             parser;
+  private final Map<String, Fetch> inFlight = new HashMap<>();
+
+  LinkPreviewFetcher(@NonNull OkHttpClient client, @NonNull LinkPreviewCache cache, @NonNull Executor executor, @NonNull Parser parser) {
+    this.client   = client;
+    this.cache    = cache;
+    this.executor = executor;
+    this.parser   = parser;
+  }
+
+  @NonNull RequestController fetch(@NonNull String url, @NonNull Callback<Optional<LinkPreviewCache.Entry>> callback) {
+    String  key = LinkPreviewCache.normalizeUrl(url);
+    Fetch   fetch;
+    boolean isNew;
+
+    synchronized (inFlight) {
+      fetch = inFlight.get(key);
+      isNew = fetch == null;
+
+      if (isNew) {
+        fetch = new Fetch(key, url);
+        inFlight.put(key, fetch);
+      }
+
+      fetch.callbacks.add(callback);
+    }
+
+    Fetch pending = fetch;
+
+    if (isNew) {
+      executor.execute(() -> run(pending));
+    }
+
+    return () -> detach(pending, callback);
+  }
+
+  private void detach(@NonNull Fetch fetch, @NonNull Callback<Optional<LinkPreviewCache.Entry>> callback) {
+    synchronized (inFlight) {
+      if (!fetch.callbacks.remove(callback) || !fetch.callbacks.isEmpty()) return;
+
+      if (inFlight.get(fetch.key) == fetch) {
+        inFlight.remove(fetch.key);
+      }
+    }
+
+    fetch.cancel();
+  }
+
+  private void run(@NonNull Fetch fetch) {
+    Optional<LinkPreviewCache.Entry> result = Optional.absent();
+
+    if (!fetch.isCanceled()) {
+      LinkPreviewCache.Entry cached = cache.get(fetch.key);
+      result = cached != null ? Optional.of(cached) : download(fetch);
+    }
+
+    List<Callback<Optional<LinkPreviewCache.Entry>>> callbacks;
+
+    synchronized (inFlight) {
+      if (inFlight.get(fetch.key) == fetch) {
+        inFlight.remove(fetch.key);
+      }
+
+      callbacks = new ArrayList<>(fetch.callbacks);
+      fetch.callbacks.clear();
+    }
+
+    for (Callback<Optional<LinkPreviewCache.Entry>> callback : callbacks) {
+      callback.onComplete(result);
+    }
+  }
+
+  private @NonNull Optional<LinkPreviewCache.Entry> download(@NonNull Fetch fetch) {
+    Metadata metadata;
+
+    try {
+      Request request = new Request.Builder().url(fetch.url)
+                                             .removeHeader("User-Agent")
+                                             .addHeader("User-Agent", "WhatsApp")
+                                             .cacheControl(NO_CACHE)
+                                             .build();
+
+      String html = fetchBody(fetch, request).string();
+
+      metadata = parser.parseMetadata(html);
+    } catch (IOException e) {
+      Log.w(TAG, "Request failed.", e);
+      return Optional.absent();
+    }
+
+    LinkPreviewCache.Thumbnail thumbnail = null;
+
+    if (metadata.getImageUrl().isPresent()) {
+      try {
+        byte[] data = fetchBody(fetch, new Request.Builder().url(metadata.getImageUrl().get()).build()).bytes();
+        thumbnail = parser.parseThumbnail(data);
+      } catch (IOException e) {
+        // Don't remember a preview without its image because of what may be a transient failure
+        Log.w(TAG, "Exception during link preview image retrieval.", e);
+        return Optional.of(LinkPreviewCache.Entry.uncached(metadata.getTitle().orNull()));
+      }
+    }
+
+    try {
+      return Optional.of(cache.put(fetch.key, metadata.getTitle().orNull(), thumbnail));
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to cache link preview.", e);
+      return Optional.of(LinkPreviewCache.Entry.uncached(metadata.getTitle().orNull()));
+    }
+  }
+
+  private @NonNull ResponseBody fetchBody(@NonNull Fetch fetch, @NonNull Request request) throws IOException {
+    Call call = client.newCall(request);
+
+    if (!fetch.setCall(call)) {
+      throw new IOException("Canceled");
+    }
+
+    Response response = call.execute();
+
+    if (!response.isSuccessful() || response.body() == null) {
+      response.close();
+      throw new IOException("Non-successful response. Code: " + response.code());
+    }
+
+    return response.body();
+  }
+
+  private static final class Fetch {
+    private final String                                           key;
+    private final String                                           url;
+    private final List<Callback<Optional<LinkPreviewCache.Entry>>> callbacks = new ArrayList<>(); // Guarded by inFlight
+
+    private Call    call;     // Guarded by this
+    private boolean canceled; // Guarded by this
+
+    private Fetch(@NonNull String key, @NonNull String url) {
+      this.key = key;
+      this.url = url;
+    }
+
+    /**
+     * @return false if the fetch was canceled, in which case the call shouldn't be made.
+     */
+    private synchronized boolean setCall(@NonNull Call call) {
+      this.call = call;
+      return !canceled;
+    }
+
+    private synchronized boolean isCanceled() {
+      return canceled;
+    }
+
+    private synchronized void cancel() {
+      canceled = true;
+      if (call != null) call.cancel();
+    }
+  }
+
+  static final class Metadata {
+    private final Optional<String> title;
+    private final Optional<String> imageUrl;
+
+    Metadata(Optional<String> title, Optional<String> imageUrl) {
+      this.title    = title;
+      this.imageUrl = imageUrl;
+    }
+
+    Optional<String> getTitle() {
+      return title;
+    }
+
+    Optional<String> getImageUrl() {
+      return imageUrl;
+    }
+  }
+}
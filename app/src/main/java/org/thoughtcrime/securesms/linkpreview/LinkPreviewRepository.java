@@ -7,14 +7,17 @@ import android.net.Uri;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.android.gms.common.util.IOUtils;
+import com.annimon.stream.Stream;
 
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentTransferProgress;
 import org.session.libsession.utilities.MediaTypes;
 import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.session.libsignal.utilities.Log;
-import org.thoughtcrime.securesms.net.CallRequestController;
 import org.thoughtcrime.securesms.net.CompositeRequestController;
 import org.thoughtcrime.securesms.net.ContentProxySafetyInterceptor;
 import org.thoughtcrime.securesms.net.RequestController;
@@ -26,205 +29,207 @@ import org.session.libsession.messaging.sending_receiving.attachments.Attachment
 import org.session.libsession.messaging.sending_receiving.attachments.UriAttachment;
 import org.session.libsession.messaging.sending_receiving.link_preview.LinkPreview;
 import org.session.libsession.utilities.concurrent.SignalExecutors;
+import org.thoughtcrime.securesms.util.StreamUtil;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
-import okhttp3.CacheControl;
-import okhttp3.Call;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 
 public class LinkPreviewRepository implements InjectableType {
 
   private static final String TAG = LinkPreviewRepository.class.getSimpleName();
 
-  private static final CacheControl NO_CACHE = new CacheControl.Builder().noCache().build();
+  private static final String CACHE_DIRECTORY        = "link_previews";
+  private static final long   CACHE_TTL_MILLIS       = TimeUnit.DAYS.toMillis(1);
+  private static final int    MAX_CACHE_ENTRIES      = 256;
+  private static final int    MAX_CONCURRENT_FETCHES = 2;
 
-  private final OkHttpClient client;
+  private static LinkPreviewCache   cache;
+  private static LinkPreviewFetcher fetcher;
 
   public LinkPreviewRepository(@NonNull Context context) {
-    this.client = new OkHttpClient.Builder()
-                                  .addNetworkInterceptor(new ContentProxySafetyInterceptor())
-                                  .cache(null)
-                                  .build();
+    initialize(context.getApplicationContext());
 
     ApplicationContext.getInstance(context).injectDependencies(this);
   }
 
-  RequestController getLinkPreview(@NonNull Context context, @NonNull String url, @NonNull Callback<Optional<LinkPreview>> callback) {
-    CompositeRequestController compositeController = new CompositeRequestController();
+  /**
+   * The cache and fetcher are shared, so that fetches are deduplicated across conversations.
+   */
+  private static synchronized void initialize(@NonNull Context context) {
+    if (fetcher != null) return;
+
+    OkHttpClient client = new OkHttpClient.Builder()
+                                          .addNetworkInterceptor(new ContentProxySafetyInterceptor())
+                                          .cache(null)
+                                          .build();
+
+    cache   = new LinkPreviewCache(new EncryptedStorage(context), System::currentTimeMillis, CACHE_TTL_MILLIS, MAX_CACHE_ENTRIES);
+    fetcher = new LinkPreviewFetcher(client,
+                                     cache,
+                                     SignalExecutors.newCachedBoundedExecutor("signal-link-preview", MAX_CONCURRENT_FETCHES),
+                                     new PreviewParser());
+  }
 
+  RequestController getLinkPreview(@NonNull Context context, @NonNull String url, @NonNull Callback<Optional<LinkPreview>> callback) {
     if (!LinkPreviewUtil.isValidLinkUrl(url)) {
       Log.w(TAG, "Tried to get a link preview for a non-whitelisted domain.");
       callback.onComplete(Optional.absent());
-      return compositeController;
+      return new CompositeRequestController();
     }
 
-    RequestController metadataController;
+    return fetcher.fetch(url, entry -> callback.onComplete(entry.isPresent() ? toLinkPreview(url, entry.get()) : Optional.absent()));
+  }
 
-    metadataController = fetchMetadata(url, metadata -> {
-      if (metadata.isEmpty()) {
-        callback.onComplete(Optional.absent());
-        return;
-      }
+  private static @NonNull Optional<LinkPreview> toLinkPreview(@NonNull String url, @NonNull LinkPreviewCache.Entry entry) {
+    Optional<Attachment> thumbnail = Optional.absent();
 
-      if (!metadata.getImageUrl().isPresent()) {
-        callback.onComplete(Optional.of(new LinkPreview(url, metadata.getTitle().get(), Optional.absent())));
-        return;
+    if (entry.hasThumbnail()) {
+      try (InputStream in = cache.openThumbnail(entry)) {
+        thumbnail = Optional.of(thumbnailToAttachment(StreamUtil.readFully(in), entry.getWidth(), entry.getHeight(), MediaTypes.IMAGE_JPEG));
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read cached link preview thumbnail.", e);
       }
+    }
+
+    if (entry.getTitle() == null && !thumbnail.isPresent()) {
+      return Optional.absent();
+    }
 
-      RequestController imageController = fetchThumbnail(context, metadata.getImageUrl().get(), attachment -> {
-        if (!metadata.getTitle().isPresent() && !attachment.isPresent()) {
-          callback.onComplete(Optional.absent());
-        } else {
-          callback.onComplete(Optional.of(new LinkPreview(url, metadata.getTitle().or(""), attachment)));
-        }
-      });
+    return Optional.of(new LinkPreview(url, entry.getTitle() != null ? entry.getTitle() : "", thumbnail));
+  }
 
-      compositeController.addController(imageController);
-    });
+  private static Attachment thumbnailToAttachment(@NonNull byte[] bytes, int width, int height, @NonNull String contentType) {
+    Uri uri = BlobProvider.getInstance().forData(bytes).createForSingleSessionInMemory();
 
-    compositeController.addController(metadataController);
-    return compositeController;
+    return new UriAttachment(uri,
+            uri,
+            contentType,
+            AttachmentTransferProgress.TRANSFER_PROGRESS_STARTED,
+            bytes.length,
+            width,
+            height,
+            null,
+            null,
+            false,
+            false,
+            null);
   }
 
-  private @NonNull RequestController fetchMetadata(@NonNull String url, Callback<Metadata> callback) {
-    Call call = client.newCall(new Request.Builder().url(url).removeHeader("User-Agent").addHeader("User-Agent",
-            "WhatsApp").cacheControl(NO_CACHE).build());
+  private static class PreviewParser implements LinkPreviewFetcher.Parser {
+
+    @Override
+    public @NonNull LinkPreviewFetcher.Metadata parseMetadata(@NonNull String html) {
+      OpenGraph        openGraph = LinkPreviewUtil.parseOpenGraphFields(html);
+      Optional<String> title     = openGraph.getTitle();
+      Optional<String> imageUrl  = openGraph.getImageUrl();
 
-    call.enqueue(new okhttp3.Callback() {
-      @Override
-      public void onFailure(@NonNull Call call, @NonNull IOException e) {
-        Log.w(TAG, "Request failed.", e);
-        callback.onComplete(Metadata.empty());
+      if (imageUrl.isPresent() && !LinkPreviewUtil.isValidMediaUrl(imageUrl.get())) {
+        Log.i(TAG, "Image URL was invalid or for a non-whitelisted domain. Skipping.");
+        imageUrl = Optional.absent();
       }
 
-      @Override
-      public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-        if (!response.isSuccessful()) {
-          Log.w(TAG, "Non-successful response. Code: " + response.code());
-          callback.onComplete(Metadata.empty());
-          return;
-        } else if (response.body() == null) {
-          Log.w(TAG, "No response body.");
-          callback.onComplete(Metadata.empty());
-          return;
-        }
-
-        String            body     = response.body().string();
-        OpenGraph        openGraph   = LinkPreviewUtil.parseOpenGraphFields(body);
-        Optional<String> title       = openGraph.getTitle();
-        Optional<String> imageUrl    = openGraph.getImageUrl();
-
-        if (imageUrl.isPresent() && !LinkPreviewUtil.isValidMediaUrl(imageUrl.get())) {
-          Log.i(TAG, "Image URL was invalid or for a non-whitelisted domain. Skipping.");
-          imageUrl = Optional.absent();
-        }
-
-        if (imageUrl.isPresent() && !LinkPreviewUtil.isValidMimeType(imageUrl.get())) {
-          Log.i(TAG, "Image URL was invalid mime type. Skipping.");
-          imageUrl = Optional.absent();
-        }
-
-        callback.onComplete(new Metadata(title, imageUrl));
+      if (imageUrl.isPresent() && !LinkPreviewUtil.isValidMimeType(imageUrl.get())) {
+        Log.i(TAG, "Image URL was invalid mime type. Skipping.");
+        imageUrl = Optional.absent();
       }
-    });
 
-    return new CallRequestController(call);
-  }
+      return new LinkPreviewFetcher.Metadata(title, imageUrl);
+    }
 
-  private @NonNull RequestController fetchThumbnail(@NonNull Context context, @NonNull String imageUrl, @NonNull Callback<Optional<Attachment>> callback) {
-    Call                  call       = client.newCall(new Request.Builder().url(imageUrl).build());
-    CallRequestController controller = new CallRequestController(call);
+    @Override
+    public @Nullable LinkPreviewCache.Thumbnail parseThumbnail(@NonNull byte[] data) {
+      Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
 
-    SignalExecutors.UNBOUNDED.execute(() -> {
-      try {
-        Response response = call.execute();
-        if (!response.isSuccessful() || response.body() == null) {
-          controller.cancel();
-          callback.onComplete(Optional.absent());
-          return;
-        }
+      if (bitmap == null) {
+        return null;
+      }
 
-        InputStream bodyStream = response.body().byteStream();
-        controller.setStream(bodyStream);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-        byte[]               data      = IOUtils.readInputStreamFully(bodyStream);
-        Bitmap               bitmap    = BitmapFactory.decodeByteArray(data, 0, data.length);
-        Optional<Attachment> thumbnail = bitmapToAttachment(bitmap, Bitmap.CompressFormat.JPEG, MediaTypes.IMAGE_JPEG);
+      bitmap.compress(Bitmap.CompressFormat.JPEG, 80, baos);
 
-        if (bitmap != null) bitmap.recycle();
+      LinkPreviewCache.Thumbnail thumbnail = new LinkPreviewCache.Thumbnail(baos.toByteArray(), bitmap.getWidth(), bitmap.getHeight());
 
-        callback.onComplete(thumbnail);
-      } catch (IOException e) {
-        Log.w(TAG, "Exception during link preview image retrieval.", e);
-        controller.cancel();
-        callback.onComplete(Optional.absent());
-      }
-    });
+      bitmap.recycle();
 
-    return controller;
+      return thumbnail;
+    }
   }
 
-  private static Optional<Attachment> bitmapToAttachment(@Nullable Bitmap bitmap,
-                                                         @NonNull Bitmap.CompressFormat format,
-                                                         @NonNull String contentType)
-  {
-    if (bitmap == null) {
-      return Optional.absent();
+  /**
+   * Keeps the cache encrypted in the cache directory, where the system can reclaim it if needed.
+   */
+  private static class EncryptedStorage implements LinkPreviewCache.Storage {
+
+    private final Context context;
+
+    private EncryptedStorage(@NonNull Context context) {
+      this.context = context;
     }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    @Override
+    public @NonNull OutputStream openForWriting(@NonNull String name) throws IOException {
+      AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
+      return ModernEncryptingPartOutputStream.createFor(attachmentSecret, getFile(name), true).second;
+    }
 
-    bitmap.compress(format, 80, baos);
+    @Override
+    public @NonNull InputStream openForReading(@NonNull String name) throws IOException {
+      AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
+      return ModernDecryptingPartInputStream.createFor(attachmentSecret, getFile(name), 0);
+    }
 
-    byte[] bytes = baos.toByteArray();
-    Uri    uri   = BlobProvider.getInstance().forData(bytes).createForSingleSessionInMemory();
+    @Override
+    public void delete(@NonNull String name) {
+      File file = getFile(name);
 
-    return  Optional.of(new UriAttachment(uri,
-            uri,
-            contentType,
-            AttachmentTransferProgress.TRANSFER_PROGRESS_STARTED,
-            bytes.length,
-            bitmap.getWidth(),
-            bitmap.getHeight(),
-            null,
-            null,
-            false,
-            false,
-            null));
+      if (file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to delete cached link preview: " + name);
+      }
+    }
 
-  }
+    @Override
+    public @NonNull List<String> list() {
+      File[] files = getDirectory().listFiles();
 
+      if (files == null) {
+        return Collections.emptyList();
+      }
 
-  private static class Metadata {
-    private final Optional<String> title;
-    private final Optional<String> imageUrl;
+      // Files may be rewritten while sorting, so sort by a snapshot of their modification times
+      Map<File, Long> lastModified = new HashMap<>();
+      for (File file : files) lastModified.put(file, file.lastModified());
 
-    Metadata(Optional<String> title, Optional<String> imageUrl) {
-      this.title    = title;
-      this.imageUrl = imageUrl;
-    }
+      Arrays.sort(files, (a, b) -> Long.compare(lastModified.get(a), lastModified.get(b)));
 
-    static Metadata empty() {
-      return new Metadata(Optional.absent(), Optional.absent());
+      return Stream.of(files).map(File::getName).toList();
     }
 
-    Optional<String> getTitle() {
-      return title;
+    private @NonNull File getFile(@NonNull String name) {
+      return new File(getDirectory(), name);
     }
 
-    Optional<String> getImageUrl() {
-      return imageUrl;
-    }
+    private @NonNull File getDirectory() {
+      File directory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+
+      if (!directory.exists()) {
+        directory.mkdir();
+      }
 
-    boolean isEmpty() {
-      return !title.isPresent() && !imageUrl.isPresent();
+      return directory;
     }
   }
 
@@ -302,7 +302,8 @@ class HomeActivity : PassphraseRequiredActionBarActivity(), ConversationClickLis
         dialog.setPositiveButton(R.string.yes) { _, _ ->
             lifecycleScope.launch(Dispatchers.Main) {
                 val context = this@HomeActivity as Context
-                // Cancel any outstanding jobs
+                // Cancel any outstanding jobs, including those that haven't been persisted yet
+                JobQueue.shared.cancelPendingMessageSendJobs(threadID)
                 DatabaseFactory.getSessionJobDatabase(context).cancelPendingMessageSendJobs(threadID)
                 // Send a leave group message if this is an active closed group
                 if (recipient.address.isClosedGroup && DatabaseFactory.getGroupDatabase(context).isActive(recipient.address.toGroupString())) {
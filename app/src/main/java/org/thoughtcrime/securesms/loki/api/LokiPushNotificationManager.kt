@@ -64,6 +64,7 @@ object LokiPushNotificationManager {
     fun register(token: String, publicKey: String, context: Context, force: Boolean) {
         val oldToken = TextSecurePreferences.getFCMToken(context)
         val lastUploadDate = TextSecurePreferences.getLastFCMUploadTime(context)
+        PushNotificationAPI.resumePendingOperations()
         if (!force && token == oldToken && System.currentTimeMillis() - lastUploadDate < tokenExpirationInterval) { return }
         val parameters = mapOf( "token" to token, "pubKey" to publicKey )
         val url = "$server/register"
@@ -92,20 +93,11 @@ object LokiPushNotificationManager {
 
     @JvmStatic
     fun performOperation(context: Context, operation: ClosedGroupOperation, closedGroupPublicKey: String, publicKey: String) {
-        if (!TextSecurePreferences.isUsingFCM(context)) { return }
-        val parameters = mapOf( "closedGroupPublicKey" to closedGroupPublicKey, "pubKey" to publicKey )
-        val url = "$server/${operation.rawValue}"
-        val body = RequestBody.create(MediaType.get("application/json"), JsonUtil.toJson(parameters))
-        val request = Request.Builder().url(url).post(body)
-        retryIfNeeded(maxRetryCount) {
-            OnionRequestAPI.sendOnionRequest(request.build(), server, pnServerPublicKey, "/loki/v2/lsrpc").map { json ->
-                val code = json["code"] as? Int
-                if (code == null || code == 0) {
-                    Log.d("Loki", "Couldn't subscribe/unsubscribe closed group: $closedGroupPublicKey due to error: ${json["message"] as? String ?: "null"}.")
-                }
-            }.fail { exception ->
-                Log.d("Loki", "Couldn't subscribe/unsubscribe closed group: $closedGroupPublicKey due to error: ${exception}.")
-            }
+        val batchedOperation = when (operation) {
+            ClosedGroupOperation.Subscribe -> PushNotificationAPI.ClosedGroupOperation.Subscribe
+            ClosedGroupOperation.Unsubscribe -> PushNotificationAPI.ClosedGroupOperation.Unsubscribe
         }
+        // Batched with the other pending subscriptions
+        PushNotificationAPI.performOperation(batchedOperation, closedGroupPublicKey, publicKey)
     }
 }
@@ -1,9 +1,7 @@
 package org.thoughtcrime.securesms.loki.api
 
-import android.media.MediaDataSource
 import android.os.Build
 import org.session.libsignal.utilities.Log
-import androidx.annotation.RequiresApi
 import org.greenrobot.eventbus.EventBus
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.messaging.sending_receiving.attachments.Attachment
@@ -12,9 +10,7 @@ import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAt
 import org.thoughtcrime.securesms.database.DatabaseFactory
 import org.thoughtcrime.securesms.jobmanager.Job
 import org.thoughtcrime.securesms.jobs.BaseJob
-import org.thoughtcrime.securesms.loki.utilities.DecodedAudio
-import org.thoughtcrime.securesms.mms.PartAuthority
-import java.io.InputStream
+import org.thoughtcrime.securesms.loki.utilities.StreamingAudioRms
 import java.lang.IllegalStateException
 import java.util.*
 import java.util.concurrent.TimeUnit
@@ -25,7 +21,7 @@ import java.util.concurrent.TimeUnit
  *
  * It only process attachments with "audio" mime types.
  *
- * Due to [DecodedAudio] implementation limitations, it only works for API 23+.
+ * Due to [StreamingAudioRms] implementation limitations, it only works for API 23+.
  * For any lower targets fake data will be generated.
  *
  * You can subscribe to [AudioExtrasUpdatedEvent] to be notified about the successful result.
@@ -104,12 +100,11 @@ class PrepareAttachmentAudioExtrasJob : BaseJob {
             rmsValues = generateFakeRms(extractAttachmentRandomSeed(attachment))
         } else {
             try {
-                @Suppress("BlockingMethodInNonBlockingContext")
-                val decodedAudio = PartAuthority.getAttachmentStream(context, attachment.dataUri!!).use {
-                    DecodedAudio.create(InputStreamMediaDataSource(it))
-                }
-                rmsValues = decodedAudio.calculateRms(VISUAL_RMS_FRAMES)
-                totalDurationMs = (decodedAudio.totalDuration / 1000.0).toLong()
+                val dataSource = attachDb.getMediaDataSource(attachmentId)
+                        ?: throw IllegalStateException("No data file found for the attachment $attachmentId")
+                val audioRms = dataSource.use { StreamingAudioRms.extract(it, VISUAL_RMS_FRAMES) }
+                rmsValues = audioRms.rmsValues
+                totalDurationMs = (audioRms.totalDuration / 1000.0).toLong()
             } catch (e: Exception) {
                 Log.w(TAG, "Failed to decode sample values for the audio attachment \"${attachment.fileName}\".", e)
                 rmsValues = generateFakeRms(extractAttachmentRandomSeed(attachment))
@@ -133,35 +128,4 @@ class PrepareAttachmentAudioExtrasJob : BaseJob {
 
     /** Gets dispatched once the audio extras have been updated. */
     data class AudioExtrasUpdatedEvent(val attachmentId: AttachmentId)
-
-    @RequiresApi(Build.VERSION_CODES.M)
-    private class InputStreamMediaDataSource: MediaDataSource {
-
-        private val data: ByteArray
-
-        constructor(inputStream: InputStream): super() {
-            this.data = inputStream.readBytes()
-        }
-
-        override fun readAt(position: Long, buffer: ByteArray, offset: Int, size: Int): Int {
-            val length: Int = data.size
-            if (position >= length) {
-                return -1 // -1 indicates EOF
-            }
-            var actualSize = size
-            if (position + size > length) {
-                actualSize -= (position + size - length).toInt()
-            }
-            System.arraycopy(data, position.toInt(), buffer, offset, actualSize)
-            return actualSize
-        }
-
-        override fun getSize(): Long {
-            return data.size.toLong()
-        }
-
-        override fun close() {
-            // We don't need to close the wrapped stream.
-        }
-    }
-}
\ No newline at end of file
+}
@@ -4,6 +4,7 @@ import android.content.ContentValues
 import android.content.Context
 import net.sqlcipher.Cursor
 import org.session.libsession.messaging.contacts.Contact
+import org.session.libsession.messaging.mentions.MentionsManager
 import org.session.libsignal.utilities.Base64
 import org.thoughtcrime.securesms.database.Database
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
@@ -40,6 +41,17 @@ class SessionContactDatabase(context: Context, helper: SQLCipherOpenHelper) : Da
         }
     }
 
+    fun getContactsWithSessionIDs(sessionIDs: Collection<String>): List<Contact> {
+        val database = databaseHelper.readableDatabase
+        // Chunked to stay below SQLite's limit of 999 arguments per query
+        return sessionIDs.distinct().chunked(500).flatMap { chunk ->
+            val query = "${SessionContactDatabase.sessionID} IN (${chunk.joinToString(",") { "?" }})"
+            database.getAll(sessionContactTable, query, chunk.toTypedArray()) { cursor ->
+                contactFromCursor(cursor)
+            }
+        }
+    }
+
     fun getAllContacts(): Set<Contact> {
         val database = databaseHelper.readableDatabase
         return database.getAll(sessionContactTable, null, null) { cursor ->
@@ -61,6 +73,7 @@ class SessionContactDatabase(context: Context, helper: SQLCipherOpenHelper) : Da
         contentValues.put(threadID, threadID)
         contentValues.put(isTrusted, if (contact.isTrusted) 1 else 0)
         database.insertOrUpdate(sessionContactTable, contentValues, "$sessionID = ?", arrayOf( contact.sessionID ))
+        MentionsManager.onContactUpdated(contact)
         notifyConversationListListeners()
     }
 
@@ -1,8 +1,9 @@
 package org.thoughtcrime.securesms.loki.database
 
-import android.content.ContentValues
 import android.content.Context
 import net.sqlcipher.Cursor
+import net.sqlcipher.database.SQLiteDatabase
+import net.sqlcipher.database.SQLiteStatement
 import org.session.libsession.messaging.jobs.*
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsignal.utilities.Log
@@ -19,22 +20,130 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
         const val jobType = "job_type"
         const val failureCount = "failure_count"
         const val serializedData = "serialized_data"
+        // Filled in from the job when it's persisted, so that jobs can be looked up without deserializing them
+        const val threadID = "thread_id"
+        const val attachmentID = "attachment_id"
+        const val messageID = "message_id"
         @JvmStatic val createSessionJobTableCommand
             = "CREATE TABLE $sessionJobTable ($jobID INTEGER PRIMARY KEY, $jobType STRING, $failureCount INTEGER DEFAULT 0, $serializedData TEXT);"
-    }
+        @JvmStatic val addLookupColumnsCommands = arrayOf(
+            "ALTER TABLE $sessionJobTable ADD COLUMN $threadID INTEGER DEFAULT NULL;",
+            "ALTER TABLE $sessionJobTable ADD COLUMN $attachmentID INTEGER DEFAULT NULL;",
+            "ALTER TABLE $sessionJobTable ADD COLUMN $messageID INTEGER DEFAULT NULL;",
+            "CREATE INDEX IF NOT EXISTS session_job_thread_id_index ON $sessionJobTable ($threadID);",
+            "CREATE INDEX IF NOT EXISTS session_job_attachment_id_index ON $sessionJobTable ($attachmentID);",
+            "CREATE INDEX IF NOT EXISTS session_job_message_id_index ON $sessionJobTable ($messageID);"
+        )
+        private const val persistJobCommand
+            = "INSERT OR REPLACE INTO $sessionJobTable ($jobID, $jobType, $failureCount, $serializedData, $threadID, $attachmentID, $messageID) VALUES (?, ?, ?, ?, ?, ?, ?)"
+        private const val updateLookupColumnsCommand
+            = "UPDATE $sessionJobTable SET $threadID = ?, $attachmentID = ?, $messageID = ? WHERE $jobID = ?"
+        // Only updates jobs that weren't canceled in the meantime
+        private const val updateJobCommand
+            = "UPDATE $sessionJobTable SET $failureCount = ?, $serializedData = ? WHERE $jobID = ?"
+        private const val deleteJobCommand
+            = "DELETE FROM $sessionJobTable WHERE $jobID = ?"
 
-    fun persistJob(job: Job) {
-        val database = databaseHelper.writableDatabase
-        val contentValues = ContentValues(4)
-        contentValues.put(jobID, job.id!!)
-        contentValues.put(jobType, job.getFactoryKey())
-        contentValues.put(failureCount, job.failureCount)
-        contentValues.put(serializedData, SessionJobHelper.dataSerializer.serialize(job.serialize()))
-        database.insertOrUpdate(sessionJobTable, contentValues, "$jobID = ?", arrayOf( job.id!! ))
+        /**
+         * Fills in the lookup columns of the jobs that were persisted before they existed.
+         */
+        @JvmStatic
+        fun backfillLookupColumns(database: SQLiteDatabase) {
+            val jobs = database.getAll(sessionJobTable, null, null) { cursor ->
+                try {
+                    jobFromCursor(cursor)
+                } catch (e: Exception) {
+                    Log.e("Loki", "Error deserializing job of type: ${cursor.getString(jobType)}.", e)
+                    null
+                }
+            }.filterNotNull()
+            val statement = database.compileStatement(updateLookupColumnsCommand)
+            try {
+                jobs.forEach { job ->
+                    statement.clearBindings()
+                    bindLookupColumns(statement, 1, job)
+                    statement.bindString(4, job.id!!)
+                    statement.execute()
+                }
+            } finally {
+                statement.close()
+            }
+        }
+
+        private fun bindLookupColumns(statement: SQLiteStatement, index: Int, job: Job) {
+            val values = listOf(getThreadID(job), getAttachmentID(job), getMessageID(job))
+            values.forEachIndexed { i, value ->
+                if (value != null) { statement.bindLong(index + i, value) } else { statement.bindNull(index + i) }
+            }
+        }
+
+        private fun jobFromCursor(cursor: Cursor): Job? {
+            val type = cursor.getString(jobType)
+            val data = SessionJobHelper.dataSerializer.deserialize(cursor.getString(serializedData))
+            val job = SessionJobHelper.sessionJobInstantiator.instantiate(type, data) ?: return null
+            job.id = cursor.getString(jobID)
+            job.failureCount = cursor.getInt(failureCount)
+            return job
+        }
+
+        private fun getThreadID(job: Job): Long? {
+            return when (job) {
+                is MessageSendJob -> job.message.threadID
+                is AttachmentUploadJob -> job.threadID.toLongOrNull()
+                is TrimThreadJob -> job.threadId
+                else -> null
+            }
+        }
+
+        private fun getAttachmentID(job: Job): Long? {
+            return when (job) {
+                is AttachmentUploadJob -> job.attachmentID
+                is AttachmentDownloadJob -> job.attachmentID
+                else -> null
+            }
+        }
+
+        private fun getMessageID(job: Job): Long? {
+            return when (job) {
+                is MessageSendJob -> job.message.id
+                is AttachmentUploadJob -> job.message.id
+                is AttachmentDownloadJob -> job.databaseMessageID
+                else -> null
+            }
+        }
     }
 
-    fun markJobAsSucceeded(jobID: String) {
-        databaseHelper.writableDatabase.delete(sessionJobTable, "${Companion.jobID} = ?", arrayOf( jobID ))
+    fun persistJobChanges(added: List<Job>, updated: List<Job>, finishedJobIDs: List<String>) {
+        if (added.isEmpty() && updated.isEmpty() && finishedJobIDs.isEmpty()) { return }
+        val database = databaseHelper.writableDatabase
+        val statementCache = databaseHelper.statementCache
+        database.beginTransaction()
+        try {
+            added.forEach { job ->
+                val serializedJob = SessionJobHelper.dataSerializer.serialize(job.serialize())
+                statementCache.executeInsert(persistJobCommand) { statement ->
+                    statement.bindString(1, job.id!!)
+                    statement.bindString(2, job.getFactoryKey())
+                    statement.bindLong(3, job.failureCount.toLong())
+                    statement.bindString(4, serializedJob)
+                    bindLookupColumns(statement, 5, job)
+                }
+            }
+            updated.forEach { job ->
+                val serializedJob = SessionJobHelper.dataSerializer.serialize(job.serialize())
+                statementCache.execute(updateJobCommand) { statement ->
+                    statement.bindLong(1, job.failureCount.toLong())
+                    statement.bindString(2, serializedJob)
+                    statement.bindString(3, job.id!!)
+                }
+            }
+            finishedJobIDs.forEach { jobID ->
+                statementCache.execute(deleteJobCommand) { statement -> statement.bindString(1, jobID) }
+            }
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+        }
     }
 
     fun markJobAsFailedPermanently(jobID: String) {
@@ -56,12 +165,9 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
 
     fun getAttachmentUploadJob(attachmentID: Long): AttachmentUploadJob? {
         val database = databaseHelper.readableDatabase
-        val result = mutableListOf<AttachmentUploadJob>()
-        database.getAll(sessionJobTable, "$jobType = ?", arrayOf( AttachmentUploadJob.KEY )) { cursor ->
-            val job = jobFromCursor(cursor) as AttachmentUploadJob?
-            if (job != null) { result.add(job) }
+        return database.get(sessionJobTable, "$jobType = ? AND ${Companion.attachmentID} = ?", arrayOf( AttachmentUploadJob.KEY, attachmentID.toString() )) { cursor ->
+            jobFromCursor(cursor) as AttachmentUploadJob?
         }
-        return result.firstOrNull { job -> job.attachmentID == attachmentID }
     }
 
     fun getMessageSendJob(messageSendJobID: String): MessageSendJob? {
@@ -80,33 +186,21 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
 
     fun cancelPendingMessageSendJobs(threadID: Long) {
         val database = databaseHelper.writableDatabase
-        val attachmentUploadJobKeys = mutableListOf<String>()
-        database.getAll(sessionJobTable, "$jobType = ?", arrayOf( AttachmentUploadJob.KEY )) { cursor ->
-            val job = jobFromCursor(cursor) as AttachmentUploadJob?
-            if (job != null && job.threadID == threadID.toString()) { attachmentUploadJobKeys.add(job.id!!) }
-        }
-        val messageSendJobKeys = mutableListOf<String>()
-        database.getAll(sessionJobTable, "$jobType = ?", arrayOf( MessageSendJob.KEY )) { cursor ->
-            val job = jobFromCursor(cursor) as MessageSendJob?
-            if (job != null && job.message.threadID == threadID) { messageSendJobKeys.add(job.id!!) }
-        }
-        if (attachmentUploadJobKeys.isNotEmpty()) {
-            val attachmentUploadJobKeysAsString = attachmentUploadJobKeys.joinToString(", ")
-            database.delete(sessionJobTable, "${Companion.jobType} = ? AND ${Companion.jobID} IN (?)",
-                arrayOf( AttachmentUploadJob.KEY, attachmentUploadJobKeysAsString ))
-        }
-        if (messageSendJobKeys.isNotEmpty()) {
-            val messageSendJobKeysAsString = messageSendJobKeys.joinToString(", ")
-            database.delete(sessionJobTable, "${Companion.jobType} = ? AND ${Companion.jobID} IN (?)",
-                arrayOf( MessageSendJob.KEY, messageSendJobKeysAsString ))
-        }
+        database.delete(sessionJobTable, "${Companion.threadID} = ? AND $jobType IN (?, ?)",
+            arrayOf( threadID.toString(), AttachmentUploadJob.KEY, MessageSendJob.KEY ))
+    }
+
+    fun cancelPendingAttachmentUploadJobs(messageID: Long) {
+        val database = databaseHelper.writableDatabase
+        database.delete(sessionJobTable, "${Companion.messageID} = ? AND $jobType = ?",
+            arrayOf( messageID.toString(), AttachmentUploadJob.KEY ))
     }
 
     fun isJobCanceled(job: Job): Boolean {
         val database = databaseHelper.readableDatabase
         var cursor: android.database.Cursor? = null
         try {
-            cursor = database.rawQuery("SELECT * FROM $sessionJobTable WHERE $jobID = ?", arrayOf( job.id!! ))
+            cursor = database.rawQuery("SELECT 1 FROM $sessionJobTable WHERE $jobID = ? LIMIT 1", arrayOf( job.id!! ))
             return cursor == null || !cursor.moveToFirst()
         } catch (e: Exception) {
             // Do nothing
@@ -115,15 +209,6 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
         }
         return false
     }
-
-    private fun jobFromCursor(cursor: Cursor): Job? {
-        val type = cursor.getString(jobType)
-        val data = SessionJobHelper.dataSerializer.deserialize(cursor.getString(serializedData))
-        val job = SessionJobHelper.sessionJobInstantiator.instantiate(type, data) ?: return null
-        job.id = cursor.getString(jobID)
-        job.failureCount = cursor.getInt(failureCount)
-        return job
-    }
 }
 
 object SessionJobHelper {
@@ -327,7 +327,7 @@ private fun calculateRms(samples: ShortBuffer, numSamples: Int, channels: Int, m
 /**
  * Normalizes the array's values to [0..1] range.
  */
-private fun normalizeArray(values: FloatArray) {
+internal fun normalizeArray(values: FloatArray) {
     var maxValue = -Float.MAX_VALUE
     var minValue = +Float.MAX_VALUE
     values.forEach { value ->
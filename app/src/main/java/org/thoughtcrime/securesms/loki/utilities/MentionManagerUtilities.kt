@@ -15,7 +15,7 @@ object MentionManagerUtilities {
             val members = DatabaseFactory.getGroupDatabase(context).getGroupMembers(recipient.address.toGroupString(), false).map { it.address.serialize() }
             result.addAll(members)
         } else {
-            if (MentionsManager.userPublicKeyCache[threadID] != null) { return }
+            if (MentionsManager.isIndexed(threadID)) { return }
             val messageDatabase = DatabaseFactory.getMmsSmsDatabase(context)
             val reader = messageDatabase.readerFor(messageDatabase.getConversation(threadID))
             var record: MessageRecord? = reader.next
@@ -30,6 +30,6 @@ object MentionManagerUtilities {
             reader.close()
             result.add(TextSecurePreferences.getLocalNumber(context)!!)
         }
-        MentionsManager.userPublicKeyCache[threadID] = result
+        MentionsManager.setParticipants(threadID, result)
     }
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+package org.thoughtcrime.securesms.loki.utilities
+
+import java.nio.ShortBuffer
+import kotlin.math.sqrt
+
+/**
+ * Incrementally computes waveform RMS frames from a stream of 16 bit PCM samples.
+ *
+ * Unlike [DecodedAudio.calculateRms], the total amount of samples doesn't need to be known upfront
+ * and the samples don't need to be kept around. The accumulator holds a fixed amount of fine grained
+ * buckets (twice the requested frame count). Once all of them are filled, adjacent buckets are merged
+ * pairwise and each bucket starts covering twice as many samples. This way the memory footprint
+ * stays the same regardless of the audio duration.
+ *
+ * Only the first channel of interleaved multichannel data is taken into account,
+ * same as [DecodedAudio] does.
+ *
+ * The class is not thread safe.
+ */
+class RmsAccumulator(private val maxFrames: Int) {
+
+    private val capacity = maxFrames * 2
+    private val squaredSums = DoubleArray(capacity)
+    private val sampleCounts = LongArray(capacity)
+
+    private var samplesPerBucket = 1L
+    private var usedBuckets = 0
+
+    /** Total number of samples (per channel) accumulated so far. */
+    var sampleCount = 0L
+        private set
+
+    init {
+        require(maxFrames > 0) { "maxFrames must be positive." }
+    }
+
+    fun add(sample: Short) {
+        var bucketIdx = (sampleCount / samplesPerBucket).toInt()
+        if (bucketIdx >= capacity) {
+            mergeBuckets()
+            bucketIdx = (sampleCount / samplesPerBucket).toInt()
+        }
+        val value = sample.toDouble()
+        squaredSums[bucketIdx] += value * value
+        sampleCounts[bucketIdx]++
+        usedBuckets = bucketIdx + 1
+        sampleCount++
+    }
+
+    /**
+     * Consumes all the remaining samples of the buffer.
+     * The buffer is expected to contain interleaved data for [channels] channels.
+     */
+    fun add(samples: ShortBuffer, channels: Int) {
+        require(channels > 0) { "channels must be positive." }
+        while (samples.remaining() >= channels) {
+            add(samples.get())
+            if (channels > 1) {
+                samples.position(samples.position() + channels - 1)
+            }
+        }
+        // Drop any incomplete trailing frame.
+        samples.position(samples.limit())
+    }
+
+    /**
+     * @return normalized RMS values as a signed byte array.
+     * If less than [maxFrames] samples were accumulated,
+     * the result array will match the sample count instead.
+     */
+    fun calculateRms(): ByteArray {
+        if (sampleCount == 0L) return ByteArray(0)
+
+        val numFrames = minOf(maxFrames.toLong(), sampleCount).toInt()
+        val rmsValues = FloatArray(numFrames)
+
+        for (frameIdx in 0 until numFrames) {
+            val fromBucket = (frameIdx.toLong() * usedBuckets / numFrames).toInt()
+            val toBucket = ((frameIdx + 1L) * usedBuckets / numFrames).toInt()
+            var squaredSum = 0.0
+            var count = 0L
+            for (bucketIdx in fromBucket until toBucket) {
+                squaredSum += squaredSums[bucketIdx]
+                count += sampleCounts[bucketIdx]
+            }
+            rmsValues[frameIdx] = if (count > 0) sqrt(squaredSum / count).toFloat() else 0f
+        }
+
+        normalizeArray(rmsValues)
+
+        return rmsValues.map { value -> normalizedFloatToByte(value) }.toByteArray()
+    }
+
+    private fun mergeBuckets() {
+        val half = capacity / 2
+        for (i in 0 until half) {
+            squaredSums[i] = squaredSums[i * 2] + squaredSums[i * 2 + 1]
+            sampleCounts[i] = sampleCounts[i * 2] + sampleCounts[i * 2 + 1]
+        }
+        squaredSums.fill(0.0, half, capacity)
+        sampleCounts.fill(0L, half, capacity)
+        samplesPerBucket *= 2
+        usedBuckets = half
+    }
+}
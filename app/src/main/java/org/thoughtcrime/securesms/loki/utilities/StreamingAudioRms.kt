@@ -0,0 +1,157 @@
+package org.thoughtcrime.securesms.loki.utilities
+
+import android.media.AudioFormat
+import android.media.MediaCodec
+import android.media.MediaDataSource
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.os.Build
+import androidx.annotation.RequiresApi
+import java.io.IOException
+import java.nio.ByteOrder
+import kotlin.jvm.Throws
+
+/**
+ * Decodes the first audio track of a [MediaDataSource] and computes its waveform RMS values
+ * on the fly, without keeping the decoded samples in memory.
+ *
+ * This is a memory bounded alternative to [DecodedAudio] for when only the waveform is needed.
+ * The data source is expected to be seekable (e.g. [org.thoughtcrime.securesms.video.EncryptedMediaDataSource]),
+ * so the encoded data doesn't need to be loaded in memory either.
+ *
+ * *NOTE:* Decoding might take a while for long audio files. Run it in the background.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class StreamingAudioRms private constructor(
+        /** Normalized RMS values as a signed byte array. */
+        val rmsValues: ByteArray,
+        /** In microseconds. */
+        val totalDuration: Long
+) {
+
+    companion object {
+        private const val TIMEOUT_US = 100L
+
+        @JvmStatic
+        @Throws(IOException::class)
+        fun extract(dataSource: MediaDataSource, maxFrames: Int): StreamingAudioRms {
+            val extractor = MediaExtractor()
+            try {
+                extractor.setDataSource(dataSource)
+                return extract(extractor, maxFrames)
+            } finally {
+                extractor.release()
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun extract(extractor: MediaExtractor, maxFrames: Int): StreamingAudioRms {
+            var mediaFormat: MediaFormat? = null
+            // Find and select the first audio track present in the file.
+            for (trackIndex in 0 until extractor.trackCount) {
+                val format = extractor.getTrackFormat(trackIndex)
+                if (format.getString(MediaFormat.KEY_MIME)!!.startsWith("audio/")) {
+                    extractor.selectTrack(trackIndex)
+                    mediaFormat = format
+                    break
+                }
+            }
+            if (mediaFormat == null) {
+                throw IOException("No audio track found in the data source.")
+            }
+
+            val mime = mediaFormat.getString(MediaFormat.KEY_MIME)!!
+            var channels = mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+            var sampleRate = mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+            // On some old APIs (23) this field might be missing.
+            val formatDuration = if (mediaFormat.containsKey(MediaFormat.KEY_DURATION)) {
+                mediaFormat.getLong(MediaFormat.KEY_DURATION)
+            } else {
+                -1L
+            }
+            val expectedNumSamples = if (formatDuration >= 0) {
+                ((formatDuration / 1000000f) * sampleRate + 0.5f).toLong()
+            } else {
+                Long.MAX_VALUE
+            }
+
+            val accumulator = RmsAccumulator(maxFrames)
+            val codec = MediaCodec.createDecoderByType(mime)
+            try {
+                codec.configure(mediaFormat, null, null, 0)
+                codec.start()
+
+                // Check if the track is in PCM 16 bit encoding.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    try {
+                        val pcmEncoding = codec.outputFormat.getInteger(MediaFormat.KEY_PCM_ENCODING)
+                        if (pcmEncoding != AudioFormat.ENCODING_PCM_16BIT) {
+                            throw IOException("Unsupported PCM encoding code: $pcmEncoding")
+                        }
+                    } catch (e: NullPointerException) {
+                        // If KEY_PCM_ENCODING is not specified, means it's ENCODING_PCM_16BIT.
+                    }
+                }
+
+                val info = MediaCodec.BufferInfo()
+                var doneReading = false
+                var firstSampleData = true
+                while (true) {
+                    // Read data from the source and feed it to the decoder input buffers.
+                    val inputBufferIndex = codec.dequeueInputBuffer(TIMEOUT_US)
+                    if (!doneReading && inputBufferIndex >= 0) {
+                        val sampleSize = extractor.readSampleData(codec.getInputBuffer(inputBufferIndex)!!, 0)
+                        if (firstSampleData && mime == "audio/mp4a-latm" && sampleSize == 2) {
+                            // Skip the AAC stream header, see DecodedAudio for the details.
+                            codec.queueInputBuffer(inputBufferIndex, 0, 0, 0, 0)
+                            extractor.advance()
+                        } else if (sampleSize < 0) {
+                            // All samples have been read.
+                            codec.queueInputBuffer(inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+                            doneReading = true
+                        } else {
+                            codec.queueInputBuffer(inputBufferIndex, 0, sampleSize, extractor.sampleTime, 0)
+                            extractor.advance()
+                        }
+                        firstSampleData = false
+                    }
+
+                    // Consume the decoded data straight from the decoder output buffers.
+                    val outputBufferIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US)
+                    if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        codec.outputFormat.let { format ->
+                            channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                        }
+                    } else if (outputBufferIndex >= 0) {
+                        if (info.size > 0) {
+                            val outputBuffer = codec.getOutputBuffer(outputBufferIndex)!!
+                            outputBuffer.position(info.offset)
+                            outputBuffer.limit(info.offset + info.size)
+                            accumulator.add(outputBuffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer(), channels)
+                        }
+                        codec.releaseOutputBuffer(outputBufferIndex, false)
+                    }
+
+                    if ((info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                            || accumulator.sampleCount >= expectedNumSamples
+                    ) {
+                        // Some devices never report the end of stream flag for certain files,
+                        // hence the second check (see DecodedAudio for the details).
+                        break
+                    }
+                }
+                codec.stop()
+            } finally {
+                codec.release()
+            }
+
+            val totalDuration = if (formatDuration >= 0) {
+                formatDuration
+            } else {
+                accumulator.sampleCount * 1000000L / sampleRate
+            }
+            return StreamingAudioRms(accumulator.calculateRms(), totalDuration)
+        }
+    }
+}
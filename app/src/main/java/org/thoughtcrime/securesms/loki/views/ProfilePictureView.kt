@@ -66,7 +66,7 @@ class ProfilePictureView : RelativeLayout {
             return recipient.isOpenGroupRecipient && recipient.groupAvatarId != null
         }
         if (recipient.isGroupRecipient && !isOpenGroupWithProfilePicture(recipient)) {
-            val users = MentionsManager.userPublicKeyCache[threadID]?.toMutableList() ?: mutableListOf()
+            val users = MentionsManager.getParticipants(threadID)?.toMutableList() ?: mutableListOf()
             users.remove(TextSecurePreferences.getLocalNumber(context))
             val randomUsers = users.sorted().toMutableList() // Sort to provide a level of stability
             if (users.count() == 1) {
@@ -12,6 +12,7 @@ import org.session.libsession.messaging.sending_receiving.attachments.Attachment
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.providers.BlobProvider;
 import org.thoughtcrime.securesms.providers.PartProvider;
+import org.thoughtcrime.securesms.util.StreamUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -57,6 +58,35 @@ public class PartAuthority {
     }
   }
 
+  /**
+   * Opens the attachment at the given offset. Attachment parts are decrypted from the offset on,
+   * other content is read up to it.
+   */
+  public static InputStream getAttachmentStream(@NonNull Context context, @NonNull Uri uri, long offset)
+      throws IOException
+  {
+    if (offset == 0) return getAttachmentStream(context, uri);
+
+    try {
+      if (uriMatcher.match(uri) == PART_ROW) {
+        return DatabaseFactory.getAttachmentDatabase(context).getAttachmentStream(new PartUriParser(uri).getPartId(), offset);
+      }
+    } catch (SecurityException se) {
+      throw new IOException(se);
+    }
+
+    InputStream inputStream = getAttachmentStream(context, uri);
+
+    try {
+      StreamUtil.skipFully(inputStream, offset);
+    } catch (IOException e) {
+      inputStream.close();
+      throw e;
+    }
+
+    return inputStream;
+  }
+
   public static @Nullable String getAttachmentFileName(@NonNull Context context, @NonNull Uri uri) {
     int match = uriMatcher.match(uri);
 
@@ -63,6 +63,8 @@ import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.service.KeyCachingService;
 import org.thoughtcrime.securesms.util.SpanUtil;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
@@ -94,12 +96,15 @@ public class DefaultMessageNotifier implements MessageNotifier {
   private static final String NOTIFICATION_GROUP        = "messages";
   private static final long   MIN_AUDIBLE_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(2);
   private static final long   DESKTOP_ACTIVITY_PERIOD   = TimeUnit.MINUTES.toMillis(1);
+  private static final long   UPDATE_COALESCE_MILLIS    = 250;
 
   private volatile static       long               visibleThread                = -1;
   private volatile static       long               lastDesktopActivityTimestamp = -1;
   private volatile static       long               lastAudibleNotification      = -1;
   private          static final CancelableExecutor executor                     = new CancelableExecutor();
 
+  private NotificationStateBuilder stateBuilder;
+
   @Override
   public void setVisibleThread(long threadId) {
     visibleThread = threadId;
@@ -198,7 +203,10 @@ public class DefaultMessageNotifier implements MessageNotifier {
       return;
     }
 
-    updateNotification(context, false, 0);
+    // Messages may have been read or deleted anywhere
+    NotificationStateBuilder stateBuilder = getStateBuilder(context);
+    stateBuilder.invalidate();
+    stateBuilder.requestUpdate(false, 0);
   }
 
   @Override
@@ -224,6 +232,9 @@ public class DefaultMessageNotifier implements MessageNotifier {
     if (isVisible && recipients != null) {
       List<MarkedMessageInfo> messageIds = threads.setRead(threadId, false);
       if (SessionMetaProtocol.shouldSendReadReceipt(recipients.getAddress())) { MarkReadReceiver.process(context, messageIds); }
+      getStateBuilder(context).onThreadRead(threadId);
+    } else {
+      getStateBuilder(context).onMessagesInserted(threadId);
     }
 
     if (!TextSecurePreferences.isNotificationsEnabled(context) ||
@@ -235,58 +246,61 @@ public class DefaultMessageNotifier implements MessageNotifier {
     if (isVisible) {
       sendInThreadNotification(context, threads.getRecipientForThreadId(threadId));
     } else {
-      updateNotification(context, signal, 0);
+      getStateBuilder(context).requestUpdate(signal, 0);
     }
   }
 
   @Override
   public void updateNotification(@NonNull Context context, boolean signal, int reminderCount)
   {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+    getStateBuilder(context).requestUpdate(signal, reminderCount);
+  }
 
-    try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
-
-      if (((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast())) || !TextSecurePreferences.hasSeenWelcomeScreen(context))
-      {
-        cancelActiveNotifications(context);
-        updateBadge(context, 0);
-        clearReminder(context);
-        return;
-      }
+  private synchronized @NonNull NotificationStateBuilder getStateBuilder(@NonNull Context context) {
+    if (stateBuilder == null) {
+      Context applicationContext = context.getApplicationContext();
 
-      NotificationState notificationState = constructNotificationState(context, telcoCursor);
+      stateBuilder = new NotificationStateBuilder(new UnreadMessageSource(applicationContext),
+                                                  (notificationState, signal, reminderCount) -> postNotifications(applicationContext, notificationState, signal, reminderCount),
+                                                  Executors.newSingleThreadScheduledExecutor(),
+                                                  UPDATE_COALESCE_MILLIS);
+    }
 
-      if (signal && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
-        signal = false;
-      } else if (signal) {
-        lastAudibleNotification = System.currentTimeMillis();
-      }
+    return stateBuilder;
+  }
 
-      if (notificationState.hasMultipleThreads()) {
-        if (Build.VERSION.SDK_INT >= 23) {
-          for (long threadId : notificationState.getThreads()) {
-            sendSingleThreadNotification(context, new NotificationState(notificationState.getNotificationsForThread(threadId)), false, true);
-          }
-        }
+  private void postNotifications(@NonNull Context context, @NonNull NotificationState notificationState, boolean signal, int reminderCount)
+  {
+    if (notificationState.getNotifications().isEmpty() || !TextSecurePreferences.hasSeenWelcomeScreen(context)) {
+      cancelActiveNotifications(context);
+      updateBadge(context, 0);
+      clearReminder(context);
+      return;
+    }
 
-        sendMultipleThreadNotification(context, notificationState, signal);
-      } else {
-        sendSingleThreadNotification(context, notificationState, signal, false);
+    if (signal && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
+      signal = false;
+    } else if (signal) {
+      lastAudibleNotification = System.currentTimeMillis();
+    }
+
+    if (notificationState.hasMultipleThreads()) {
+      if (Build.VERSION.SDK_INT >= 23) {
+        for (long threadId : notificationState.getThreads()) {
+          sendSingleThreadNotification(context, new NotificationState(notificationState.getNotificationsForThread(threadId)), false, true);
+        }
       }
 
-      cancelOrphanedNotifications(context, notificationState);
-      updateBadge(context, notificationState.getMessageCount());
+      sendMultipleThreadNotification(context, notificationState, signal);
+    } else {
+      sendSingleThreadNotification(context, notificationState, signal, false);
+    }
+
+    cancelOrphanedNotifications(context, notificationState);
+    updateBadge(context, notificationState.getMessageCount());
 
-      if (signal) {
-        scheduleReminder(context, reminderCount);
-      }
-    } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+    if (signal) {
+      scheduleReminder(context, reminderCount);
     }
   }
 
@@ -445,11 +459,11 @@ public class DefaultMessageNotifier implements MessageNotifier {
     ringtone.play();
   }
 
-  private NotificationState constructNotificationState(@NonNull  Context context,
-                                                       @NonNull  Cursor cursor)
+  private static @NonNull List<NotificationItem> readNotificationItems(@NonNull Context context,
+                                                                      @NonNull Cursor cursor)
   {
-    NotificationState     notificationState = new NotificationState();
-    MmsSmsDatabase.Reader reader            = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
+    List<NotificationItem> notificationItems = new ArrayList<>();
+    MmsSmsDatabase.Reader  reader            = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
 
     MessageRecord record;
 
@@ -487,12 +501,11 @@ public class DefaultMessageNotifier implements MessageNotifier {
       }
 
       if (threadRecipients == null || !threadRecipients.isMuted()) {
-        notificationState.addNotification(new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck));
+        notificationItems.add(new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, record.getDateReceived(), slideDeck));
       }
     }
 
-    reader.close();
-    return notificationState;
+    return notificationItems;
   }
 
   private void updateBadge(Context context, int count) {
@@ -548,6 +561,29 @@ public class DefaultMessageNotifier implements MessageNotifier {
     }
   }
 
+  private static class UnreadMessageSource implements NotificationStateBuilder.Source {
+
+    private final Context context;
+
+    private UnreadMessageSource(@NonNull Context context) {
+      this.context = context;
+    }
+
+    @Override
+    public @NonNull List<NotificationItem> getUnread() {
+      try (Cursor cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread()) {
+        return cursor != null ? readNotificationItems(context, cursor) : Collections.emptyList();
+      }
+    }
+
+    @Override
+    public @NonNull List<NotificationItem> getUnread(@NonNull Set<Long> threadIds) {
+      try (Cursor cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread(threadIds)) {
+        return cursor != null ? readNotificationItems(context, cursor) : Collections.emptyList();
+      }
+    }
+  }
+
   private static class DelayedNotification implements Runnable {
 
     private static final long DELAY = TimeUnit.SECONDS.toMillis(5);
@@ -34,6 +34,9 @@ public class DeleteNotificationReceiver extends BroadcastReceiver {
             else         DatabaseFactory.getMmsDatabase(context).markAsNotified(ids[i]);
           }
 
+          // The notifier keeps the messages it notifies about in memory, so it has to load them again
+          ApplicationContext.getInstance(context).messageNotifier.updateNotification(context);
+
           return null;
         }
       }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
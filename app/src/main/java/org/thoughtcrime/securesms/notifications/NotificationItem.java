@@ -22,6 +22,7 @@ public class NotificationItem {
   private final long                        threadId;
   private final @Nullable CharSequence      text;
   private final long                        timestamp;
+  private final long                        dateReceived;
   private final @Nullable SlideDeck         slideDeck;
 
   public NotificationItem(long id, boolean mms,
@@ -29,7 +30,7 @@ public class NotificationItem {
                           @NonNull   Recipient conversationRecipient,
                           @Nullable  Recipient threadRecipient,
                           long threadId, @Nullable CharSequence text, long timestamp,
-                          @Nullable SlideDeck slideDeck)
+                          long dateReceived, @Nullable SlideDeck slideDeck)
   {
     this.id                    = id;
     this.mms                   = mms;
@@ -39,6 +40,7 @@ public class NotificationItem {
     this.text                  = text;
     this.threadId              = threadId;
     this.timestamp             = timestamp;
+    this.dateReceived          = dateReceived;
     this.slideDeck             = slideDeck;
   }
 
@@ -58,6 +60,10 @@ public class NotificationItem {
     return timestamp;
   }
 
+  public long getDateReceived() {
+    return dateReceived;
+  }
+
   public long getThreadId() {
     return threadId;
   }
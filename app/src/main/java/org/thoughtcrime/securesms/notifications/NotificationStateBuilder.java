@@ -0,0 +1,183 @@
+package org.thoughtcrime.securesms.notifications;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import org.session.libsignal.utilities.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the unread messages to notify about in memory, per thread, so that building the
+ * {@link NotificationState} doesn't mean loading every unread message of every thread again.
+ *
+ * A new message only reloads the unread messages of its thread, and a thread being read just drops
+ * its messages. Updates requested within a short window are coalesced, so that a burst of incoming
+ * messages is loaded and posted once rather than once per message.
+ */
+final class NotificationStateBuilder {
+
+  private static final String TAG = NotificationStateBuilder.class.getSimpleName();
+
+  interface Source {
+    /**
+     * @return All unread messages to notify about, oldest first.
+     */
+    @NonNull List<NotificationItem> getUnread();
+
+    /**
+     * @return The unread messages to notify about in the given threads, oldest first.
+     */
+    @NonNull List<NotificationItem> getUnread(@NonNull Set<Long> threadIds);
+  }
+
+  interface Listener {
+    @WorkerThread
+    void onUpdate(@NonNull NotificationState notificationState, boolean signal, int reminderCount);
+  }
+
+  private final Source                   source;
+  private final Listener                 listener;
+  private final ScheduledExecutorService executor;
+  private final long                     coalesceMillis;
+
+  // Only accessed on the executor
+  private final Map<Long, List<NotificationItem>> unreadByThread = new HashMap<>();
+  private       boolean                           loaded;
+
+  // Pending changes, guarded by this
+  private final Set<Long> insertedThreads = new HashSet<>();
+  private final Set<Long> readThreads     = new HashSet<>();
+  private       boolean   invalidated;
+  private       boolean   updateScheduled;
+  private       boolean   signal;
+  private       int       reminderCount;
+
+  NotificationStateBuilder(@NonNull Source source,
+                           @NonNull Listener listener,
+                           @NonNull ScheduledExecutorService executor,
+                           long coalesceMillis)
+  {
+    this.source         = source;
+    this.listener       = listener;
+    this.executor       = executor;
+    this.coalesceMillis = coalesceMillis;
+  }
+
+  /**
+   * New messages were inserted in the thread.
+   */
+  synchronized void onMessagesInserted(long threadId) {
+    insertedThreads.add(threadId);
+  }
+
+  /**
+   * Every message in the thread was marked as read.
+   */
+  synchronized void onThreadRead(long threadId) {
+    insertedThreads.remove(threadId);
+    readThreads.add(threadId);
+  }
+
+  /**
+   * Messages may have changed in ways that aren't tracked, so everything should be loaded again.
+   */
+  synchronized void invalidate() {
+    invalidated = true;
+  }
+
+  /**
+   * Schedules an update with the pending changes, unless one is already scheduled.
+   */
+  synchronized void requestUpdate(boolean signal, int reminderCount) {
+    this.signal        |= signal;
+    this.reminderCount  = Math.max(this.reminderCount, reminderCount);
+
+    if (!updateScheduled) {
+      updateScheduled = true;
+      executor.schedule(this::update, coalesceMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void update() {
+    Set<Long> inserted;
+    Set<Long> read;
+    boolean   reload;
+    boolean   signal;
+    int       reminderCount;
+
+    synchronized (this) {
+      inserted      = new HashSet<>(insertedThreads);
+      read          = new HashSet<>(readThreads);
+      reload        = invalidated || !loaded;
+      signal        = this.signal;
+      reminderCount = this.reminderCount;
+
+      insertedThreads.clear();
+      readThreads.clear();
+      invalidated        = false;
+      updateScheduled    = false;
+      this.signal        = false;
+      this.reminderCount = 0;
+    }
+
+    try {
+      if (reload) {
+        unreadByThread.clear();
+        add(source.getUnread());
+        loaded = true;
+      } else {
+        for (long threadId : read) {
+          unreadByThread.remove(threadId);
+        }
+
+        if (!inserted.isEmpty()) {
+          unreadByThread.keySet().removeAll(inserted);
+          add(source.getUnread(inserted));
+        }
+      }
+
+      listener.onUpdate(new NotificationState(getUnread()), signal, reminderCount);
+    } catch (RuntimeException e) {
+      // Don't trust what's in memory after a failed load
+      Log.w(TAG, "Failed to update notifications.", e);
+      invalidate();
+    }
+  }
+
+  private void add(@NonNull List<NotificationItem> items) {
+    for (NotificationItem item : items) {
+      List<NotificationItem> threadItems = unreadByThread.get(item.getThreadId());
+
+      if (threadItems == null) {
+        threadItems = new ArrayList<>();
+        unreadByThread.put(item.getThreadId(), threadItems);
+      }
+
+      threadItems.add(item);
+    }
+  }
+
+  /**
+   * @return The unread messages of all threads, oldest first.
+   */
+  private @NonNull List<NotificationItem> getUnread() {
+    List<NotificationItem> unread = new ArrayList<>();
+
+    for (List<NotificationItem> threadItems : unreadByThread.values()) {
+      unread.addAll(threadItems);
+    }
+
+    Collections.sort(unread, (a, b) -> Long.compare(a.getDateReceived(), b.getDateReceived()));
+
+    return unread;
+  }
+}
@@ -18,13 +18,15 @@ import org.thoughtcrime.securesms.loki.api.OpenGroupManager;
 import java.util.concurrent.TimeUnit;
 
 public class OptimizedMessageNotifier implements MessageNotifier {
-  private final MessageNotifier         wrapped;
-  private final Debouncer               debouncer;
+  private final MessageNotifier            wrapped;
+  private final Debouncer                  debouncer;
+  private final PendingNotificationUpdates pendingUpdates;
 
   @MainThread
   public OptimizedMessageNotifier(@NonNull MessageNotifier wrapped) {
-    this.wrapped   = wrapped;
-    this.debouncer = new Debouncer(TimeUnit.SECONDS.toMillis(2));
+    this.wrapped        = wrapped;
+    this.debouncer      = new Debouncer(TimeUnit.SECONDS.toMillis(2));
+    this.pendingUpdates = new PendingNotificationUpdates();
   }
 
   @Override
@@ -43,75 +45,65 @@ public class OptimizedMessageNotifier implements MessageNotifier {
 
   @Override
   public void updateNotification(@NonNull Context context) {
-    Poller poller = ApplicationContext.getInstance(context).poller;
-    boolean isCaughtUp = true;
-    if (poller != null) {
-      isCaughtUp = isCaughtUp && poller.isCaughtUp();
-    }
-
-    isCaughtUp = isCaughtUp && OpenGroupManager.INSTANCE.isAllCaughtUp();
-
-    if (isCaughtUp) {
+    if (isCaughtUp(context)) {
       performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context));
     } else {
-      debouncer.publish(() -> performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context)));
+      pendingUpdates.addFullUpdate();
+      publishPendingUpdates(context);
     }
   }
 
   @Override
   public void updateNotification(@NonNull Context context, long threadId) {
-    Poller lokiPoller = ApplicationContext.getInstance(context).poller;
-    boolean isCaughtUp = true;
-    if (lokiPoller != null) {
-      isCaughtUp = isCaughtUp && lokiPoller.isCaughtUp();
-    }
-
-    isCaughtUp = isCaughtUp && OpenGroupManager.INSTANCE.isAllCaughtUp();
-    
-    if (isCaughtUp) {
+    if (isCaughtUp(context)) {
       performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context, threadId));
     } else {
-      debouncer.publish(() -> performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context, threadId)));
+      pendingUpdates.addThread(threadId);
+      publishPendingUpdates(context);
     }
   }
 
   @Override
   public void updateNotification(@NonNull Context context, long threadId, boolean signal) {
-    Poller lokiPoller = ApplicationContext.getInstance(context).poller;
-    boolean isCaughtUp = true;
-    if (lokiPoller != null) {
-      isCaughtUp = isCaughtUp && lokiPoller.isCaughtUp();
-    }
-
-    isCaughtUp = isCaughtUp && OpenGroupManager.INSTANCE.isAllCaughtUp();
-
-    if (isCaughtUp) {
+    if (isCaughtUp(context)) {
       performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context, threadId, signal));
     } else {
-      debouncer.publish(() -> performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context, threadId, signal)));
+      pendingUpdates.addThread(threadId, signal);
+      publishPendingUpdates(context);
     }
   }
 
   @Override
   public void updateNotification(@androidx.annotation.NonNull Context context, boolean signal, int reminderCount) {
-    Poller lokiPoller = ApplicationContext.getInstance(context).poller;
-    boolean isCaughtUp = true;
-    if (lokiPoller != null) {
-      isCaughtUp = isCaughtUp && lokiPoller.isCaughtUp();
-    }
-
-    isCaughtUp = isCaughtUp && OpenGroupManager.INSTANCE.isAllCaughtUp();
-
-    if (isCaughtUp) {
+    if (isCaughtUp(context)) {
       performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context, signal, reminderCount));
     } else {
-      debouncer.publish(() -> performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context, signal, reminderCount)));
+      pendingUpdates.addReminderUpdate(signal, reminderCount);
+      publishPendingUpdates(context);
     }
   }
 
   @Override
   public void clearReminder(@NonNull Context context) { wrapped.clearReminder(context); }
 
+  private boolean isCaughtUp(@NonNull Context context) {
+    Poller poller = ApplicationContext.getInstance(context).poller;
+    boolean isCaughtUp = true;
+    if (poller != null) {
+      isCaughtUp = isCaughtUp && poller.isCaughtUp();
+    }
+
+    return isCaughtUp && OpenGroupManager.INSTANCE.isAllCaughtUp();
+  }
+
+  /**
+   * The debouncer only keeps the last runnable, so the updates themselves are collected separately
+   * and the runnable applies all of them.
+   */
+  private void publishPendingUpdates(@NonNull Context context) {
+    debouncer.publish(() -> performOnBackgroundThreadIfNeeded(() -> pendingUpdates.flush(wrapped, context)));
+  }
+
   private void performOnBackgroundThreadIfNeeded(Runnable r) {
     if (Looper.myLooper() == Looper.getMainLooper()) {
       ThreadUtils.queue(r);
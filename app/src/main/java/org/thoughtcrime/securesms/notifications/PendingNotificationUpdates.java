@@ -0,0 +1,81 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.session.libsession.messaging.sending_receiving.notifications.MessageNotifier;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the notification updates requested while they're being held back, so that they can all
+ * be applied at once later on. Holding back an update must not lose the thread it was for, as the
+ * notifier only reloads the threads it's told about.
+ */
+final class PendingNotificationUpdates {
+
+  // The signal requested for each thread, or null if the notifier should decide
+  private final Map<Long, Boolean> threads = new LinkedHashMap<>();
+  private       boolean            fullUpdate;
+  private       boolean            reminderUpdate;
+  private       boolean            signal;
+  private       int                reminderCount;
+
+  synchronized void addThread(long threadId) {
+    threads.put(threadId, null);
+  }
+
+  synchronized void addThread(long threadId, boolean signal) {
+    if (threads.containsKey(threadId)) {
+      Boolean pendingSignal = threads.get(threadId);
+      if (pendingSignal != null) threads.put(threadId, pendingSignal || signal);
+    } else {
+      threads.put(threadId, signal);
+    }
+  }
+
+  synchronized void addFullUpdate() {
+    fullUpdate = true;
+  }
+
+  synchronized void addReminderUpdate(boolean signal, int reminderCount) {
+    this.reminderUpdate = true;
+    this.signal        |= signal;
+    this.reminderCount  = Math.max(this.reminderCount, reminderCount);
+  }
+
+  /**
+   * Passes the pending updates on to {@code notifier}, and forgets about them.
+   */
+  void flush(@NonNull MessageNotifier notifier, @NonNull Context context) {
+    Map<Long, Boolean> threads;
+    boolean            fullUpdate;
+    boolean            reminderUpdate;
+    boolean            signal;
+    int                reminderCount;
+
+    synchronized (this) {
+      threads        = new LinkedHashMap<>(this.threads);
+      fullUpdate     = this.fullUpdate;
+      reminderUpdate = this.reminderUpdate;
+      signal         = this.signal;
+      reminderCount  = this.reminderCount;
+
+      this.threads.clear();
+      this.fullUpdate     = false;
+      this.reminderUpdate = false;
+      this.signal         = false;
+      this.reminderCount  = 0;
+    }
+
+    for (Map.Entry<Long, Boolean> thread : threads.entrySet()) {
+      if (thread.getValue() == null) notifier.updateNotification(context, thread.getKey());
+      else                           notifier.updateNotification(context, thread.getKey(), thread.getValue());
+    }
+
+    if (fullUpdate)     notifier.updateNotification(context);
+    if (reminderUpdate) notifier.updateNotification(context, signal, reminderCount);
+  }
+}
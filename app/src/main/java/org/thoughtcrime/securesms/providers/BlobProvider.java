@@ -22,8 +22,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -36,6 +34,8 @@ public class BlobProvider {
   private static final String MULTI_SESSION_DIRECTORY  = "multi_session_blobs";
   private static final String SINGLE_SESSION_DIRECTORY = "single_session_blobs";
 
+  private static final long MEMORY_BUDGET_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 8, 32 * 1024 * 1024);
+
   public static final Uri        CONTENT_URI = Uri.parse("content://network.loki.provider.securesms/blob");
   public static final String     AUTHORITY   = "network.loki.provider.securesms";
   public static final String     PATH        = "blob/*/*/*/*/*";
@@ -53,7 +53,7 @@ public class BlobProvider {
 
   private static final BlobProvider INSTANCE = new BlobProvider();
 
-  private final Map<Uri, byte[]> memoryBlobs = new HashMap<>();
+  private final MemoryBlobStore memoryBlobs = new MemoryBlobStore(MEMORY_BUDGET_BYTES, SignalExecutors.BOUNDED);
 
 
   public static BlobProvider getInstance() {
@@ -78,21 +78,12 @@ public class BlobProvider {
    * Retrieve a stream for the content with the specified URI.
    * @throws IOException If the stream fails to open or the spec of the URI doesn't match.
    */
-  public synchronized @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri) throws IOException {
+  public @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri) throws IOException {
     if (isAuthority(uri)) {
       StorageType storageType = StorageType.decode(uri.getPathSegments().get(STORAGE_TYPE_PATH_SEGMENT));
 
       if (storageType.isMemory()) {
-        byte[] data = memoryBlobs.get(uri);
-
-        if (data != null) {
-          if (storageType == StorageType.SINGLE_USE_MEMORY) {
-            memoryBlobs.remove(uri);
-          }
-          return new ByteArrayInputStream(data);
-        } else {
-          throw new IOException("Failed to find in-memory blob for: " + uri);
-        }
+        return memoryBlobs.open(uri.getPathSegments().get(ID_PATH_SEGMENT));
       } else {
         String id        = uri.getPathSegments().get(ID_PATH_SEGMENT);
         String directory = getDirectory(storageType);
@@ -108,7 +99,7 @@ public class BlobProvider {
   /**
    * Delete the content with the specified URI.
    */
-  public synchronized void delete(@NonNull Context context, @NonNull Uri uri) {
+  public void delete(@NonNull Context context, @NonNull Uri uri) {
     if (!isAuthority(uri)) {
       Log.d(TAG, "Can't delete. Not the authority for uri: " + uri);
       return;
@@ -118,7 +109,7 @@ public class BlobProvider {
       StorageType storageType = StorageType.decode(uri.getPathSegments().get(STORAGE_TYPE_PATH_SEGMENT));
 
       if (storageType.isMemory()) {
-        memoryBlobs.remove(uri);
+        memoryBlobs.remove(uri.getPathSegments().get(ID_PATH_SEGMENT));
       } else {
         String id        = uri.getPathSegments().get(ID_PATH_SEGMENT);
         String directory = getDirectory(storageType);
@@ -134,13 +125,16 @@ public class BlobProvider {
   }
 
   /**
-   * Indicates a new app session has started, allowing old single-session blobs to be deleted.
+   * Indicates a new app session has started, allowing old single-session blobs to be deleted. In-memory
+   * blobs can only be spilled to disk from then on.
    */
   public synchronized void onSessionStart(@NonNull Context context) {
     File directory = getOrCreateCacheDirectory(context, SINGLE_SESSION_DIRECTORY);
     for (File file : directory.listFiles()) {
       file.delete();
     }
+
+    memoryBlobs.setSpillStorage(new EncryptedSpillStorage(context.getApplicationContext()));
   }
 
   public static @Nullable String getMimeType(@NonNull Uri uri) {
@@ -173,7 +167,7 @@ public class BlobProvider {
   }
 
   @WorkerThread
-  private synchronized @NonNull Uri writeBlobSpecToDisk(@NonNull Context context, @NonNull BlobSpec blobSpec, @Nullable ErrorListener errorListener) throws IOException {
+  private @NonNull Uri writeBlobSpecToDisk(@NonNull Context context, @NonNull BlobSpec blobSpec, @Nullable ErrorListener errorListener) throws IOException {
     AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
     String           directory        = getDirectory(blobSpec.getStorageType());
     File             outputFile       = new File(getOrCreateCacheDirectory(context, directory), buildFileName(blobSpec.id));
@@ -192,16 +186,19 @@ public class BlobProvider {
     return buildUri(blobSpec);
   }
 
-  private synchronized @NonNull Uri writeBlobSpecToMemory(@NonNull BlobSpec blobSpec, @NonNull byte[] data) {
-    Uri uri = buildUri(blobSpec);
-    memoryBlobs.put(uri, data);
-    return uri;
+  private @NonNull Uri writeBlobSpecToMemory(@NonNull BlobSpec blobSpec, @NonNull byte[] data) {
+    memoryBlobs.put(blobSpec.getId(), data, blobSpec.getStorageType() == StorageType.SINGLE_USE_MEMORY);
+    return buildUri(blobSpec);
   }
 
   private static @NonNull String buildFileName(@NonNull String id) {
     return id + ".blob";
   }
 
+  private static @NonNull String buildSpillFileName(@NonNull String id) {
+    return id + ".spill";
+  }
+
   private static @NonNull String getDirectory(@NonNull StorageType storageType) {
     return storageType == StorageType.MULTI_SESSION_DISK ? MULTI_SESSION_DIRECTORY : SINGLE_SESSION_DIRECTORY;
   }
@@ -311,6 +308,41 @@ public class BlobProvider {
     }
   }
 
+  /**
+   * Spills in-memory blobs to the single-session directory, so that they don't outlive the session.
+   */
+  private static class EncryptedSpillStorage implements MemoryBlobStore.SpillStorage {
+
+    private final Context context;
+
+    private EncryptedSpillStorage(@NonNull Context context) {
+      this.context = context;
+    }
+
+    @Override
+    public @NonNull OutputStream openForWriting(@NonNull String id) throws IOException {
+      AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
+      return ModernEncryptingPartOutputStream.createFor(attachmentSecret, getFile(id), true).second;
+    }
+
+    @Override
+    public @NonNull InputStream openForReading(@NonNull String id) throws IOException {
+      AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
+      return ModernDecryptingPartInputStream.createFor(attachmentSecret, getFile(id), 0);
+    }
+
+    @Override
+    public void delete(@NonNull String id) {
+      if (!getFile(id).delete()) {
+        Log.w(TAG, "Failed to delete spilled blob: " + id);
+      }
+    }
+
+    private @NonNull File getFile(@NonNull String id) {
+      return new File(getOrCreateCacheDirectory(context, SINGLE_SESSION_DIRECTORY), buildSpillFileName(id));
+    }
+  }
+
   public interface ErrorListener {
     @WorkerThread
     void onError(IOException e);
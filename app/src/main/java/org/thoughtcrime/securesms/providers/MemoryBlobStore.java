@@ -0,0 +1,243 @@
+package org.thoughtcrime.securesms.providers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.session.libsignal.utilities.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Holds the in-memory blobs of {@link BlobProvider} within a memory budget.
+ *
+ * When the blobs held in memory exceed the budget, the least recently used ones are spilled to
+ * (encrypted) storage in the background, and read back from there from then on. Each blob has its
+ * own lock, so reading one blob never waits on another one being read, written or spilled. The
+ * shared lock only guards the memory accounting, and is never held during I/O.
+ */
+final class MemoryBlobStore {
+
+  private static final String TAG = MemoryBlobStore.class.getSimpleName();
+
+  interface SpillStorage {
+    @NonNull OutputStream openForWriting(@NonNull String id) throws IOException;
+    @NonNull InputStream openForReading(@NonNull String id) throws IOException;
+    void delete(@NonNull String id);
+  }
+
+  private final long                        budgetBytes;
+  private final Executor                    spillExecutor;
+  private final Map<String, Blob>           blobs    = new ConcurrentHashMap<>();
+  private final LinkedHashMap<String, Blob> resident = new LinkedHashMap<>(16, 0.75f, true); // In access order
+
+  private long residentBytes; // Guarded by resident
+  private long spillingBytes; // Guarded by resident
+
+  private volatile @Nullable SpillStorage spillStorage;
+
+  MemoryBlobStore(long budgetBytes, @NonNull Executor spillExecutor) {
+    this.budgetBytes   = budgetBytes;
+    this.spillExecutor = spillExecutor;
+  }
+
+  /**
+   * Blobs are only kept in memory, whatever the budget, until spill storage is available.
+   */
+  void setSpillStorage(@NonNull SpillStorage spillStorage) {
+    this.spillStorage = spillStorage;
+    trimToBudget();
+  }
+
+  void put(@NonNull String id, @NonNull byte[] data, boolean singleUse) {
+    Blob blob = new Blob(id, data, singleUse);
+    blobs.put(id, blob);
+
+    synchronized (resident) {
+      resident.put(id, blob);
+      residentBytes += blob.size;
+    }
+
+    trimToBudget();
+  }
+
+  /**
+   * Opens the blob with the given ID. Single use blobs are removed from the store.
+   */
+  @NonNull InputStream open(@NonNull String id) throws IOException {
+    Blob blob = blobs.get(id);
+
+    if (blob == null || (blob.singleUse && !blobs.remove(id, blob))) {
+      throw new IOException("Failed to find in-memory blob for: " + id);
+    }
+
+    InputStream  stream;
+    SpillStorage storage = spillStorage;
+
+    synchronized (blob) {
+      if (blob.data != null) {
+        stream = new ByteArrayInputStream(blob.data);
+      } else if (blob.spilled && storage != null) {
+        stream = storage.openForReading(id);
+      } else {
+        throw new IOException("Failed to find in-memory blob for: " + id);
+      }
+    }
+
+    if (blob.singleUse) {
+      return release(blob) ? new DeleteOnCloseInputStream(stream, storage, id) : stream;
+    }
+
+    synchronized (resident) {
+      // Mark the blob as recently used
+      resident.get(id);
+    }
+
+    return stream;
+  }
+
+  void remove(@NonNull String id) {
+    Blob blob = blobs.remove(id);
+
+    if (blob != null && release(blob)) {
+      SpillStorage storage = spillStorage;
+      if (storage != null) storage.delete(id);
+    }
+  }
+
+  @VisibleForTesting
+  long getResidentBytes() {
+    synchronized (resident) {
+      return residentBytes;
+    }
+  }
+
+  /**
+   * Frees the memory held by a blob that was removed from the store.
+   *
+   * @return true if the blob was spilled, in which case its stored copy is now the caller's to delete.
+   */
+  private boolean release(@NonNull Blob blob) {
+    boolean spilled;
+
+    synchronized (blob) {
+      blob.removed = true;
+      blob.data    = null;
+      spilled      = blob.spilled;
+    }
+
+    synchronized (resident) {
+      // A blob that's being spilled is accounted for once the spill is done
+      if (resident.remove(blob.id) != null) {
+        residentBytes -= blob.size;
+      }
+    }
+
+    return spilled;
+  }
+
+  private void trimToBudget() {
+    if (spillStorage == null) return;
+
+    synchronized (resident) {
+      Iterator<Blob> iterator = resident.values().iterator();
+
+      while (residentBytes - spillingBytes > budgetBytes && iterator.hasNext()) {
+        Blob blob = iterator.next();
+        iterator.remove();
+        spillingBytes += blob.size;
+        spillExecutor.execute(() -> spill(blob));
+      }
+    }
+  }
+
+  private void spill(@NonNull Blob blob) {
+    SpillStorage storage = spillStorage;
+    byte[]       data;
+
+    synchronized (blob) {
+      data = blob.data;
+    }
+
+    boolean spilled = false;
+
+    if (data != null && storage != null) {
+      // Don't hold the blob's lock while writing, so that it can still be read from memory
+      try (OutputStream outputStream = storage.openForWriting(blob.id)) {
+        outputStream.write(data);
+        spilled = true;
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to spill blob to disk, keeping it in memory.", e);
+      }
+    }
+
+    boolean removed;
+
+    synchronized (blob) {
+      removed = blob.removed;
+
+      if (spilled && !removed) {
+        blob.data    = null;
+        blob.spilled = true;
+      }
+    }
+
+    if (spilled && removed) {
+      storage.delete(blob.id);
+    }
+
+    synchronized (resident) {
+      spillingBytes -= blob.size;
+
+      if (spilled || removed) {
+        residentBytes -= blob.size;
+      } else {
+        resident.put(blob.id, blob);
+      }
+    }
+  }
+
+  private static final class DeleteOnCloseInputStream extends FilterInputStream {
+
+    private final SpillStorage storage;
+    private final String       id;
+
+    private DeleteOnCloseInputStream(@NonNull InputStream in, @Nullable SpillStorage storage, @NonNull String id) {
+      super(in);
+      this.storage = storage;
+      this.id      = id;
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      if (storage != null) storage.delete(id);
+    }
+  }
+
+  private static final class Blob {
+    private final String  id;
+    private final long    size;
+    private final boolean singleUse;
+
+    private byte[]  data;    // Guarded by this, null once spilled or removed
+    private boolean spilled; // Guarded by this
+    private boolean removed; // Guarded by this
+
+    private Blob(@NonNull String id, @NonNull byte[] data, boolean singleUse) {
+      this.id        = id;
+      this.data      = data;
+      this.size      = data.length;
+      this.singleUse = singleUse;
+    }
+  }
+}
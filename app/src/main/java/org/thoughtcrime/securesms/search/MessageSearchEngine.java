@@ -0,0 +1,226 @@
+package org.thoughtcrime.securesms.search;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.search.model.MessageHit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs paged full-text message searches.
+ *
+ * Pages are fetched with keyset paging: each page query resumes right after the last hit of the
+ * previous page, so loading page N doesn't require scanning past the N-1 pages before it. Snippets
+ * are only computed for the hits of the page being delivered.
+ *
+ * Starting a new search cancels the previous one. A canceled search stops at the next step
+ * boundary and never delivers any further pages.
+ */
+public final class MessageSearchEngine {
+
+  public static final int DEFAULT_PAGE_SIZE = 50;
+
+  public enum Order {
+    /** Best matches first, most recent first among equally ranked ones. */
+    RELEVANCE,
+    /** Most recent first. */
+    RECENCY
+  }
+
+  public interface Source {
+    /**
+     * @return up to {@code limit} hits ordered by {@code order} and located strictly after
+     *         {@code after}, or from the start if it's null. Hits don't need to have snippets.
+     */
+    @NonNull List<MessageHit> findPage(@NonNull String query, long threadId, @NonNull Order order, @Nullable MessageHit after, int limit);
+
+    /**
+     * @return a snippet for each of the provided hits, in the same order.
+     */
+    @NonNull List<String> getSnippets(@NonNull String query, @NonNull List<MessageHit> hits);
+  }
+
+  public interface Listener {
+    /** Called on the engine executor, never for a canceled search. */
+    void onPage(@NonNull Search search, @NonNull Page page);
+  }
+
+  private final Source   source;
+  private final Executor executor;
+  private final int      pageSize;
+
+  private Search current;
+
+  public MessageSearchEngine(@NonNull Source source, @NonNull Executor executor) {
+    this(source, executor, DEFAULT_PAGE_SIZE);
+  }
+
+  public MessageSearchEngine(@NonNull Source source, @NonNull Executor executor, int pageSize) {
+    this.source   = source;
+    this.executor = executor;
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Starts a new search, superseding any previous one, and loads its first page.
+   *
+   * @param threadId the thread to search in, or -1 to search all threads.
+   */
+  public synchronized @NonNull Search search(@NonNull String query, long threadId, @NonNull Order order, @NonNull Listener listener) {
+    if (current != null) {
+      current.cancel();
+    }
+
+    Search search = new Search(query, threadId, order, listener);
+
+    current = search;
+    search.loadNextPage();
+
+    return search;
+  }
+
+  public synchronized void cancel() {
+    if (current != null) {
+      current.cancel();
+      current = null;
+    }
+  }
+
+  public final class Search {
+
+    private final String   query;
+    private final long     threadId;
+    private final Order    order;
+    private final Listener listener;
+
+    private volatile boolean canceled;
+
+    private MessageHit lastHit;
+    private int        pagesLoaded;
+    private boolean    exhausted;
+    private boolean    loading;
+
+    private Search(@NonNull String query, long threadId, @NonNull Order order, @NonNull Listener listener) {
+      this.query    = query;
+      this.threadId = threadId;
+      this.order    = order;
+      this.listener = listener;
+    }
+
+    public @NonNull String getQuery() {
+      return query;
+    }
+
+    public boolean isCanceled() {
+      return canceled;
+    }
+
+    public synchronized boolean hasMore() {
+      return !exhausted;
+    }
+
+    public void cancel() {
+      canceled = true;
+    }
+
+    /**
+     * Schedules the next page, unless one is already on its way or there's nothing left to load.
+     */
+    public void loadNextPage() {
+      synchronized (this) {
+        if (canceled || exhausted || loading) return;
+        loading = true;
+      }
+
+      executor.execute(this::fetchNextPage);
+    }
+
+    private void fetchNextPage() {
+      Page page;
+
+      try {
+        page = fetchPage();
+      } finally {
+        synchronized (this) {
+          loading = false;
+        }
+      }
+
+      if (page != null && !canceled) {
+        listener.onPage(this, page);
+      }
+    }
+
+    private @Nullable Page fetchPage() {
+      MessageHit after;
+      int        pageIndex;
+
+      synchronized (this) {
+        after     = lastHit;
+        pageIndex = pagesLoaded;
+      }
+
+      if (canceled) return null;
+
+      // Ask for an extra row to find out whether there is another page without a COUNT query.
+      List<MessageHit> hits    = source.findPage(query, threadId, order, after, pageSize + 1);
+      boolean          hasMore = hits.size() > pageSize;
+
+      if (hasMore) hits = hits.subList(0, pageSize);
+      if (canceled) return null;
+
+      List<MessageHit> page = withSnippets(hits);
+      if (canceled) return null;
+
+      synchronized (this) {
+        lastHit     = hits.isEmpty() ? lastHit : hits.get(hits.size() - 1);
+        exhausted   = !hasMore;
+        pagesLoaded = pageIndex + 1;
+      }
+
+      return new Page(pageIndex, page, hasMore);
+    }
+
+    private @NonNull List<MessageHit> withSnippets(@NonNull List<MessageHit> hits) {
+      if (hits.isEmpty()) return Collections.emptyList();
+
+      List<String>     snippets = source.getSnippets(query, hits);
+      List<MessageHit> result   = new ArrayList<>(hits.size());
+
+      for (int i = 0; i < hits.size(); i++) {
+        result.add(hits.get(i).withSnippet(snippets.get(i)));
+      }
+
+      return result;
+    }
+  }
+
+  public static final class Page {
+
+    private final int              pageIndex;
+    private final List<MessageHit> hits;
+    private final boolean          hasMore;
+
+    Page(int pageIndex, @NonNull List<MessageHit> hits, boolean hasMore) {
+      this.pageIndex = pageIndex;
+      this.hits      = hits;
+      this.hasMore   = hasMore;
+    }
+
+    public int getPageIndex() {
+      return pageIndex;
+    }
+
+    public @NonNull List<MessageHit> getHits() {
+      return hits;
+    }
+
+    public boolean hasMore() {
+      return hasMore;
+    }
+  }
+}
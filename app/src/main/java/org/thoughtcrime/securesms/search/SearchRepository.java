@@ -1,9 +1,11 @@
 package org.thoughtcrime.securesms.search;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.text.TextUtils;
 
 import com.annimon.stream.Stream;
@@ -11,20 +13,30 @@ import com.annimon.stream.Stream;
 import org.thoughtcrime.securesms.contacts.ContactAccessor;
 import org.session.libsession.utilities.Address;
 import org.thoughtcrime.securesms.database.CursorList;
+import org.thoughtcrime.securesms.database.DatabaseContentProviders;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.ObservableContent;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.session.libsignal.utilities.Log;
 import org.session.libsession.utilities.recipients.Recipient;
+import org.thoughtcrime.securesms.search.model.MessageHit;
+import org.thoughtcrime.securesms.search.model.MessagePage;
 import org.thoughtcrime.securesms.search.model.MessageResult;
 import org.thoughtcrime.securesms.search.model.SearchResult;
 import org.thoughtcrime.securesms.util.Stopwatch;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages data retrieval for search.
@@ -50,11 +62,14 @@ public class SearchRepository {
     }
   }
 
-  private final Context          context;
-  private final SearchDatabase   searchDatabase;
-  private final ThreadDatabase   threadDatabase;
-  private final ContactAccessor  contactAccessor;
-  private final Executor         executor;
+  private final Context             context;
+  private final SearchDatabase      searchDatabase;
+  private final ThreadDatabase      threadDatabase;
+  private final ContactAccessor     contactAccessor;
+  private final Executor            executor;
+  private final MessageSearchEngine messageSearchEngine;
+  private final MessageSearchEngine globalSearchEngine;
+  private final AtomicLong          queryGeneration = new AtomicLong();
 
   public SearchRepository(@NonNull Context context,
                           @NonNull SearchDatabase searchDatabase,
@@ -67,15 +82,29 @@ public class SearchRepository {
     this.threadDatabase   = threadDatabase;
     this.contactAccessor  = contactAccessor;
     this.executor         = executor;
+
+    this.messageSearchEngine = new MessageSearchEngine(new DatabaseSource(searchDatabase), executor);
+    this.globalSearchEngine  = new MessageSearchEngine(new DatabaseSource(searchDatabase), executor);
   }
 
+  /**
+   * Searches contacts, conversations and messages. Messages are searched most recent first and
+   * streamed page by page: a new {@link SearchResult} holding all the messages found so far is
+   * delivered for every page, the next one being loaded through {@link SearchResult#loadMoreMessages()}.
+   */
   public void query(@NonNull String query, @NonNull Callback<SearchResult> callback) {
+    long generation = queryGeneration.incrementAndGet();
+
     if (TextUtils.isEmpty(query)) {
+      globalSearchEngine.cancel();
       callback.onResult(SearchResult.EMPTY);
       return;
     }
 
     executor.execute(() -> {
+      // A newer query has been issued in the meantime, don't bother running this one.
+      if (generation != queryGeneration.get()) return;
+
       Stopwatch timer = new Stopwatch("FtsQuery");
 
       String cleanQuery = sanitizeQuery(query);
@@ -87,27 +116,69 @@ public class SearchRepository {
       CursorList<ThreadRecord> conversations = queryConversations(cleanQuery);
       timer.split("conversations");
 
-      CursorList<MessageResult> messages = queryMessages(cleanQuery);
-      timer.split("messages");
+      if (generation != queryGeneration.get()) {
+        contacts.close();
+        conversations.close();
+        return;
+      }
+
+      List<MessageResult> messages       = new ArrayList<>();
+      ObservableContent   messageChanges = new ConversationListChanges(context);
 
-      timer.stop(TAG);
+      globalSearchEngine.search(cleanQuery, -1, MessageSearchEngine.Order.RECENCY, (search, page) -> {
+        if (generation != queryGeneration.get()) {
+          search.cancel();
 
-      callback.onResult(new SearchResult(cleanQuery, contacts, conversations, messages));
+          // Later pages share the cursors of a result that has already been handed over
+          if (page.getPageIndex() == 0) {
+            contacts.close();
+            conversations.close();
+          }
+          return;
+        }
+
+        for (MessageHit hit : page.getHits()) {
+          messages.add(toMessageResult(hit));
+        }
+
+        if (page.getPageIndex() == 0) {
+          timer.split("messages");
+          timer.stop(TAG);
+        }
+
+        callback.onResult(new SearchResult(cleanQuery, contacts, conversations, new ArrayList<>(messages), page.hasMore(), search, messageChanges));
+      });
     });
   }
 
-  public void query(@NonNull String query, long threadId, @NonNull Callback<CursorList<MessageResult>> callback) {
+  /**
+   * Searches the messages of a thread, most recent first. Results are streamed page by page,
+   * the first page is loaded right away and the next ones through {@link MessageSearchEngine.Search#loadNextPage()}.
+   * Any search previously started through this method is canceled.
+   *
+   * @return the running search, or null if the query is empty.
+   */
+  public @Nullable MessageSearchEngine.Search query(@NonNull String query, long threadId, @NonNull Callback<MessagePage> callback) {
     if (TextUtils.isEmpty(query)) {
-      callback.onResult(CursorList.emptyList());
-      return;
+      messageSearchEngine.cancel();
+      callback.onResult(new MessagePage(0, Collections.emptyList(), false));
+      return null;
     }
 
-    executor.execute(() -> {
-      long startTime = System.currentTimeMillis();
-      CursorList<MessageResult> messages = queryMessages(sanitizeQuery(query), threadId);
-      Log.d(TAG, "[ConversationQuery] " + (System.currentTimeMillis() - startTime) + " ms");
+    long startTime = System.currentTimeMillis();
+
+    return messageSearchEngine.search(sanitizeQuery(query), threadId, MessageSearchEngine.Order.RECENCY, (search, page) -> {
+      List<MessageResult> results = new ArrayList<>(page.getHits().size());
+
+      for (MessageHit hit : page.getHits()) {
+        results.add(toMessageResult(hit));
+      }
 
-      callback.onResult(messages);
+      Log.d(TAG, "[ConversationQuery] Page " + page.getPageIndex() + ": " + (System.currentTimeMillis() - startTime) + " ms");
+
+      if (!search.isCanceled()) {
+        callback.onResult(new MessagePage(page.getPageIndex(), results, page.hasMore()));
+      }
     });
   }
 
@@ -135,16 +206,12 @@ public class SearchRepository {
                                  : CursorList.emptyList();
   }
 
-  private CursorList<MessageResult> queryMessages(@NonNull String query) {
-    Cursor messages = searchDatabase.queryMessages(query);
-    return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
-                            : CursorList.emptyList();
-  }
+  private @NonNull MessageResult toMessageResult(@NonNull MessageHit hit) {
+    Recipient conversationRecipient = Recipient.from(context, Address.fromSerialized(hit.conversationAddress), false);
+    Recipient messageRecipient      = Recipient.from(context, Address.fromSerialized(hit.messageAddress), false);
+    String    body                  = hit.bodySnippet != null ? hit.bodySnippet : "";
 
-  private CursorList<MessageResult> queryMessages(@NonNull String query, long threadId) {
-    Cursor messages = searchDatabase.queryMessages(query, threadId);
-    return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
-                            : CursorList.emptyList();
+    return new MessageResult(conversationRecipient, messageRecipient, body, hit.threadId, hit.receivedTimestampMs);
   }
 
   /**
@@ -198,25 +265,94 @@ public class SearchRepository {
     }
   }
 
-  private static class MessageModelBuilder implements CursorList.ModelBuilder<MessageResult> {
+  private static class DatabaseSource implements MessageSearchEngine.Source {
+
+    private final SearchDatabase searchDatabase;
+
+    DatabaseSource(@NonNull SearchDatabase searchDatabase) {
+      this.searchDatabase = searchDatabase;
+    }
+
+    @Override
+    public @NonNull List<MessageHit> findPage(@NonNull String query, long threadId, @NonNull MessageSearchEngine.Order order, @Nullable MessageHit after, int limit) {
+      boolean          byRelevance = order == MessageSearchEngine.Order.RELEVANCE;
+      List<MessageHit> hits        = new ArrayList<>(limit);
+
+      try (Cursor cursor = searchDatabase.queryMessagePage(query, threadId, byRelevance, after, limit)) {
+        while (cursor != null && cursor.moveToNext()) {
+          hits.add(new MessageHit(cursor.getInt(cursor.getColumnIndexOrThrow(SearchDatabase.IS_MMS)) == 1,
+                                  cursor.getLong(cursor.getColumnIndexOrThrow(SearchDatabase.MESSAGE_ID)),
+                                  cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.THREAD_ID)),
+                                  cursor.getLong(cursor.getColumnIndexOrThrow(SearchDatabase.RANK)),
+                                  cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.CONVERSATION_ADDRESS)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.MESSAGE_ADDRESS)),
+                                  null));
+        }
+      }
+
+      return hits;
+    }
+
+    @Override
+    public @NonNull List<String> getSnippets(@NonNull String query, @NonNull List<MessageHit> hits) {
+      Map<Long, String> smsSnippets = querySnippets(query, false, hits);
+      Map<Long, String> mmsSnippets = querySnippets(query, true, hits);
+      List<String>      snippets    = new ArrayList<>(hits.size());
+
+      for (MessageHit hit : hits) {
+        snippets.add(hit.mms ? mmsSnippets.get(hit.messageId) : smsSnippets.get(hit.messageId));
+      }
+
+      return snippets;
+    }
+
+    private @NonNull Map<Long, String> querySnippets(@NonNull String query, boolean mms, @NonNull List<MessageHit> hits) {
+      long[] ids   = new long[hits.size()];
+      int    count = 0;
+
+      for (MessageHit hit : hits) {
+        if (hit.mms == mms) ids[count++] = hit.messageId;
+      }
+
+      Map<Long, String> snippets = new HashMap<>(count);
+
+      if (count == 0) return snippets;
+
+      try (Cursor cursor = searchDatabase.querySnippets(query, mms, Arrays.copyOf(ids, count))) {
+        while (cursor != null && cursor.moveToNext()) {
+          snippets.put(cursor.getLong(cursor.getColumnIndexOrThrow(SearchDatabase.ID)),
+                       cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.SNIPPET)));
+        }
+      }
+
+      return snippets;
+    }
+  }
+
+  /**
+   * Lets search results know when messages change, as they're no longer backed by a cursor.
+   */
+  private static class ConversationListChanges implements ObservableContent {
 
     private final Context context;
 
-    MessageModelBuilder(@NonNull Context context) {
+    ConversationListChanges(@NonNull Context context) {
       this.context = context;
     }
 
     @Override
-    public MessageResult build(@NonNull Cursor cursor) {
-      Address   conversationAddress   = Address.fromSerialized(cursor.getString(cursor.getColumnIndex(SearchDatabase.CONVERSATION_ADDRESS)));
-      Address   messageAddress        = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.MESSAGE_ADDRESS)));
-      Recipient conversationRecipient = Recipient.from(context, conversationAddress, false);
-      Recipient messageRecipient      = Recipient.from(context, messageAddress, false);
-      String    body                  = cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.SNIPPET));
-      long      receivedMs            = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
-      long      threadId              = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.THREAD_ID));
-
-      return new MessageResult(conversationRecipient, messageRecipient, body, threadId, receivedMs);
+    public void registerContentObserver(@NonNull ContentObserver observer) {
+      context.getContentResolver().registerContentObserver(DatabaseContentProviders.ConversationList.CONTENT_URI, true, observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(@NonNull ContentObserver observer) {
+      context.getContentResolver().unregisterContentObserver(observer);
+    }
+
+    @Override
+    public void close() {
     }
   }
 
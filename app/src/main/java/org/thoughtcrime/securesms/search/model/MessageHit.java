@@ -0,0 +1,47 @@
+package org.thoughtcrime.securesms.search.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A single full-text search match, as read from the search index.
+ *
+ * Hits are ordered by (rank, date received, table, message ID), which is also the key used to
+ * resume paging right after a given hit.
+ */
+public final class MessageHit {
+
+  public final boolean mms;
+  public final long    messageId;
+  public final long    threadId;
+  public final long    rank;
+  public final long    receivedTimestampMs;
+  public final String  conversationAddress;
+  public final String  messageAddress;
+
+  /** Only computed for the hits of a page that is handed out to the UI. */
+  public final @Nullable String bodySnippet;
+
+  public MessageHit(boolean mms,
+                    long messageId,
+                    long threadId,
+                    long rank,
+                    long receivedTimestampMs,
+                    @NonNull String conversationAddress,
+                    @NonNull String messageAddress,
+                    @Nullable String bodySnippet)
+  {
+    this.mms                 = mms;
+    this.messageId           = messageId;
+    this.threadId            = threadId;
+    this.rank                = rank;
+    this.receivedTimestampMs = receivedTimestampMs;
+    this.conversationAddress = conversationAddress;
+    this.messageAddress      = messageAddress;
+    this.bodySnippet         = bodySnippet;
+  }
+
+  public @NonNull MessageHit withSnippet(@Nullable String bodySnippet) {
+    return new MessageHit(mms, messageId, threadId, rank, receivedTimestampMs, conversationAddress, messageAddress, bodySnippet);
+  }
+}
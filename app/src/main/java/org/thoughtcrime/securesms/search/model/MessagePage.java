@@ -0,0 +1,37 @@
+package org.thoughtcrime.securesms.search.model;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * A page of message search results, streamed to the UI as it gets loaded.
+ */
+public class MessagePage {
+
+  private final int                 pageIndex;
+  private final List<MessageResult> results;
+  private final boolean             hasMore;
+
+  public MessagePage(int pageIndex, @NonNull List<MessageResult> results, boolean hasMore) {
+    this.pageIndex = pageIndex;
+    this.results   = results;
+    this.hasMore   = hasMore;
+  }
+
+  public int getPageIndex() {
+    return pageIndex;
+  }
+
+  public boolean isFirstPage() {
+    return pageIndex == 0;
+  }
+
+  public @NonNull List<MessageResult> getResults() {
+    return results;
+  }
+
+  public boolean hasMore() {
+    return hasMore;
+  }
+}
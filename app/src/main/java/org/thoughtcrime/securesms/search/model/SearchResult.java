@@ -3,35 +3,51 @@ package org.thoughtcrime.securesms.search.model;
 import android.database.ContentObserver;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.CursorList;
+import org.thoughtcrime.securesms.database.ObservableContent;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
+import org.thoughtcrime.securesms.search.MessageSearchEngine;
 import org.session.libsession.utilities.recipients.Recipient;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Represents an all-encompassing search result that can contain various result for different
  * subcategories.
+ *
+ * Messages are loaded page by page. The results delivered for the later pages of a query share
+ * the contacts and conversations of the first one, so only the latest of them should be closed.
  */
 public class SearchResult {
 
-  public static final SearchResult EMPTY = new SearchResult("", CursorList.emptyList(), CursorList.emptyList(), CursorList.emptyList());
-
-  private final String                    query;
-  private final CursorList<Recipient>     contacts;
-  private final CursorList<ThreadRecord>  conversations;
-  private final CursorList<MessageResult> messages;
-
-  public SearchResult(@NonNull String                    query,
-                      @NonNull CursorList<Recipient>     contacts,
-                      @NonNull CursorList<ThreadRecord>  conversations,
-                      @NonNull CursorList<MessageResult> messages)
+  public static final SearchResult EMPTY = new SearchResult("", CursorList.emptyList(), CursorList.emptyList(), Collections.emptyList(), false, null, null);
+
+  private final String                     query;
+  private final CursorList<Recipient>      contacts;
+  private final CursorList<ThreadRecord>   conversations;
+  private final List<MessageResult>        messages;
+  private final boolean                    hasMoreMessages;
+  private final MessageSearchEngine.Search messageSearch;
+  private final ObservableContent          messageChanges;
+
+  public SearchResult(@NonNull  String                     query,
+                      @NonNull  CursorList<Recipient>      contacts,
+                      @NonNull  CursorList<ThreadRecord>   conversations,
+                      @NonNull  List<MessageResult>        messages,
+                      boolean                              hasMoreMessages,
+                      @Nullable MessageSearchEngine.Search messageSearch,
+                      @Nullable ObservableContent          messageChanges)
   {
-    this.query         = query;
-    this.contacts      = contacts;
-    this.conversations = conversations;
-    this.messages      = messages;
+    this.query           = query;
+    this.contacts        = contacts;
+    this.conversations   = conversations;
+    this.messages        = messages;
+    this.hasMoreMessages = hasMoreMessages;
+    this.messageSearch   = messageSearch;
+    this.messageChanges  = messageChanges;
   }
 
   public List<Recipient> getContacts() {
@@ -50,6 +66,19 @@ public class SearchResult {
     return query;
   }
 
+  public boolean hasMoreMessages() {
+    return hasMoreMessages;
+  }
+
+  /**
+   * Loads the next page of messages, which is delivered as a new result for the same query.
+   */
+  public void loadMoreMessages() {
+    if (hasMoreMessages && messageSearch != null) {
+      messageSearch.loadNextPage();
+    }
+  }
+
   public int size() {
     return contacts.size() + conversations.size() + messages.size();
   }
@@ -61,18 +90,18 @@ public class SearchResult {
   public void registerContentObserver(@NonNull ContentObserver observer) {
     contacts.registerContentObserver(observer);
     conversations.registerContentObserver(observer);
-    messages.registerContentObserver(observer);
+    if (messageChanges != null) messageChanges.registerContentObserver(observer);
   }
 
   public void unregisterContentObserver(@NonNull ContentObserver observer) {
     contacts.unregisterContentObserver(observer);
     conversations.unregisterContentObserver(observer);
-    messages.unregisterContentObserver(observer);
+    if (messageChanges != null) messageChanges.unregisterContentObserver(observer);
   }
 
   public void close() {
     contacts.close();
     conversations.close();
-    messages.close();
+    if (messageSearch != null) messageSearch.cancel();
   }
 }
@@ -0,0 +1,228 @@
+package org.thoughtcrime.securesms.service;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel for message expirations.
+ *
+ * Time is divided into ticks, and items expiring within the same tick are handed out together by
+ * {@link #advance()}, so that they can be deleted in one go. The first level of the wheel has a slot
+ * per tick for the next 64 ticks, and every further level covers 64 times the range of the previous
+ * one. Items are moved down a level as their slot comes up, and items beyond the range of the last
+ * level wait in an overflow list. Scheduling an item is O(1), apart from taking it out of the slot
+ * it was in when it's rescheduled, and the owner only has to wake up when a tick has expirations or
+ * when a slot needs to move down a level.
+ *
+ * An item never expires before its time, but may expire up to a tick late. Not thread safe.
+ */
+final class ExpirationTimerWheel<T> {
+
+  interface Clock {
+    long currentTimeMillis();
+  }
+
+  private static final int  LEVEL_BITS = 6;
+  private static final int  SLOTS      = 1 << LEVEL_BITS;
+  private static final long SLOT_MASK  = SLOTS - 1;
+  private static final int  LEVELS     = 4;
+
+  private final Clock            clock;
+  private final long             tickMillis;
+  private final List<Entry<T>>[] slots;
+  private final List<Entry<T>>   overflow  = new ArrayList<>();
+  private final List<Entry<T>>   due       = new ArrayList<>();
+  private final Map<T, Entry<T>> scheduled = new HashMap<>();
+
+  private long currentTick;
+
+  @SuppressWarnings("unchecked")
+  ExpirationTimerWheel(@NonNull Clock clock, long tickMillis) {
+    this.clock       = clock;
+    this.tickMillis  = tickMillis;
+    this.slots       = new List[LEVELS * SLOTS];
+    this.currentTick = clock.currentTimeMillis() / tickMillis;
+
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new ArrayList<>();
+    }
+  }
+
+  /**
+   * Schedules the item to expire at the given time, replacing the time it was scheduled at before,
+   * if any.
+   *
+   * @return false if the item was already scheduled.
+   */
+  boolean schedule(@NonNull T item, long expiresAtMillis) {
+    // Round up so that the item doesn't expire early
+    long     expiryTick = expiresAtMillis / tickMillis + (expiresAtMillis % tickMillis > 0 ? 1 : 0);
+    Entry<T> entry      = new Entry<>(item, expiryTick);
+    Entry<T> previous   = scheduled.put(item, entry);
+
+    if (previous != null) previous.list.remove(previous);
+
+    place(entry);
+    return previous == null;
+  }
+
+  int size() {
+    return scheduled.size();
+  }
+
+  /**
+   * @return the number of milliseconds until {@link #advance()} has work to do, or -1 if nothing is
+   * scheduled. The work might be moving items down a level rather than expiring them.
+   */
+  long getMillisUntilNextTick() {
+    if (!due.isEmpty()) return 0;
+
+    long nextTick = getNextEventTick();
+    if (nextTick == Long.MAX_VALUE) return -1;
+
+    return Math.max(0, nextTick * tickMillis - clock.currentTimeMillis());
+  }
+
+  /**
+   * Advances the wheel to the current time.
+   *
+   * @return the items that expired since the last call, in order of expiration tick.
+   */
+  @NonNull List<T> advance() {
+    long targetTick = clock.currentTimeMillis() / tickMillis;
+
+    while (currentTick < targetTick) {
+      long nextTick = getNextEventTick();
+
+      // Skip over the ticks in which nothing happens
+      if (nextTick > targetTick) {
+        currentTick = targetTick;
+        break;
+      }
+
+      currentTick = nextTick;
+      cascade();
+
+      List<Entry<T>> slot = slots[index(0, currentTick)];
+
+      for (Entry<T> entry : slot) {
+        entry.list = due;
+      }
+
+      due.addAll(slot);
+      slot.clear();
+    }
+
+    List<T> expired = new ArrayList<>(due.size());
+
+    for (Entry<T> entry : due) {
+      expired.add(entry.item);
+      scheduled.remove(entry.item);
+    }
+
+    due.clear();
+    return expired;
+  }
+
+  private void place(@NonNull Entry<T> entry) {
+    entry.list = getList(entry.tick);
+    entry.list.add(entry);
+  }
+
+  private @NonNull List<Entry<T>> getList(long tick) {
+    long delta = tick - currentTick;
+
+    if (delta <= 0) return due;
+
+    for (int level = 0; level < LEVELS; level++) {
+      if (delta < 1L << (LEVEL_BITS * (level + 1))) {
+        return slots[index(level, tick)];
+      }
+    }
+
+    return overflow;
+  }
+
+  /**
+   * Moves the items of every slot that comes up at the current tick down to the level(s) below.
+   */
+  private void cascade() {
+    if ((currentTick & ((1L << (LEVEL_BITS * LEVELS)) - 1)) == 0) {
+      replace(overflow);
+    }
+
+    for (int level = LEVELS - 1; level > 0; level--) {
+      if ((currentTick & ((1L << (LEVEL_BITS * level)) - 1)) == 0) {
+        replace(slots[index(level, currentTick)]);
+      }
+    }
+  }
+
+  private void replace(@NonNull List<Entry<T>> entries) {
+    if (entries.isEmpty()) return;
+
+    List<Entry<T>> moved = new ArrayList<>(entries);
+    entries.clear();
+
+    for (Entry<T> entry : moved) {
+      place(entry);
+    }
+  }
+
+  /**
+   * @return the first tick after the current one at which items expire or need to be moved down a
+   * level, or {@link Long#MAX_VALUE} if the wheel is empty.
+   */
+  private long getNextEventTick() {
+    long nextTick = Long.MAX_VALUE;
+
+    // Items on the first level expire within the next SLOTS - 1 ticks
+    for (int offset = 1; offset < SLOTS; offset++) {
+      if (!slots[index(0, currentTick + offset)].isEmpty()) {
+        nextTick = currentTick + offset;
+        break;
+      }
+    }
+
+    // Items on the other levels move down when the lower bits of the current tick wrap around
+    for (int level = 1; level < LEVELS; level++) {
+      int  shift = LEVEL_BITS * level;
+      long unit  = currentTick >>> shift;
+
+      for (int offset = 1; offset <= SLOTS; offset++) {
+        if (!slots[index(level, (unit + offset) << shift)].isEmpty()) {
+          nextTick = Math.min(nextTick, (unit + offset) << shift);
+          break;
+        }
+      }
+    }
+
+    if (!overflow.isEmpty()) {
+      int shift = LEVEL_BITS * LEVELS;
+      nextTick = Math.min(nextTick, ((currentTick >>> shift) + 1) << shift);
+    }
+
+    return nextTick;
+  }
+
+  private static int index(int level, long tick) {
+    return level * SLOTS + (int) ((tick >>> (LEVEL_BITS * level)) & SLOT_MASK);
+  }
+
+  private static final class Entry<T> {
+    private final T    item;
+    private final long tick;
+
+    // The slot, overflow or due list the entry is in, so that it can be removed when it's rescheduled
+    private List<Entry<T>> list;
+
+    private Entry(T item, long tick) {
+      this.item = item;
+      this.tick = tick;
+    }
+  }
+}
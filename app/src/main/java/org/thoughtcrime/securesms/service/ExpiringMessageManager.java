@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.service;
 
 import android.content.Context;
+import android.database.Cursor;
 
 
 import org.jetbrains.annotations.NotNull;
@@ -15,16 +16,19 @@ import org.session.libsignal.utilities.guava.Optional;
 import org.session.libsignal.messages.SignalServiceGroup;
 import org.session.libsignal.utilities.Log;
 
+import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessagingDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.session.libsession.messaging.messages.signal.IncomingMediaMessage;
 import org.thoughtcrime.securesms.mms.MmsException;
 
 import java.io.IOException;
-import java.util.Comparator;
-import java.util.TreeSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -32,17 +36,21 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
 
   private static final String TAG = ExpiringMessageManager.class.getSimpleName();
 
-  private final TreeSet<ExpiringMessageReference> expiringMessageReferences = new TreeSet<>(new ExpiringMessageComparator());
-  private final Executor                          executor                  = Executors.newSingleThreadExecutor();
+  private static final long EXPIRATION_TICK_MILLIS = 1000;
 
-  private final SmsDatabase smsDatabase;
-  private final MmsDatabase mmsDatabase;
-  private final Context     context;
+  private final ExpirationTimerWheel<ExpiringMessageReference> expiringMessageReferences = new ExpirationTimerWheel<>(System::currentTimeMillis, EXPIRATION_TICK_MILLIS);
+  private final Executor                                       executor                  = Executors.newSingleThreadExecutor();
+
+  private final SmsDatabase    smsDatabase;
+  private final MmsDatabase    mmsDatabase;
+  private final MmsSmsDatabase mmsSmsDatabase;
+  private final Context        context;
 
   public ExpiringMessageManager(Context context) {
-    this.context     = context.getApplicationContext();
-    this.smsDatabase = DatabaseFactory.getSmsDatabase(context);
-    this.mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    this.context        = context.getApplicationContext();
+    this.smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    this.mmsDatabase    = DatabaseFactory.getMmsDatabase(context);
+    this.mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
 
     executor.execute(new LoadTask());
     executor.execute(new ProcessTask());
@@ -56,7 +64,7 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
     long expiresAtMillis = startedAtTimestamp + expiresInMillis;
 
     synchronized (expiringMessageReferences) {
-      expiringMessageReferences.add(new ExpiringMessageReference(id, mms, expiresAtMillis));
+      expiringMessageReferences.schedule(new ExpiringMessageReference(id, mms), expiresAtMillis);
       expiringMessageReferences.notifyAll();
     }
   }
@@ -179,25 +187,20 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
 
   private class LoadTask implements Runnable {
     public void run() {
-      SmsDatabase.Reader smsReader = smsDatabase.readerFor(smsDatabase.getExpirationStartedMessages());
-      MmsDatabase.Reader mmsReader = mmsDatabase.getExpireStartedMessages();
-
-      MessageRecord messageRecord;
+      load(smsDatabase, false);
+      load(mmsDatabase, true);
+    }
 
-      while ((messageRecord = smsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
-      }
+    private void load(MessagingDatabase database, boolean mms) {
+      try (Cursor cursor = database.getExpiringMessages()) {
+        synchronized (expiringMessageReferences) {
+          while (cursor.moveToNext()) {
+            expiringMessageReferences.schedule(new ExpiringMessageReference(cursor.getLong(0), mms), cursor.getLong(1));
+          }
 
-      while ((messageRecord = mmsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
+          expiringMessageReferences.notifyAll();
+        }
       }
-
-      smsReader.close();
-      mmsReader.close();
     }
   }
 
@@ -205,21 +208,19 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
   private class ProcessTask implements Runnable {
     public void run() {
       while (true) {
-        ExpiringMessageReference expiredMessage = null;
+        List<ExpiringMessageReference> expiredMessages = null;
 
         synchronized (expiringMessageReferences) {
           try {
-            while (expiringMessageReferences.isEmpty()) expiringMessageReferences.wait();
+            long waitTime = expiringMessageReferences.getMillisUntilNextTick();
 
-            ExpiringMessageReference nextReference = expiringMessageReferences.first();
-            long                     waitTime      = nextReference.expiresAtMillis - System.currentTimeMillis();
-
-            if (waitTime > 0) {
+            if (waitTime < 0) {
+              expiringMessageReferences.wait();
+            } else if (waitTime > 0) {
               ExpirationListener.setAlarm(context, waitTime);
               expiringMessageReferences.wait(waitTime);
             } else {
-              expiredMessage = nextReference;
-              expiringMessageReferences.remove(nextReference);
+              expiredMessages = expiringMessageReferences.advance();
             }
 
           } catch (InterruptedException e) {
@@ -227,23 +228,35 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
           }
         }
 
-        if (expiredMessage != null) {
-          if (expiredMessage.mms) mmsDatabase.delete(expiredMessage.id);
-          else                    smsDatabase.deleteMessage(expiredMessage.id);
+        if (expiredMessages != null && !expiredMessages.isEmpty()) {
+          delete(expiredMessages);
         }
       }
     }
+
+    private void delete(List<ExpiringMessageReference> expiredMessages) {
+      List<Long> smsIds = new LinkedList<>();
+      List<Long> mmsIds = new LinkedList<>();
+
+      for (ExpiringMessageReference expiredMessage : expiredMessages) {
+        if (expiredMessage.mms) mmsIds.add(expiredMessage.id);
+        else                    smsIds.add(expiredMessage.id);
+      }
+
+      mmsSmsDatabase.deleteMessages(smsIds, mmsIds);
+
+      // Messages can expire before they're read, and mustn't stay in the notification
+      ApplicationContext.getInstance(context).messageNotifier.updateNotification(context);
+    }
   }
 
   private static class ExpiringMessageReference {
     private final long    id;
     private final boolean mms;
-    private final long    expiresAtMillis;
 
-    private ExpiringMessageReference(long id, boolean mms, long expiresAtMillis) {
+    private ExpiringMessageReference(long id, boolean mms) {
       this.id = id;
       this.mms = mms;
-      this.expiresAtMillis = expiresAtMillis;
     }
 
     @Override
@@ -252,25 +265,12 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
       if (!(other instanceof ExpiringMessageReference)) return false;
 
       ExpiringMessageReference that = (ExpiringMessageReference)other;
-      return this.id == that.id && this.mms == that.mms && this.expiresAtMillis == that.expiresAtMillis;
+      return this.id == that.id && this.mms == that.mms;
     }
 
     @Override
     public int hashCode() {
-      return (int)this.id ^ (mms ? 1 : 0) ^ (int)expiresAtMillis;
-    }
-  }
-
-  private static class ExpiringMessageComparator implements Comparator<ExpiringMessageReference> {
-    @Override
-    public int compare(ExpiringMessageReference lhs, ExpiringMessageReference rhs) {
-      if      (lhs.expiresAtMillis < rhs.expiresAtMillis) return -1;
-      else if (lhs.expiresAtMillis > rhs.expiresAtMillis) return 1;
-      else if (lhs.id < rhs.id)                           return -1;
-      else if (lhs.id > rhs.id)                           return 1;
-      else if (!lhs.mms && rhs.mms)                       return -1;
-      else if (lhs.mms && !rhs.mms)                       return 1;
-      else                                                return 0;
+      return (int)this.id ^ (mms ? 1 : 0);
     }
   }
 
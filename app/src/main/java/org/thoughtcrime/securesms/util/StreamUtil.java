@@ -59,6 +59,18 @@ public final class StreamUtil {
         }
     }
 
+    public static void skipFully(InputStream in, long count) throws IOException {
+        long remaining = count;
+
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+
+            if      (skipped > 0)     remaining -= skipped;
+            else if (in.read() != -1) remaining--;
+            else                      throw new EOFException("Stream ended early");
+        }
+    }
+
     public static byte[] readFully(InputStream in) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         byte[] buffer              = new byte[4096];
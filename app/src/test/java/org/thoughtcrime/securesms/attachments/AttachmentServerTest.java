@@ -0,0 +1,322 @@
+package org.thoughtcrime.securesms.attachments;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.session.libsignal.utilities.Log;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.testutil.SilentLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class AttachmentServerTest {
+
+  private static final long   SIZE         = 50L * 1024 * 1024;
+  private static final String CONTENT_TYPE = "video/mp4";
+
+  private static AttachmentSecret attachmentSecret;
+  private static File             fixture;
+
+  private CountingSource   source;
+  private AttachmentServer server;
+
+  @BeforeClass
+  public static void createFixture() throws Exception {
+    Log.initialize(new SilentLogger());
+
+    attachmentSecret = new AttachmentSecret(null, null, randomBytes(32));
+    fixture          = File.createTempFile("attachment", ".mms");
+
+    // Same format as ModernEncryptingPartOutputStream, with the random inline
+    byte[] random = randomBytes(32);
+    Mac    mac    = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(random), "AES"), new IvParameterSpec(new byte[16]));
+
+    try (OutputStream fileOutput = new BufferedOutputStream(new FileOutputStream(fixture))) {
+      fileOutput.write(random);
+
+      OutputStream output = new CipherOutputStream(fileOutput, cipher);
+      byte[]       buffer = new byte[64 * 1024];
+
+      for (long offset = 0; offset < SIZE; offset += buffer.length) {
+        for (int i = 0; i < buffer.length; i++) buffer[i] = expectedByte(offset + i);
+        output.write(buffer);
+      }
+
+      output.close();
+    }
+  }
+
+  @AfterClass
+  public static void deleteFixture() {
+    fixture.delete();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    source = new CountingSource();
+    server = new AttachmentServer(source);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  private static byte expectedByte(long offset) {
+    return (byte) (offset * 31 + (offset >>> 13));
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new SecureRandom().nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void assertContent(long offset, @NonNull byte[] data) {
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] != expectedByte(offset + i)) {
+        throw new AssertionError("Unexpected byte at " + (offset + i));
+      }
+    }
+  }
+
+  private HttpURLConnection get(@Nullable String range) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl()).openConnection();
+    if (range != null) connection.setRequestProperty("Range", range);
+    connection.setReadTimeout(10_000);
+    return connection;
+  }
+
+  private static byte[] readBody(@NonNull HttpURLConnection connection) throws IOException {
+    try (InputStream input = connection.getInputStream()) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[]                buffer = new byte[16 * 1024];
+      int                   read;
+
+      while ((read = input.read(buffer)) != -1) output.write(buffer, 0, read);
+
+      return output.toByteArray();
+    }
+  }
+
+  @Test
+  public void get_servesTheWholeAttachment() throws IOException {
+    HttpURLConnection connection = get(null);
+
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(CONTENT_TYPE, connection.getContentType());
+    assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+    assertEquals(SIZE, connection.getContentLengthLong());
+
+    byte[] body = readBody(connection);
+    assertEquals(SIZE, body.length);
+    assertContent(0, body);
+  }
+
+  @Test
+  public void get_seeksRepeatedlyWithoutDecryptingFromTheStart() throws IOException {
+    Random random      = new Random(42);
+    long   servedBytes = 0;
+
+    for (int i = 0; i < 200; i++) {
+      long start  = (long) (random.nextDouble() * SIZE);
+      long end    = Math.min(SIZE - 1, start + random.nextInt(64 * 1024));
+
+      HttpURLConnection connection = get("bytes=" + start + "-" + end);
+
+      assertEquals(206, connection.getResponseCode());
+      assertEquals("bytes " + start + "-" + end + "/" + SIZE, connection.getHeaderField("Content-Range"));
+
+      byte[] body = readBody(connection);
+      assertEquals(end - start + 1, body.length);
+      assertContent(start, body);
+
+      servedBytes += body.length;
+    }
+
+    assertEquals(200, source.opens.get());
+    assertEquals(servedBytes, source.decryptedBytes.get());
+  }
+
+  @Test
+  public void get_servesOpenEndedAndSuffixRanges() throws IOException {
+    HttpURLConnection openEnded = get("bytes=" + (SIZE - 1000) + "-");
+    assertEquals(206, openEnded.getResponseCode());
+    assertContent(SIZE - 1000, readBody(openEnded));
+
+    HttpURLConnection suffix = get("bytes=-500");
+    assertEquals(206, suffix.getResponseCode());
+    assertEquals("bytes " + (SIZE - 500) + "-" + (SIZE - 1) + "/" + SIZE, suffix.getHeaderField("Content-Range"));
+    assertContent(SIZE - 500, readBody(suffix));
+
+    HttpURLConnection clamped = get("bytes=" + (SIZE - 10) + "-" + (SIZE + 1000));
+    assertEquals(206, clamped.getResponseCode());
+    assertEquals(10, readBody(clamped).length);
+  }
+
+  @Test
+  public void get_rejectsUnsatisfiableRanges() throws IOException {
+    HttpURLConnection connection = get("bytes=" + SIZE + "-");
+
+    assertEquals(416, connection.getResponseCode());
+    assertEquals("bytes */" + SIZE, connection.getHeaderField("Content-Range"));
+  }
+
+  @Test
+  public void get_rejectsBadAuth() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl() + "0").openConnection();
+
+    assertEquals(403, connection.getResponseCode());
+    assertEquals(0, source.opens.get());
+  }
+
+  @Test
+  public void get_servesConcurrentConnections() throws Exception {
+    // A player that stopped reading halfway through a stream must not hold up anything else
+    HttpURLConnection stalled = get(null);
+    assertEquals(200, stalled.getResponseCode());
+    assertTrue(stalled.getInputStream().read(new byte[1024]) > 0);
+
+    ExecutorService   executor = Executors.newFixedThreadPool(8);
+    List<Future<?>>   futures  = new ArrayList<>();
+
+    for (int i = 0; i < 32; i++) {
+      long start = i * (SIZE / 32);
+      futures.add(executor.submit(() -> {
+        HttpURLConnection connection = get("bytes=" + start + "-" + (start + 256 * 1024 - 1));
+        assertEquals(206, connection.getResponseCode());
+        assertContent(start, readBody(connection));
+        return null;
+      }));
+    }
+
+    for (Future<?> future : futures) future.get(30, TimeUnit.SECONDS);
+
+    executor.shutdown();
+    stalled.disconnect();
+    assertTrue(source.maxConcurrentReads.get() > 1);
+  }
+
+  @Test
+  public void get_keepsConnectionsAlive() throws IOException {
+    try (Socket socket = new Socket("127.0.0.1", new URL(server.getUrl()).getPort())) {
+      String path     = new URL(server.getUrl()).getPath();
+      String requests = "HEAD " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                        "GET " + path + " HTTP/1.1\r\nRange: bytes=10-19\r\n\r\n" +
+                        "GET " + path + " HTTP/1.1\r\nRange: bytes=20-29\r\nConnection: close\r\n\r\n";
+
+      socket.getOutputStream().write(requests.getBytes(StandardCharsets.US_ASCII));
+
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      byte[]                buffer   = new byte[1024];
+      int                   read;
+
+      while ((read = socket.getInputStream().read(buffer)) != -1) response.write(buffer, 0, read);
+
+      String text = new String(response.toByteArray(), StandardCharsets.ISO_8859_1);
+
+      assertTrue(text, text.startsWith("HTTP/1.1 200 OK\r\n"));
+      assertTrue(text, text.contains("Content-Length: " + SIZE + "\r\n"));
+      assertTrue(text, text.contains("Content-Range: bytes 10-19/" + SIZE + "\r\n"));
+      assertTrue(text, text.contains("Content-Range: bytes 20-29/" + SIZE + "\r\nConnection: close\r\n"));
+      assertEquals(2, source.opens.get());
+    }
+  }
+
+  @Test
+  public void parseRange() {
+    assertEquals(null, AttachmentServer.ByteRange.parse(null, 100));
+    assertEquals(null, AttachmentServer.ByteRange.parse("bytes=0-1,5-6", 100));
+    assertEquals(null, AttachmentServer.ByteRange.parse("bytes=abc", 100));
+    assertEquals(null, AttachmentServer.ByteRange.parse("items=0-1", 100));
+    assertEquals(AttachmentServer.ByteRange.UNSATISFIABLE, AttachmentServer.ByteRange.parse("bytes=100-", 100));
+    assertEquals(AttachmentServer.ByteRange.UNSATISFIABLE, AttachmentServer.ByteRange.parse("bytes=-0", 100));
+
+    AttachmentServer.ByteRange range = AttachmentServer.ByteRange.parse("bytes=-1000", 100);
+    assertEquals(0, range.start);
+    assertEquals(99, range.end);
+  }
+
+  /**
+   * Decrypts the fixture, keeping track of how much of it was decrypted.
+   */
+  private static final class CountingSource implements AttachmentServer.MediaSource {
+
+    private final AtomicInteger opens              = new AtomicInteger();
+    private final AtomicLong    decryptedBytes     = new AtomicLong();
+    private final AtomicInteger concurrentReads    = new AtomicInteger();
+    private final AtomicInteger maxConcurrentReads = new AtomicInteger();
+
+    @Override
+    public long getSize() {
+      return SIZE;
+    }
+
+    @Override
+    public String getContentType() {
+      return CONTENT_TYPE;
+    }
+
+    @Override
+    public @NonNull InputStream open(long offset) throws IOException {
+      opens.incrementAndGet();
+      maxConcurrentReads.accumulateAndGet(concurrentReads.incrementAndGet(), Math::max);
+
+      return new FilterInputStream(ModernDecryptingPartInputStream.createFor(attachmentSecret, fixture, offset)) {
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+          int read = super.read(buffer, offset, length);
+          if (read > 0) decryptedBytes.addAndGet(read);
+          return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+          concurrentReads.decrementAndGet();
+          super.close();
+        }
+      };
+    }
+  }
+}
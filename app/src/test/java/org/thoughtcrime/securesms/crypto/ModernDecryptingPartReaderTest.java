@@ -0,0 +1,167 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class ModernDecryptingPartReaderTest {
+
+  private static final int BUFFER_SIZE = 4096;
+  private static final int READ_SIZE   = 1000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private byte[]                     plaintext;
+  private ModernDecryptingPartReader reader;
+
+  @Before
+  public void setUp() throws Exception {
+    Random random = new Random(42);
+
+    byte[] modernKey  = new byte[32];
+    byte[] fileRandom = new byte[32];
+
+    random.nextBytes(modernKey);
+    random.nextBytes(fileRandom);
+
+    plaintext = new byte[1024 * 1024 + 123];
+    random.nextBytes(plaintext);
+
+    AttachmentSecret attachmentSecret = new AttachmentSecret(new byte[32], new byte[32], modernKey);
+    File             file             = encrypt(modernKey, fileRandom, plaintext);
+
+    reader = new ModernDecryptingPartReader(attachmentSecret, fileRandom, file, BUFFER_SIZE);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    reader.close();
+  }
+
+  /**
+   * Writes the data the way {@link ModernEncryptingPartOutputStream} does.
+   */
+  private File encrypt(byte[] modernKey, byte[] fileRandom, byte[] data) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(modernKey, "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(fileRandom), "AES"), new IvParameterSpec(new byte[16]));
+
+    File file = folder.newFile();
+
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(cipher.doFinal(data));
+    }
+
+    return file;
+  }
+
+  private byte[] readAt(long position, int length) throws Exception {
+    byte[] bytes = new byte[length];
+    int    read  = reader.read(position, bytes, 0, length);
+
+    assertTrue(read > 0);
+    return Arrays.copyOf(bytes, read);
+  }
+
+  private void assertPlaintextAt(long position, byte[] actual) {
+    byte[] expected = Arrays.copyOfRange(plaintext, (int) position, (int) position + actual.length);
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void playback_decryptsEachByteOnce() throws Exception {
+    long position = 0;
+
+    while (position < plaintext.length) {
+      byte[] bytes = readAt(position, READ_SIZE);
+
+      assertPlaintextAt(position, bytes);
+      position += bytes.length;
+    }
+
+    assertEquals(plaintext.length, position);
+    assertEquals(plaintext.length, reader.getDecryptedByteCount());
+  }
+
+  @Test
+  public void playback_withSeeks_onlyDecryptsWhatIsPlayed() throws Exception {
+    long[] seeks  = { 0, 500_000, 100_003, 900_001, 17 };
+    int    played = 20 * READ_SIZE;
+
+    for (long seek : seeks) {
+      for (long position = seek; position < seek + played; position += READ_SIZE) {
+        assertPlaintextAt(position, readAt(position, READ_SIZE));
+      }
+    }
+
+    // Each seek costs at most a buffer of alignment and a buffer of read-ahead
+    assertTrue(reader.getDecryptedByteCount() <= seeks.length * (played + 2 * BUFFER_SIZE));
+  }
+
+  @Test
+  public void rereads_withinTheBuffer_decryptNothing() throws Exception {
+    assertPlaintextAt(100, readAt(100, 10));
+
+    long decrypted = reader.getDecryptedByteCount();
+
+    assertPlaintextAt(50, readAt(50, 10));
+    assertPlaintextAt(200, readAt(200, 10));
+    assertEquals(decrypted, reader.getDecryptedByteCount());
+  }
+
+  @Test
+  public void randomReads_matchPlaintext() throws Exception {
+    Random random = new Random(7);
+
+    for (int i = 0; i < 500; i++) {
+      int    length   = 1 + random.nextInt(3 * BUFFER_SIZE);
+      long   position = random.nextInt(plaintext.length);
+      byte[] bytes    = readAt(position, length);
+
+      assertEquals(Math.min(length, plaintext.length - position), bytes.length);
+      assertPlaintextAt(position, bytes);
+    }
+  }
+
+  @Test
+  public void readsAtTheEnd_areShortThenEmpty() throws Exception {
+    byte[] bytes = new byte[100];
+
+    assertEquals(23, reader.read(plaintext.length - 23, bytes, 0, bytes.length));
+    assertEquals(-1, reader.read(plaintext.length, bytes, 0, bytes.length));
+    assertEquals(-1, reader.read(plaintext.length + 5000, bytes, 0, bytes.length));
+  }
+
+  @Test
+  public void reads_intoAnOffset() throws Exception {
+    byte[] bytes = new byte[20];
+
+    assertEquals(10, reader.read(1000, bytes, 10, 10));
+    assertArrayEquals(Arrays.copyOfRange(plaintext, 1000, 1010), Arrays.copyOfRange(bytes, 10, 20));
+    assertArrayEquals(new byte[10], Arrays.copyOfRange(bytes, 0, 10));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void bufferSize_mustBeAMultipleOfTheBlockSize() throws Exception {
+    new ModernDecryptingPartReader(new AttachmentSecret(new byte[32], new byte[32], new byte[32]), new byte[32], folder.newFile(), 1000);
+  }
+}
@@ -0,0 +1,207 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public final class BatchedUpdatesTest {
+
+  private static final int  MESSAGES  = 3000;
+  private static final long THREAD_ID = 1;
+
+  private FakeMessageStore store;
+
+  @Before
+  public void setUp() {
+    store = new FakeMessageStore();
+  }
+
+  @Test
+  public void batch_updatesThreadAndNotifiesOnce() {
+    BatchedUpdates.run(store, () -> {
+      for (int i = 0; i < MESSAGES; i++) store.insert(THREAD_ID, "message " + i);
+    });
+
+    assertEquals(MESSAGES, store.committedRows());
+    assertEquals(1, store.threadUpdates);
+    assertEquals(MESSAGES, (int) store.threadSummaries.get(THREAD_ID));
+    assertEquals(1, store.conversationNotifications);
+    assertEquals(1, store.conversationListNotifications);
+    assertEquals(1, store.commits);
+  }
+
+  @Test
+  public void batch_updatesEveryTouchedThreadOnce() {
+    BatchedUpdates.run(store, () -> {
+      for (int i = 0; i < 100; i++) store.insert(i % 3, "message " + i);
+    });
+
+    assertEquals(3, store.threadUpdates);
+    assertEquals(3, store.conversationNotifications);
+    assertEquals(1, store.conversationListNotifications);
+  }
+
+  @Test
+  public void batch_rollsBackWithoutNotifying() {
+    try {
+      BatchedUpdates.run(store, () -> {
+        store.insert(THREAD_ID, "first");
+        throw new IllegalStateException();
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    assertEquals(0, store.committedRows());
+    assertEquals(0, store.threadUpdates);
+    assertEquals(0, store.conversationNotifications);
+    assertEquals(0, store.conversationListNotifications);
+
+    store.insert(THREAD_ID, "after");
+
+    assertEquals(1, store.threadUpdates);
+    assertEquals(1, store.conversationNotifications);
+  }
+
+  @Test
+  public void nestedBatch_joinsOuterBatch() {
+    BatchedUpdates.run(store, () -> {
+      store.insert(THREAD_ID, "outer");
+      BatchedUpdates.run(store, () -> store.insert(THREAD_ID, "inner"));
+      assertEquals(0, store.conversationNotifications);
+    });
+
+    assertEquals(1, store.commits);
+    assertEquals(1, store.threadUpdates);
+    assertEquals(1, store.conversationNotifications);
+  }
+
+  @Test
+  public void nothingIsDeferredOutsideOfABatch() {
+    assertFalse(BatchedUpdates.deferThreadUpdate(THREAD_ID, true));
+    assertFalse(BatchedUpdates.deferConversationNotification(THREAD_ID));
+    assertFalse(BatchedUpdates.deferConversationListNotification());
+  }
+
+  @Test
+  public void batch_recomputesTheThreadOnceInsteadOfOncePerMessage() {
+    FakeMessageStore unbatched = new FakeMessageStore();
+
+    for (int i = 0; i < MESSAGES; i++) {
+      unbatched.insert(THREAD_ID, "message " + i);
+    }
+
+    BatchedUpdates.run(store, () -> {
+      for (int i = 0; i < MESSAGES; i++) store.insert(THREAD_ID, "message " + i);
+    });
+
+    assertEquals(MESSAGES, unbatched.threadUpdates);
+    assertEquals(MESSAGES, unbatched.conversationNotifications);
+    assertEquals(MESSAGES, unbatched.conversationListNotifications);
+    // Every thread update reads all of the thread's messages so far
+    assertEquals((long) MESSAGES * (MESSAGES + 1) / 2, unbatched.rowsRead);
+
+    assertEquals(1, store.threadUpdates);
+    assertEquals(1, store.conversationNotifications);
+    assertEquals(1, store.conversationListNotifications);
+    assertEquals(MESSAGES, store.rowsRead);
+    assertEquals(unbatched.threadSummaries, store.threadSummaries);
+  }
+
+  /**
+   * Mimics how the message tables insert a message: the row is written, the thread summary is
+   * recomputed from the thread's messages, then conversation and conversation list listeners are
+   * notified.
+   */
+  private static final class FakeMessageStore implements BatchedUpdates.Target {
+
+    private final List<Long>   rows    = new ArrayList<>();
+    private final List<String> bodies  = new ArrayList<>();
+    private       int          pending = -1;
+
+    final Map<Long, Integer> threadSummaries = new HashMap<>();
+
+    int threadUpdates;
+    int conversationNotifications;
+    int conversationListNotifications;
+    int commits;
+    long rowsRead;
+
+    private boolean successful;
+
+    void insert(long threadId, String body) {
+      rows.add(threadId);
+      bodies.add(body);
+
+      if (!BatchedUpdates.deferThreadUpdate(threadId, true)) {
+        updateThread(threadId, true);
+      }
+
+      if (!BatchedUpdates.deferConversationNotification(threadId)) {
+        notifyConversationListeners(threadId);
+      }
+    }
+
+    int committedRows() {
+      return rows.size();
+    }
+
+    @Override
+    public void beginTransaction() {
+      pending    = rows.size();
+      successful = false;
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+      successful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+      if (successful) {
+        commits++;
+      } else {
+        rows.subList(pending, rows.size()).clear();
+        bodies.subList(pending, bodies.size()).clear();
+      }
+      pending = -1;
+    }
+
+    @Override
+    public void updateThread(long threadId, boolean unarchive) {
+      int count = 0;
+
+      for (long rowThreadId : rows) {
+        rowsRead++;
+        if (rowThreadId == threadId) count++;
+      }
+
+      threadSummaries.put(threadId, count);
+      threadUpdates++;
+
+      if (!BatchedUpdates.deferConversationListNotification()) {
+        notifyConversationListListeners();
+      }
+    }
+
+    @Override
+    public void notifyConversationListeners(long threadId) {
+      conversationNotifications++;
+    }
+
+    @Override
+    public void notifyConversationListListeners() {
+      conversationListNotifications++;
+    }
+  }
+}
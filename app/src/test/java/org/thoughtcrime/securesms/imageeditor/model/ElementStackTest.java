@@ -0,0 +1,270 @@
+package org.thoughtcrime.securesms.imageeditor.model;
+
+import android.app.Application;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.imageeditor.Renderer;
+import org.thoughtcrime.securesms.imageeditor.RendererContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class ElementStackTest {
+
+  private static final int POINTS_PER_STROKE = 500;
+
+  private static byte[] getBytes(@NonNull Parcelable parcelable) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeParcelable(parcelable, 0);
+      return parcel.marshall();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static EditorElement newTree() {
+    EditorElement root  = new EditorElement(null);
+    EditorElement image = new EditorElement(null);
+
+    root.addElement(image);
+
+    return root;
+  }
+
+  private static EditorElement addStroke(@NonNull EditorElement root, int seed) {
+    EditorElement stroke = new EditorElement(new StrokeRenderer(seed));
+    root.getChild(0).addElement(stroke);
+    return stroke;
+  }
+
+  @Test
+  public void history_of200Edits_onlyRetainsWhatChanged() {
+    ElementStack  stack         = new ElementStack(250);
+    EditorElement root          = newTree();
+    EditorElement lastStroke    = null;
+    long          snapshotBytes = 0;
+    int           moves         = 0;
+
+    for (int i = 0; i < 200; i++) {
+      if (i % 4 == 3) {
+        lastStroke.getLocalMatrix().postTranslate(i, i);
+        moves++;
+      } else {
+        lastStroke = addStroke(root, i);
+      }
+
+      assertTrue(stack.tryPush(root));
+      snapshotBytes += getBytes(root).length;
+    }
+
+    long retainedBytes = stack.getRetainedByteCount();
+    long strokeBytes   = POINTS_PER_STROKE * 4;
+
+    // Full snapshots of every step grow quadratically, the history only by what each step changed
+    assertTrue(retainedBytes + " vs " + snapshotBytes, retainedBytes * 20 < snapshotBytes);
+    assertTrue(retainedBytes < getBytes(root).length + moves * (strokeBytes + 1024) + 200 * 1024);
+  }
+
+  @Test
+  public void tryPush_unchangedState_isNotPushed() {
+    ElementStack  stack = new ElementStack(10);
+    EditorElement root  = newTree();
+
+    addStroke(root, 1);
+
+    assertTrue(stack.tryPush(root));
+
+    long retainedBytes = stack.getRetainedByteCount();
+
+    assertFalse(stack.tryPush(root));
+    assertEquals(retainedBytes, stack.getRetainedByteCount());
+  }
+
+  @Test
+  public void pop_restoresPreviousStates() {
+    ElementStack  stack  = new ElementStack(10);
+    EditorElement root   = newTree();
+    List<byte[]>  states = new ArrayList<>();
+
+    for (int i = 0; i < 4; i++) {
+      EditorElement stroke = addStroke(root, i);
+      stroke.getLocalMatrix().setScale(2, 3);
+
+      stack.tryPush(root);
+      states.add(getBytes(root));
+    }
+
+    addStroke(root, 5);
+
+    for (int i = states.size() - 1; i >= 0; i--) {
+      root = stack.pop(root);
+      assertArrayEquals(states.get(i), getBytes(root));
+    }
+
+    assertNull(stack.pop(root));
+  }
+
+  @Test
+  public void pop_skipsStatesEqualToTheCurrentOne() {
+    ElementStack  stack = new ElementStack(10);
+    EditorElement root  = newTree();
+
+    stack.tryPush(root);
+    byte[] first = getBytes(root);
+
+    addStroke(root, 1);
+    stack.tryPush(root);
+
+    assertArrayEquals(first, getBytes(stack.pop(root)));
+  }
+
+  @Test
+  public void stackContainsStateDifferentFrom() {
+    ElementStack  stack = new ElementStack(10);
+    EditorElement root  = newTree();
+
+    assertFalse(stack.stackContainsStateDifferentFrom(root));
+
+    stack.tryPush(root);
+    assertFalse(stack.stackContainsStateDifferentFrom(root));
+
+    addStroke(root, 1);
+    assertTrue(stack.stackContainsStateDifferentFrom(root));
+  }
+
+  @Test
+  public void limit_keepsTheFirstState() {
+    ElementStack  stack = new ElementStack(3);
+    EditorElement root  = newTree();
+
+    stack.tryPush(root);
+    byte[] first = getBytes(root);
+
+    for (int i = 0; i < 5; i++) {
+      addStroke(root, i);
+      stack.tryPush(root);
+    }
+
+    EditorElement popped = null;
+    for (EditorElement next = stack.pop(root); next != null; next = stack.pop(next)) {
+      popped = next;
+    }
+
+    assertArrayEquals(first, getBytes(popped));
+  }
+
+  @Test
+  public void parcel_roundTrip_keepsSharedStates() {
+    ElementStack  stack  = new ElementStack(10);
+    EditorElement root   = newTree();
+    List<byte[]>  states = new ArrayList<>();
+
+    for (int i = 0; i < 5; i++) {
+      addStroke(root, i);
+      stack.tryPush(root);
+      states.add(getBytes(root));
+    }
+
+    Parcel       parcel = Parcel.obtain();
+    ElementStack restored;
+    try {
+      stack.writeToParcel(parcel, 0);
+      parcel.setDataPosition(0);
+      restored = ElementStack.CREATOR.createFromParcel(parcel);
+    } finally {
+      parcel.recycle();
+    }
+
+    assertEquals(stack.getRetainedByteCount(), restored.getRetainedByteCount());
+
+    root = newTree();
+
+    for (int i = states.size() - 1; i >= 0; i--) {
+      root = restored.pop(root);
+      assertArrayEquals(states.get(i), getBytes(root));
+    }
+  }
+
+  @Test
+  public void isChanged_comparesWithTheClearedState() {
+    UndoRedoStacks stacks = new UndoRedoStacks(10);
+    EditorElement  root   = newTree();
+
+    assertTrue(stacks.isChanged(root));
+
+    stacks.clear(root);
+    assertFalse(stacks.isChanged(root));
+
+    EditorElement stroke = addStroke(root, 1);
+    assertTrue(stacks.isChanged(root));
+
+    root.getChild(0).deleteChild(stroke, null);
+    assertFalse(stacks.isChanged(root));
+  }
+
+  /**
+   * Stands in for a drawing, whose points make up most of the serialized state.
+   */
+  public static final class StrokeRenderer implements Renderer {
+
+    private final float[] points;
+
+    StrokeRenderer(int seed) {
+      points = new float[POINTS_PER_STROKE];
+      for (int i = 0; i < points.length; i++) {
+        points[i] = seed * 1000 + i;
+      }
+    }
+
+    private StrokeRenderer(Parcel in) {
+      points = in.createFloatArray();
+    }
+
+    @Override
+    public void render(@NonNull RendererContext rendererContext) {
+    }
+
+    @Override
+    public boolean hitTest(float x, float y) {
+      return false;
+    }
+
+    @Override
+    public int describeContents() {
+      return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+      dest.writeFloatArray(points);
+    }
+
+    public static final Creator<StrokeRenderer> CREATOR = new Creator<StrokeRenderer>() {
+      @Override
+      public StrokeRenderer createFromParcel(Parcel in) {
+        return new StrokeRenderer(in);
+      }
+
+      @Override
+      public StrokeRenderer[] newArray(int size) {
+        return new StrokeRenderer[size];
+      }
+    };
+  }
+}
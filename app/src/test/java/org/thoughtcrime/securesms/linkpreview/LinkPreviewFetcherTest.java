@@ -0,0 +1,389 @@
+package org.thoughtcrime.securesms.linkpreview;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.session.libsignal.utilities.Log;
+import org.session.libsignal.utilities.guava.Optional;
+import org.thoughtcrime.securesms.net.RequestController;
+import org.thoughtcrime.securesms.testutil.SilentLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class LinkPreviewFetcherTest {
+
+  private static final long   TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+  private static final byte[] IMAGE      = { 1, 2, 3, 4, 5 };
+
+  private MockWebServer    server;
+  private FakeStorage      storage;
+  private FakeClock        clock;
+  private LinkPreviewCache cache;
+  private ExecutorService  executor;
+
+  private final Map<String, AtomicInteger> hits          = new ConcurrentHashMap<>();
+  private final AtomicInteger              activeFetches = new AtomicInteger();
+  private final AtomicInteger              maxFetches    = new AtomicInteger();
+
+  private volatile CountDownLatch responseGate;
+  private volatile String         failOnce;
+
+  @Before
+  public void setUp() throws IOException {
+    Log.initialize(new SilentLogger());
+
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        String path = request.getPath();
+        hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+
+        maxFetches.accumulateAndGet(activeFetches.incrementAndGet(), Math::max);
+
+        try {
+          CountDownLatch gate = responseGate;
+          if (gate != null) gate.await(10, TimeUnit.SECONDS);
+
+          if (path.equals(failOnce)) {
+            failOnce = null;
+            return new MockResponse().setResponseCode(500);
+          }
+
+          if (path.startsWith("/image")) {
+            return new MockResponse().setBody(new Buffer().write(IMAGE));
+          } else if (path.startsWith("/empty")) {
+            return new MockResponse().setBody("<html></html>");
+          } else {
+            return new MockResponse().setBody("<html><title>Title of " + path + "</title>" +
+                                              "<meta property=\"og:image\" content=\"" + server.url("/image" + path) + "\"></html>");
+          }
+        } finally {
+          activeFetches.decrementAndGet();
+        }
+      }
+    });
+    server.start();
+
+    storage  = new FakeStorage();
+    clock    = new FakeClock();
+    cache    = new LinkPreviewCache(storage, clock, TTL_MILLIS, 16);
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    server.shutdown();
+  }
+
+  private LinkPreviewFetcher newFetcher() {
+    return new LinkPreviewFetcher(new OkHttpClient(), cache, executor, new FakeParser());
+  }
+
+  private String url(@NonNull String path) {
+    return server.url(path).toString();
+  }
+
+  private int hits(@NonNull String path) {
+    AtomicInteger count = hits.get(path);
+    return count != null ? count.get() : 0;
+  }
+
+  private static Optional<LinkPreviewCache.Entry> await(@NonNull BlockingQueue<Optional<LinkPreviewCache.Entry>> results) throws InterruptedException {
+    Optional<LinkPreviewCache.Entry> result = results.poll(10, TimeUnit.SECONDS);
+    if (result == null) throw new AssertionError("Timed out");
+    return result;
+  }
+
+  private static byte[] read(@NonNull InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[1024];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+
+    return out.toByteArray();
+  }
+
+  @Test
+  public void fetch_cachesThePreviewAndItsThumbnail() throws Exception {
+    LinkPreviewFetcher                              fetcher = newFetcher();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> results = new LinkedBlockingQueue<>();
+
+    fetcher.fetch(url("/page"), results::add);
+    LinkPreviewCache.Entry first = await(results).get();
+
+    assertEquals("Title of /page", first.getTitle());
+    assertTrue(first.hasThumbnail());
+    assertArrayEquals(IMAGE, read(cache.openThumbnail(first)));
+
+    // Same page, spelled differently
+    fetcher.fetch(url("/page").replace("http://", "HTTP://") + "#section", results::add);
+    LinkPreviewCache.Entry second = await(results).get();
+
+    assertEquals("Title of /page", second.getTitle());
+    assertArrayEquals(IMAGE, read(cache.openThumbnail(second)));
+    assertEquals(1, hits("/page"));
+    assertEquals(1, hits("/image/page"));
+  }
+
+  @Test
+  public void fetch_cachesPagesWithoutAPreview() throws Exception {
+    LinkPreviewFetcher                              fetcher = newFetcher();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> results = new LinkedBlockingQueue<>();
+
+    fetcher.fetch(url("/empty"), results::add);
+    fetcher.fetch(url("/empty"), results::add);
+    await(results);
+    await(results);
+    fetcher.fetch(url("/empty"), results::add);
+
+    LinkPreviewCache.Entry entry = await(results).get();
+    assertNull(entry.getTitle());
+    assertFalse(entry.hasThumbnail());
+    assertEquals(1, hits("/empty"));
+  }
+
+  @Test
+  public void fetch_refetchesExpiredPreviews() throws Exception {
+    LinkPreviewFetcher                              fetcher = newFetcher();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> results = new LinkedBlockingQueue<>();
+
+    fetcher.fetch(url("/page"), results::add);
+    await(results);
+
+    clock.now += TTL_MILLIS - 1;
+    fetcher.fetch(url("/page"), results::add);
+    await(results);
+    assertEquals(1, hits("/page"));
+
+    clock.now += 1;
+    fetcher.fetch(url("/page"), results::add);
+    assertTrue(await(results).isPresent());
+    assertEquals(2, hits("/page"));
+  }
+
+  @Test
+  public void fetch_doesNotCacheFailures() throws Exception {
+    LinkPreviewFetcher                              fetcher = newFetcher();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> results = new LinkedBlockingQueue<>();
+
+    failOnce = "/page";
+    fetcher.fetch(url("/page"), results::add);
+    assertFalse(await(results).isPresent());
+
+    fetcher.fetch(url("/page"), results::add);
+    assertTrue(await(results).isPresent());
+    assertEquals(2, hits("/page"));
+  }
+
+  @Test
+  public void fetch_doesNotCacheAPreviewWhoseImageFailed() throws Exception {
+    LinkPreviewFetcher                              fetcher = newFetcher();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> results = new LinkedBlockingQueue<>();
+
+    failOnce = "/image/page";
+    fetcher.fetch(url("/page"), results::add);
+
+    LinkPreviewCache.Entry entry = await(results).get();
+    assertEquals("Title of /page", entry.getTitle());
+    assertFalse(entry.hasThumbnail());
+
+    fetcher.fetch(url("/page"), results::add);
+    assertTrue(await(results).get().hasThumbnail());
+    assertEquals(2, hits("/page"));
+  }
+
+  @Test
+  public void concurrentFetches_ofTheSameLink_areDeduplicated() throws Exception {
+    LinkPreviewFetcher                              fetcher = newFetcher();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> results = new LinkedBlockingQueue<>();
+
+    responseGate = new CountDownLatch(1);
+
+    for (int i = 0; i < 20; i++) {
+      fetcher.fetch(url("/page"), results::add);
+    }
+
+    responseGate.countDown();
+
+    for (int i = 0; i < 20; i++) {
+      assertEquals("Title of /page", await(results).get().getTitle());
+    }
+
+    assertEquals(1, hits("/page"));
+    assertEquals(1, hits("/image/page"));
+  }
+
+  @Test
+  public void fetches_runOnTheBoundedExecutor() throws Exception {
+    LinkPreviewFetcher                              fetcher = newFetcher();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> results = new LinkedBlockingQueue<>();
+
+    responseGate = new CountDownLatch(1);
+
+    for (int i = 0; i < 8; i++) {
+      fetcher.fetch(url("/page" + i), results::add);
+    }
+
+    Thread.sleep(200);
+    responseGate.countDown();
+
+    for (int i = 0; i < 8; i++) {
+      assertTrue(await(results).isPresent());
+    }
+
+    assertEquals(2, maxFetches.get());
+    assertEquals(16, server.getRequestCount());
+  }
+
+  @Test
+  public void cancel_onlyCancelsOnceEveryoneHasCanceled() throws Exception {
+    LinkPreviewFetcher                              fetcher = newFetcher();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> results = new LinkedBlockingQueue<>();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> ignored = new LinkedBlockingQueue<>();
+
+    responseGate = new CountDownLatch(1);
+
+    RequestController first = fetcher.fetch(url("/page"), ignored::add);
+    fetcher.fetch(url("/page"), results::add);
+    first.cancel();
+
+    responseGate.countDown();
+
+    assertTrue(await(results).isPresent());
+    assertTrue(ignored.isEmpty());
+
+    responseGate = new CountDownLatch(1);
+
+    RequestController canceled = fetcher.fetch(url("/other"), ignored::add);
+    while (hits("/other") == 0) Thread.sleep(10);
+    canceled.cancel();
+    responseGate.countDown();
+
+    // A new fetch starts over rather than waiting on the canceled one
+    fetcher.fetch(url("/other"), results::add);
+    assertTrue(await(results).isPresent());
+    assertTrue(ignored.isEmpty());
+  }
+
+  @Test
+  public void cache_isBounded() throws Exception {
+    LinkPreviewFetcher                              fetcher = newFetcher();
+    BlockingQueue<Optional<LinkPreviewCache.Entry>> results = new LinkedBlockingQueue<>();
+
+    for (int i = 0; i < 40; i++) {
+      fetcher.fetch(url("/page" + i), results::add);
+      await(results);
+    }
+
+    assertEquals(32, storage.files.size());
+    assertNull(cache.get(url("/page0")));
+    assertEquals("Title of /page39", cache.get(url("/page39")).getTitle());
+  }
+
+  private static final class FakeParser implements LinkPreviewFetcher.Parser {
+
+    private static final Pattern TITLE = Pattern.compile("<title>(.*)</title>");
+    private static final Pattern IMAGE = Pattern.compile("og:image\" content=\"([^\"]*)\"");
+
+    @Override
+    public @NonNull LinkPreviewFetcher.Metadata parseMetadata(@NonNull String html) {
+      Matcher title = TITLE.matcher(html);
+      Matcher image = IMAGE.matcher(html);
+
+      return new LinkPreviewFetcher.Metadata(title.find() ? Optional.of(title.group(1)) : Optional.absent(),
+                                             image.find() ? Optional.of(image.group(1)) : Optional.absent());
+    }
+
+    @Override
+    public @Nullable LinkPreviewCache.Thumbnail parseThumbnail(@NonNull byte[] data) {
+      return new LinkPreviewCache.Thumbnail(data, 100, 100);
+    }
+  }
+
+  private static final class FakeStorage implements LinkPreviewCache.Storage {
+
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final List<String>        order = new ArrayList<>();
+
+    @Override
+    public @NonNull OutputStream openForWriting(@NonNull String name) {
+      return new ByteArrayOutputStream() {
+        @Override
+        public void close() {
+          synchronized (order) {
+            files.put(name, toByteArray());
+            order.remove(name);
+            order.add(name);
+          }
+        }
+      };
+    }
+
+    @Override
+    public @NonNull InputStream openForReading(@NonNull String name) throws IOException {
+      byte[] data = files.get(name);
+      if (data == null) throw new IOException("No such file: " + name);
+      return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public void delete(@NonNull String name) {
+      synchronized (order) {
+        files.remove(name);
+        order.remove(name);
+      }
+    }
+
+    @Override
+    public @NonNull List<String> list() {
+      synchronized (order) {
+        return new ArrayList<>(order);
+      }
+    }
+  }
+
+  private static final class FakeClock implements LinkPreviewCache.Clock {
+    private volatile long now = 1_600_000_000_000L;
+
+    @Override
+    public long currentTimeMillis() {
+      return now;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package org.thoughtcrime.securesms.loki.utilities;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class RmsAccumulatorTest {
+
+  private static final int FRAMES   = 32;
+  private static final int CHANNELS = 2;
+
+  @Test
+  public void calculateRms_noSamples() {
+    assertEquals(0, new RmsAccumulator(FRAMES).calculateRms().length);
+  }
+
+  @Test
+  public void calculateRms_fewerSamplesThanFrames() {
+    RmsAccumulator accumulator = new RmsAccumulator(FRAMES);
+
+    for (int i = 0; i < 10; i++) {
+      accumulator.add((short) (i * 100));
+    }
+
+    byte[] rms = accumulator.calculateRms();
+
+    assertEquals(10, rms.length);
+    assertEquals(-128, rms[0]);
+    assertEquals(127, rms[9]);
+  }
+
+  @Test
+  public void calculateRms_silence() {
+    RmsAccumulator accumulator = new RmsAccumulator(FRAMES);
+    accumulator.add(pcmFixture(new int[FRAMES], 1000, CHANNELS).asShortBuffer(), CHANNELS);
+
+    byte[] expected = new byte[FRAMES];
+    Arrays.fill(expected, (byte) -128);
+
+    assertArrayEquals(expected, accumulator.calculateRms());
+  }
+
+  @Test
+  public void calculateRms_steppedAmplitudes() {
+    int[] amplitudes = new int[FRAMES];
+    for (int i = 0; i < FRAMES; i++) {
+      amplitudes[i] = i * 1000;
+    }
+
+    RmsAccumulator accumulator = new RmsAccumulator(FRAMES);
+    feedInChunks(accumulator, pcmFixture(amplitudes, 4096, CHANNELS), 4096);
+
+    byte[] expected = new byte[FRAMES];
+    for (int i = 0; i < FRAMES; i++) {
+      expected[i] = DecodedAudioKt.normalizedFloatToByte(i / (float) (FRAMES - 1));
+    }
+
+    assertEquals(FRAMES * 4096, accumulator.getSampleCount());
+    assertArrayEquals(expected, accumulator.calculateRms());
+  }
+
+  @Test
+  public void calculateRms_independentOfChunkSize() {
+    int[] amplitudes = new int[100];
+    for (int i = 0; i < amplitudes.length; i++) {
+      amplitudes[i] = (i * 7919) % 30000;
+    }
+
+    RmsAccumulator small = new RmsAccumulator(FRAMES);
+    RmsAccumulator large = new RmsAccumulator(FRAMES);
+
+    feedInChunks(small, pcmFixture(amplitudes, 1234, CHANNELS), 12);
+    feedInChunks(large, pcmFixture(amplitudes, 1234, CHANNELS), 65536);
+
+    assertArrayEquals(large.calculateRms(), small.calculateRms());
+  }
+
+  @Test
+  public void calculateRms_longStream() {
+    RmsAccumulator accumulator = new RmsAccumulator(FRAMES);
+    int            samples     = 48000 * 60 * 20; // 20 minutes of mono audio at 48kHz.
+
+    for (int i = 0; i < samples; i++) {
+      int amplitude = (int) ((long) i * Short.MAX_VALUE / samples);
+      accumulator.add((short) ((i % 2 == 0) ? amplitude : -amplitude));
+    }
+
+    byte[] rms = accumulator.calculateRms();
+
+    assertEquals(samples, accumulator.getSampleCount());
+    assertEquals(FRAMES, rms.length);
+    assertEquals(-128, rms[0]);
+    assertEquals(127, rms[FRAMES - 1]);
+
+    for (int i = 1; i < FRAMES; i++) {
+      assertTrue(rms[i] >= rms[i - 1]);
+    }
+  }
+
+  /**
+   * Builds 16 bit little endian interleaved PCM data. Each entry of [amplitudes] produces
+   * a square wave segment of [samplesPerSegment] samples on the first channel.
+   * Other channels are filled with noise, which the accumulator is expected to ignore.
+   */
+  private static ByteBuffer pcmFixture(int[] amplitudes, int samplesPerSegment, int channels) {
+    ByteBuffer buffer = ByteBuffer.allocate(amplitudes.length * samplesPerSegment * channels * 2)
+                                  .order(ByteOrder.LITTLE_ENDIAN);
+    Random     random = new Random(42);
+
+    for (int amplitude : amplitudes) {
+      for (int i = 0; i < samplesPerSegment; i++) {
+        buffer.putShort((short) ((i % 2 == 0) ? amplitude : -amplitude));
+
+        for (int channel = 1; channel < channels; channel++) {
+          buffer.putShort((short) random.nextInt());
+        }
+      }
+    }
+
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void feedInChunks(RmsAccumulator accumulator, ByteBuffer pcm, int chunkFrames) {
+    int chunkBytes = chunkFrames * CHANNELS * 2;
+
+    while (pcm.hasRemaining()) {
+      ByteBuffer chunk = pcm.slice().order(ByteOrder.LITTLE_ENDIAN);
+      chunk.limit(Math.min(chunkBytes, pcm.remaining()));
+
+      ShortBuffer samples = chunk.asShortBuffer();
+      accumulator.add(samples, CHANNELS);
+      assertEquals(0, samples.remaining());
+
+      pcm.position(pcm.position() + chunk.limit());
+    }
+  }
+}
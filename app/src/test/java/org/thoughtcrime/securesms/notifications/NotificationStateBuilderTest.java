@@ -0,0 +1,293 @@
+package org.thoughtcrime.securesms.notifications;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.session.libsignal.utilities.Log;
+import org.thoughtcrime.securesms.testutil.SilentLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class NotificationStateBuilderTest {
+
+  private static final long COALESCE_MILLIS = 300;
+
+  private FakeDatabase             database;
+  private ScheduledExecutorService executor;
+  private BlockingQueue<Update>    updates;
+  private NotificationStateBuilder builder;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new SilentLogger());
+
+    database = new FakeDatabase();
+    executor = Executors.newSingleThreadScheduledExecutor();
+    updates  = new LinkedBlockingQueue<>();
+    builder  = new NotificationStateBuilder(database,
+                                            (state, signal, reminderCount) -> updates.add(new Update(state, signal, reminderCount)),
+                                            executor,
+                                            COALESCE_MILLIS);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private Update awaitUpdate() throws InterruptedException {
+    Update update = updates.poll(10, TimeUnit.SECONDS);
+    if (update == null) throw new AssertionError("Timed out");
+    return update;
+  }
+
+  private void receive(long threadId) {
+    database.insert(threadId);
+    builder.onMessagesInserted(threadId);
+    builder.requestUpdate(true, 0);
+  }
+
+  private void assertNoMoreUpdates() throws InterruptedException {
+    assertNull(updates.poll(COALESCE_MILLIS * 2, TimeUnit.MILLISECONDS));
+  }
+
+  private static List<Long> ids(@NonNull NotificationState state) {
+    List<Long> ids = new ArrayList<>();
+    for (NotificationItem item : state.getNotifications()) ids.add(item.getId());
+    return ids;
+  }
+
+  @Test
+  public void burst_isLoadedAndPostedOnce() throws Exception {
+    for (int i = 0; i < 500; i++) {
+      receive(i % 20);
+    }
+
+    Update update = awaitUpdate();
+
+    assertEquals(500, update.state.getMessageCount());
+    assertEquals(20, update.state.getThreadCount());
+    assertTrue(update.signal);
+    assertEquals(1, database.queries.get());
+    assertNoMoreUpdates();
+  }
+
+  @Test
+  public void burst_afterTheFirstLoad_onlyLoadsItsThreads() throws Exception {
+    for (long threadId = 0; threadId < 50; threadId++) {
+      database.insert(threadId);
+    }
+
+    builder.requestUpdate(false, 0);
+    assertEquals(50, awaitUpdate().state.getMessageCount());
+
+    database.queries.set(0);
+    database.loadedItems.set(0);
+
+    for (int i = 0; i < 500; i++) {
+      receive(i % 5);
+    }
+
+    Update update = awaitUpdate();
+
+    assertEquals(550, update.state.getMessageCount());
+    assertEquals(1, database.queries.get());
+    assertEquals(505, database.loadedItems.get());
+    assertNoMoreUpdates();
+  }
+
+  @Test
+  public void reads_areAppliedWithoutLoading() throws Exception {
+    receive(1);
+    receive(2);
+    receive(1);
+    awaitUpdate();
+
+    database.queries.set(0);
+    database.markRead(1);
+    builder.onThreadRead(1);
+    builder.requestUpdate(false, 0);
+
+    Update update = awaitUpdate();
+
+    assertEquals(Arrays.asList(2L), new ArrayList<>(update.state.getThreads()));
+    assertEquals(1, update.state.getMessageCount());
+    assertEquals(0, database.queries.get());
+  }
+
+  @Test
+  public void read_thenNewMessage_inTheSameWindow_keepsTheNewMessage() throws Exception {
+    receive(1);
+    awaitUpdate();
+
+    database.markRead(1);
+    builder.onThreadRead(1);
+    receive(1);
+
+    Update update = awaitUpdate();
+
+    assertEquals(1, update.state.getMessageCount());
+    assertEquals(Arrays.asList(2L), ids(update.state));
+  }
+
+  @Test
+  public void invalidate_reloadsEverything() throws Exception {
+    receive(1);
+    receive(2);
+    awaitUpdate();
+
+    // Read behind the builder's back
+    database.markRead(1);
+    database.markRead(2);
+    database.queries.set(0);
+
+    builder.invalidate();
+    builder.requestUpdate(false, 0);
+
+    assertTrue(awaitUpdate().state.getNotifications().isEmpty());
+    assertEquals(1, database.queries.get());
+  }
+
+  @Test
+  public void swipedMessages_dontComeBack_withAnotherThreadsMessage() throws Exception {
+    receive(1);
+    receive(1);
+    awaitUpdate();
+
+    // Swiping the notification away marks its messages as notified, and then has the notifier
+    // reload everything, which is what DefaultMessageNotifier does for a full update
+    database.markNotified(1, 2);
+    builder.invalidate();
+    builder.requestUpdate(false, 0);
+    assertTrue(awaitUpdate().state.getNotifications().isEmpty());
+
+    receive(2);
+
+    assertEquals(Arrays.asList(3L), ids(awaitUpdate().state));
+  }
+
+  @Test
+  public void reloadedThreads_keepMessagesInOrder() throws Exception {
+    receive(1);
+    receive(2);
+    receive(3);
+    awaitUpdate();
+
+    receive(2);
+    receive(1);
+
+    NotificationState state = awaitUpdate().state;
+
+    // Newest first, with the thread of the most recent message last
+    assertEquals(Arrays.asList(5L, 4L, 3L, 2L, 1L), ids(state));
+    assertEquals(Arrays.asList(3L, 2L, 1L), new ArrayList<>(state.getThreads()));
+  }
+
+  @Test
+  public void requests_areCoalesced() throws Exception {
+    builder.requestUpdate(false, 0);
+    builder.requestUpdate(true, 2);
+    builder.requestUpdate(false, 1);
+
+    Update update = awaitUpdate();
+
+    assertTrue(update.signal);
+    assertEquals(2, update.reminderCount);
+    assertNoMoreUpdates();
+
+    builder.requestUpdate(false, 0);
+
+    update = awaitUpdate();
+
+    assertFalse(update.signal);
+    assertEquals(0, update.reminderCount);
+  }
+
+  private static final class Update {
+    private final NotificationState state;
+    private final boolean           signal;
+    private final int               reminderCount;
+
+    private Update(NotificationState state, boolean signal, int reminderCount) {
+      this.state         = state;
+      this.signal        = signal;
+      this.reminderCount = reminderCount;
+    }
+  }
+
+  /**
+   * Unread messages, counting the queries made for them.
+   */
+  private static final class FakeDatabase implements NotificationStateBuilder.Source {
+
+    private final List<NotificationItem> unread      = new ArrayList<>();
+    private final AtomicInteger          queries     = new AtomicInteger();
+    private final AtomicInteger          loadedItems = new AtomicInteger();
+
+    private long nextId = 1;
+
+    synchronized void insert(long threadId) {
+      long id = nextId++;
+      unread.add(new NotificationItem(id, false, null, null, null, threadId, "Message " + id, id, id, null));
+    }
+
+    synchronized void markRead(long threadId) {
+      List<NotificationItem> read = new ArrayList<>();
+
+      for (NotificationItem item : unread) {
+        if (item.getThreadId() == threadId) read.add(item);
+      }
+
+      unread.removeAll(read);
+    }
+
+    synchronized void markNotified(long... ids) {
+      List<NotificationItem> notified = new ArrayList<>();
+
+      for (NotificationItem item : unread) {
+        for (long id : ids) {
+          if (item.getId() == id) notified.add(item);
+        }
+      }
+
+      unread.removeAll(notified);
+    }
+
+    @Override
+    public synchronized @NonNull List<NotificationItem> getUnread() {
+      queries.incrementAndGet();
+      loadedItems.addAndGet(unread.size());
+      return new ArrayList<>(unread);
+    }
+
+    @Override
+    public synchronized @NonNull List<NotificationItem> getUnread(@NonNull Set<Long> threadIds) {
+      queries.incrementAndGet();
+
+      List<NotificationItem> items = new ArrayList<>();
+
+      for (NotificationItem item : unread) {
+        if (threadIds.contains(item.getThreadId())) items.add(item);
+      }
+
+      loadedItems.addAndGet(items.size());
+      return items;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.session.libsession.messaging.sending_receiving.notifications.MessageNotifier;
+import org.session.libsession.utilities.recipients.Recipient;
+import org.session.libsignal.utilities.Log;
+import org.thoughtcrime.securesms.testutil.SilentLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public final class PendingNotificationUpdatesTest {
+
+  private final List<NotificationItem>           unread = new ArrayList<>();
+  private final BlockingQueue<NotificationState> states = new LinkedBlockingQueue<>();
+  private final List<String>                     calls  = new ArrayList<>();
+
+  private ScheduledExecutorService   executor;
+  private NotificationStateBuilder   stateBuilder;
+  private PendingNotificationUpdates pendingUpdates;
+  private MessageNotifier            notifier;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new SilentLogger());
+    executor       = Executors.newSingleThreadScheduledExecutor();
+    stateBuilder   = new NotificationStateBuilder(new ListSource(), (state, signal, reminderCount) -> states.add(state), executor, 10);
+    pendingUpdates = new PendingNotificationUpdates();
+    notifier       = new ForwardingNotifier();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private void insert(long threadId) {
+    synchronized (unread) {
+      long id = unread.size() + 1;
+      unread.add(new NotificationItem(id, false, null, null, null, threadId, "Message " + id, id, id, null));
+    }
+  }
+
+  private NotificationState awaitState() throws InterruptedException {
+    NotificationState state = states.poll(10, TimeUnit.SECONDS);
+    assertNotNull("Timed out", state);
+    return state;
+  }
+
+  @Test
+  public void insertsInTwoThreadsWithinOneWindow_areBothShown() throws Exception {
+    // Once the state is loaded, only the threads the notifier is told about are reloaded
+    insert(1);
+    notifier.updateNotification(null, 1, true);
+    assertEquals(1, awaitState().getThreadCount());
+
+    insert(2);
+    pendingUpdates.addThread(2, true);
+    insert(3);
+    pendingUpdates.addThread(3, true);
+    pendingUpdates.flush(notifier, null);
+
+    NotificationState state = awaitState();
+
+    assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L)), state.getThreads());
+    assertEquals(3, state.getMessageCount());
+  }
+
+  @Test
+  public void updatesForTheSameThread_areMerged() {
+    pendingUpdates.addThread(1, false);
+    pendingUpdates.addThread(2, false);
+    pendingUpdates.addThread(1, true);
+    pendingUpdates.addThread(3);
+    pendingUpdates.addThread(3, false);
+    pendingUpdates.addReminderUpdate(true, 1);
+    pendingUpdates.addReminderUpdate(false, 2);
+    pendingUpdates.addFullUpdate();
+    pendingUpdates.flush(notifier, null);
+
+    assertEquals(Arrays.asList("thread 1 signal true", "thread 2 signal false", "thread 3", "all", "reminder true 2"), calls);
+
+    calls.clear();
+    pendingUpdates.flush(notifier, null);
+
+    assertEquals(0, calls.size());
+  }
+
+  private final class ListSource implements NotificationStateBuilder.Source {
+
+    @Override
+    public @NonNull List<NotificationItem> getUnread() {
+      synchronized (unread) {
+        return new ArrayList<>(unread);
+      }
+    }
+
+    @Override
+    public @NonNull List<NotificationItem> getUnread(@NonNull Set<Long> threadIds) {
+      List<NotificationItem> items = new ArrayList<>();
+
+      synchronized (unread) {
+        for (NotificationItem item : unread) {
+          if (threadIds.contains(item.getThreadId())) items.add(item);
+        }
+      }
+
+      return items;
+    }
+  }
+
+  /**
+   * Records the updates it's asked for, and passes new messages on to the state builder the way
+   * {@link DefaultMessageNotifier} does.
+   */
+  private final class ForwardingNotifier implements MessageNotifier {
+
+    @Override public void setVisibleThread(long threadId) {}
+    @Override public void setLastDesktopActivityTimestamp(long timestamp) {}
+    @Override public void notifyMessageDeliveryFailed(Context context, Recipient recipient, long threadId) {}
+    @Override public void cancelDelayedNotifications() {}
+    @Override public void clearReminder(@NonNull Context context) {}
+
+    @Override
+    public void updateNotification(@NonNull Context context) {
+      calls.add("all");
+    }
+
+    @Override
+    public void updateNotification(@NonNull Context context, long threadId) {
+      calls.add("thread " + threadId);
+    }
+
+    @Override
+    public void updateNotification(@NonNull Context context, long threadId, boolean signal) {
+      calls.add("thread " + threadId + " signal " + signal);
+      stateBuilder.onMessagesInserted(threadId);
+      stateBuilder.requestUpdate(signal, 0);
+    }
+
+    @Override
+    public void updateNotification(@NonNull Context context, boolean signal, int reminderCount) {
+      calls.add("reminder " + signal + " " + reminderCount);
+    }
+  }
+}
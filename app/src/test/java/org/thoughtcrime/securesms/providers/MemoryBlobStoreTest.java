@@ -0,0 +1,274 @@
+package org.thoughtcrime.securesms.providers;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class MemoryBlobStoreTest {
+
+  private static final int  BLOB_SIZE = 1024 * 1024;
+  private static final long BUDGET    = 8L * BLOB_SIZE;
+
+  private FakeSpillStorage storage;
+
+  @Before
+  public void setUp() {
+    storage = new FakeSpillStorage();
+  }
+
+  private static byte[] blob(int index) {
+    byte[] data = new byte[BLOB_SIZE];
+    Arrays.fill(data, (byte) index);
+    return data;
+  }
+
+  private static byte[] read(@NonNull InputStream inputStream) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[]                buffer       = new byte[8192];
+    int                   read;
+
+    try (InputStream in = inputStream) {
+      while ((read = in.read(buffer)) != -1) outputStream.write(buffer, 0, read);
+    }
+
+    return outputStream.toByteArray();
+  }
+
+  @Test
+  public void put_staysWithinTheMemoryBudget() throws IOException {
+    MemoryBlobStore store = new MemoryBlobStore(BUDGET, Runnable::run);
+    store.setSpillStorage(storage);
+
+    for (int i = 0; i < 100; i++) {
+      store.put("blob" + i, blob(i), false);
+      assertTrue(store.getResidentBytes() <= BUDGET);
+    }
+
+    assertEquals(BUDGET, store.getResidentBytes());
+    assertEquals(92, storage.files.size());
+
+    for (int i = 0; i < 100; i++) {
+      assertArrayEquals(blob(i), read(store.open("blob" + i)));
+    }
+  }
+
+  @Test
+  public void put_spillsTheLeastRecentlyUsedBlobs() throws IOException {
+    MemoryBlobStore store = new MemoryBlobStore(2L * BLOB_SIZE, Runnable::run);
+    store.setSpillStorage(storage);
+
+    store.put("a", blob(1), false);
+    store.put("b", blob(2), false);
+    read(store.open("a"));
+    store.put("c", blob(3), false);
+
+    assertEquals(Arrays.asList("b"), new ArrayList<>(storage.files.keySet()));
+  }
+
+  @Test
+  public void put_withoutSpillStorage_keepsEverythingInMemory() throws IOException {
+    MemoryBlobStore store = new MemoryBlobStore(BLOB_SIZE, Runnable::run);
+
+    store.put("a", blob(1), false);
+    store.put("b", blob(2), false);
+    assertEquals(2L * BLOB_SIZE, store.getResidentBytes());
+
+    store.setSpillStorage(storage);
+    assertEquals(BLOB_SIZE, store.getResidentBytes());
+    assertArrayEquals(blob(1), read(store.open("a")));
+  }
+
+  @Test
+  public void open_singleUse_removesTheBlob() throws IOException {
+    MemoryBlobStore store = new MemoryBlobStore(BLOB_SIZE, Runnable::run);
+    store.setSpillStorage(storage);
+
+    store.put("a", blob(1), true);
+    store.put("b", blob(2), true);
+    assertEquals(1, storage.files.size());
+
+    assertArrayEquals(blob(1), read(store.open("a")));
+    assertArrayEquals(blob(2), read(store.open("b")));
+    assertEquals(0, store.getResidentBytes());
+    assertTrue(storage.files.isEmpty());
+
+    try {
+      store.open("a");
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void remove_deletesSpilledCopies() {
+    MemoryBlobStore store = new MemoryBlobStore(BLOB_SIZE, Runnable::run);
+    store.setSpillStorage(storage);
+
+    store.put("a", blob(1), false);
+    store.put("b", blob(2), false);
+    store.remove("a");
+    store.remove("b");
+
+    assertEquals(0, store.getResidentBytes());
+    assertTrue(storage.files.isEmpty());
+  }
+
+  @Test
+  public void concurrentPuts_settleWithinTheMemoryBudget() throws Exception {
+    ExecutorService spillExecutor = Executors.newFixedThreadPool(2);
+    ExecutorService writers       = Executors.newFixedThreadPool(8);
+    MemoryBlobStore store         = new MemoryBlobStore(BUDGET, spillExecutor);
+    store.setSpillStorage(storage);
+
+    List<Future<?>> futures = new ArrayList<>();
+
+    for (int i = 0; i < 64; i++) {
+      int index = i;
+      futures.add(writers.submit(() -> {
+        store.put("blob" + index, blob(index), false);
+        assertArrayEquals(blob(index), read(store.open("blob" + index)));
+        return null;
+      }));
+    }
+
+    for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+
+    spillExecutor.shutdown();
+    assertTrue(spillExecutor.awaitTermination(1, TimeUnit.MINUTES));
+    writers.shutdown();
+
+    assertTrue(store.getResidentBytes() <= BUDGET);
+
+    for (int i = 0; i < 64; i++) {
+      assertArrayEquals(blob(i), read(store.open("blob" + i)));
+    }
+  }
+
+  @Test
+  public void slowReads_doNotBlockOtherBlobs() throws Exception {
+    MemoryBlobStore store = new MemoryBlobStore(0, Runnable::run);
+    store.setSpillStorage(storage);
+
+    for (int i = 0; i < 4; i++) store.put("blob" + i, blob(i), false);
+
+    // Every read of a spilled blob blocks until all four are being read at the same time
+    storage.readBarrier = new CountDownLatch(4);
+
+    ExecutorService readers = Executors.newFixedThreadPool(4);
+    List<Future<byte[]>> futures = new ArrayList<>();
+
+    for (int i = 0; i < 4; i++) {
+      int index = i;
+      futures.add(readers.submit(() -> read(store.open("blob" + index))));
+    }
+
+    for (int i = 0; i < 4; i++) {
+      assertArrayEquals(blob(i), futures.get(i).get(10, TimeUnit.SECONDS));
+    }
+
+    readers.shutdown();
+    assertEquals(4, storage.maxConcurrentReads.get());
+  }
+
+  @Test
+  public void spill_keepsTheBlobReadableWhileWriting() throws Exception {
+    ExecutorService spillExecutor = Executors.newSingleThreadExecutor();
+    MemoryBlobStore store         = new MemoryBlobStore(0, spillExecutor);
+    store.setSpillStorage(storage);
+
+    storage.writeGate = new CountDownLatch(1);
+    store.put("a", blob(1), false);
+
+    // The spill is stuck writing, but the blob can still be read from memory
+    assertArrayEquals(blob(1), read(store.open("a")));
+    assertFalse(storage.files.containsKey("a"));
+
+    storage.writeGate.countDown();
+    spillExecutor.shutdown();
+    assertTrue(spillExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(0, store.getResidentBytes());
+    assertArrayEquals(blob(1), read(store.open("a")));
+  }
+
+  private static final class FakeSpillStorage implements MemoryBlobStore.SpillStorage {
+
+    private final Map<String, byte[]> files              = new ConcurrentHashMap<>();
+    private final AtomicInteger       concurrentReads    = new AtomicInteger();
+    private final AtomicInteger       maxConcurrentReads = new AtomicInteger();
+
+    private volatile CountDownLatch readBarrier;
+    private volatile CountDownLatch writeGate;
+
+    @Override
+    public @NonNull OutputStream openForWriting(@NonNull String id) throws IOException {
+      awaitUninterruptibly(writeGate);
+
+      return new ByteArrayOutputStream() {
+        @Override
+        public void close() {
+          files.put(id, toByteArray());
+        }
+      };
+    }
+
+    @Override
+    public @NonNull InputStream openForReading(@NonNull String id) throws IOException {
+      byte[] data = files.get(id);
+      if (data == null) throw new IOException("No such file: " + id);
+
+      int reads = concurrentReads.incrementAndGet();
+      maxConcurrentReads.accumulateAndGet(reads, Math::max);
+
+      CountDownLatch barrier = readBarrier;
+
+      if (barrier != null) {
+        barrier.countDown();
+        awaitUninterruptibly(barrier);
+      }
+
+      concurrentReads.decrementAndGet();
+      return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public void delete(@NonNull String id) {
+      files.remove(id);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) throws IOException {
+      if (latch == null) return;
+
+      try {
+        if (!latch.await(10, TimeUnit.SECONDS)) throw new IOException("Timed out");
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+}
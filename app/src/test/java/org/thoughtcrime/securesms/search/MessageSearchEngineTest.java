@@ -0,0 +1,261 @@
+package org.thoughtcrime.securesms.search;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.search.model.MessageHit;
+import org.thoughtcrime.securesms.testutil.DirectExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public final class MessageSearchEngineTest {
+
+  private static final int CORPUS_SIZE = 200_000;
+  private static final int PAGE_SIZE   = 50;
+
+  private static final String[] WORDS = { "hello", "session", "open", "group", "photo", "later", "tomorrow", "thanks" };
+
+  private static final Comparator<MessageHit> ORDER = (lhs, rhs) -> {
+    int result = Long.compare(lhs.rank, rhs.rank);
+    if (result == 0) result = Long.compare(rhs.receivedTimestampMs, lhs.receivedTimestampMs);
+    if (result == 0) result = Boolean.compare(lhs.mms, rhs.mms);
+    if (result == 0) result = Long.compare(rhs.messageId, lhs.messageId);
+    return result;
+  };
+
+  private FakeSource source;
+
+  @Before
+  public void setUp() {
+    source = new FakeSource(CORPUS_SIZE);
+  }
+
+  @Test
+  public void search_pagesCoverAllMatchesInOrder() {
+    for (MessageSearchEngine.Order order : MessageSearchEngine.Order.values()) {
+      MessageSearchEngine     engine    = new MessageSearchEngine(source, new DirectExecutor(), PAGE_SIZE);
+      List<MessageHit>        delivered = new ArrayList<>();
+      MessageSearchEngine.Search search = engine.search("photo", -1, order, (s, page) -> delivered.addAll(page.getHits()));
+
+      while (search.hasMore()) {
+        search.loadNextPage();
+      }
+
+      List<MessageHit> expected = source.matches("photo", -1, order);
+
+      assertEquals(expected.size(), delivered.size());
+
+      Set<String> keys = new HashSet<>();
+
+      for (int i = 0; i < delivered.size(); i++) {
+        assertEquals(expected.get(i).messageId, delivered.get(i).messageId);
+        assertEquals(expected.get(i).mms, delivered.get(i).mms);
+        assertNotNull(delivered.get(i).bodySnippet);
+        assertTrue(keys.add(delivered.get(i).mms + ":" + delivered.get(i).messageId));
+      }
+    }
+  }
+
+  @Test
+  public void search_pagesDoNotOverlapWhenKeysTie() {
+    MessageSearchEngine        engine    = new MessageSearchEngine(source, new DirectExecutor(), PAGE_SIZE);
+    List<MessageHit>           delivered = new ArrayList<>();
+    MessageSearchEngine.Search search    = engine.search("hello", 7, MessageSearchEngine.Order.RECENCY, (s, page) -> delivered.addAll(page.getHits()));
+
+    while (search.hasMore()) {
+      search.loadNextPage();
+    }
+
+    assertEquals(source.matches("hello", 7, MessageSearchEngine.Order.RECENCY).size(), delivered.size());
+
+    for (int i = 1; i < delivered.size(); i++) {
+      assertTrue(ORDER.compare(delivered.get(i - 1), delivered.get(i)) < 0);
+      assertEquals(7, delivered.get(i).threadId);
+    }
+  }
+
+  @Test
+  public void search_snippetsOnlyComputedForDeliveredPage() {
+    MessageSearchEngine        engine = new MessageSearchEngine(source, new DirectExecutor(), PAGE_SIZE);
+    List<MessageSearchEngine.Page> pages = new ArrayList<>();
+
+    engine.search("session", -1, MessageSearchEngine.Order.RELEVANCE, (s, page) -> pages.add(page));
+
+    assertEquals(1, pages.size());
+    assertEquals(PAGE_SIZE, pages.get(0).getHits().size());
+    assertTrue(pages.get(0).hasMore());
+    assertEquals(PAGE_SIZE, source.snippetsComputed);
+    assertEquals(1, source.pageQueries);
+  }
+
+  @Test
+  public void search_supersededQueryNeverRuns() {
+    QueueExecutor                  executor  = new QueueExecutor();
+    MessageSearchEngine            engine    = new MessageSearchEngine(source, executor, PAGE_SIZE);
+    List<String>                   delivered = new ArrayList<>();
+
+    // Simulates fast typing: every keystroke starts a new search before the previous one ran.
+    MessageSearchEngine.Search first  = engine.search("t", -1, MessageSearchEngine.Order.RECENCY, (s, page) -> delivered.add(s.getQuery()));
+    MessageSearchEngine.Search second = engine.search("th", -1, MessageSearchEngine.Order.RECENCY, (s, page) -> delivered.add(s.getQuery()));
+    MessageSearchEngine.Search third  = engine.search("thanks", -1, MessageSearchEngine.Order.RECENCY, (s, page) -> delivered.add(s.getQuery()));
+
+    executor.runAll();
+
+    assertTrue(first.isCanceled());
+    assertTrue(second.isCanceled());
+    assertFalse(third.isCanceled());
+    assertEquals(Collections.singletonList("thanks"), delivered);
+    assertEquals(1, source.pageQueries);
+  }
+
+  @Test
+  public void search_canceledWhileQueryingSkipsSnippetsAndDelivery() {
+    List<String>        delivered = new ArrayList<>();
+    MessageSearchEngine engine    = new MessageSearchEngine(source, new DirectExecutor(), PAGE_SIZE);
+
+    // A new keystroke comes in while the page query of the first search is running.
+    source.onPageQuery = () -> {
+      source.onPageQuery = null;
+      engine.search("later", -1, MessageSearchEngine.Order.RECENCY, (s, page) -> delivered.add(s.getQuery()));
+    };
+
+    MessageSearchEngine.Search first = engine.search("late", -1, MessageSearchEngine.Order.RECENCY, (s, page) -> delivered.add(s.getQuery()));
+
+    assertTrue(first.isCanceled());
+    assertEquals(Collections.singletonList("later"), delivered);
+    assertEquals(PAGE_SIZE, source.snippetsComputed);
+  }
+
+  @Test
+  public void search_noMatches() {
+    MessageSearchEngine            engine = new MessageSearchEngine(source, new DirectExecutor(), PAGE_SIZE);
+    List<MessageSearchEngine.Page> pages  = new ArrayList<>();
+
+    MessageSearchEngine.Search search = engine.search("nothing", -1, MessageSearchEngine.Order.RELEVANCE, (s, page) -> pages.add(page));
+
+    assertEquals(1, pages.size());
+    assertTrue(pages.get(0).getHits().isEmpty());
+    assertFalse(pages.get(0).hasMore());
+    assertFalse(search.hasMore());
+    assertEquals(0, source.snippetsComputed);
+  }
+
+  /**
+   * In-memory stand-in for the FTS tables, following the same ordering and keyset contract.
+   */
+  private static final class FakeSource implements MessageSearchEngine.Source {
+
+    private final List<MessageHit> messages;
+    private final List<String>     bodies;
+
+    private final Map<String, List<MessageHit>> matchCache = new HashMap<>();
+
+    int      pageQueries;
+    int      snippetsComputed;
+    Runnable onPageQuery;
+
+    FakeSource(int size) {
+      messages = new ArrayList<>(size);
+      bodies   = new ArrayList<>(size);
+
+      for (int i = 0; i < size; i++) {
+        String body = WORDS[i % WORDS.length] + " " + WORDS[(i / WORDS.length) % WORDS.length];
+        // Plenty of identical timestamps and ranks, to exercise the tie breakers.
+        messages.add(new MessageHit(i % 2 == 0, i / 2, i % 20, -(i % 5), 1_600_000_000_000L + (i / 4), "thread" + (i % 20), "sender" + (i % 7), null));
+        bodies.add(body);
+      }
+    }
+
+    List<MessageHit> matches(@NonNull String query, long threadId, @NonNull MessageSearchEngine.Order order) {
+      String           key    = query + ":" + threadId + ":" + order;
+      List<MessageHit> result = matchCache.get(key);
+
+      if (result != null) return result;
+
+      result = new ArrayList<>();
+
+      for (int i = 0; i < messages.size(); i++) {
+        MessageHit message = messages.get(i);
+
+        if (threadId >= 0 && message.threadId != threadId) continue;
+        if (!matches(bodies.get(i), query)) continue;
+
+        long rank = order == MessageSearchEngine.Order.RELEVANCE ? message.rank : 0;
+        result.add(new MessageHit(message.mms, message.messageId, message.threadId, rank, message.receivedTimestampMs, message.conversationAddress, message.messageAddress, null));
+      }
+
+      Collections.sort(result, ORDER);
+      matchCache.put(key, result);
+      return result;
+    }
+
+    @Override
+    public @NonNull List<MessageHit> findPage(@NonNull String query, long threadId, @NonNull MessageSearchEngine.Order order, @Nullable MessageHit after, int limit) {
+      pageQueries++;
+
+      if (onPageQuery != null) onPageQuery.run();
+
+      List<MessageHit> matches = matches(query, threadId, order);
+      int              start   = 0;
+
+      if (after != null) {
+        while (start < matches.size() && ORDER.compare(matches.get(start), after) <= 0) start++;
+      }
+
+      return new ArrayList<>(matches.subList(start, Math.min(matches.size(), start + limit)));
+    }
+
+    @Override
+    public @NonNull List<String> getSnippets(@NonNull String query, @NonNull List<MessageHit> hits) {
+      List<String> snippets = new ArrayList<>(hits.size());
+
+      for (MessageHit hit : hits) {
+        snippets.add("..." + query + "...");
+        snippetsComputed++;
+      }
+
+      return snippets;
+    }
+
+    private static boolean matches(@NonNull String body, @NonNull String query) {
+      for (String token : body.split(" ")) {
+        if (token.startsWith(query)) return true;
+      }
+      return false;
+    }
+  }
+
+  private static final class QueueExecutor implements Executor {
+
+    private final Queue<Runnable> queue = new LinkedList<>();
+
+    @Override
+    public void execute(@NonNull Runnable runnable) {
+      queue.add(runnable);
+    }
+
+    void runAll() {
+      Runnable runnable;
+      while ((runnable = queue.poll()) != null) {
+        runnable.run();
+      }
+    }
+  }
+}
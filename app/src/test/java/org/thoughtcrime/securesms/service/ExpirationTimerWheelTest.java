@@ -0,0 +1,227 @@
+package org.thoughtcrime.securesms.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class ExpirationTimerWheelTest {
+
+  private static final long TICK_MILLIS = 1000;
+  private static final long START       = 1_600_000_000_123L;
+
+  private FakeClock                  clock;
+  private ExpirationTimerWheel<Long> wheel;
+
+  @Before
+  public void setUp() {
+    clock = new FakeClock(START);
+    wheel = new ExpirationTimerWheel<>(clock, TICK_MILLIS);
+  }
+
+  @Test
+  public void emptyWheel_hasNothingToDo() {
+    assertEquals(-1, wheel.getMillisUntilNextTick());
+    clock.advance(TimeUnit.DAYS.toMillis(1));
+    assertTrue(wheel.advance().isEmpty());
+  }
+
+  @Test
+  public void schedule_expiresAtTheEndOfItsTick() {
+    wheel.schedule(1L, START + 4_500);
+
+    assertEquals(5_000 - 123, wheel.getMillisUntilNextTick());
+
+    clock.set(START + 4_499);
+    assertTrue(wheel.advance().isEmpty());
+
+    clock.set(START + 4_877);
+    assertEquals(Collections.singletonList(1L), wheel.advance());
+    assertEquals(0, wheel.size());
+    assertEquals(-1, wheel.getMillisUntilNextTick());
+  }
+
+  @Test
+  public void schedule_inThePast_isDueImmediately() {
+    wheel.schedule(1L, START - 10_000);
+
+    assertEquals(0, wheel.getMillisUntilNextTick());
+    assertEquals(Collections.singletonList(1L), wheel.advance());
+  }
+
+  @Test
+  public void schedule_again_movesTheItemToItsNewTime() {
+    assertTrue(wheel.schedule(1L, START + 5_000));
+    assertTrue(wheel.schedule(2L, START + TimeUnit.HOURS.toMillis(2)));
+    assertFalse(wheel.schedule(1L, START + TimeUnit.HOURS.toMillis(1)));
+    assertFalse(wheel.schedule(2L, START + 10_000));
+    assertEquals(2, wheel.size());
+
+    clock.set(START + 10_000 + TICK_MILLIS);
+    assertEquals(Collections.singletonList(2L), wheel.advance());
+
+    clock.set(START + TimeUnit.HOURS.toMillis(1));
+    assertTrue(wheel.advance().isEmpty());
+    clock.advance(TICK_MILLIS);
+    assertEquals(Collections.singletonList(1L), wheel.advance());
+    assertEquals(-1, wheel.getMillisUntilNextTick());
+  }
+
+  @Test
+  public void schedule_dueItemAgain_isNoLongerDue() {
+    wheel.schedule(1L, START - 10_000);
+    wheel.schedule(1L, START + 5_000);
+
+    assertTrue(wheel.advance().isEmpty());
+    clock.set(START + 5_000 + TICK_MILLIS);
+    assertEquals(Collections.singletonList(1L), wheel.advance());
+  }
+
+  @Test
+  public void advance_batchesExpirationsWithinTheSameTick() {
+    for (long i = 0; i < 1_000; i++) {
+      wheel.schedule(i, START + 30_000 + i % 800);
+    }
+
+    clock.advance(wheel.getMillisUntilNextTick());
+    List<Long> expired = wheel.advance();
+
+    assertEquals(1_000, expired.size());
+    assertEquals(-1, wheel.getMillisUntilNextTick());
+  }
+
+  @Test
+  public void advance_handsOutEverythingDueAfterASleep() {
+    wheel.schedule(1L, START + 2_000);
+    wheel.schedule(2L, START + TimeUnit.MINUTES.toMillis(5));
+    wheel.schedule(3L, START + TimeUnit.HOURS.toMillis(3));
+
+    clock.advance(TimeUnit.HOURS.toMillis(1));
+
+    assertEquals(Arrays.asList(1L, 2L), wheel.advance());
+    assertEquals(1, wheel.size());
+  }
+
+  @Test
+  public void longTimers_expireOnTimeWithFewWakeups() {
+    long expiresAt = START + TimeUnit.DAYS.toMillis(7) + 250;
+    wheel.schedule(1L, expiresAt);
+
+    int        wakeups = 0;
+    List<Long> expired = new ArrayList<>();
+
+    while (expired.isEmpty()) {
+      clock.advance(wheel.getMillisUntilNextTick());
+      expired = wheel.advance();
+      wakeups++;
+    }
+
+    assertTrue(clock.now >= expiresAt);
+    assertTrue(clock.now < expiresAt + TICK_MILLIS);
+    assertTrue("Woke up " + wakeups + " times", wakeups <= 4);
+  }
+
+  @Test
+  public void timersBeyondTheLastLevel_stillExpireOnTime() {
+    long expiresAt = START + TimeUnit.DAYS.toMillis(400);
+    wheel.schedule(1L, expiresAt);
+
+    List<Long> expired = new ArrayList<>();
+
+    while (expired.isEmpty()) {
+      clock.advance(wheel.getMillisUntilNextTick());
+      expired = wheel.advance();
+    }
+
+    assertTrue(clock.now >= expiresAt);
+    assertTrue(clock.now < expiresAt + TICK_MILLIS);
+  }
+
+  @Test
+  public void randomTimers_neverExpireEarlyOrMoreThanATickLate() {
+    Random          random    = new Random(42);
+    Map<Long, Long> expiresAt = new HashMap<>();
+    Set<Long>       ticks     = new HashSet<>();
+
+    for (long i = 0; i < 20_000; i++) {
+      // Mostly aggressive timers, with the occasional week long one
+      long delay = random.nextInt(10) == 0 ? (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(8))
+                                           : random.nextInt((int) TimeUnit.MINUTES.toMillis(5));
+      expiresAt.put(i, START + delay);
+      wheel.schedule(i, START + delay);
+      ticks.add((START + delay + TICK_MILLIS - 1) / TICK_MILLIS);
+    }
+
+    int wakeups = 0;
+    int batches = 0;
+
+    while (wheel.getMillisUntilNextTick() >= 0) {
+      clock.advance(wheel.getMillisUntilNextTick());
+      List<Long> expired = wheel.advance();
+      wakeups++;
+
+      if (!expired.isEmpty()) batches++;
+
+      for (long item : expired) {
+        long expiration = expiresAt.remove(item);
+        assertTrue(clock.now >= expiration);
+        assertTrue(clock.now < expiration + TICK_MILLIS);
+      }
+    }
+
+    assertTrue(expiresAt.isEmpty());
+    assertEquals(ticks.size(), batches);
+    assertTrue("Woke up " + wakeups + " times for " + ticks.size() + " ticks", wakeups < ticks.size() * 2);
+  }
+
+  @Test
+  public void schedule_whileAdvancing_keepsOrder() {
+    wheel.schedule(1L, START + TimeUnit.HOURS.toMillis(2));
+
+    clock.advance(TimeUnit.HOURS.toMillis(1));
+    assertTrue(wheel.advance().isEmpty());
+
+    wheel.schedule(2L, clock.now + 10_000);
+    wheel.schedule(3L, clock.now + TimeUnit.HOURS.toMillis(1) + 10_000);
+
+    clock.advance(11_000);
+    assertEquals(Collections.singletonList(2L), wheel.advance());
+
+    clock.advance(TimeUnit.HOURS.toMillis(1));
+    assertEquals(Arrays.asList(1L, 3L), wheel.advance());
+  }
+
+  private static final class FakeClock implements ExpirationTimerWheel.Clock {
+    private long now;
+
+    private FakeClock(long now) {
+      this.now = now;
+    }
+
+    private void set(long now) {
+      this.now = now;
+    }
+
+    private void advance(long millis) {
+      now += millis;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+      return now;
+    }
+  }
+}
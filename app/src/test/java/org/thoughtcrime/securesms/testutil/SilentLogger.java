@@ -0,0 +1,16 @@
+package org.thoughtcrime.securesms.testutil;
+
+import org.session.libsignal.utilities.Log;
+
+/**
+ * Logger that drops everything, for tests of code that logs.
+ */
+public final class SilentLogger extends Log.Logger {
+  @Override public void v(String tag, String message, Throwable t) {}
+  @Override public void d(String tag, String message, Throwable t) {}
+  @Override public void i(String tag, String message, Throwable t) {}
+  @Override public void w(String tag, String message, Throwable t) {}
+  @Override public void e(String tag, String message, Throwable t) {}
+  @Override public void wtf(String tag, String message, Throwable t) {}
+  @Override public void blockUntilAllWritesFinished() {}
+}
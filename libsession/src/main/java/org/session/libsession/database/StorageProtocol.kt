@@ -38,9 +38,9 @@ interface StorageProtocol {
     fun getOrGenerateRegistrationID(): Int
 
     // Jobs
-    fun persistJob(job: Job)
-    fun markJobAsSucceeded(jobId: String)
+    fun persistJobChanges(added: List<Job>, updated: List<Job>, finishedJobIds: List<String>)
     fun markJobAsFailedPermanently(jobId: String)
+    fun cancelPendingAttachmentUploadJobs(messageID: Long)
     fun getAllPendingJobs(type: String): Map<String,Job?>
     fun getAttachmentUploadJob(attachmentID: Long): AttachmentUploadJob?
     fun getMessageSendJob(messageSendJobID: String): MessageSendJob?
@@ -134,9 +134,11 @@ interface StorageProtocol {
 
     // Contacts
     fun getContactWithSessionID(sessionID: String): Contact?
+    fun getContactsWithSessionIDs(sessionIDs: Collection<String>): List<Contact>
     fun getAllContacts(): Set<Contact>
     fun setContact(contact: Contact)
     fun getRecipientSettings(address: Address): RecipientSettings?
+    fun getRecipientSettings(addresses: List<Address>): Map<Address, RecipientSettings>
     fun addContacts(contacts: List<ConfigurationMessage.Contact>)
 
     // Attachments
@@ -148,5 +150,10 @@ interface StorageProtocol {
      * Returns the ID of the `TSIncomingMessage` that was constructed.
      */
     fun persist(message: VisibleMessage, quotes: QuoteModel?, linkPreview: List<LinkPreview?>, groupPublicKey: String?, openGroupID: String?, attachments: List<Attachment>): Long?
+    /**
+     * Runs `batch` in a single transaction. Thread updates and listener notifications caused by the messages
+     * persisted in it are applied once, when the whole batch is done. Nothing is committed if `batch` throws.
+     */
+    fun persistInBatch(batch: () -> Unit)
     fun insertDataExtractionNotificationMessage(senderPublicKey: String, message: DataExtractionNotificationInfoMessage, sentTimestamp: Long)
 }
@@ -1,13 +1,11 @@
 package org.session.libsession.messaging.jobs
 
-import com.esotericsoftware.kryo.Kryo
-import com.esotericsoftware.kryo.io.Input
-import com.esotericsoftware.kryo.io.Output
 import nl.komponents.kovenant.Promise
 import okio.Buffer
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.file_server.FileServerAPIV2
 import org.session.libsession.messaging.messages.Message
+import org.session.libsession.messaging.messages.visible.VisibleMessage
 import org.session.libsession.messaging.open_groups.OpenGroupAPIV2
 import org.session.libsession.messaging.sending_receiving.MessageSender
 import org.session.libsession.messaging.utilities.Data
@@ -109,7 +107,9 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
         Log.d(TAG, "Attachment uploaded successfully.")
         delegate?.handleJobSucceeded(this)
         MessagingModuleConfiguration.shared.messageDataProvider.handleSuccessfulAttachmentUpload(attachmentID, attachment, attachmentKey, uploadResult)
-        MessagingModuleConfiguration.shared.storage.resumeMessageSendJobIfNeeded(messageSendJobID)
+        if (JobQueue.shared.attachmentUploadTracker.handleUploaded(messageSendJobID, attachmentID)) {
+            MessagingModuleConfiguration.shared.storage.resumeMessageSendJobIfNeeded(messageSendJobID)
+        }
     }
 
     private fun handlePermanentFailure(e: Exception) {
@@ -130,19 +130,17 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
     private fun failAssociatedMessageSendJob(e: Exception) {
         val storage = MessagingModuleConfiguration.shared.storage
         val messageSendJob = storage.getMessageSendJob(messageSendJobID)
+        JobQueue.shared.attachmentUploadTracker.handleFailed(messageSendJobID)
         MessageSender.handleFailedMessageSend(this.message, e)
         if (messageSendJob != null) {
             storage.markJobAsFailedPermanently(messageSendJobID)
         }
+        // The message won't be sent, so there's no point in uploading its other attachments
+        message.id?.let { storage.cancelPendingAttachmentUploadJobs(it) }
     }
 
     override fun serialize(): Data {
-        val kryo = Kryo()
-        kryo.isRegistrationRequired = false
-        val serializedMessage = ByteArray(4096)
-        val output = Output(serializedMessage)
-        kryo.writeObject(output, message)
-        output.close()
+        val serializedMessage = JobPayloadCodec.encode(message)
         return Data.Builder()
             .putLong(ATTACHMENT_ID_KEY, attachmentID)
             .putString(THREAD_ID_KEY, threadID)
@@ -159,11 +157,8 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
 
         override fun create(data: Data): AttachmentUploadJob {
             val serializedMessage = data.getByteArray(MESSAGE_KEY)
-            val kryo = Kryo()
-            kryo.isRegistrationRequired = false
-            val input = Input(serializedMessage)
-            val message = kryo.readObject(input, Message::class.java)
-            input.close()
+            // Legacy payloads were written without their class, but only visible messages have attachments
+            val message: Message = JobPayloadCodec.decode(serializedMessage, VisibleMessage::class.java, JobPayloadCodec.LegacyFormat.OBJECT)
             return AttachmentUploadJob(
                 data.getLong(ATTACHMENT_ID_KEY),
                 data.getString(THREAD_ID_KEY)!!,
@@ -0,0 +1,46 @@
+package org.session.libsession.messaging.jobs
+
+/**
+ * Keeps track of the attachment uploads each [MessageSendJob] is waiting for, so that the message
+ * is sent once, as soon as its last attachment is uploaded, rather than being queued again after
+ * every upload.
+ *
+ * This is only kept in memory. A message send job that isn't tracked (e.g. after a restart) is
+ * resumed after any of its uploads, and starts being tracked again when it next runs.
+ */
+class AttachmentUploadTracker {
+    private val pendingUploads = mutableMapOf<String, MutableSet<Long>>()
+
+    /**
+     * Records that the given message send job is waiting for the given attachments to be uploaded.
+     */
+    @Synchronized
+    fun await(messageSendJobID: String, attachmentIDs: Collection<Long>) {
+        if (attachmentIDs.isEmpty()) {
+            pendingUploads.remove(messageSendJobID)
+        } else {
+            pendingUploads[messageSendJobID] = attachmentIDs.toMutableSet()
+        }
+    }
+
+    /**
+     * @return Whether the message send job should be resumed: either this was the last upload it
+     * was waiting for, or it isn't being tracked.
+     */
+    @Synchronized
+    fun handleUploaded(messageSendJobID: String, attachmentID: Long): Boolean {
+        val remaining = pendingUploads[messageSendJobID] ?: return true
+        remaining.remove(attachmentID)
+        if (remaining.isNotEmpty()) { return false }
+        pendingUploads.remove(messageSendJobID)
+        return true
+    }
+
+    /**
+     * Stops tracking a message send job whose upload failed permanently.
+     */
+    @Synchronized
+    fun handleFailed(messageSendJobID: String) {
+        pendingUploads.remove(messageSendJobID)
+    }
+}
@@ -0,0 +1,154 @@
+package org.session.libsession.messaging.jobs
+
+import org.session.libsignal.utilities.Log
+import java.util.concurrent.Executor
+
+/**
+ * Assigns IDs to jobs and keeps the persisted jobs in sync with the [JobQueue].
+ *
+ * IDs are the time a job was added in microseconds, bumped as needed to keep them unique and
+ * increasing, so they take no bookkeeping beyond the last one handed out.
+ *
+ * Writes are group committed: the jobs added, updated and finished while a write is in flight all
+ * go into the next one, which is a single transaction. A job is only handed to [onPersisted] once
+ * it has been written, so that a job that runs is always one that would be resumed after a restart.
+ * Updates of a job that finishes before they're written are dropped, and jobs that are canceled
+ * before they're written never run.
+ */
+class JobBookkeeper(
+    private val store: Store,
+    private val executor: Executor,
+    private val clock: () -> Long = { System.currentTimeMillis() },
+    private val onPersisted: (Job) -> Unit
+) {
+
+    interface Store {
+        /**
+         * Inserts [added], updates the rows of [updated] that still exist and deletes the rows of
+         * [finishedJobIDs], in a single transaction.
+         */
+        fun persistJobChanges(added: List<Job>, updated: List<Job>, finishedJobIDs: List<String>)
+    }
+
+    companion object {
+        private val TAG = JobBookkeeper::class.simpleName
+        private const val IDS_PER_MILLISECOND = 1000L
+        private const val MILLISECOND_DIGIT_COUNT = 13
+
+        /**
+         * Orders job IDs by when their jobs were added. IDs from before they were in microseconds
+         * are the time in milliseconds followed by a counter, and so are shorter than current ones;
+         * neither sorting them as strings nor as numbers puts them in order. Both kinds of ID start
+         * with the time in milliseconds though, which is followed by a counter that increases
+         * within it.
+         */
+        val idComparator: Comparator<String> = compareBy<String>(
+            { it.take(MILLISECOND_DIGIT_COUNT).toLongOrNull() },
+            { it.drop(MILLISECOND_DIGIT_COUNT).toLongOrNull() }
+        ).thenBy { it }
+    }
+
+    // Guarded by this
+    private var lastID = 0L
+    private var added = mutableListOf<Job>()
+    private var updated = LinkedHashMap<String, Job>()
+    private var finished = LinkedHashSet<String>()
+    private var isFlushScheduled = false
+    // The jobs being written right now, and those of them that were canceled meanwhile
+    private val writing = HashMap<String, Job>()
+    private val canceled = HashSet<String>()
+
+    /**
+     * The number of changes waiting to be written.
+     */
+    val pendingCount: Int
+        @Synchronized get() = added.size + updated.size + finished.size
+
+    @Synchronized
+    fun nextID(): String {
+        lastID = maxOf(clock() * IDS_PER_MILLISECOND, lastID + 1)
+        return lastID.toString()
+    }
+
+    /**
+     * Makes sure IDs handed out from now on sort after the given one, e.g. that of a job that was
+     * persisted before a restart.
+     */
+    @Synchronized
+    fun skipPast(jobID: String) {
+        val id = jobID.toLongOrNull() ?: return
+        lastID = maxOf(lastID, id)
+    }
+
+    fun add(job: Job) {
+        synchronized(this) {
+            job.id = nextID()
+            added.add(job)
+            scheduleFlush()
+        }
+    }
+
+    fun update(job: Job) {
+        val jobID = job.id ?: return
+        synchronized(this) {
+            if (jobID in finished) { return }
+            updated[jobID] = job
+            scheduleFlush()
+        }
+    }
+
+    fun finish(jobID: String) {
+        synchronized(this) {
+            updated.remove(jobID)
+            finished.add(jobID)
+            scheduleFlush()
+        }
+    }
+
+    /**
+     * Cancels the jobs matching [shouldCancel] that haven't been written yet, so that they never
+     * run. Jobs that have been written already have to be canceled in the store.
+     */
+    fun cancel(shouldCancel: (Job) -> Boolean) {
+        synchronized(this) {
+            added.removeAll(shouldCancel)
+            canceled.addAll(writing.filterValues(shouldCancel).keys)
+        }
+    }
+
+    private fun scheduleFlush() {
+        if (isFlushScheduled) { return }
+        isFlushScheduled = true
+        executor.execute { flush() }
+    }
+
+    private fun flush() {
+        val added: List<Job>
+        val updated: List<Job>
+        val finished: List<String>
+        synchronized(this) {
+            added = this.added
+            updated = this.updated.values.toList()
+            finished = this.finished.toList()
+            this.added = mutableListOf()
+            this.updated = LinkedHashMap()
+            this.finished = LinkedHashSet()
+            isFlushScheduled = false
+            added.forEach { writing[it.id!!] = it }
+        }
+        try {
+            store.persistJobChanges(added, updated, finished)
+        } catch (e: Exception) {
+            // Still run the jobs; they just won't be resumed after a restart
+            Log.e(TAG, "Couldn't persist ${added.size + updated.size + finished.size} job changes.", e)
+        }
+        val canceled = synchronized(this) {
+            added.forEach { writing.remove(it.id!!) }
+            added.mapNotNull { job -> job.id!!.takeIf { this.canceled.remove(it) } }.toSet()
+        }
+        added.forEach { job ->
+            // Canceled while they were being written, so their rows have to go again
+            if (job.id!! in canceled) finish(job.id!!) else onPersisted(job)
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.session.libsession.messaging.jobs
+
+import org.session.libsignal.utilities.Log
+import java.util.concurrent.Executor
+
+/**
+ * Runs the jobs of a [JobQueue] lane on up to [concurrency] threads of [executor].
+ *
+ * Jobs are grouped by type. Each type has a [Policy] giving it a priority and a limit on how many
+ * of its jobs may run at once. The next job to run is the oldest job of the highest priority type
+ * that isn't at its limit, and types of the same priority take turns. To keep a steady stream of
+ * high priority jobs from starving the rest, a type that was passed over [maxSkips] times in a row
+ * goes next.
+ */
+class JobLane(
+    val name: String,
+    private val concurrency: Int,
+    private val executor: Executor,
+    private val policies: Map<String, Policy>,
+    private val maxSkips: Int = 8,
+    private val clock: () -> Long = { System.currentTimeMillis() },
+    private val runJob: (Job) -> Unit
+) {
+
+    class Policy(val priority: Int, val maxConcurrent: Int = Int.MAX_VALUE)
+
+    class Metrics(
+        val name: String,
+        /** The number of jobs waiting to run. */
+        val queueDepth: Int,
+        /** The number of jobs running. */
+        val running: Int,
+        /** The number of jobs that were started. */
+        val started: Long,
+        /** The average time the started jobs waited to run. */
+        val averageWaitMillis: Long,
+        /** The longest time a started job waited to run. */
+        val maxWaitMillis: Long
+    ) {
+        override fun toString(): String {
+            return "$name: $queueDepth queued, $running running, $started started, waited ${averageWaitMillis}ms on average and ${maxWaitMillis}ms at most"
+        }
+    }
+
+    private class QueuedJob(val job: Job, val queuedAt: Long)
+
+    private class TypeQueue(val type: String, val policy: Policy) {
+        val jobs = ArrayDeque<QueuedJob>()
+        var running = 0
+        var skips = 0
+        var lastServed = 0L
+    }
+
+    companion object {
+        private val TAG = JobLane::class.simpleName
+        private val defaultPolicy = Policy(0)
+    }
+
+    // Guarded by this
+    private val queues = LinkedHashMap<String, TypeQueue>()
+    private var queueDepth = 0
+    private var running = 0
+    private var started = 0L
+    private var totalWaitMillis = 0L
+    private var maxWaitMillis = 0L
+
+    fun add(job: Job) {
+        synchronized(this) {
+            val type = job.getFactoryKey()
+            val queue = queues.getOrPut(type) { TypeQueue(type, policies[type] ?: defaultPolicy) }
+            queue.jobs.addLast(QueuedJob(job, clock()))
+            queueDepth += 1
+        }
+        dispatch()
+    }
+
+    val metrics: Metrics
+        @Synchronized get() {
+            val averageWaitMillis = if (started > 0) totalWaitMillis / started else 0
+            return Metrics(name, queueDepth, running, started, averageWaitMillis, maxWaitMillis)
+        }
+
+    private fun dispatch() {
+        while (true) {
+            val (queue, queuedJob) = synchronized(this) {
+                if (running >= concurrency) { return }
+                val queue = next() ?: return
+                val queuedJob = queue.jobs.removeFirst()
+                val waitMillis = clock() - queuedJob.queuedAt
+                queueDepth -= 1
+                running += 1
+                queue.running += 1
+                started += 1
+                totalWaitMillis += waitMillis
+                maxWaitMillis = maxOf(maxWaitMillis, waitMillis)
+                queue to queuedJob
+            }
+            executor.execute {
+                try {
+                    runJob(queuedJob.job)
+                } catch (e: Exception) {
+                    Log.e(TAG, "${queue.type} failed on the $name lane.", e)
+                } finally {
+                    synchronized(this) {
+                        running -= 1
+                        queue.running -= 1
+                    }
+                    dispatch()
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the type to run a job of next. Of the types of the same priority, the one that was
+     * served the longest time ago goes first.
+     */
+    private fun next(): TypeQueue? {
+        var next: TypeQueue? = null
+        for (queue in queues.values) {
+            if (!queue.isEligible()) { continue }
+            next = when {
+                next == null -> queue
+                queue.skips >= maxSkips && queue.skips > next.skips -> queue
+                next.skips >= maxSkips -> next
+                queue.policy.priority != next.policy.priority -> if (queue.policy.priority > next.policy.priority) queue else next
+                queue.lastServed < next.lastServed -> queue
+                else -> next
+            }
+        }
+        if (next == null) { return null }
+        for (queue in queues.values) {
+            if (queue !== next && queue.isEligible()) { queue.skips += 1 }
+        }
+        next.skips = 0
+        next.lastServed = started + 1
+        return next
+    }
+
+    private fun TypeQueue.isEligible() = jobs.isNotEmpty() && running < policy.maxConcurrent
+}
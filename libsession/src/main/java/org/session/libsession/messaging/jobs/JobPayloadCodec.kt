@@ -0,0 +1,172 @@
+package org.session.libsession.messaging.jobs
+
+import com.esotericsoftware.kryo.Kryo
+import com.esotericsoftware.kryo.io.Input
+import com.esotericsoftware.kryo.io.Output
+import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy
+import com.esotericsoftware.kryo.util.Pool
+import org.objenesis.strategy.StdInstantiatorStrategy
+import org.session.libsession.messaging.jobs.Job.Companion.MAX_BUFFER_SIZE
+import org.session.libsession.messaging.messages.Destination
+import org.session.libsession.messaging.messages.control.ClosedGroupControlMessage
+import org.session.libsession.messaging.messages.control.ConfigurationMessage
+import org.session.libsession.messaging.messages.control.DataExtractionNotification
+import org.session.libsession.messaging.messages.control.ExpirationTimerUpdate
+import org.session.libsession.messaging.messages.control.ReadReceipt
+import org.session.libsession.messaging.messages.control.TypingIndicator
+import org.session.libsession.messaging.messages.visible.Attachment
+import org.session.libsession.messaging.messages.visible.LinkPreview
+import org.session.libsession.messaging.messages.visible.OpenGroupInvitation
+import org.session.libsession.messaging.messages.visible.Profile
+import org.session.libsession.messaging.messages.visible.Quote
+import org.session.libsession.messaging.messages.visible.VisibleMessage
+import org.session.libsession.snode.SnodeMessage
+
+/**
+ * Serializes the payloads of persisted jobs (messages, destinations, etc.) with Kryo.
+ *
+ * Kryo instances and output buffers are pooled, as setting up a Kryo instance is much more
+ * expensive than the serialization itself. Encoded payloads start with a small header carrying the
+ * format version. Payloads without it were written by the previous ad hoc serialization and are
+ * still decoded.
+ */
+object JobPayloadCodec {
+
+    enum class LegacyFormat {
+        /** The payload was written with `writeClassAndObject`. */
+        CLASS_AND_OBJECT,
+        /** The payload was written with `writeObject`, so the class isn't part of it. */
+        OBJECT
+    }
+
+    private val MAGIC = byteArrayOf(0x53, 0x4A, 0x4F, 0x42) // "SJOB"
+    private const val VERSION: Byte = 1
+    private const val HEADER_SIZE = 5
+
+    private const val POOL_SIZE = 8
+    private const val INITIAL_BUFFER_SIZE = 1024
+    private const val MAX_POOLED_BUFFER_SIZE = 64 * 1024
+
+    /**
+     * Registering classes lets Kryo write a small ID instead of the class name. The IDs depend on the
+     * order below, so classes can only be appended to it. Removing or reordering them requires a new
+     * format version.
+     */
+    private val registeredClasses: List<Class<*>> = listOf(
+        ArrayList::class.java,
+        LinkedHashMap::class.java,
+        ByteArray::class.java,
+        VisibleMessage::class.java,
+        Quote::class.java,
+        LinkPreview::class.java,
+        Profile::class.java,
+        OpenGroupInvitation::class.java,
+        Attachment::class.java,
+        Attachment.Kind::class.java,
+        ClosedGroupControlMessage::class.java,
+        ClosedGroupControlMessage.Kind.New::class.java,
+        ClosedGroupControlMessage.Kind.EncryptionKeyPair::class.java,
+        ClosedGroupControlMessage.Kind.NameChange::class.java,
+        ClosedGroupControlMessage.Kind.MembersAdded::class.java,
+        ClosedGroupControlMessage.Kind.MembersRemoved::class.java,
+        ClosedGroupControlMessage.Kind.MemberLeft::class.java,
+        ClosedGroupControlMessage.KeyPairWrapper::class.java,
+        ConfigurationMessage::class.java,
+        ConfigurationMessage.ClosedGroup::class.java,
+        ConfigurationMessage.Contact::class.java,
+        DataExtractionNotification::class.java,
+        DataExtractionNotification.Kind.Screenshot::class.java,
+        DataExtractionNotification.Kind.MediaSaved::class.java,
+        ExpirationTimerUpdate::class.java,
+        ReadReceipt::class.java,
+        TypingIndicator::class.java,
+        TypingIndicator.Kind::class.java,
+        Destination.Contact::class.java,
+        Destination.ClosedGroup::class.java,
+        Destination.OpenGroupV2::class.java,
+        SnodeMessage::class.java
+    )
+
+    private val codec = Codec(::newKryo)
+
+    fun encode(value: Any): ByteArray = codec.encode(value)
+
+    fun <T> decode(bytes: ByteArray, type: Class<T>, legacyFormat: LegacyFormat = LegacyFormat.CLASS_AND_OBJECT): T {
+        return codec.decode(bytes, type, legacyFormat)
+    }
+
+    internal fun newKryo(): Kryo {
+        val kryo = Kryo()
+        // Classes that aren't listed above are still supported, by name
+        kryo.isRegistrationRequired = false
+        // Fall back on Objenesis for classes without a no-arg constructor (e.g. SnodeMessage)
+        kryo.instantiatorStrategy = DefaultInstantiatorStrategy(StdInstantiatorStrategy())
+        for (registeredClass in registeredClasses) {
+            kryo.register(registeredClass)
+        }
+        return kryo
+    }
+
+    /**
+     * Encodes and decodes payloads with pooled Kryo instances set up by [createKryo].
+     */
+    internal class Codec(private val createKryo: () -> Kryo) {
+
+        private val kryoPool = object : Pool<Kryo>(true, false, POOL_SIZE) {
+
+            override fun create(): Kryo {
+                return createKryo()
+            }
+        }
+
+        private val outputPool = object : Pool<Output>(true, false, POOL_SIZE) {
+
+            override fun create(): Output {
+                return Output(INITIAL_BUFFER_SIZE, MAX_BUFFER_SIZE)
+            }
+        }
+
+        fun encode(value: Any): ByteArray {
+            val kryo = kryoPool.obtain()
+            val output = outputPool.obtain()
+            try {
+                output.reset()
+                output.writeBytes(MAGIC)
+                output.writeByte(VERSION)
+                kryo.writeClassAndObject(output, value)
+                return output.toBytes()
+            } finally {
+                kryoPool.free(kryo)
+                // Don't hold on to the occasional huge buffer
+                if (output.buffer.size <= MAX_POOLED_BUFFER_SIZE) { outputPool.free(output) }
+            }
+        }
+
+        fun <T> decode(bytes: ByteArray, type: Class<T>, legacyFormat: LegacyFormat): T {
+            val kryo = kryoPool.obtain()
+            try {
+                if (!hasHeader(bytes)) {
+                    val input = Input(bytes)
+                    return when (legacyFormat) {
+                        LegacyFormat.CLASS_AND_OBJECT -> type.cast(kryo.readClassAndObject(input))!!
+                        LegacyFormat.OBJECT -> kryo.readObject(input, type)
+                    }
+                }
+                val version = bytes[MAGIC.size]
+                if (version != VERSION) { throw IllegalArgumentException("Unsupported job payload version: $version.") }
+                val input = Input(bytes, HEADER_SIZE, bytes.size - HEADER_SIZE)
+                return type.cast(kryo.readClassAndObject(input))!!
+            } finally {
+                kryoPool.free(kryo)
+            }
+        }
+    }
+
+    private fun hasHeader(bytes: ByteArray): Boolean {
+        if (bytes.size < HEADER_SIZE) { return false }
+        for (index in MAGIC.indices) {
+            if (bytes[index] != MAGIC[index]) { return false }
+        }
+        return true
+    }
+}
@@ -1,15 +1,10 @@
 package org.session.libsession.messaging.jobs
 
-import kotlinx.coroutines.*
-import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.channels.Channel.Factory.UNLIMITED
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsignal.utilities.Log
 import java.lang.IllegalStateException
 import java.util.*
-import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.Executors
-import java.util.concurrent.atomic.AtomicInteger
 import kotlin.concurrent.schedule
 import kotlin.math.min
 import kotlin.math.pow
@@ -17,73 +12,79 @@ import kotlin.math.roundToLong
 
 class JobQueue : JobDelegate {
     private var hasResumedPendingJobs = false // Just for debugging
-    private val jobTimestampMap = ConcurrentHashMap<Long, AtomicInteger>()
-    private val rxDispatcher = Executors.newSingleThreadExecutor().asCoroutineDispatcher()
-    private val txDispatcher = Executors.newSingleThreadExecutor().asCoroutineDispatcher()
-    private val attachmentDispatcher = Executors.newFixedThreadPool(2).asCoroutineDispatcher()
-    private val scope = GlobalScope + SupervisorJob()
-    private val queue = Channel<Job>(UNLIMITED)
+    private val bookkeeper = JobBookkeeper(object : JobBookkeeper.Store {
 
-    val timer = Timer()
-
-    private fun CoroutineScope.processWithDispatcher(channel: Channel<Job>, dispatcher: CoroutineDispatcher) = launch(dispatcher) {
-        for (job in channel) {
-            if (!isActive) break
-            job.delegate = this@JobQueue
-            job.execute()
+        override fun persistJobChanges(added: List<Job>, updated: List<Job>, finishedJobIDs: List<String>) {
+            MessagingModuleConfiguration.shared.storage.persistJobChanges(added, updated, finishedJobIDs)
         }
-    }
-
-    init {
-        // Process jobs
-        scope.launch {
-            val rxQueue = Channel<Job>(capacity = 4096)
-            val txQueue = Channel<Job>(capacity = 4096)
-            val attachmentQueue = Channel<Job>(capacity = 4096)
-
-            val receiveJob = processWithDispatcher(rxQueue, rxDispatcher)
-            val txJob = processWithDispatcher(txQueue, txDispatcher)
-            val attachmentJob = processWithDispatcher(attachmentQueue, attachmentDispatcher)
-
-            while (isActive) {
-                for (job in queue) {
-                    when (job) {
-                        is NotifyPNServerJob, is AttachmentUploadJob, is MessageSendJob -> txQueue.send(job)
-                        is AttachmentDownloadJob -> attachmentQueue.send(job)
-                        is MessageReceiveJob, is TrimThreadJob -> rxQueue.send(job)
-                        else -> throw IllegalStateException("Unexpected job type.")
-                    }
-                }
-            }
+    }, Executors.newSingleThreadExecutor(), onPersisted = ::schedule)
+
+    private val rxLane = JobLane("rx", 1, Executors.newSingleThreadExecutor(), mapOf(
+        MessageReceiveJob.KEY to JobLane.Policy(PRIORITY_HIGH),
+        TrimThreadJob.KEY to JobLane.Policy(PRIORITY_LOW)
+    ), runJob = ::execute)
+    // Message sends stay one at a time so that messages go out in the order they were sent in, but
+    // a backlog of push notification registrations can no longer hold them up
+    private val txLane = JobLane("tx", 2, Executors.newFixedThreadPool(2), mapOf(
+        MessageSendJob.KEY to JobLane.Policy(PRIORITY_HIGH, maxConcurrent = 1),
+        NotifyPNServerJob.KEY to JobLane.Policy(PRIORITY_LOW, maxConcurrent = 1)
+    ), runJob = ::execute)
+    // Uploads block their thread until they're done, so each one gets its own thread
+    private val uploadLane = JobLane("upload", MAX_CONCURRENT_UPLOADS, Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS), mapOf(
+        AttachmentUploadJob.KEY to JobLane.Policy(PRIORITY_HIGH)
+    ), runJob = ::execute)
+    private val downloadLane = JobLane("download", MAX_CONCURRENT_DOWNLOADS, Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS), mapOf(
+        AttachmentDownloadJob.KEY to JobLane.Policy(PRIORITY_HIGH)
+    ), runJob = ::execute)
 
-            // The job has been cancelled
-            receiveJob.cancel()
-            txJob.cancel()
-            attachmentJob.cancel()
+    val timer = Timer()
+    val attachmentUploadTracker = AttachmentUploadTracker()
 
-        }
-    }
+    /**
+     * The queue depth and wait times of each lane, for debugging.
+     */
+    val laneMetrics: List<JobLane.Metrics>
+        get() = listOf(rxLane, txLane, uploadLane, downloadLane).map { it.metrics }
 
     companion object {
+        private const val MAX_CONCURRENT_UPLOADS = 3
+        private const val MAX_CONCURRENT_DOWNLOADS = 2
+        private const val PRIORITY_HIGH = 1
+        private const val PRIORITY_LOW = 0
 
         @JvmStatic
         val shared: JobQueue by lazy { JobQueue() }
     }
 
+    private fun execute(job: Job) {
+        job.delegate = this
+        job.execute()
+    }
+
+    private fun schedule(job: Job) {
+        val lane = when (job) {
+            is NotifyPNServerJob, is MessageSendJob -> txLane
+            is AttachmentUploadJob -> uploadLane
+            is AttachmentDownloadJob -> downloadLane
+            is MessageReceiveJob, is TrimThreadJob -> rxLane
+            else -> throw IllegalStateException("Unexpected job type.")
+        }
+        lane.add(job)
+    }
+
+    /**
+     * Persists the job and then runs it.
+     */
     fun add(job: Job) {
-        addWithoutExecuting(job)
-        queue.offer(job) // offer always called on unlimited capacity
+        bookkeeper.add(job)
     }
 
-    private fun addWithoutExecuting(job: Job) {
-        // When adding multiple jobs in rapid succession, timestamps might not be good enough as a unique ID. To
-        // deal with this we keep track of the number of jobs with a given timestamp and add that to the end of the
-        // timestamp to make it a unique ID. We can't use a random number because we do still want to keep track
-        // of the order in which the jobs were added.
-        val currentTime = System.currentTimeMillis()
-        jobTimestampMap.putIfAbsent(currentTime, AtomicInteger())
-        job.id = currentTime.toString() + jobTimestampMap[currentTime]!!.getAndIncrement().toString()
-        MessagingModuleConfiguration.shared.storage.persistJob(job)
+    /**
+     * Queues a job that was added before and is still persisted, e.g. one that was waiting for
+     * something else to finish, without giving it a new ID.
+     */
+    fun resume(job: Job) {
+        schedule(job)
     }
 
     fun resumePendingJobs() {
@@ -103,6 +104,7 @@ class JobQueue : JobDelegate {
             val allPendingJobs = MessagingModuleConfiguration.shared.storage.getAllPendingJobs(type)
             val pendingJobs = mutableListOf<Job>()
             for ((id, job) in allPendingJobs) {
+                bookkeeper.skipPast(id)
                 if (job == null) {
                     // Job failed to deserialize, remove it from the DB
                     handleJobFailedPermanently(id)
@@ -110,16 +112,30 @@ class JobQueue : JobDelegate {
                     pendingJobs.add(job)
                 }
             }
-            pendingJobs.sortedBy { it.id }.forEach { job ->
+            pendingJobs.sortedWith(compareBy(JobBookkeeper.idComparator) { it.id!! }).forEach { job ->
                 Log.i("Loki", "Resuming pending job of type: ${job::class.simpleName}.")
-                queue.offer(job) // Offer always called on unlimited capacity
+                schedule(job)
+            }
+        }
+    }
+
+    /**
+     * Cancels the message send and attachment upload jobs of the given thread that haven't been
+     * persisted yet. Those that have been are canceled by deleting them from the database.
+     */
+    fun cancelPendingMessageSendJobs(threadID: Long) {
+        bookkeeper.cancel { job ->
+            when (job) {
+                is MessageSendJob -> job.message.threadID == threadID
+                is AttachmentUploadJob -> job.threadID.toLongOrNull() == threadID
+                else -> false
             }
         }
     }
 
     override fun handleJobSucceeded(job: Job) {
         val jobId = job.id ?: return
-        MessagingModuleConfiguration.shared.storage.markJobAsSucceeded(jobId)
+        bookkeeper.finish(jobId)
     }
 
     override fun handleJobFailed(job: Job, error: Exception) {
@@ -138,12 +154,12 @@ class JobQueue : JobDelegate {
         if (job.failureCount >= job.maxFailureCount) {
             handleJobFailedPermanently(job, error)
         } else {
-            storage.persistJob(job)
+            bookkeeper.update(job)
             val retryInterval = getRetryInterval(job)
             Log.i("Loki", "${job::class.simpleName} failed; scheduling retry (failure count is ${job.failureCount}).")
             timer.schedule(delay = retryInterval) {
                 Log.i("Loki", "Retrying ${job::class.simpleName}.")
-                queue.offer(job)
+                schedule(job)
             }
         }
     }
@@ -154,8 +170,7 @@ class JobQueue : JobDelegate {
     }
 
     private fun handleJobFailedPermanently(jobId: String) {
-        val storage = MessagingModuleConfiguration.shared.storage
-        storage.markJobAsFailedPermanently(jobId)
+        bookkeeper.finish(jobId)
     }
 
     private fun getRetryInterval(job: Job): Long {
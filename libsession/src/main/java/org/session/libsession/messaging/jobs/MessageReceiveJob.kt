@@ -17,7 +17,7 @@ class MessageReceiveJob(val data: ByteArray, val openGroupMessageServerID: Long?
         val TAG = MessageReceiveJob::class.simpleName
         val KEY: String = "MessageReceiveJob"
 
-        private val RECEIVE_LOCK = Object()
+        internal val RECEIVE_LOCK = Object()
 
         // Keys used for database storage
         private val DATA_KEY = "data"
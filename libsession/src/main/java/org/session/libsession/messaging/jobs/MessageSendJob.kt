@@ -1,10 +1,6 @@
 package org.session.libsession.messaging.jobs
 
-import com.esotericsoftware.kryo.Kryo
-import com.esotericsoftware.kryo.io.Input
-import com.esotericsoftware.kryo.io.Output
 import org.session.libsession.messaging.MessagingModuleConfiguration
-import org.session.libsession.messaging.jobs.Job.Companion.MAX_BUFFER_SIZE
 import org.session.libsession.messaging.messages.Destination
 import org.session.libsession.messaging.messages.Message
 import org.session.libsession.messaging.messages.visible.VisibleMessage
@@ -42,6 +38,8 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
             message.linkPreview?.let { it.attachmentID?.let { attachmentID -> attachmentIDs.add(attachmentID) } }
             val attachments = attachmentIDs.mapNotNull { messageDataProvider.getDatabaseAttachment(it) }
             val attachmentsToUpload = attachments.filter { it.url.isNullOrEmpty() }
+            // Start tracking before any upload can finish, so that the last one resumes this job
+            JobQueue.shared.attachmentUploadTracker.await(id!!, attachmentsToUpload.map { it.attachmentId.rowId })
             attachmentsToUpload.forEach {
                 if (MessagingModuleConfiguration.shared.storage.getAttachmentUploadJob(it.attachmentId.rowId) != null) {
                     // Wait for it to finish
@@ -86,19 +84,8 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
     }
 
     override fun serialize(): Data {
-        val kryo = Kryo()
-        kryo.isRegistrationRequired = false
-        // Message
-        val messageOutput = Output(ByteArray(4096), MAX_BUFFER_SIZE)
-        kryo.writeClassAndObject(messageOutput, message)
-        messageOutput.close()
-        val serializedMessage = messageOutput.toBytes()
-        // Destination
-        val destinationOutput = Output(ByteArray(4096), MAX_BUFFER_SIZE)
-        kryo.writeClassAndObject(destinationOutput, destination)
-        destinationOutput.close()
-        val serializedDestination = destinationOutput.toBytes()
-        // Serialize
+        val serializedMessage = JobPayloadCodec.encode(message)
+        val serializedDestination = JobPayloadCodec.encode(destination)
         return Data.Builder()
             .putByteArray(MESSAGE_KEY, serializedMessage)
             .putByteArray(DESTINATION_KEY, serializedDestination)
@@ -114,29 +101,15 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
         override fun create(data: Data): MessageSendJob? {
             val serializedMessage = data.getByteArray(MESSAGE_KEY)
             val serializedDestination = data.getByteArray(DESTINATION_KEY)
-            val kryo = Kryo()
-            kryo.isRegistrationRequired = false
-            // Message
-            val messageInput = Input(serializedMessage)
             val message: Message
-            try {
-                message = kryo.readClassAndObject(messageInput) as Message
-            } catch (e: Exception) {
-                Log.e("Loki", "Couldn't deserialize message send job.", e)
-                return null
-            }
-            messageInput.close()
-            // Destination
-            val destinationInput = Input(serializedDestination)
             val destination: Destination
             try {
-                destination = kryo.readClassAndObject(destinationInput) as Destination
+                message = JobPayloadCodec.decode(serializedMessage, Message::class.java)
+                destination = JobPayloadCodec.decode(serializedDestination, Destination::class.java)
             } catch (e: Exception) {
                 Log.e("Loki", "Couldn't deserialize message send job.", e)
                 return null
             }
-            destinationInput.close()
-            // Return
             return MessageSendJob(message, destination)
         }
     }
@@ -1,8 +1,5 @@
 package org.session.libsession.messaging.jobs
 
-import com.esotericsoftware.kryo.Kryo
-import com.esotericsoftware.kryo.io.Input
-import com.esotericsoftware.kryo.io.Output
 import nl.komponents.kovenant.functional.map
 import okhttp3.MediaType
 import okhttp3.Request
@@ -61,12 +58,7 @@ class NotifyPNServerJob(val message: SnodeMessage) : Job {
     }
 
     override fun serialize(): Data {
-        val kryo = Kryo()
-        kryo.isRegistrationRequired = false
-        val serializedMessage = ByteArray(4096)
-        val output = Output(serializedMessage)
-        kryo.writeObject(output, message)
-        output.close()
+        val serializedMessage = JobPayloadCodec.encode(message)
         return Data.Builder()
             .putByteArray(MESSAGE_KEY, serializedMessage)
             .build();
@@ -80,11 +72,7 @@ class NotifyPNServerJob(val message: SnodeMessage) : Job {
 
         override fun create(data: Data): NotifyPNServerJob {
             val serializedMessage = data.getByteArray(MESSAGE_KEY)
-            val kryo = Kryo()
-            kryo.isRegistrationRequired = false
-            val input = Input(serializedMessage)
-            val message = kryo.readObject(input, SnodeMessage::class.java)
-            input.close()
+            val message = JobPayloadCodec.decode(serializedMessage, SnodeMessage::class.java, JobPayloadCodec.LegacyFormat.OBJECT)
             return NotifyPNServerJob(message)
         }
     }
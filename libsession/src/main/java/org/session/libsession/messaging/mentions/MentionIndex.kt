@@ -0,0 +1,123 @@
+package org.session.libsession.messaging.mentions
+
+import org.session.libsession.messaging.contacts.Contact
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListMap
+
+/**
+ * The mention candidates of a single thread, indexed for prefix search over their display names.
+ *
+ * Every word of a display name is indexed along with the rest of the name that follows it, so that
+ * "@jo" finds both "John Smith" and "Mary Jones". Lookups don't lock; updates are serialized.
+ */
+class MentionIndex {
+
+    private class Entry(val publicKey: String, val name: String, val openGroupName: String) {
+        val sortKey = name.toLowerCase() + SEPARATOR + publicKey
+    }
+
+    private class Hit(val entry: Entry, val wordIndex: Int)
+
+    private val participants: MutableSet<String> = Collections.newSetFromMap(ConcurrentHashMap())
+    private val entries = ConcurrentHashMap<String, Entry>()
+    private val entriesByName = ConcurrentSkipListMap<String, Entry>()
+    private val hitsByPrefix = ConcurrentSkipListMap<String, Hit>()
+
+    /**
+     * The public keys of everyone in the thread, whether they have a display name or not.
+     */
+    val publicKeys: Set<String> get() = Collections.unmodifiableSet(participants)
+
+    operator fun contains(publicKey: String): Boolean = participants.contains(publicKey)
+
+    /**
+     * Adds the given participants. Those without a known display name can't be mentioned until
+     * their contact gets updated.
+     */
+    @Synchronized
+    fun addAll(publicKeys: Collection<String>, contacts: Map<String, Contact>) {
+        for (publicKey in publicKeys) {
+            participants.add(publicKey)
+            contacts[publicKey]?.let { index(publicKey, it) }
+        }
+    }
+
+    @Synchronized
+    fun add(publicKey: String, contact: Contact?) {
+        participants.add(publicKey)
+        if (contact != null) { index(publicKey, contact) }
+    }
+
+    /**
+     * Re-indexes the given contact if it's a participant of this thread.
+     */
+    @Synchronized
+    fun update(contact: Contact) {
+        if (contains(contact.sessionID)) { index(contact.sessionID, contact) }
+    }
+
+    /**
+     * Returns the candidates whose display name has a word starting with `query`. Names starting
+     * with the query come first, then the ones where it matches a later word, then alphabetically.
+     * Queries shorter than [MIN_QUERY_LENGTH] return every candidate alphabetically.
+     */
+    fun search(query: String, isOpenGroup: Boolean, excludedPublicKey: String? = null): List<Mention> {
+        val normalizedQuery = query.trim().toLowerCase()
+        if (normalizedQuery.length < MIN_QUERY_LENGTH) {
+            return entriesByName.values.filter { it.publicKey != excludedPublicKey }.map { it.toMention(isOpenGroup) }
+        }
+        val bestHits = LinkedHashMap<String, Hit>()
+        for (hit in hitsByPrefix.subMap(normalizedQuery, true, normalizedQuery + Char.MAX_VALUE, false).values) {
+            if (hit.entry.publicKey == excludedPublicKey) { continue }
+            val current = bestHits[hit.entry.publicKey]
+            if (current == null || hit.wordIndex < current.wordIndex) { bestHits[hit.entry.publicKey] = hit }
+        }
+        return bestHits.values
+            .sortedWith(compareBy<Hit> { it.wordIndex }.thenBy { it.entry.sortKey })
+            .map { it.entry.toMention(isOpenGroup) }
+    }
+
+    private fun index(publicKey: String, contact: Contact) {
+        unindex(publicKey)
+        val name = contact.displayName(Contact.ContactContext.REGULAR)
+        val openGroupName = contact.displayName(Contact.ContactContext.OPEN_GROUP)
+        if (name.isNullOrBlank() || openGroupName == null) { return }
+        val entry = Entry(publicKey, name, openGroupName)
+        entries[publicKey] = entry
+        entriesByName[entry.sortKey] = entry
+        for ((wordIndex, suffix) in wordSuffixes(name.toLowerCase()).withIndex()) {
+            hitsByPrefix[suffix + SEPARATOR + publicKey] = Hit(entry, wordIndex)
+        }
+    }
+
+    private fun unindex(publicKey: String) {
+        val entry = entries.remove(publicKey) ?: return
+        entriesByName.remove(entry.sortKey)
+        for (suffix in wordSuffixes(entry.name.toLowerCase())) {
+            hitsByPrefix.remove(suffix + SEPARATOR + publicKey)
+        }
+    }
+
+    private fun Entry.toMention(isOpenGroup: Boolean) = Mention(publicKey, if (isOpenGroup) openGroupName else name)
+
+    companion object {
+        const val MIN_QUERY_LENGTH = 2
+        private const val SEPARATOR = '\u0000'
+
+        /**
+         * "mary jane smith" gives "mary jane smith", "jane smith" and "smith".
+         */
+        internal fun wordSuffixes(name: String): List<String> {
+            val result = mutableListOf<String>()
+            var index = 0
+            while (index < name.length) {
+                while (index < name.length && name[index].isWhitespace()) { index++ }
+                if (index == name.length) { break }
+                result.add(name.substring(index).trimEnd())
+                while (index < name.length && !name[index].isWhitespace()) { index++ }
+            }
+            return result
+        }
+    }
+}
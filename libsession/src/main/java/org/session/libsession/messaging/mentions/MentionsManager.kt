@@ -2,41 +2,52 @@ package org.session.libsession.messaging.mentions
 
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.contacts.Contact
+import java.util.concurrent.ConcurrentHashMap
 
 object MentionsManager {
-    var userPublicKeyCache = mutableMapOf<Long, Set<String>>() // Thread ID to set of user hex encoded public keys
+    private val indexes = ConcurrentHashMap<Long, MentionIndex>() // Thread ID to mention index
+
+    fun isIndexed(threadID: Long): Boolean {
+        return indexes.containsKey(threadID)
+    }
+
+    /**
+     * Returns the hex encoded public keys of the known participants of the given thread.
+     */
+    fun getParticipants(threadID: Long): Set<String>? {
+        return indexes[threadID]?.publicKeys
+    }
+
+    /**
+     * Replaces the participants of the given thread. Their contacts are loaded with a single batched lookup.
+     */
+    fun setParticipants(threadID: Long, publicKeys: Collection<String>) {
+        val storage = MessagingModuleConfiguration.shared.storage
+        val contacts = storage.getContactsWithSessionIDs(publicKeys).associateBy { it.sessionID }
+        val index = MentionIndex()
+        index.addAll(publicKeys, contacts)
+        indexes[threadID] = index
+    }
 
     fun cache(publicKey: String, threadID: Long) {
-        val cache = userPublicKeyCache[threadID]
-        if (cache != null) {
-            userPublicKeyCache[threadID] = cache.plus(publicKey)
-        } else {
-            userPublicKeyCache[threadID] = setOf( publicKey )
+        val index = indexes[threadID] ?: indexes.putIfAbsent(threadID, MentionIndex()) ?: indexes[threadID]!!
+        if (index.contains(publicKey)) { return }
+        val contact = MessagingModuleConfiguration.shared.storage.getContactWithSessionID(publicKey)
+        index.add(publicKey, contact)
+    }
+
+    /**
+     * Keeps the display names of the indexed participants up to date. Should be called whenever a contact is saved.
+     */
+    fun onContactUpdated(contact: Contact) {
+        for (index in indexes.values) {
+            index.update(contact)
         }
     }
 
     fun getMentionCandidates(query: String, threadID: Long, isOpenGroup: Boolean): List<Mention> {
-        val cache = userPublicKeyCache[threadID] ?: return listOf()
-        // Prepare
-        val context = if (isOpenGroup) Contact.ContactContext.OPEN_GROUP else Contact.ContactContext.REGULAR
-        val storage = MessagingModuleConfiguration.shared.storage
-        val userPublicKey = storage.getUserPublicKey()
-        // Gather candidates
-        var candidates: List<Mention> = cache.mapNotNull { publicKey ->
-            val contact = storage.getContactWithSessionID(publicKey)
-            val displayName = contact?.displayName(context) ?: return@mapNotNull null
-            Mention(publicKey, displayName)
-        }
-        candidates = candidates.filter { it.publicKey != userPublicKey }
-        // Sort alphabetically first
-        candidates.sortedBy { it.displayName }
-        if (query.length >= 2) {
-            // Filter out any non-matching candidates
-            candidates = candidates.filter { it.displayName.toLowerCase().contains(query.toLowerCase()) }
-            // Sort based on where in the candidate the query occurs
-            candidates.sortedBy { it.displayName.toLowerCase().indexOf(query.toLowerCase()) }
-        }
-        // Return
-        return candidates
+        val index = indexes[threadID] ?: return listOf()
+        val userPublicKey = MessagingModuleConfiguration.shared.storage.getUserPublicKey()
+        return index.search(query, isOpenGroup, userPublicKey)
     }
 }
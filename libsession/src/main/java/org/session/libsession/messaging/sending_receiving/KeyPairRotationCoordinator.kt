@@ -0,0 +1,114 @@
+package org.session.libsession.messaging.sending_receiving
+
+import nl.komponents.kovenant.Deferred
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Serializes the encryption key pair rotations of each closed group without blocking the callers.
+ *
+ * At most one rotation runs per group at any time. Requests made while a rotation is in flight are
+ * coalesced into a single follow-up rotation targeting the most recently requested members, so a burst
+ * of member removals results in at most two new key pairs rather than one per removal. The promise
+ * returned for a request resolves once a rotation that started after it has completed.
+ */
+class KeyPairRotationCoordinator(
+    private val executor: Executor,
+    private val rotate: (groupPublicKey: String, targetMembers: Collection<String>) -> Promise<Unit, Exception>
+) {
+
+    private class State {
+        var isRotating = false
+        var targetMembers: Collection<String>? = null
+        val waiting = mutableListOf<Deferred<Unit, Exception>>()
+    }
+
+    private val states = HashMap<String, State>() // Group public key to rotation state, guarded by this
+
+    fun requestRotation(groupPublicKey: String, targetMembers: Collection<String>): Promise<Unit, Exception> {
+        val deferred = deferred<Unit, Exception>()
+        val shouldStart = synchronized(this) {
+            val state = states.getOrPut(groupPublicKey) { State() }
+            state.targetMembers = targetMembers
+            state.waiting.add(deferred)
+            val shouldStart = !state.isRotating
+            state.isRotating = true
+            shouldStart
+        }
+        if (shouldStart) { executor.execute { rotateNext(groupPublicKey) } }
+        return deferred.promise
+    }
+
+    private fun rotateNext(groupPublicKey: String) {
+        val targetMembers: Collection<String>
+        val waiting: List<Deferred<Unit, Exception>>
+        synchronized(this) {
+            val state = states.getValue(groupPublicKey)
+            targetMembers = state.targetMembers ?: run {
+                states.remove(groupPublicKey)
+                return
+            }
+            waiting = state.waiting.toList()
+            state.targetMembers = null
+            state.waiting.clear()
+        }
+        val promise = try {
+            rotate(groupPublicKey, targetMembers)
+        } catch (e: Exception) {
+            Promise.ofFail<Unit, Exception>(e)
+        }
+        promise.success {
+            waiting.forEach { it.resolve(Unit) }
+        }.fail { exception ->
+            waiting.forEach { it.reject(exception) }
+        }.always {
+            executor.execute { rotateNext(groupPublicKey) }
+        }
+    }
+
+    companion object {
+        private const val MAX_ENCRYPTION_THREADS = 4
+
+        /**
+         * Shared by all groups so that rotations can't take more than a few cores between them.
+         */
+        val encryptionExecutor: ExecutorService by lazy {
+            val threadCount = Runtime.getRuntime().availableProcessors().coerceIn(1, MAX_ENCRYPTION_THREADS)
+            val executor = ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, LinkedBlockingQueue())
+            executor.allowCoreThreadTimeOut(true)
+            executor
+        }
+
+        /**
+         * Encrypts `plaintext` for each of the given public keys, splitting the work over `executor`.
+         * The results are in the same order as `publicKeys`.
+         */
+        fun encryptForEach(plaintext: ByteArray, publicKeys: Collection<String>, executor: ExecutorService,
+            parallelism: Int, encrypt: (ByteArray, String) -> ByteArray): List<ByteArray> {
+            if (publicKeys.size <= 1 || parallelism <= 1) { return publicKeys.map { encrypt(plaintext, it) } }
+            val chunkSize = (publicKeys.size + parallelism - 1) / parallelism
+            val tasks = publicKeys.chunked(chunkSize).map { chunk ->
+                Callable { chunk.map { encrypt(plaintext, it) } }
+            }
+            return executor.invokeAll(tasks).flatMap { future ->
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause as? Exception ?: e
+                }
+            }
+        }
+
+        fun encryptForEach(plaintext: ByteArray, publicKeys: Collection<String>, encrypt: (ByteArray, String) -> ByteArray): List<ByteArray> {
+            val parallelism = Runtime.getRuntime().availableProcessors().coerceIn(1, MAX_ENCRYPTION_THREADS)
+            return encryptForEach(plaintext, publicKeys, encryptionExecutor, parallelism, encrypt)
+        }
+    }
+}
@@ -5,6 +5,7 @@ package org.session.libsession.messaging.sending_receiving
 import com.google.protobuf.ByteString
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.deferred
+import nl.komponents.kovenant.functional.map
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.messages.control.ClosedGroupControlMessage
 import org.session.libsession.messaging.sending_receiving.MessageSender.Error
@@ -30,6 +31,10 @@ const val groupSizeLimit = 100
 
 val pendingKeyPairs = ConcurrentHashMap<String, Optional<ECKeyPair>>()
 
+private val keyPairRotationCoordinator = KeyPairRotationCoordinator(ThreadUtils.executorPool) { groupPublicKey, targetMembers ->
+    MessageSender.rotateEncryptionKeyPair(groupPublicKey, targetMembers)
+}
+
 fun MessageSender.create(name: String, members: Collection<String>): Promise<String, Exception> {
     val deferred = deferred<String, Exception>()
     ThreadUtils.queue {
@@ -262,18 +267,27 @@ fun MessageSender.generateAndSendNewEncryptionKeyPair(groupPublicKey: String, ta
         Log.d("Loki", "Can't distribute new encryption key pair as non-admin.")
         throw Error.InvalidClosedGroupUpdate
     }
-    // Generate the new encryption key pair
-    val newKeyPair = Curve.generateKeyPair()
-    // Replace call will not succeed if no value already set
-    pendingKeyPairs.putIfAbsent(groupPublicKey,Optional.absent())
-    do {
-        // Make sure we set the pending key pair or wait until it is not null
-    } while (!pendingKeyPairs.replace(groupPublicKey,Optional.absent(),Optional.fromNullable(newKeyPair)))
-    // Distribute it
-    sendEncryptionKeyPair(groupPublicKey, newKeyPair, targetMembers)?.success {
+    // Publish the new key pair right away, so that it's the one sent to members added in the meantime
+    pendingKeyPairs[groupPublicKey] = Optional.of(Curve.generateKeyPair())
+    // Rotations of the same group are queued up rather than waited for
+    keyPairRotationCoordinator.requestRotation(groupPublicKey, targetMembers).fail { exception ->
+        Log.e("Loki", "Couldn't distribute new encryption key pair.", exception)
+    }
+}
+
+private fun MessageSender.rotateEncryptionKeyPair(groupPublicKey: String, targetMembers: Collection<String>): Promise<Unit, Exception> {
+    val storage = MessagingModuleConfiguration.shared.storage
+    // Distribute the key pair published by the latest request, as this rotation also covers the requests made while
+    // the previous one was running
+    val newKeyPair = pendingKeyPairs[groupPublicKey]?.orNull() ?: Curve.generateKeyPair().also {
+        pendingKeyPairs[groupPublicKey] = Optional.of(it)
+    }
+    val pendingKeyPair = Optional.of(newKeyPair)
+    return sendEncryptionKeyPair(groupPublicKey, newKeyPair, targetMembers)!!.map {
         // Store it * after * having sent out the message to the group
         storage.addClosedGroupEncryptionKeyPair(newKeyPair, groupPublicKey)
-        pendingKeyPairs[groupPublicKey] = Optional.absent()
+    }.always {
+        pendingKeyPairs.remove(groupPublicKey, pendingKeyPair)
     }
 }
 
@@ -283,8 +297,10 @@ fun MessageSender.sendEncryptionKeyPair(groupPublicKey: String, newKeyPair: ECKe
     proto.publicKey = ByteString.copyFrom(newKeyPair.publicKey.serialize().removing05PrefixIfNeeded())
     proto.privateKey = ByteString.copyFrom(newKeyPair.privateKey.serialize())
     val plaintext = proto.build().toByteArray()
-    val wrappers = targetMembers.map { publicKey ->
-        val ciphertext = MessageEncrypter.encrypt(plaintext, publicKey)
+    val ciphertexts = KeyPairRotationCoordinator.encryptForEach(plaintext, targetMembers) { plaintext, publicKey ->
+        MessageEncrypter.encrypt(plaintext, publicKey)
+    }
+    val wrappers = targetMembers.zip(ciphertexts) { publicKey, ciphertext ->
         ClosedGroupControlMessage.KeyPairWrapper(publicKey, ByteString.copyFrom(ciphertext))
     }
     val kind = ClosedGroupControlMessage.Kind.EncryptionKeyPair(ByteString.copyFrom(Hex.fromStringCondensed(groupPublicKey)), wrappers)
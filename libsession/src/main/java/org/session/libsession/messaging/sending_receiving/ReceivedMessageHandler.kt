@@ -148,7 +148,39 @@ private fun handleConfigurationMessage(message: ConfigurationMessage) {
 //endregion
 
 // region Visible Messages
-fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalServiceProtos.Content, openGroupID: String?) {
+/**
+ * Handles messages polled from an open group in a single transaction. The thread and its notification are updated
+ * once for the whole batch, and attachment downloads are only scheduled once the batch has been committed. Messages
+ * that turn out to be duplicates are skipped; any other failure rolls back the whole batch.
+ */
+fun MessageReceiver.handleOpenGroupMessages(messages: List<Pair<Message, SignalServiceProtos.Content>>, openGroupID: String) {
+    val storage = MessagingModuleConfiguration.shared.storage
+    val context = MessagingModuleConfiguration.shared.context
+    val downloadJobs = mutableListOf<AttachmentDownloadJob>()
+    val threadIDs = mutableSetOf<Long>()
+    storage.persistInBatch {
+        for ((message, proto) in messages) {
+            if (message !is VisibleMessage) {
+                handle(message, proto, openGroupID)
+                continue
+            }
+            try {
+                threadIDs.add(handleVisibleMessage(message, proto, openGroupID, downloadJobs))
+            } catch (e: MessageReceiver.Error.DuplicateMessage) {
+                Log.d("Loki", "Skipping duplicate open group message.")
+            }
+        }
+    }
+    downloadJobs.forEach { JobQueue.shared.add(it) }
+    threadIDs.forEach { SSKEnvironment.shared.notificationManager.updateNotification(context, it) }
+}
+
+/**
+ * Returns the ID of the thread the message was added to. If `deferredDownloadJobs` is provided, attachment downloads
+ * are added to it instead of being scheduled, and the notification isn't updated.
+ */
+fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalServiceProtos.Content, openGroupID: String?,
+                                         deferredDownloadJobs: MutableList<AttachmentDownloadJob>? = null): Long {
     val storage = MessagingModuleConfiguration.shared.storage
     val context = MessagingModuleConfiguration.shared.context
     val userPublicKey = storage.getUserPublicKey()
@@ -224,7 +256,11 @@ fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalS
     storage.getAttachmentsForMessage(messageID).forEach { attachment ->
         attachment.attachmentId?.let { id ->
             val downloadJob = AttachmentDownloadJob(id.rowId, messageID)
-            JobQueue.shared.add(downloadJob)
+            if (deferredDownloadJobs != null) {
+                deferredDownloadJobs.add(downloadJob)
+            } else {
+                JobQueue.shared.add(downloadJob)
+            }
         }
     }
     val openGroupServerID = message.openGroupServerMessageID
@@ -235,7 +271,10 @@ fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalS
     // Cancel any typing indicators if needed
     cancelTypingIndicatorsIfNeeded(message.sender!!)
     // Notify the user if needed
-    SSKEnvironment.shared.notificationManager.updateNotification(context, threadID)
+    if (deferredDownloadJobs == null) {
+        SSKEnvironment.shared.notificationManager.updateNotification(context, threadID)
+    }
+    return threadID
 }
 //endregion
 
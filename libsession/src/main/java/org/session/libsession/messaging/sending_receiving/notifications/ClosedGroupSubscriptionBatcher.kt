@@ -0,0 +1,179 @@
+package org.session.libsession.messaging.sending_receiving.notifications
+
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.all
+import nl.komponents.kovenant.functional.bind
+import org.session.libsession.messaging.sending_receiving.notifications.PushNotificationAPI.ClosedGroupOperation
+import org.session.libsignal.utilities.Log
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Coalesces closed group push notification subscriptions into batched requests.
+ *
+ * Operations are collected for a short window before being sent together. Only the latest operation
+ * for a given closed group and public key is kept, so subscribing and then unsubscribing within the
+ * window only sends the unsubscription. Pending operations are persisted until the server
+ * acknowledges them, and failed batches are retried with an exponential backoff.
+ */
+class ClosedGroupSubscriptionBatcher(
+    private val transport: Transport,
+    private val store: Store,
+    private val executor: ScheduledExecutorService,
+    private val windowMs: Long = DEFAULT_WINDOW_MS
+) {
+
+    data class Operation(val operation: ClosedGroupOperation, val closedGroupPublicKey: String, val publicKey: String)
+
+    interface Transport {
+        /**
+         * Sends all of `operations`, which share the same public key, in a single request. Resolves to
+         * false if the server doesn't support batched operations.
+         */
+        fun sendBatch(publicKey: String, operations: List<Operation>): Promise<Boolean, Exception>
+        fun send(operation: Operation): Promise<Unit, Exception>
+    }
+
+    interface Store {
+        fun load(): String?
+        fun save(serialized: String?)
+    }
+
+    private val pending = LinkedHashMap<Pair<String, String>, Operation>() // Guarded by this
+    private var scheduledFlush: ScheduledFuture<*>? = null
+    private var isFlushing = false
+    private var failureCount = 0
+    private var isResumed = false
+
+    @Volatile
+    var isBatchingSupported = true
+        private set
+
+    val pendingOperations: List<Operation> get() = synchronized(this) { pending.values.toList() }
+
+    /**
+     * Picks up the operations that were still pending when the app was last killed.
+     */
+    fun resume() {
+        synchronized(this) {
+            if (isResumed) { return }
+            isResumed = true
+            deserialize(store.load()).forEach { pending[it.closedGroupPublicKey to it.publicKey] = it }
+            if (pending.isNotEmpty()) { scheduleFlush(windowMs) }
+        }
+    }
+
+    fun enqueue(operation: Operation) {
+        synchronized(this) {
+            resume()
+            // Keep the insertion order of the latest operation
+            pending.remove(operation.closedGroupPublicKey to operation.publicKey)
+            pending[operation.closedGroupPublicKey to operation.publicKey] = operation
+            store.save(serialize(pending.values))
+            if (!isFlushing && failureCount == 0) { scheduleFlush(windowMs) }
+        }
+    }
+
+    private fun scheduleFlush(delayMs: Long) {
+        if (scheduledFlush != null) { return }
+        scheduledFlush = executor.schedule({ flush() }, delayMs, TimeUnit.MILLISECONDS)
+    }
+
+    private fun flush() {
+        val batch = synchronized(this) {
+            scheduledFlush = null
+            isFlushing = true
+            pending.values.toList()
+        }
+        val promises = batch.groupBy { it.publicKey }.map { (publicKey, operations) ->
+            if (isBatchingSupported) {
+                sendBatch(publicKey, operations)
+            } else {
+                sendIndividually(operations)
+            }
+        }
+        if (promises.isEmpty()) { return onFlushed(true) }
+        all(promises, cancelOthersOnError = false).success {
+            onFlushed(true)
+        }.fail { exception ->
+            Log.d("Loki", "Couldn't subscribe/unsubscribe closed groups due to error: $exception.")
+            onFlushed(false)
+        }
+    }
+
+    private fun sendBatch(publicKey: String, operations: List<Operation>): Promise<Unit, Exception> {
+        return transport.sendBatch(publicKey, operations).bind { isSupported ->
+            if (isSupported) {
+                acknowledge(operations)
+                Promise.ofSuccess<Unit, Exception>(Unit)
+            } else {
+                Log.d("Loki", "Batched closed group operations aren't supported; falling back on individual requests.")
+                isBatchingSupported = false
+                sendIndividually(operations)
+            }
+        }
+    }
+
+    private fun sendIndividually(operations: List<Operation>): Promise<Unit, Exception> {
+        val promises = operations.map { operation ->
+            transport.send(operation).success { acknowledge(listOf(operation)) }
+        }
+        return all(promises, cancelOthersOnError = false).bind { Promise.ofSuccess<Unit, Exception>(Unit) }
+    }
+
+    private fun acknowledge(operations: List<Operation>) {
+        synchronized(this) {
+            for (operation in operations) {
+                val key = operation.closedGroupPublicKey to operation.publicKey
+                // Don't drop an operation that was enqueued again in the meantime
+                if (pending[key] === operation) { pending.remove(key) }
+            }
+            store.save(serialize(pending.values))
+        }
+    }
+
+    private fun onFlushed(isSuccessful: Boolean) {
+        synchronized(this) {
+            isFlushing = false
+            failureCount = if (isSuccessful) 0 else failureCount + 1
+            if (pending.isEmpty()) { return }
+            val delayMs = if (failureCount == 0) windowMs else {
+                (RETRY_INTERVAL_MS shl (failureCount - 1).coerceAtMost(MAX_BACKOFF_SHIFT)).coerceAtMost(MAX_RETRY_INTERVAL_MS)
+            }
+            scheduleFlush(delayMs)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_WINDOW_MS = 1000L
+        private const val RETRY_INTERVAL_MS = 2000L
+        private const val MAX_RETRY_INTERVAL_MS = 10 * 60 * 1000L
+        private const val MAX_BACKOFF_SHIFT = 10
+
+        /**
+         * The body of a batched request for the given public key.
+         */
+        fun getBatchParameters(publicKey: String, operations: List<Operation>): Map<String, Any> {
+            return mapOf(
+                "pubKey" to publicKey,
+                "operations" to operations.map { mapOf( "operation" to it.operation.rawValue, "closedGroupPublicKey" to it.closedGroupPublicKey ) }
+            )
+        }
+
+        fun serialize(operations: Collection<Operation>): String? {
+            if (operations.isEmpty()) { return null }
+            return operations.joinToString(",") { "${it.operation.rawValue}:${it.closedGroupPublicKey}:${it.publicKey}" }
+        }
+
+        fun deserialize(serialized: String?): List<Operation> {
+            if (serialized.isNullOrEmpty()) { return listOf() }
+            return serialized.split(",").mapNotNull { component ->
+                val parts = component.split(":")
+                val operation = ClosedGroupOperation.values().firstOrNull { it.rawValue == parts[0] }
+                if (parts.size != 3 || operation == null) { return@mapNotNull null }
+                Operation(operation, parts[1], parts[2])
+            }
+        }
+    }
+}
@@ -1,16 +1,20 @@
 package org.session.libsession.messaging.sending_receiving.notifications
 
 import android.annotation.SuppressLint
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
 import nl.komponents.kovenant.functional.map
 import okhttp3.MediaType
 import okhttp3.Request
 import okhttp3.RequestBody
 import org.session.libsession.messaging.MessagingModuleConfiguration
+import org.session.libsession.messaging.sending_receiving.notifications.ClosedGroupSubscriptionBatcher.Operation
 import org.session.libsession.snode.OnionRequestAPI
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.utilities.retryIfNeeded
 import org.session.libsignal.utilities.JsonUtil
 import org.session.libsignal.utilities.Log
+import java.util.concurrent.Executors
 
 @SuppressLint("StaticFieldLeak")
 object PushNotificationAPI {
@@ -20,6 +24,25 @@ object PushNotificationAPI {
     private val maxRetryCount = 4
     private val tokenExpirationInterval = 12 * 60 * 60 * 1000
 
+    private val subscriptionBatcher by lazy {
+        val store = object : ClosedGroupSubscriptionBatcher.Store {
+            override fun load(): String? = TextSecurePreferences.getPendingClosedGroupPNOperations(context)
+            override fun save(serialized: String?) = TextSecurePreferences.setPendingClosedGroupPNOperations(context, serialized)
+        }
+        val transport = object : ClosedGroupSubscriptionBatcher.Transport {
+            override fun sendBatch(publicKey: String, operations: List<Operation>) = sendOperations(publicKey, operations)
+            override fun send(operation: Operation) = sendOperation(operation)
+        }
+        ClosedGroupSubscriptionBatcher(transport, store, Executors.newSingleThreadScheduledExecutor())
+    }
+
+    /**
+     * Sends the closed group operations that were still pending when the app was last killed.
+     */
+    fun resumePendingOperations() {
+        subscriptionBatcher.resume()
+    }
+
     enum class ClosedGroupOperation {
         Subscribe, Unsubscribe;
 
@@ -86,20 +109,49 @@ object PushNotificationAPI {
         }
     }
 
+    /**
+     * Queues up the given operation. Operations are sent in batches, see [ClosedGroupSubscriptionBatcher].
+     */
     fun performOperation(operation: ClosedGroupOperation, closedGroupPublicKey: String, publicKey: String) {
         if (!TextSecurePreferences.isUsingFCM(context)) { return }
-        val parameters = mapOf( "closedGroupPublicKey" to closedGroupPublicKey, "pubKey" to publicKey )
-        val url = "$server/${operation.rawValue}"
+        subscriptionBatcher.enqueue(Operation(operation, closedGroupPublicKey, publicKey))
+    }
+
+    /**
+     * Resolves to false if the server doesn't support batched operations.
+     */
+    private fun sendOperations(publicKey: String, operations: List<Operation>): Promise<Boolean, Exception> {
+        val parameters = ClosedGroupSubscriptionBatcher.getBatchParameters(publicKey, operations)
+        val url = "$server/closed_group_operations"
         val body = RequestBody.create(MediaType.get("application/json"), JsonUtil.toJson(parameters))
         val request = Request.Builder().url(url).post(body)
-        retryIfNeeded(maxRetryCount) {
-            OnionRequestAPI.sendOnionRequest(request.build(), server, serverPublicKey, "/loki/v2/lsrpc").map { json ->
-                val code = json["code"] as? Int
-                if (code == null || code == 0) {
-                    Log.d("Loki", "Couldn't subscribe/unsubscribe closed group: $closedGroupPublicKey due to error: ${json["message"] as? String ?: "null"}.")
-                }
-            }.fail { exception ->
-                Log.d("Loki", "Couldn't subscribe/unsubscribe closed group: $closedGroupPublicKey due to error: ${exception}.")
+        val deferred = deferred<Boolean, Exception>()
+        OnionRequestAPI.sendOnionRequest(request.build(), server, serverPublicKey, "/loki/v2/lsrpc").success { json ->
+            val code = json["code"] as? Int
+            if (code == null || code == 0) {
+                deferred.reject(Exception(json["message"] as? String ?: "null"))
+            } else {
+                deferred.resolve(true)
+            }
+        }.fail { exception ->
+            if (exception is OnionRequestAPI.HTTPRequestFailedAtDestinationException && exception.statusCode == 404) {
+                deferred.resolve(false)
+            } else {
+                deferred.reject(exception)
+            }
+        }
+        return deferred.promise
+    }
+
+    private fun sendOperation(operation: Operation): Promise<Unit, Exception> {
+        val parameters = mapOf( "closedGroupPublicKey" to operation.closedGroupPublicKey, "pubKey" to operation.publicKey )
+        val url = "$server/${operation.operation.rawValue}"
+        val body = RequestBody.create(MediaType.get("application/json"), JsonUtil.toJson(parameters))
+        val request = Request.Builder().url(url).post(body)
+        return OnionRequestAPI.sendOnionRequest(request.build(), server, serverPublicKey, "/loki/v2/lsrpc").map { json ->
+            val code = json["code"] as? Int
+            if (code == null || code == 0) {
+                throw Exception("Couldn't subscribe/unsubscribe closed group: ${operation.closedGroupPublicKey} due to error: ${json["message"] as? String ?: "null"}.")
             }
         }
     }
@@ -0,0 +1,240 @@
+package org.session.libsession.messaging.sending_receiving.pollers
+
+import org.session.libsignal.crypto.getRandomElement
+import org.session.libsignal.utilities.Snode
+import kotlin.math.min
+import kotlin.math.pow
+
+/**
+ * Decides when to poll which closed groups.
+ *
+ * Each group is polled at an interval given by an [IntervalPolicy]. Groups whose swarms share a
+ * snode are polled together, in as few requests as the [Transport] allows, and a group that isn't
+ * due yet joins a request that's going out anyway if there's room left in it. All requests count
+ * against a [RequestBudget] shared by all groups; groups that are due while it's used up are
+ * polled, most overdue first, as soon as it allows.
+ *
+ * The scheduler doesn't keep time itself: [tick] polls whatever is due and tells the caller when to
+ * call it again.
+ */
+class ClosedGroupPollScheduler(
+    private val transport: Transport,
+    private val intervalPolicy: IntervalPolicy,
+    private val budget: RequestBudget,
+    private val clock: () -> Long = { System.currentTimeMillis() }
+) {
+
+    interface Transport {
+        /**
+         * The number of groups a single request can poll.
+         */
+        val maxGroupsPerRequest: Int
+
+        /**
+         * @return The snodes of the group's swarm, if they're known.
+         */
+        fun getSwarm(groupPublicKey: String): Set<Snode>?
+
+        /**
+         * @return When a message was last sent or received in the group, if known. Asked for
+         * whenever the group's next poll is scheduled, so that messages that didn't come in through
+         * the scheduler's own polls count as well.
+         */
+        fun getLastMessageTime(groupPublicKey: String): Long?
+
+        /**
+         * Polls the given groups in a single request, and calls [onCompleted] with the number of new
+         * messages of each group that was polled successfully.
+         *
+         * @param snode A snode all of the groups are stored on, or null if their swarm isn't known.
+         */
+        fun poll(snode: Snode?, groupPublicKeys: List<String>, onCompleted: (Map<String, Int>) -> Unit)
+    }
+
+    interface IntervalPolicy {
+        /**
+         * @param timeSinceLastMessage The time since the last message in the group, if known.
+         * @param emptyPollCount The number of polls in a row that didn't find any new messages.
+         * @return The time until the group should be polled again.
+         */
+        fun getInterval(timeSinceLastMessage: Long?, emptyPollCount: Int): Long
+    }
+
+    /**
+     * Polls a group more often the more recently a message was sent or received in it, going
+     * linearly from [minInterval] for a group that just had one to [maxInterval] for one that hasn't
+     * in [inactivityLimit].
+     */
+    class ActivityBasedIntervalPolicy(
+        private val minInterval: Long,
+        private val maxInterval: Long,
+        private val inactivityLimit: Long,
+        private val defaultTimeSinceLastMessage: Long
+    ) : IntervalPolicy {
+
+        override fun getInterval(timeSinceLastMessage: Long?, emptyPollCount: Int): Long {
+            val timeSinceLastMessage = min(timeSinceLastMessage ?: defaultTimeSinceLastMessage, inactivityLimit)
+            val slope = (maxInterval - minInterval).toDouble() / inactivityLimit.toDouble()
+            return (slope * timeSinceLastMessage).toLong() + minInterval
+        }
+    }
+
+    /**
+     * Polls a group at [minInterval] after it received messages, and backs off by [factor] after
+     * every poll that didn't, up to [maxInterval].
+     */
+    class ExponentialIntervalPolicy(
+        private val minInterval: Long,
+        private val maxInterval: Long,
+        private val factor: Double = 2.0
+    ) : IntervalPolicy {
+
+        override fun getInterval(timeSinceLastMessage: Long?, emptyPollCount: Int): Long {
+            return min(minInterval * factor.pow(emptyPollCount), maxInterval.toDouble()).toLong()
+        }
+    }
+
+    /**
+     * Allows bursts of up to [capacity] requests, and one more request every [refillInterval] ms.
+     */
+    class RequestBudget(private val capacity: Int, private val refillInterval: Long) {
+        private var available = capacity
+        private var lastRefill = Long.MIN_VALUE
+
+        @Synchronized
+        fun tryAcquire(now: Long): Boolean {
+            refill(now)
+            if (available == 0) { return false }
+            available -= 1
+            return true
+        }
+
+        /**
+         * @return The time until a request is allowed.
+         */
+        @Synchronized
+        fun getTimeUntilAvailable(now: Long): Long {
+            refill(now)
+            return if (available > 0) 0 else lastRefill + refillInterval - now
+        }
+
+        private fun refill(now: Long) {
+            if (lastRefill == Long.MIN_VALUE || available == capacity) {
+                lastRefill = now
+                return
+            }
+            val refillCount = (now - lastRefill) / refillInterval
+            if (refillCount <= 0) { return }
+            available = min(capacity.toLong(), available + refillCount).toInt()
+            lastRefill = if (available == capacity) now else lastRefill + refillCount * refillInterval
+        }
+    }
+
+    private class Group(val publicKey: String) {
+        // The time of the last poll that found messages, which may not have been stored yet
+        var lastMessageTime: Long? = null
+        var nextPollTime = 0L
+        var emptyPollCount = 0
+        var isPolling = false
+    }
+
+    private class Request(val snode: Snode?, val groups: List<Group>)
+
+    private val groups = LinkedHashMap<String, Group>() // Guarded by this
+
+    val groupPublicKeys: Set<String>
+        @Synchronized get() = groups.keys.toSet()
+
+    /**
+     * Starts polling the given group, which is due right away.
+     */
+    @Synchronized
+    fun add(groupPublicKey: String) {
+        if (groups.containsKey(groupPublicKey)) { return }
+        groups[groupPublicKey] = Group(groupPublicKey).apply { nextPollTime = clock() }
+    }
+
+    @Synchronized
+    fun remove(groupPublicKey: String) {
+        groups.remove(groupPublicKey)
+    }
+
+    @Synchronized
+    fun contains(groupPublicKey: String): Boolean {
+        return groups.containsKey(groupPublicKey)
+    }
+
+    /**
+     * Polls the groups that are due, as far as the budget allows.
+     *
+     * @return The time until this should be called again, or null if there's nothing to poll until
+     * a group is added or a poll completes.
+     */
+    fun tick(): Long? {
+        val requests = mutableListOf<Request>()
+        val delay = synchronized(this) {
+            val now = clock()
+            val due = groups.values.filter { !it.isPolling && it.nextPollTime <= now }.sortedBy { it.nextPollTime }.toMutableList()
+            while (due.isNotEmpty()) {
+                if (!budget.tryAcquire(now)) { break }
+                val request = getRequest(due.first(), due)
+                request.groups.forEach { it.isPolling = true }
+                due.removeAll(request.groups)
+                requests.add(request)
+            }
+            if (due.isNotEmpty()) {
+                budget.getTimeUntilAvailable(now)
+            } else {
+                groups.values.filter { !it.isPolling }.map { maxOf(it.nextPollTime - now, 0) }.minOrNull()
+            }
+        }
+        requests.forEach { request ->
+            transport.poll(request.snode, request.groups.map { it.publicKey }) { messageCounts ->
+                handlePollCompleted(request, messageCounts)
+            }
+        }
+        return delay
+    }
+
+    /**
+     * Builds a request for [first] and as many other groups sharing a snode with it as fit, picking
+     * the groups that are due before the ones that aren't.
+     */
+    private fun getRequest(first: Group, due: List<Group>): Request {
+        var snodes = transport.getSwarm(first.publicKey) ?: setOf()
+        if (snodes.isEmpty()) { return Request(null, listOf(first)) }
+        val requestGroups = mutableListOf(first)
+        val notDue = groups.values.filter { !it.isPolling && it !in due }.sortedBy { it.nextPollTime }
+        for (candidate in due + notDue) {
+            if (requestGroups.size >= transport.maxGroupsPerRequest) { break }
+            if (candidate === first) { continue }
+            val sharedSnodes = snodes.intersect(transport.getSwarm(candidate.publicKey) ?: continue)
+            if (sharedSnodes.isEmpty()) { continue }
+            snodes = sharedSnodes
+            requestGroups.add(candidate)
+        }
+        return Request(snodes.getRandomElement(), requestGroups) // Should be cryptographically secure
+    }
+
+    private fun handlePollCompleted(request: Request, messageCounts: Map<String, Int>) {
+        // Looked up outside of the lock, as the transport may have to read them from storage
+        val storedLastMessageTimes = request.groups.associate { it.publicKey to transport.getLastMessageTime(it.publicKey) }
+        synchronized(this) {
+            val now = clock()
+            request.groups.forEach { group ->
+                group.isPolling = false
+                val messageCount = messageCounts[group.publicKey]
+                if (messageCount != null && messageCount > 0) {
+                    group.lastMessageTime = now
+                    group.emptyPollCount = 0
+                } else {
+                    // Back off from groups that can't be polled as well as from quiet ones
+                    group.emptyPollCount += 1
+                }
+                val lastMessageTime = listOfNotNull(group.lastMessageTime, storedLastMessageTimes[group.publicKey]).maxOrNull()
+                val timeSinceLastMessage = lastMessageTime?.let { maxOf(now - it, 0) }
+                group.nextPollTime = now + intervalPolicy.getInterval(timeSinceLastMessage, group.emptyPollCount)
+            }
+        }
+    }
+}
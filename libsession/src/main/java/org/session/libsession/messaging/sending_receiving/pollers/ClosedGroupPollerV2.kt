@@ -6,36 +6,55 @@ import nl.komponents.kovenant.functional.map
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.messaging.jobs.MessageReceiveJob
+import org.session.libsession.messaging.sending_receiving.pollers.ClosedGroupPollScheduler.ActivityBasedIntervalPolicy
+import org.session.libsession.messaging.sending_receiving.pollers.ClosedGroupPollScheduler.IntervalPolicy
+import org.session.libsession.messaging.sending_receiving.pollers.ClosedGroupPollScheduler.RequestBudget
+import org.session.libsession.messaging.sending_receiving.pollers.ClosedGroupPollScheduler.Transport
 import org.session.libsession.snode.SnodeAPI
+import org.session.libsession.snode.SnodeBatchRetriever
 import org.session.libsession.utilities.GroupUtil
 import org.session.libsignal.crypto.getRandomElementOrNull
+import org.session.libsignal.protos.SignalServiceProtos.Envelope
 import org.session.libsignal.utilities.Log
-import org.session.libsignal.utilities.successBackground
-import java.util.*
+import org.session.libsignal.utilities.Snode
 import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
-import kotlin.math.min
 
-class ClosedGroupPollerV2 {
-    private val executorService = Executors.newScheduledThreadPool(4)
-    private var isPolling = mutableMapOf<String, Boolean>()
-    private var futures = mutableMapOf<String, ScheduledFuture<*>>()
+/**
+ * Polls closed groups at the times [ClosedGroupPollScheduler] picks, ticking it on [executorService].
+ *
+ * @param transport Polls the groups; polls the snodes of their swarms if null.
+ */
+class ClosedGroupPollerV2 internal constructor(
+    private val executorService: ScheduledExecutorService,
+    transport: Transport?,
+    intervalPolicy: IntervalPolicy
+) {
+    private val scheduler = ClosedGroupPollScheduler(TickingTransport(transport ?: SnodeTransport()), intervalPolicy,
+        RequestBudget(maxRequestBurst, requestInterval))
+    private var scheduledTick: ScheduledFuture<*>? = null // Guarded by this
 
-    private fun isPolling(groupPublicKey: String): Boolean {
-        return isPolling[groupPublicKey] ?: false
-    }
+    constructor() : this(Executors.newSingleThreadScheduledExecutor(), null, ActivityBasedIntervalPolicy(
+        minPollInterval, maxPollInterval, inactivityLimit, defaultTimeSinceLastMessage
+    ))
 
     companion object {
-        private val minPollInterval = 4 * 1000
-        private val maxPollInterval = 4 * 60 * 1000
+        private const val minPollInterval = 4 * 1000L
+        private const val maxPollInterval = 4 * 60 * 1000L
+        private const val inactivityLimit = 12 * 60 * 60 * 1000L
+        // Used for groups without any messages yet
+        private const val defaultTimeSinceLastMessage = 5 * 60 * 1000L
+        // At most one request a second on average, across all closed groups
+        private const val maxRequestBurst = 10
+        private const val requestInterval = 1000L
 
         @JvmStatic
         val shared = ClosedGroupPollerV2()
     }
 
     class InsufficientSnodesException() : Exception("No snodes left to poll.")
-    class PollingCanceledException() : Exception("Polling canceled.")
 
     fun start() {
         val storage = MessagingModuleConfiguration.shared.storage
@@ -44,9 +63,9 @@ class ClosedGroupPollerV2 {
     }
 
     fun startPolling(groupPublicKey: String) {
-        if (isPolling(groupPublicKey)) { return }
-        isPolling[groupPublicKey] = true
-        setUpPolling(groupPublicKey)
+        if (scheduler.contains(groupPublicKey)) { return }
+        scheduler.add(groupPublicKey)
+        scheduleTick(0)
     }
 
     fun stop() {
@@ -56,60 +75,101 @@ class ClosedGroupPollerV2 {
     }
 
     fun stopPolling(groupPublicKey: String) {
-        futures[groupPublicKey]?.cancel(false)
-        isPolling[groupPublicKey] = false
+        scheduler.remove(groupPublicKey)
     }
 
-    private fun setUpPolling(groupPublicKey: String) {
-        poll(groupPublicKey).success {
-            pollRecursively(groupPublicKey)
-        }.fail {
-            // The error is logged in poll(_:)
-            pollRecursively(groupPublicKey)
+    private fun scheduleTick(delay: Long) {
+        synchronized(this) {
+            val scheduledTick = scheduledTick
+            if (scheduledTick != null && !scheduledTick.isDone && scheduledTick.getDelay(TimeUnit.MILLISECONDS) <= delay) { return }
+            scheduledTick?.cancel(false)
+            this.scheduledTick = executorService.schedule({ tick() }, delay, TimeUnit.MILLISECONDS)
         }
     }
 
-    private fun pollRecursively(groupPublicKey: String) {
-        if (!isPolling(groupPublicKey)) { return }
-        // Get the received date of the last message in the thread. If we don't have any messages yet, pick some
-        // reasonable fake time interval to use instead.
-        val storage = MessagingModuleConfiguration.shared.storage
-        val groupID = GroupUtil.doubleEncodeGroupID(groupPublicKey)
-        val threadID = storage.getThreadId(groupID) ?: return
-        val lastUpdated = storage.getLastUpdated(threadID)
-        val timeSinceLastMessage = if (lastUpdated != -1L) Date().time - lastUpdated else 5 * 60 * 1000
-        val minPollInterval = Companion.minPollInterval
-        val limit: Long = 12 * 60 * 60 * 1000
-        val a = (Companion.maxPollInterval - minPollInterval).toDouble() / limit.toDouble()
-        val nextPollInterval = a * min(timeSinceLastMessage, limit) + minPollInterval
-        Log.d("Loki", "Next poll interval for closed group with public key: $groupPublicKey is ${nextPollInterval / 1000} s.")
-        executorService?.schedule({
-            poll(groupPublicKey).success {
-                pollRecursively(groupPublicKey)
-            }.fail {
-                // The error is logged in poll(_:)
-                pollRecursively(groupPublicKey)
+    private fun tick() {
+        // The running tick is no longer pending, so whatever it or a completed poll schedules from
+        // here on has to go ahead
+        synchronized(this) { scheduledTick = null }
+        val delay = scheduler.tick() ?: return
+        scheduleTick(delay)
+    }
+
+    /**
+     * Ticks the scheduler again whenever a poll completes, as groups are only scheduled again once
+     * their poll completes.
+     */
+    private inner class TickingTransport(private val transport: Transport) : Transport by transport {
+
+        override fun poll(snode: Snode?, groupPublicKeys: List<String>, onCompleted: (Map<String, Int>) -> Unit) {
+            transport.poll(snode, groupPublicKeys) { messageCounts ->
+                onCompleted(messageCounts)
+                scheduleTick(0)
             }
-        }, nextPollInterval.toLong(), TimeUnit.MILLISECONDS)
+        }
     }
 
-    fun poll(groupPublicKey: String): Promise<Unit, Exception> {
-        if (!isPolling(groupPublicKey)) { return Promise.of(Unit) }
-        val promise = SnodeAPI.getSwarm(groupPublicKey).bind { swarm ->
-            val snode = swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
-            if (!isPolling(groupPublicKey)) { throw PollingCanceledException() }
-            SnodeAPI.getRawMessages(snode, groupPublicKey).map { SnodeAPI.parseRawMessagesResponse(it, snode, groupPublicKey) }
+    private inner class SnodeTransport : Transport {
+        override val maxGroupsPerRequest = SnodeBatchRetriever.maxBatchSize
+
+        override fun getSwarm(groupPublicKey: String): Set<Snode>? {
+            return SnodeAPI.getCachedSwarm(groupPublicKey)
         }
-        promise.success { envelopes ->
-            if (!isPolling(groupPublicKey)) { return@success }
-            envelopes.forEach { envelope ->
-                val job = MessageReceiveJob(envelope.toByteArray())
-                JobQueue.shared.add(job)
+
+        override fun getLastMessageTime(groupPublicKey: String): Long? {
+            val storage = MessagingModuleConfiguration.shared.storage
+            val groupID = GroupUtil.doubleEncodeGroupID(groupPublicKey)
+            val threadID = storage.getThreadId(groupID) ?: return null
+            val lastUpdated = storage.getLastUpdated(threadID)
+            return if (lastUpdated != -1L) lastUpdated else null
+        }
+
+        override fun poll(snode: Snode?, groupPublicKeys: List<String>, onCompleted: (Map<String, Int>) -> Unit) {
+            val promise = if (snode != null) {
+                SnodeAPI.getRawMessages(snode, groupPublicKeys).map { rawResponses ->
+                    rawResponses.mapValues { (groupPublicKey, rawResponse) ->
+                        val envelopes = SnodeAPI.parseRawMessagesResponse(rawResponse, snode, groupPublicKey)
+                        handleEnvelopes(envelopes, groupPublicKey, isScheduled = true)
+                    }
+                }.fail {
+                    Log.d("Loki", "Polling failed for ${groupPublicKeys.size} closed group(s) on: $snode due to error: $it.")
+                }
+            } else {
+                // Groups are only polled without a known snode on their own
+                val groupPublicKey = groupPublicKeys.single()
+                poll(groupPublicKey, isScheduled = true).map { mapOf( groupPublicKey to it ) }
             }
+            promise.success { onCompleted(it) }.fail { onCompleted(mapOf()) }
+        }
+    }
+
+    /**
+     * Polls the given group once, whether or not it's being polled regularly.
+     */
+    fun poll(groupPublicKey: String): Promise<Unit, Exception> {
+        return poll(groupPublicKey, isScheduled = false).map { }
+    }
+
+    private fun poll(groupPublicKey: String, isScheduled: Boolean): Promise<Int, Exception> {
+        val snodePromise = SnodeAPI.getSwarm(groupPublicKey).map { swarm ->
+            swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
+        }
+        val promise = snodePromise.bind { snode ->
+            SnodeAPI.getRawMessages(snode, groupPublicKey).map { SnodeAPI.parseRawMessagesResponse(it, snode, groupPublicKey) }
         }
         promise.fail {
             Log.d("Loki", "Polling failed for closed group with public key: $groupPublicKey due to error: $it.")
         }
-        return promise.map { }
+        return promise.map { handleEnvelopes(it, groupPublicKey, isScheduled) }
+    }
+
+    private fun handleEnvelopes(envelopes: List<Envelope>, groupPublicKey: String, isScheduled: Boolean): Int {
+        // Drop the messages of groups that were left while they were being polled
+        if (isScheduled && !scheduler.contains(groupPublicKey)) { return 0 }
+        envelopes.forEach { envelope ->
+            val job = MessageReceiveJob(envelope.toByteArray())
+            JobQueue.shared.add(job)
+        }
+        return envelopes.size
     }
 }
@@ -6,8 +6,11 @@ import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.messaging.jobs.MessageReceiveJob
 import org.session.libsession.messaging.jobs.TrimThreadJob
+import org.session.libsession.messaging.messages.Message
 import org.session.libsession.messaging.open_groups.OpenGroupAPIV2
 import org.session.libsession.messaging.open_groups.OpenGroupMessageV2
+import org.session.libsession.messaging.sending_receiving.MessageReceiver
+import org.session.libsession.messaging.sending_receiving.handleOpenGroupMessages
 import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.GroupUtil
 import org.session.libsignal.protos.SignalServiceProtos
@@ -64,8 +67,7 @@ class OpenGroupPollerV2(private val server: String, private val executorService:
         val threadId = storage.getThreadId(Address.fromSerialized(groupID)) ?: -1
         val threadExists = threadId >= 0
         if (!hasStarted || !threadExists) { return }
-        var latestJob: MessageReceiveJob? = null
-        messages.sortedBy { it.serverID!! }.forEach { message ->
+        val envelopes = messages.sortedBy { it.serverID!! }.mapNotNull { message ->
             try {
                 val senderPublicKey = message.sender!!
                 val builder = SignalServiceProtos.Envelope.newBuilder()
@@ -74,19 +76,48 @@ class OpenGroupPollerV2(private val server: String, private val executorService:
                 builder.sourceDevice = 1
                 builder.content = message.toProto().toByteString()
                 builder.timestamp = message.sentTimestamp
-                val envelope = builder.build()
-                val job = MessageReceiveJob(envelope.toByteArray(), message.serverID, openGroupID)
-                if (isBackgroundPoll) {
-                    job.executeAsync()
-                } else {
-                    JobQueue.shared.add(job)
-                    if (!isCaughtUp) {
-                        secondToLastJob = latestJob
+                Pair(builder.build().toByteArray(), message.serverID!!)
+            } catch (e: Exception) {
+                Log.e("Loki", "Exception parsing message", e)
+                null
+            }
+        }
+        // Handle the whole poll in one batch, falling back to a job per message for anything that fails
+        val fallbackJobs = mutableListOf<MessageReceiveJob>()
+        val parsedMessages = mutableListOf<Pair<Message, SignalServiceProtos.Content>>()
+        val parsedEnvelopes = mutableListOf<Pair<ByteArray, Long>>()
+        synchronized(MessageReceiveJob.RECEIVE_LOCK) {
+            for ((data, serverID) in envelopes) {
+                try {
+                    parsedMessages.add(MessageReceiver.parse(data, serverID))
+                    parsedEnvelopes.add(Pair(data, serverID))
+                } catch (e: Exception) {
+                    if (e is MessageReceiver.Error && !e.isRetryable) {
+                        Log.d("Loki", "Discarding open group message: ${e.message}")
+                    } else {
+                        fallbackJobs.add(MessageReceiveJob(data, serverID, openGroupID))
                     }
-                    latestJob = job
                 }
+            }
+            try {
+                MessageReceiver.handleOpenGroupMessages(parsedMessages, openGroupID)
             } catch (e: Exception) {
-                Log.e("Loki", "Exception parsing message", e)
+                Log.e("Loki", "Couldn't handle open group messages in a batch.", e)
+                // Nothing was committed; let the individual jobs parse the messages again
+                storage.removeReceivedMessageTimestamps(parsedMessages.mapNotNull { it.first.sentTimestamp }.toSet())
+                fallbackJobs.addAll(parsedEnvelopes.map { (data, serverID) -> MessageReceiveJob(data, serverID, openGroupID) })
+            }
+        }
+        var latestJob: MessageReceiveJob? = null
+        fallbackJobs.sortedBy { it.openGroupMessageServerID }.forEach { job ->
+            if (isBackgroundPoll) {
+                job.executeAsync()
+            } else {
+                JobQueue.shared.add(job)
+                if (!isCaughtUp) {
+                    secondToLastJob = latestJob
+                }
+                latestJob = job
             }
         }
         val currentLastMessageServerID = storage.getLastMessageServerID(room, server) ?: 0
@@ -0,0 +1,220 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.functional.map
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+
+/**
+ * Keeps the onion request paths in use, along with a few spare paths, so that requests rarely have
+ * to wait for a path to be built.
+ *
+ * Requests go over the path in use with the best score, which is based on the latency and the
+ * failures seen on it. A path that fails is swapped for a spare right away, or dropped once it has
+ * failed [failureThreshold] times in a row if there's no spare to replace it with. Spares are
+ * built in the background, one at a time, whenever there are fewer than [targetSpareCount] of them,
+ * and are replaced once they're older than [maxSpareAge], as their guard snode may have gone away
+ * since it was tested. A request only waits for a path to be built if there's no usable one at all.
+ */
+class OnionPathPool(
+    private val builder: Builder,
+    private val targetPathCount: Int,
+    private val targetSpareCount: Int,
+    private val failureThreshold: Int,
+    private val maxSpareAge: Long,
+    private val clock: () -> Long = { System.currentTimeMillis() }
+) {
+
+    interface Builder {
+        /**
+         * Builds a path with a tested guard snode, that doesn't contain any of the given snodes.
+         */
+        fun buildPath(snodesToExclude: Set<Snode>): Promise<List<Snode>, Exception>
+
+        /**
+         * Called whenever the paths in use change.
+         */
+        fun onPathsChanged(paths: List<List<Snode>>)
+    }
+
+    private class Entry(val path: List<Snode>, val builtAt: Long) {
+        var averageLatency: Double? = null
+        var failureCount = 0
+
+        /**
+         * Lower is better. Paths that haven't been used yet get a chance before slower ones.
+         */
+        val score: Double
+            get() = (averageLatency ?: 0.0) * (1 + failureCount)
+    }
+
+    companion object {
+        private const val latencySmoothingFactor = 0.2
+    }
+
+    // Guarded by this
+    private val active = mutableListOf<Entry>()
+    private val spares = mutableListOf<Entry>()
+    private var isBuildingSpare = false
+    private var pathRequestCount = 0 // The number of requests waiting for a path to be built
+
+    val paths: List<List<Snode>>
+        @Synchronized get() = active.map { it.path }
+
+    val spareCount: Int
+        @Synchronized get() = spares.size
+
+    /**
+     * Puts paths that were persisted before back into use.
+     */
+    @Synchronized
+    fun restore(paths: List<List<Snode>>) {
+        val now = clock()
+        active.clear()
+        paths.take(targetPathCount).mapTo(active) { Entry(it, now) }
+    }
+
+    /**
+     * Returns a path to be used for an onion request that doesn't go through `snodeToExclude`. Only
+     * builds a path if there's no usable one, but starts building spares as needed either way.
+     */
+    fun getPath(snodeToExclude: Snode?): Promise<List<Snode>, Exception> {
+        val path = synchronized(this) {
+            if (fillActivePaths()) { builder.onPathsChanged(paths) }
+            val entry = active.filter { snodeToExclude !in it.path }.minByOrNull { it.score }
+                ?: spares.filter { snodeToExclude !in it.path }.minByOrNull { it.score }
+            if (entry == null) { pathRequestCount += 1 }
+            entry?.path
+        }
+        if (path != null) {
+            buildSpareIfNeeded()
+            return Promise.of(path)
+        }
+        val snodesToExclude = getSnodesInUse() + listOfNotNull(snodeToExclude)
+        val promise = builder.buildPath(snodesToExclude)
+        promise.fail {
+            synchronized(this) { pathRequestCount -= 1 }
+        }
+        return promise.map { newPath ->
+            synchronized(this) {
+                pathRequestCount -= 1
+                add(newPath)
+            }
+            buildSpareIfNeeded()
+            newPath
+        }
+    }
+
+    @Synchronized
+    fun reportSuccess(path: List<Snode>, latency: Long) {
+        val entry = getEntry(path) ?: return
+        val averageLatency = entry.averageLatency
+        entry.averageLatency = if (averageLatency == null) latency.toDouble() else {
+            averageLatency + latencySmoothingFactor * (latency - averageLatency)
+        }
+        entry.failureCount = 0
+    }
+
+    /**
+     * Drops the path once it has failed [failureThreshold] times in a row, or right away if there's a
+     * spare to take its place.
+     *
+     * @return Whether the path has failed [failureThreshold] times in a row, in which case its snodes
+     * are likely to blame. A path that's only swapped for a spare after fewer failures doesn't count.
+     */
+    fun reportFailure(path: List<Snode>): Boolean {
+        val hasReachedThreshold: Boolean
+        synchronized(this) {
+            val entry = getEntry(path) ?: return false
+            entry.failureCount += 1
+            hasReachedThreshold = entry.failureCount >= failureThreshold
+            val hasSpare = spares.any { it !== entry }
+            if (!hasReachedThreshold && !hasSpare) { return false }
+        }
+        drop(path)
+        return hasReachedThreshold
+    }
+
+    fun drop(path: List<Snode>) {
+        synchronized(this) {
+            val isActive = active.removeAll { it.path == path }
+            spares.removeAll { it.path == path }
+            if (isActive) {
+                fillActivePaths()
+                builder.onPathsChanged(paths)
+            }
+        }
+        buildSpareIfNeeded()
+    }
+
+    /**
+     * Replaces `oldPath` with `newPath`, e.g. after swapping out one of its snodes.
+     */
+    @Synchronized
+    fun replace(oldPath: List<Snode>, newPath: List<Snode>) {
+        val now = clock()
+        val activeIndex = active.indexOfFirst { it.path == oldPath }
+        if (activeIndex != -1) {
+            active[activeIndex] = Entry(newPath, now)
+            builder.onPathsChanged(paths)
+        }
+        val spareIndex = spares.indexOfFirst { it.path == oldPath }
+        if (spareIndex != -1) { spares[spareIndex] = Entry(newPath, now) }
+    }
+
+    /**
+     * @return The snodes of all paths, including spares.
+     */
+    @Synchronized
+    fun getSnodesInUse(): Set<Snode> {
+        return (active + spares).flatMap { it.path }.toSet()
+    }
+
+    private fun getEntry(path: List<Snode>): Entry? {
+        return active.firstOrNull { it.path == path } ?: spares.firstOrNull { it.path == path }
+    }
+
+    private fun add(path: List<Snode>) {
+        val entry = Entry(path, clock())
+        if (active.size < targetPathCount) {
+            active.add(entry)
+            builder.onPathsChanged(paths)
+        } else if (spares.size < targetSpareCount) {
+            spares.add(entry)
+        }
+    }
+
+    /**
+     * @return Whether any spares were put into use.
+     */
+    private fun fillActivePaths(): Boolean {
+        if (active.size >= targetPathCount || spares.isEmpty()) { return false }
+        while (active.size < targetPathCount && spares.isNotEmpty()) {
+            // The most recently built spare is the most likely to still work
+            active.add(spares.removeAt(spares.lastIndex))
+        }
+        return true
+    }
+
+    private fun buildSpareIfNeeded() {
+        val snodesToExclude = synchronized(this) {
+            val now = clock()
+            spares.removeAll { now - it.builtAt > maxSpareAge }
+            // Spares wait for the paths requests are waiting for, which they'd otherwise overlap with
+            if (isBuildingSpare || pathRequestCount > 0) { return }
+            if (active.size + spares.size >= targetPathCount + targetSpareCount) { return }
+            isBuildingSpare = true
+            getSnodesInUse()
+        }
+        builder.buildPath(snodesToExclude).success { path ->
+            synchronized(this) {
+                isBuildingSpare = false
+                add(path)
+            }
+            buildSpareIfNeeded()
+        }.fail { exception ->
+            synchronized(this) { isBuildingSpare = false }
+            Log.d("Loki", "Couldn't build spare onion request path due to error: $exception.")
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package org.session.libsession.snode
 
 import nl.komponents.kovenant.Promise
-import nl.komponents.kovenant.all
 import nl.komponents.kovenant.deferred
 import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
@@ -15,8 +14,6 @@ import org.session.libsignal.utilities.Snode
 import org.session.libsession.utilities.AESGCM.EncryptionResult
 import org.session.libsession.utilities.getBodyForOnionRequest
 import org.session.libsession.utilities.getHeadersForOnionRequest
-import org.session.libsignal.crypto.getRandomElement
-import org.session.libsignal.crypto.getRandomElementOrNull
 import org.session.libsignal.utilities.Broadcaster
 import org.session.libsignal.utilities.HTTP
 import org.session.libsignal.database.LokiAPIDatabaseProtocol
@@ -31,19 +28,28 @@ object OnionRequestAPI {
         get() = SnodeModule.shared.storage
     private val broadcaster: Broadcaster
         get() = SnodeModule.shared.broadcaster
-    private val pathFailureCount = mutableMapOf<Path, Int>()
-    private val snodeFailureCount = mutableMapOf<Snode, Int>()
+    private val pathPool by lazy {
+        val pathPool = OnionPathPool(object : OnionPathPool.Builder {
 
-    var guardSnodes = setOf<Snode>()
-    var paths: List<Path> // Not a set to ensure we consistently show the same path to the user
-        get() = database.getOnionRequestPaths()
-        set(newValue) {
-            if (newValue.isEmpty()) {
-                database.clearOnionRequestPaths()
-            } else {
-                database.setOnionRequestPaths(newValue)
+            override fun buildPath(snodesToExclude: Set<Snode>) = OnionRequestAPI.buildPath(snodesToExclude)
+
+            override fun onPathsChanged(paths: List<Path>) {
+                if (paths.isEmpty()) {
+                    database.clearOnionRequestPaths()
+                } else {
+                    database.setOnionRequestPaths(paths)
+                }
+                if (paths.count() >= targetPathCount) { broadcaster.broadcast("pathsBuilt") }
             }
-        }
+        }, targetPathCount, targetSparePathCount, pathFailureThreshold, maxSparePathAge)
+        pathPool.restore(database.getOnionRequestPaths())
+        pathPool
+    }
+
+    val guardSnodes: Set<Snode>
+        get() = paths.map { it[0] }.toSet()
+    val paths: List<Path> // Not a set to ensure we consistently show the same path to the user
+        get() = pathPool.paths
 
     // region Settings
     /**
@@ -55,18 +61,17 @@ object OnionRequestAPI {
      */
     private const val pathFailureThreshold = 3
     /**
-     * The number of times a snode can fail before it's replaced.
+     * The number of paths to maintain.
      */
-    private const val snodeFailureThreshold = 3
+    const val targetPathCount = 2 // A main path and a backup path for the case where the target snode is in the main path
     /**
-     * The number of guard snodes required to maintain `targetPathCount` paths.
+     * The number of tested paths to keep ready to replace paths that fail.
      */
-    private val targetGuardSnodeCount
-        get() = targetPathCount // One per path
+    private const val targetSparePathCount = 2
     /**
-     * The number of paths to maintain.
+     * The time after which a spare path is rebuilt, as its guard snode may have gone offline since it was tested.
      */
-    const val targetPathCount = 2 // A main path and a backup path for the case where the target snode is in the main path
+    private const val maxSparePathAge = 10 * 60 * 1000L
     // endregion
 
     class HTTPRequestFailedAtDestinationException(val statusCode: Int, val json: Map<*, *>)
@@ -74,7 +79,7 @@ object OnionRequestAPI {
     class InsufficientSnodesException : Exception("Couldn't find enough snodes to build a path.")
 
     private data class OnionBuildingResult(
-            val guardSnode: Snode,
+            val path: Path,
             val finalEncryptionResult: EncryptionResult,
             val destinationSymmetricKey: ByteArray
     )
@@ -93,10 +98,12 @@ object OnionRequestAPI {
         ThreadUtils.queue { // No need to block the shared context for this
             val url = "${snode.address}:${snode.port}/get_stats/v1"
             try {
+                val startTime = System.currentTimeMillis()
                 val json = HTTP.execute(HTTP.Verb.GET, url, 3)
                 val version = json["version"] as? String
                 if (version == null) { deferred.reject(Exception("Missing snode version.")); return@queue }
                 if (version >= "2.0.7") {
+                    SnodeAPI.snodeHealth.recordSuccess(snode, System.currentTimeMillis() - startTime)
                     deferred.resolve(Unit)
                 } else {
                     val message = "Unsupported snode version: $version."
@@ -111,76 +118,40 @@ object OnionRequestAPI {
     }
 
     /**
-     * Finds `targetGuardSnodeCount` guard snodes to use for path building. The returned promise errors out if not
-     * enough (reliable) snodes are available.
+     * Tests random snodes out of `candidates`, favouring healthy ones, until it finds one that can be used as a guard
+     * snode. The returned promise errors out if none of them can.
      */
-    private fun getGuardSnodes(reusableGuardSnodes: List<Snode>): Promise<Set<Snode>, Exception> {
-        if (guardSnodes.count() >= targetGuardSnodeCount) {
-            return Promise.of(guardSnodes)
-        } else {
-            Log.d("Loki", "Populating guard snode cache.")
-            return SnodeAPI.getRandomSnode().bind { // Just used to populate the snode pool
-                var unusedSnodes = SnodeAPI.snodePool.minus(reusableGuardSnodes)
-                val reusableGuardSnodeCount = reusableGuardSnodes.count()
-                if (unusedSnodes.count() < (targetGuardSnodeCount - reusableGuardSnodeCount)) { throw InsufficientSnodesException() }
-                fun getGuardSnode(): Promise<Snode, Exception> {
-                    val candidate = unusedSnodes.getRandomElementOrNull()
-                        ?: return Promise.ofFail(InsufficientSnodesException())
-                    unusedSnodes = unusedSnodes.minus(candidate)
-                    Log.d("Loki", "Testing guard snode: $candidate.")
-                    // Loop until a reliable guard snode is found
-                    val deferred = deferred<Snode, Exception>()
-                    testSnode(candidate).success {
-                        deferred.resolve(candidate)
-                    }.fail {
-                        getGuardSnode().success {
-                            deferred.resolve(candidate)
-                        }.fail { exception ->
-                            if (exception is InsufficientSnodesException) {
-                                deferred.reject(exception)
-                            }
-                        }
-                    }
-                    return deferred.promise
-                }
-                val promises = (0 until (targetGuardSnodeCount - reusableGuardSnodeCount)).map { getGuardSnode() }
-                all(promises).map { guardSnodes ->
-                    val guardSnodesAsSet = (guardSnodes + reusableGuardSnodes).toSet()
-                    OnionRequestAPI.guardSnodes = guardSnodesAsSet
-                    guardSnodesAsSet
-                }
+    private fun getGuardSnode(candidates: Set<Snode>): Promise<Snode, Exception> {
+        val candidate = SnodeAPI.snodeHealth.choose(candidates) ?: return Promise.ofFail(InsufficientSnodesException())
+        Log.d("Loki", "Testing guard snode: $candidate.")
+        // Loop until a reliable guard snode is found
+        val deferred = deferred<Snode, Exception>()
+        testSnode(candidate).success {
+            deferred.resolve(candidate)
+        }.fail {
+            getGuardSnode(candidates.minus(candidate)).success {
+                deferred.resolve(it)
+            }.fail { exception ->
+                deferred.reject(exception)
             }
         }
+        return deferred.promise
     }
 
     /**
-     * Builds and returns `targetPathCount` paths. The returned promise errors out if not
-     * enough (reliable) snodes are available.
+     * Builds a path that doesn't contain any of `snodesToExclude`. The returned promise errors out if not enough
+     * (reliable) snodes are available.
      */
-    private fun buildPaths(reusablePaths: List<Path>): Promise<List<Path>, Exception> {
-        Log.d("Loki", "Building onion request paths.")
-        broadcaster.broadcast("buildingPaths")
+    private fun buildPath(snodesToExclude: Set<Snode>): Promise<Path, Exception> {
+        Log.d("Loki", "Building onion request path.")
         return SnodeAPI.getRandomSnode().bind { // Just used to populate the snode pool
-            val reusableGuardSnodes = reusablePaths.map { it[0] }
-            getGuardSnodes(reusableGuardSnodes).map { guardSnodes ->
-                var unusedSnodes = SnodeAPI.snodePool.minus(guardSnodes).minus(reusablePaths.flatten())
-                val reusableGuardSnodeCount = reusableGuardSnodes.count()
-                val pathSnodeCount = (targetGuardSnodeCount - reusableGuardSnodeCount) * pathSize - (targetGuardSnodeCount - reusableGuardSnodeCount)
-                if (unusedSnodes.count() < pathSnodeCount) { throw InsufficientSnodesException() }
+            val unusedSnodes = SnodeAPI.snodePool.minus(snodesToExclude)
+            if (unusedSnodes.count() < pathSize) { throw InsufficientSnodesException() }
+            getGuardSnode(unusedSnodes).map { guardSnode ->
                 // Don't test path snodes as this would reveal the user's IP to them
-                guardSnodes.minus(reusableGuardSnodes).map { guardSnode ->
-                    val result = listOf( guardSnode ) + (0 until (pathSize - 1)).map {
-                        val pathSnode = unusedSnodes.getRandomElement()
-                        unusedSnodes = unusedSnodes.minus(pathSnode)
-                        pathSnode
-                    }
-                    Log.d("Loki", "Built new onion request path: $result.")
-                    result
-                }
-            }.map { paths ->
-                OnionRequestAPI.paths = paths + reusablePaths
-                broadcaster.broadcast("pathsBuilt")
-                paths
+                val result = listOf( guardSnode ) + SnodeAPI.snodeHealth.choose(unusedSnodes.minus(guardSnode), pathSize - 1)
+                Log.d("Loki", "Built new onion request path: $result.")
+                result
             }
         }
     }
@@ -190,100 +161,48 @@ object OnionRequestAPI {
      */
     private fun getPath(snodeToExclude: Snode?): Promise<Path, Exception> {
         if (pathSize < 1) { throw Exception("Can't build path of size zero.") }
-        val paths = this.paths
-        val guardSnodes = mutableSetOf<Snode>()
-        if (paths.isNotEmpty()) {
-            guardSnodes.add(paths[0][0])
-            if (paths.count() >= 2) {
-                guardSnodes.add(paths[1][0])
-            }
-        }
-        OnionRequestAPI.guardSnodes = guardSnodes
-        fun getPath(paths: List<Path>): Path {
-            if (snodeToExclude != null) {
-                return paths.filter { !it.contains(snodeToExclude) }.getRandomElement()
-            } else {
-                return paths.getRandomElement()
-            }
-        }
-        if (paths.count() >= targetPathCount) {
-            return Promise.of(getPath(paths))
-        } else if (paths.isNotEmpty()) {
-            if (paths.any { !it.contains(snodeToExclude) }) {
-                buildPaths(paths) // Re-build paths in the background
-                return Promise.of(getPath(paths))
-            } else {
-                return buildPaths(paths).map { newPaths ->
-                    getPath(newPaths)
-                }
-            }
-        } else {
-            return buildPaths(listOf()).map { newPaths ->
-                getPath(newPaths)
-            }
-        }
-    }
-
-    private fun dropGuardSnode(snode: Snode) {
-        guardSnodes = guardSnodes.filter { it != snode }.toSet()
+        val promise = pathPool.getPath(snodeToExclude)
+        if (!promise.isDone()) { broadcaster.broadcast("buildingPaths") }
+        return promise
     }
 
     private fun dropSnode(snode: Snode) {
         // We repair the path here because we can do it sync. In the case where we drop a whole
-        // path we leave the re-building up to getPath() because re-building the path in that case
-        // is async.
-        snodeFailureCount[snode] = 0
-        val oldPaths = paths.toMutableList()
-        val pathIndex = oldPaths.indexOfFirst { it.contains(snode) }
-        if (pathIndex == -1) { return }
-        val path = oldPaths[pathIndex].toMutableList()
-        val snodeIndex = path.indexOf(snode)
-        if (snodeIndex == -1) { return }
-        path.removeAt(snodeIndex)
-        val unusedSnodes = SnodeAPI.snodePool.minus(oldPaths.flatten())
+        // path the path pool replaces it with a spare.
+        val path = paths.firstOrNull { it.contains(snode) } ?: return
+        val unusedSnodes = SnodeAPI.snodePool.minus(pathPool.getSnodesInUse())
         if (unusedSnodes.isEmpty()) { throw InsufficientSnodesException() }
-        path.add(unusedSnodes.getRandomElement())
         // Don't test the new snode as this would reveal the user's IP
-        oldPaths.removeAt(pathIndex)
-        val newPaths = oldPaths + listOf( path )
-        paths = newPaths
-    }
-
-    private fun dropPath(path: Path) {
-        pathFailureCount[path] = 0
-        val paths = OnionRequestAPI.paths.toMutableList()
-        val pathIndex = paths.indexOf(path)
-        if (pathIndex == -1) { return }
-        paths.removeAt(pathIndex)
-        OnionRequestAPI.paths = paths
+        val newPath = path.minus(snode) + SnodeAPI.snodeHealth.choose(unusedSnodes)!!
+        pathPool.replace(path, newPath)
     }
 
     /**
      * Builds an onion around `payload` and returns the result.
      */
     private fun buildOnionForDestination(payload: Map<*, *>, destination: Destination): Promise<OnionBuildingResult, Exception> {
-        lateinit var guardSnode: Snode
         lateinit var destinationSymmetricKey: ByteArray // Needed by LokiAPI to decrypt the response sent back by the destination
         lateinit var encryptionResult: EncryptionResult
         val snodeToExclude = when (destination) {
             is Destination.Snode -> destination.snode
             is Destination.Server -> null
         }
-        return getPath(snodeToExclude).bind { path ->
-            guardSnode = path.first()
+        lateinit var path: Path
+        return getPath(snodeToExclude).bind { p ->
+            path = p
             // Encrypt in reverse order, i.e. the destination first
             OnionRequestEncryption.encryptPayloadForDestination(payload, destination).bind { r ->
                 destinationSymmetricKey = r.symmetricKey
                 // Recursively encrypt the layers of the onion (again in reverse order)
                 encryptionResult = r
-                @Suppress("NAME_SHADOWING") var path = path
+                var remainingPath = path
                 var rhs = destination
                 fun addLayer(): Promise<EncryptionResult, Exception> {
-                    if (path.isEmpty()) {
+                    if (remainingPath.isEmpty()) {
                         return Promise.of(encryptionResult)
                     } else {
-                        val lhs = Destination.Snode(path.last())
-                        path = path.dropLast(1)
+                        val lhs = Destination.Snode(remainingPath.last())
+                        remainingPath = remainingPath.dropLast(1)
                         return OnionRequestEncryption.encryptHop(lhs, rhs, encryptionResult).bind { r ->
                             encryptionResult = r
                             rhs = lhs
@@ -293,7 +212,7 @@ object OnionRequestAPI {
                 }
                 addLayer()
             }
-        }.map { OnionBuildingResult(guardSnode, encryptionResult, destinationSymmetricKey) }
+        }.map { OnionBuildingResult(path, encryptionResult, destinationSymmetricKey) }
     }
 
     /**
@@ -301,9 +220,10 @@ object OnionRequestAPI {
      */
     private fun sendOnionRequest(destination: Destination, payload: Map<*, *>, isJSONRequired: Boolean = true): Promise<Map<*, *>, Exception> {
         val deferred = deferred<Map<*, *>, Exception>()
-        lateinit var guardSnode: Snode
+        var path: Path? = null
         buildOnionForDestination(payload, destination).success { result ->
-            guardSnode = result.guardSnode
+            path = result.path
+            val guardSnode = result.path.first()
             val url = "${guardSnode.address}:${guardSnode.port}/onion_req/v2"
             val finalEncryptionResult = result.finalEncryptionResult
             val onion = finalEncryptionResult.ciphertext
@@ -322,7 +242,10 @@ object OnionRequestAPI {
             val destinationSymmetricKey = result.destinationSymmetricKey
             ThreadUtils.queue {
                 try {
+                    val startTime = System.currentTimeMillis()
                     val json = HTTP.execute(HTTP.Verb.POST, url, body)
+                    pathPool.reportSuccess(result.path, System.currentTimeMillis() - startTime)
+                    result.path.forEach { SnodeAPI.snodeHealth.recordSuccess(it) }
                     val base64EncodedIVAndCiphertext = json["result"] as? String ?: return@queue deferred.reject(Exception("Invalid JSON"))
                     val ivAndCiphertext = Base64.decode(base64EncodedIVAndCiphertext)
                     try {
@@ -374,20 +297,16 @@ object OnionRequestAPI {
         val promise = deferred.promise
         promise.fail { exception ->
             if (exception is HTTP.HTTPRequestFailedException && SnodeModule.isInitialized) {
-                val path = paths.firstOrNull { it.contains(guardSnode) }
+                @Suppress("NAME_SHADOWING") val path = path
                 fun handleUnspecificError() {
                     if (path == null) { return }
-                    var pathFailureCount = OnionRequestAPI.pathFailureCount[path] ?: 0
-                    pathFailureCount += 1
-                    if (pathFailureCount >= pathFailureThreshold) {
-                        dropGuardSnode(guardSnode)
+                    // The path pool swaps a failing path for a spare right away, but its snodes are only
+                    // penalized once the path has failed too often
+                    if (pathPool.reportFailure(path)) {
                         path.forEach { snode ->
                             @Suppress("ThrowableNotThrown")
                             SnodeAPI.handleSnodeError(exception.statusCode, exception.json, snode, null) // Intentionally don't throw
                         }
-                        dropPath(path)
-                    } else {
-                        OnionRequestAPI.pathFailureCount[path] = pathFailureCount
                     }
                 }
                 val json = exception.json
@@ -397,18 +316,13 @@ object OnionRequestAPI {
                     val ed25519PublicKey = message.substringAfter(prefix)
                     val snode = path?.firstOrNull { it.publicKeySet!!.ed25519Key == ed25519PublicKey }
                     if (snode != null) {
-                        var snodeFailureCount = OnionRequestAPI.snodeFailureCount[snode] ?: 0
-                        snodeFailureCount += 1
-                        if (snodeFailureCount >= snodeFailureThreshold) {
-                            @Suppress("ThrowableNotThrown")
-                            SnodeAPI.handleSnodeError(exception.statusCode, json, snode, null) // Intentionally don't throw
+                        // Not through handleSnodeError, which would count this failure a second time
+                        if (SnodeAPI.snodeFailures.handleFailure(snode)) {
                             try {
                                 dropSnode(snode)
                             } catch (exception: Exception) {
                                 handleUnspecificError()
                             }
-                        } else {
-                            OnionRequestAPI.snodeFailureCount[snode] = snodeFailureCount
                         }
                     } else {
                         handleUnspecificError()
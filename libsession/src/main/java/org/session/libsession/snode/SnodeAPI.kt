@@ -18,7 +18,6 @@ import org.session.libsignal.utilities.removing05PrefixIfNeeded
 import org.session.libsignal.utilities.retryIfNeeded
 import org.session.libsignal.utilities.*
 import org.session.libsignal.utilities.Log
-import java.security.SecureRandom
 
 object SnodeAPI {
     private val database: LokiAPIDatabaseProtocol
@@ -26,10 +25,41 @@ object SnodeAPI {
     private val broadcaster: Broadcaster
         get() = SnodeModule.shared.broadcaster
 
-    internal var snodeFailureCount: MutableMap<Snode, Int> = mutableMapOf()
+    internal val snodeHealth by lazy { SnodeHealthRegistry(snodeFailureThreshold, snodeFailureDecayInterval, snodeHealthHalfLife) }
+    internal val snodeFailures by lazy {
+        SnodeFailureHandler(snodeHealth, object : SnodeFailureHandler.Store {
+
+            override fun getSnodePool() = database.getSnodePool()
+
+            override fun setSnodePool(newValue: Set<Snode>) = database.setSnodePool(newValue)
+
+            override fun getSwarm(publicKey: String) = database.getSwarm(publicKey)
+
+            override fun setSwarm(publicKey: String, newValue: Set<Snode>) = database.setSwarm(publicKey, newValue)
+        })
+    }
     internal var snodePool: Set<Snode>
         get() = database.getSnodePool()
         set(newValue) { database.setSnodePool(newValue) }
+    private val batchRetriever = SnodeBatchRetriever(object : SnodeBatchRetriever.Transport {
+
+        override fun getRetrieveParameters(snode: Snode, publicKey: String) = SnodeAPI.getRetrieveParameters(snode, publicKey)
+
+        override fun invoke(method: Snode.Method, snode: Snode, publicKey: String, parameters: Map<String, Any>): RawResponsePromise {
+            return SnodeAPI.invoke(method, snode, publicKey, parameters)
+        }
+
+        override fun getSnodeError(exception: Exception): Pair<Int, Map<*, *>?>? {
+            // Errors from snodes that are invoked directly have already been handled by invoke
+            val error = exception as? OnionRequestAPI.HTTPRequestFailedAtDestinationException ?: return null
+            return Pair(error.statusCode, error.json)
+        }
+
+        override fun handleError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String) {
+            @Suppress("ThrowableNotThrown")
+            handleSnodeError(statusCode, json, snode, publicKey) // Intentionally don't throw
+        }
+    })
 
     // Settings
     private val maxRetryCount = 6
@@ -45,6 +75,8 @@ object SnodeAPI {
         }
     }
     private val snodeFailureThreshold = 3
+    private val snodeFailureDecayInterval = 10 * 60 * 1000L // One failure is forgotten every 10 minutes
+    private val snodeHealthHalfLife = 30 * 60 * 1000L
     private val targetSwarmSnodeCount = 2
     private val useOnionRequests = true
 
@@ -57,7 +89,15 @@ object SnodeAPI {
     }
 
     // Internal API
-    internal fun invoke(method: Snode.Method, snode: Snode, publicKey: String, parameters: Map<String, String>): RawResponsePromise {
+    internal fun invoke(method: Snode.Method, snode: Snode, publicKey: String, parameters: Map<String, Any>): RawResponsePromise {
+        val startTime = System.currentTimeMillis()
+        return invokeUntimed(method, snode, publicKey, parameters).success {
+            // Includes the time spent on the onion request path, which all snodes share
+            snodeHealth.recordSuccess(snode, System.currentTimeMillis() - startTime)
+        }
+    }
+
+    private fun invokeUntimed(method: Snode.Method, snode: Snode, publicKey: String, parameters: Map<String, Any>): RawResponsePromise {
         val url = "${snode.address}:${snode.port}/storage_rpc/v1"
         if (useOnionRequests) {
             return OnionRequestAPI.sendOnionRequest(method, parameters, snode, publicKey)
@@ -140,22 +180,16 @@ object SnodeAPI {
     }
 
     internal fun dropSnodeFromSwarmIfNeeded(snode: Snode, publicKey: String) {
-        val swarm = database.getSwarm(publicKey)?.toMutableSet()
-        if (swarm != null && swarm.contains(snode)) {
-            swarm.remove(snode)
-            database.setSwarm(publicKey, swarm)
-        }
+        snodeFailures.dropSnodeFromSwarmIfNeeded(snode, publicKey)
     }
 
     internal fun getSingleTargetSnode(publicKey: String): Promise<Snode, Exception> {
-        // SecureRandom() should be cryptographically secure
-        return getSwarm(publicKey).map { it.shuffled(SecureRandom()).random() }
+        return getSwarm(publicKey).map { snodeHealth.choose(it, 1).first() }
     }
 
     // Public API
     fun getTargetSnodes(publicKey: String): Promise<List<Snode>, Exception> {
-        // SecureRandom() should be cryptographically secure
-        return getSwarm(publicKey).map { it.shuffled(SecureRandom()).take(targetSwarmSnodeCount) }
+        return getSwarm(publicKey).map { snodeHealth.choose(it, targetSwarmSnodeCount) }
     }
 
     fun getSwarm(publicKey: String): Promise<Set<Snode>, Exception> {
@@ -176,10 +210,30 @@ object SnodeAPI {
         }
     }
 
-    fun getRawMessages(snode: Snode, publicKey: String): RawResponsePromise {
+    /**
+     * @return The swarm of the given public key, if it's been fetched before.
+     */
+    fun getCachedSwarm(publicKey: String): Set<Snode>? {
+        return database.getSwarm(publicKey)
+    }
+
+    private fun getRetrieveParameters(snode: Snode, publicKey: String): Map<String, Any> {
         val lastHashValue = database.getLastMessageHashValue(snode, publicKey) ?: ""
-        val parameters = mapOf( "pubKey" to if (useTestnet) publicKey.removing05PrefixIfNeeded() else publicKey, "lastHash" to lastHashValue )
-        return invoke(Snode.Method.GetMessages, snode, publicKey, parameters)
+        return mapOf( "pubKey" to if (useTestnet) publicKey.removing05PrefixIfNeeded() else publicKey, "lastHash" to lastHashValue )
+    }
+
+    fun getRawMessages(snode: Snode, publicKey: String): RawResponsePromise {
+        return invoke(Snode.Method.GetMessages, snode, publicKey, getRetrieveParameters(snode, publicKey))
+    }
+
+    /**
+     * Retrieves the messages of all of the given public keys, which must all be stored on `snode`, in as
+     * few requests as the snode allows.
+     *
+     * @return The raw response for each public key whose messages could be retrieved.
+     */
+    fun getRawMessages(snode: Snode, publicKeys: List<String>): Promise<Map<String, RawResponse>, Exception> {
+        return batchRetriever.retrieve(snode, publicKeys)
     }
 
     fun getMessages(publicKey: String): MessageListPromise {
@@ -291,19 +345,8 @@ object SnodeAPI {
     // Error Handling
     internal fun handleSnodeError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String? = null): Exception? {
         fun handleBadSnode() {
-            val oldFailureCount = snodeFailureCount[snode] ?: 0
-            val newFailureCount = oldFailureCount + 1
-            snodeFailureCount[snode] = newFailureCount
-            Log.d("Loki", "Couldn't reach snode at $snode; setting failure count to $newFailureCount.")
-            if (newFailureCount >= snodeFailureThreshold) {
-                Log.d("Loki", "Failure threshold reached for: $snode; dropping it.")
-                if (publicKey != null) {
-                    dropSnodeFromSwarmIfNeeded(snode, publicKey)
-                }
-                snodePool = snodePool.toMutableSet().minus(snode).toSet()
-                Log.d("Loki", "Snode pool count: ${snodePool.count()}.")
-                snodeFailureCount[snode] = 0
-            }
+            Log.d("Loki", "Couldn't reach snode at $snode.")
+            snodeFailures.handleFailure(snode, publicKey)
         }
         when (statusCode) {
             400, 500, 502, 503 -> { // Usually indicates that the snode isn't up to date
@@ -0,0 +1,159 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import nl.komponents.kovenant.functional.map
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Retrieves the messages of several public keys stored on the same snode.
+ *
+ * The retrieves go to the snode as a single batch request, so that polling a number of public keys
+ * takes one onion request rather than one each. Every public key keeps its own last hash, so the
+ * results are the same as those of separate retrieves. Snodes that don't support batch requests get
+ * separate retrieves instead, and aren't sent batches again for a while.
+ *
+ * Errors the snode rejects a whole batch with are handled for every public key in it, as the batch
+ * was sent on behalf of all of them.
+ */
+class SnodeBatchRetriever(
+    private val transport: Transport,
+    private val clock: () -> Long = { System.currentTimeMillis() }
+) {
+
+    interface Transport {
+        fun getRetrieveParameters(snode: Snode, publicKey: String): Map<String, Any>
+
+        fun invoke(method: Snode.Method, snode: Snode, publicKey: String, parameters: Map<String, Any>): RawResponsePromise
+
+        /**
+         * @return The status code and body the snode itself rejected a request with, if the given
+         * error is such a rejection and it hasn't been handled yet.
+         */
+        fun getSnodeError(exception: Exception): Pair<Int, Map<*, *>?>?
+
+        /**
+         * Handles the error a single retrieve in a batch failed with, as if it had been sent on its own.
+         */
+        fun handleError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String)
+    }
+
+    companion object {
+        /**
+         * The maximum number of requests a snode accepts in a single batch.
+         */
+        const val maxBatchSize = 20
+        private const val unsupportedSnodeRetryInterval = 60 * 60 * 1000L
+    }
+
+    // When each snode was found not to support batch requests
+    private val unsupportedSnodes = HashMap<Snode, Long>() // Guarded by this
+
+    /**
+     * @return The raw retrieve response of each public key whose messages could be retrieved. Only
+     * fails if none of the requests that were sent succeeded.
+     */
+    fun retrieve(snode: Snode, publicKeys: List<String>): Promise<Map<String, RawResponse>, Exception> {
+        if (publicKeys.size == 1 || !supportsBatches(snode)) { return retrieveSeparately(snode, publicKeys) }
+        return merge(publicKeys.chunked(maxBatchSize).map { retrieveBatch(snode, it) })
+    }
+
+    private fun retrieveBatch(snode: Snode, publicKeys: List<String>): Promise<Map<String, RawResponse>, Exception> {
+        val requests = publicKeys.map { publicKey ->
+            mapOf( "method" to Snode.Method.GetMessages.rawValue, "params" to transport.getRetrieveParameters(snode, publicKey) )
+        }
+        val deferred = deferred<Map<String, RawResponse>, Exception>()
+        transport.invoke(Snode.Method.Batch, snode, publicKeys.first(), mapOf( "requests" to requests )).success { rawResponse ->
+            val responses = parseBatchResponse(rawResponse, snode, publicKeys)
+            if (responses != null) {
+                deferred.resolve(responses)
+            } else {
+                Log.d("Loki", "Failed to parse batch response from: $snode.")
+                deferred.reject(SnodeAPI.Error.Generic)
+            }
+        }.fail { exception ->
+            val (statusCode, json) = transport.getSnodeError(exception) ?: return@fail deferred.reject(exception)
+            when (statusCode) {
+                // Only a 404 means the method is unknown; a 400 can be caused by any request in the batch
+                404 -> {
+                    Log.d("Loki", "Snode at $snode doesn't support batch requests; retrieving separately.")
+                    markUnsupported(snode)
+                    retrieveSeparately(snode, publicKeys).success { deferred.resolve(it) }.fail { deferred.reject(it) }
+                }
+                421 -> {
+                    // The swarm in the response is that of the public key the batch was sent for
+                    transport.handleError(statusCode, json, snode, publicKeys.first())
+                    publicKeys.drop(1).forEach { transport.handleError(statusCode, null, snode, it) }
+                    deferred.reject(exception)
+                }
+                else -> deferred.reject(exception)
+            }
+        }
+        return deferred.promise
+    }
+
+    private fun retrieveSeparately(snode: Snode, publicKeys: List<String>): Promise<Map<String, RawResponse>, Exception> {
+        return merge(publicKeys.map { publicKey ->
+            val parameters = transport.getRetrieveParameters(snode, publicKey)
+            transport.invoke(Snode.Method.GetMessages, snode, publicKey, parameters).map { mapOf( publicKey to it ) }
+        })
+    }
+
+    private fun parseBatchResponse(rawResponse: RawResponse, snode: Snode, publicKeys: List<String>): Map<String, RawResponse>? {
+        val results = rawResponse["results"] as? List<*> ?: return null
+        val responses = mutableMapOf<String, RawResponse>()
+        publicKeys.zip(results).forEach { (publicKey, result) ->
+            val resultAsJSON = result as? Map<*, *>
+            val statusCode = resultAsJSON?.get("code") as? Int
+            val body = resultAsJSON?.get("body") as? Map<*, *>
+            if (statusCode == 200 && body != null) {
+                responses[publicKey] = body
+            } else {
+                Log.d("Loki", "Batched retrieve for: $publicKey failed with status code: $statusCode.")
+                if (statusCode != null) { transport.handleError(statusCode, body, snode, publicKey) }
+            }
+        }
+        return responses
+    }
+
+    private fun merge(promises: List<Promise<Map<String, RawResponse>, Exception>>): Promise<Map<String, RawResponse>, Exception> {
+        if (promises.isEmpty()) { return Promise.of(mapOf()) }
+        val deferred = deferred<Map<String, RawResponse>, Exception>()
+        val responses = ConcurrentHashMap<String, RawResponse>()
+        val remaining = AtomicInteger(promises.size)
+        val failure = AtomicReference<Exception>()
+        val handleCompleted = {
+            if (remaining.decrementAndGet() == 0) {
+                val exception = failure.get()
+                if (responses.isEmpty() && exception != null) deferred.reject(exception) else deferred.resolve(responses.toMap())
+            }
+        }
+        promises.forEach { promise ->
+            promise.success {
+                responses.putAll(it)
+                handleCompleted()
+            }.fail {
+                failure.set(it)
+                handleCompleted()
+            }
+        }
+        return deferred.promise
+    }
+
+    @Synchronized
+    private fun supportsBatches(snode: Snode): Boolean {
+        val unsupportedSince = unsupportedSnodes[snode] ?: return true
+        if (clock() - unsupportedSince < unsupportedSnodeRetryInterval) { return false }
+        unsupportedSnodes.remove(snode)
+        return true
+    }
+
+    @Synchronized
+    private fun markUnsupported(snode: Snode) {
+        unsupportedSnodes[snode] = clock()
+    }
+}
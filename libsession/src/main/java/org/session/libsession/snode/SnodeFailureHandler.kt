@@ -0,0 +1,47 @@
+package org.session.libsession.snode
+
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+
+/**
+ * Drops snodes that keep failing from the snode pool, and from the swarm they failed for.
+ *
+ * A snode can fail as a hop of an onion path or when it's invoked directly. Both kinds of failure go through here, and
+ * each failure must be reported exactly once: [SnodeHealthRegistry.recordFailure] starts the count over once it reports a
+ * snode, so counting the same failure twice would keep the snode in the pool.
+ */
+class SnodeFailureHandler(private val health: SnodeHealthRegistry, private val store: Store) {
+
+    interface Store {
+        fun getSnodePool(): Set<Snode>
+        fun setSnodePool(newValue: Set<Snode>)
+        fun getSwarm(publicKey: String): Set<Snode>?
+        fun setSwarm(publicKey: String, newValue: Set<Snode>)
+    }
+
+    /**
+     * Counts a failure against `snode`, and drops it from the snode pool, as well as from the swarm of `publicKey` if
+     * given, once it's failed too many times.
+     *
+     * @return Whether the snode was dropped.
+     */
+    fun handleFailure(snode: Snode, publicKey: String? = null): Boolean {
+        if (!health.recordFailure(snode)) { return false }
+        Log.d("Loki", "Failure threshold reached for: $snode; dropping it.")
+        if (publicKey != null) {
+            dropSnodeFromSwarmIfNeeded(snode, publicKey)
+        }
+        val snodePool = store.getSnodePool().minus(snode)
+        store.setSnodePool(snodePool)
+        Log.d("Loki", "Snode pool count: ${snodePool.count()}.")
+        return true
+    }
+
+    fun dropSnodeFromSwarmIfNeeded(snode: Snode, publicKey: String) {
+        val swarm = store.getSwarm(publicKey)?.toMutableSet()
+        if (swarm != null && swarm.contains(snode)) {
+            swarm.remove(snode)
+            store.setSwarm(publicKey, swarm)
+        }
+    }
+}
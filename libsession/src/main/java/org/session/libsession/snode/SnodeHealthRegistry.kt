@@ -0,0 +1,169 @@
+package org.session.libsession.snode
+
+import org.session.libsignal.utilities.Snode
+import java.security.SecureRandom
+import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keeps track of how reliable and how fast each snode has been, so that requests can favour the snodes that are
+ * most likely to handle them well. Safe to use from any thread.
+ *
+ * Snodes are picked at random, weighted by their success rate and median latency, rather than always picking the
+ * best ones. This spreads the load and keeps the choice unpredictable. Unknown snodes are treated as healthy. A
+ * snode's failures count for less over time, so a snode that had a bad spell gets used again once it's recovered.
+ */
+class SnodeHealthRegistry(
+    private val failureThreshold: Int,
+    private val failureDecayInterval: Long,
+    private val successRateHalfLife: Long,
+    private val latencySampleCount: Int = 32,
+    private val random: Random = SecureRandom(), // SecureRandom() should be cryptographically secure
+    private val clock: () -> Long = { System.currentTimeMillis() }
+) {
+
+    private class Health(latencySampleCount: Int, var decayedAt: Long) {
+        var successes = 0.0
+        var failures = 0.0
+        var failureCount = 0
+        var failureCountDecayedAt = decayedAt
+        val latencies = LongArray(latencySampleCount) // The most recent latencies, as a ring buffer
+        var latencyCount = 0
+        var medianLatency: Long? = null
+    }
+
+    companion object {
+        /**
+         * The latency at which a snode is half as likely to be picked as one that responds right away.
+         */
+        private const val referenceLatency = 1000.0
+        /**
+         * Keeps every snode in the running, however badly it's done.
+         */
+        private const val minimumWeight = 0.01
+    }
+
+    private val health = ConcurrentHashMap<Snode, Health>()
+
+    fun recordSuccess(snode: Snode, latency: Long? = null) {
+        val health = getHealth(snode)
+        synchronized(health) {
+            decay(health)
+            health.successes += 1
+            if (latency == null) { return }
+            health.latencies[health.latencyCount % latencySampleCount] = latency
+            health.latencyCount += 1
+            health.medianLatency = getLatencyPercentile(health, 0.5)
+        }
+    }
+
+    /**
+     * Counts a failure against `snode`. Failures are forgotten one per `failureDecayInterval`.
+     *
+     * @return Whether the snode has now failed `failureThreshold` times, in which case it should be dropped. Its
+     * failure count starts over, so that only one of several concurrent failures reports this.
+     */
+    fun recordFailure(snode: Snode): Boolean {
+        val health = getHealth(snode)
+        synchronized(health) {
+            decay(health)
+            health.failures += 1
+            if (health.failureCount == 0) { health.failureCountDecayedAt = clock() }
+            health.failureCount += 1
+            if (health.failureCount < failureThreshold) { return false }
+            health.failureCount = 0
+            return true
+        }
+    }
+
+    fun getFailureCount(snode: Snode): Int {
+        val health = this.health[snode] ?: return 0
+        synchronized(health) {
+            decay(health)
+            return health.failureCount
+        }
+    }
+
+    /**
+     * @return The share of recent requests to `snode` that succeeded, counting one success in its favour.
+     */
+    fun getSuccessRate(snode: Snode): Double {
+        val health = this.health[snode] ?: return 1.0
+        synchronized(health) {
+            decay(health)
+            return (health.successes + 1) / (health.successes + health.failures + 1)
+        }
+    }
+
+    /**
+     * @return The given percentile, from 0 to 1, of the last `latencySampleCount` latencies of `snode`.
+     */
+    fun getLatencyPercentile(snode: Snode, percentile: Double): Long? {
+        val health = this.health[snode] ?: return null
+        synchronized(health) {
+            return getLatencyPercentile(health, percentile)
+        }
+    }
+
+    /**
+     * Picks a random snode out of `snodes`, favouring healthy ones.
+     */
+    fun choose(snodes: Collection<Snode>): Snode? {
+        return choose(snodes, 1).firstOrNull()
+    }
+
+    /**
+     * Picks `count` different random snodes out of `snodes`, favouring healthy ones. Returns all of them, in random
+     * order, if there aren't more than `count`.
+     */
+    fun choose(snodes: Collection<Snode>, count: Int): List<Snode> {
+        val medianLatencies = snodes.associateWith { snode ->
+            this.health[snode]?.let { synchronized(it) { it.medianLatency } }
+        }
+        // Snodes that haven't been timed yet are assumed to be as fast as the others
+        val defaultLatency = medianLatencies.values.filterNotNull().map { it.toDouble() }.average().takeIf { !it.isNaN() } ?: 0.0
+        val weights = medianLatencies.entries.associateTo(LinkedHashMap()) { (snode, medianLatency) ->
+            val latency = medianLatency?.toDouble() ?: defaultLatency
+            val weight = getSuccessRate(snode) * referenceLatency / (referenceLatency + latency)
+            Pair(snode, maxOf(weight, minimumWeight))
+        }
+        val result = mutableListOf<Snode>()
+        while (result.size < count && weights.isNotEmpty()) {
+            var target = random.nextDouble() * weights.values.sum()
+            val snode = weights.keys.firstOrNull { target -= weights[it]!!; target < 0 } ?: weights.keys.last()
+            weights.remove(snode)
+            result.add(snode)
+        }
+        return result
+    }
+
+    private fun getHealth(snode: Snode): Health {
+        this.health[snode]?.let { return it }
+        val health = Health(latencySampleCount, clock())
+        return this.health.putIfAbsent(snode, health) ?: health
+    }
+
+    // Must be called while holding the lock on `health`
+    private fun decay(health: Health) {
+        val now = clock()
+        if (now > health.decayedAt) {
+            val factor = Math.pow(0.5, (now - health.decayedAt).toDouble() / successRateHalfLife)
+            health.successes *= factor
+            health.failures *= factor
+            health.decayedAt = now
+        }
+        val decayCount = (now - health.failureCountDecayedAt) / failureDecayInterval
+        if (health.failureCount > 0 && decayCount > 0) {
+            health.failureCount -= minOf(decayCount, health.failureCount.toLong()).toInt()
+            health.failureCountDecayedAt += decayCount * failureDecayInterval
+        }
+    }
+
+    // Must be called while holding the lock on `health`
+    private fun getLatencyPercentile(health: Health, percentile: Double): Long? {
+        val sampleCount = minOf(health.latencyCount, latencySampleCount)
+        if (sampleCount == 0) { return null }
+        val latencies = health.latencies.copyOf(sampleCount).sorted()
+        return latencies[((sampleCount - 1) * percentile).toInt()]
+    }
+}
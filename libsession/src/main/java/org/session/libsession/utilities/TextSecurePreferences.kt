@@ -102,6 +102,7 @@ object TextSecurePreferences {
     const val IS_USING_FCM = "pref_is_using_fcm"
     private const val FCM_TOKEN = "pref_fcm_token"
     private const val LAST_FCM_TOKEN_UPLOAD_TIME = "pref_last_fcm_token_upload_time_2"
+    private const val PENDING_CLOSED_GROUP_PN_OPERATIONS = "pref_pending_closed_group_pn_operations"
 
     private const val LAST_CONFIGURATION_SYNC_TIME = "pref_last_configuration_sync_time"
     const val CONFIGURATION_SYNCED = "pref_configuration_synced"
@@ -158,6 +159,14 @@ object TextSecurePreferences {
         setLongPreference(context, LAST_FCM_TOKEN_UPLOAD_TIME, value)
     }
 
+    fun getPendingClosedGroupPNOperations(context: Context): String? {
+        return getStringPreference(context, PENDING_CLOSED_GROUP_PN_OPERATIONS, null)
+    }
+
+    fun setPendingClosedGroupPNOperations(context: Context, value: String?) {
+        setStringPreference(context, PENDING_CLOSED_GROUP_PN_OPERATIONS, value)
+    }
+
     // endregion
     @JvmStatic
     fun isScreenLockEnabled(context: Context): Boolean {
@@ -50,6 +50,7 @@ import org.session.libsession.utilities.ProfilePictureModifiedEvent;
 import org.session.libsession.utilities.FutureTaskListener;
 import org.session.libsession.utilities.ListenableFutureTask;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -109,6 +110,13 @@ public class Recipient implements RecipientModifiedListener {
     return provider.getRecipient(context, address, settings, groupRecord, asynchronous);
   }
 
+  /**
+   * Resolves all the given addresses, loading the settings of the ones that aren't cached yet in bulk.
+   */
+  public static @NonNull List<Recipient> from(@NonNull Context context, @NonNull Collection<Address> addresses, boolean asynchronous) {
+    return provider.getRecipients(context, addresses, asynchronous);
+  }
+
   public static void applyCached(@NonNull Address address, Consumer<Recipient> consumer) {
     Optional<Recipient> recipient = provider.getCached(address);
     if (recipient.isPresent()) consumer.accept(recipient.get());
@@ -189,43 +197,7 @@ public class Recipient implements RecipientModifiedListener {
       @Override
       public void onSuccess(RecipientDetails result) {
         if (result != null) {
-          synchronized (Recipient.this) {
-            Recipient.this.name                   = result.name;
-            Recipient.this.contactUri             = result.contactUri;
-            Recipient.this.systemContactPhoto     = result.systemContactPhoto;
-            Recipient.this.groupAvatarId          = result.groupAvatarId;
-            Recipient.this.isLocalNumber          = result.isLocalNumber;
-            Recipient.this.color                  = result.color;
-            Recipient.this.customLabel            = result.customLabel;
-            Recipient.this.messageRingtone        = result.messageRingtone;
-            Recipient.this.callRingtone           = result.callRingtone;
-            Recipient.this.mutedUntil             = result.mutedUntil;
-            Recipient.this.blocked                = result.blocked;
-            Recipient.this.messageVibrate         = result.messageVibrateState;
-            Recipient.this.callVibrate            = result.callVibrateState;
-            Recipient.this.expireMessages         = result.expireMessages;
-            Recipient.this.defaultSubscriptionId  = result.defaultSubscriptionId;
-            Recipient.this.registered             = result.registered;
-            Recipient.this.notificationChannel    = result.notificationChannel;
-            Recipient.this.profileKey             = result.profileKey;
-            Recipient.this.profileName            = result.profileName;
-            Recipient.this.profileAvatar          = result.profileAvatar;
-            Recipient.this.profileSharing         = result.profileSharing;
-            Recipient.this.unidentifiedAccessMode = result.unidentifiedAccessMode;
-            Recipient.this.forceSmsSelection      = result.forceSmsSelection;
-
-            Recipient.this.participants.clear();
-            Recipient.this.participants.addAll(result.participants);
-            Recipient.this.resolving = false;
-
-            if (!listeners.isEmpty()) {
-              for (Recipient recipient : participants) recipient.addListener(Recipient.this);
-            }
-
-            Recipient.this.notifyAll();
-          }
-
-          notifyListeners();
+          updateRecipientDetails(result);
         }
       }
 
@@ -236,6 +208,49 @@ public class Recipient implements RecipientModifiedListener {
     });
   }
 
+  /**
+   * Fills in the details of a recipient that's still resolving, and lets its listeners know.
+   */
+  void updateRecipientDetails(@NonNull RecipientDetails result) {
+    synchronized (this) {
+      this.name                   = result.name;
+      this.contactUri             = result.contactUri;
+      this.systemContactPhoto     = result.systemContactPhoto;
+      this.groupAvatarId          = result.groupAvatarId;
+      this.isLocalNumber          = result.isLocalNumber;
+      this.color                  = result.color;
+      this.customLabel            = result.customLabel;
+      this.messageRingtone        = result.messageRingtone;
+      this.callRingtone           = result.callRingtone;
+      this.mutedUntil             = result.mutedUntil;
+      this.blocked                = result.blocked;
+      this.messageVibrate         = result.messageVibrateState;
+      this.callVibrate            = result.callVibrateState;
+      this.expireMessages         = result.expireMessages;
+      this.defaultSubscriptionId  = result.defaultSubscriptionId;
+      this.registered             = result.registered;
+      this.notificationChannel    = result.notificationChannel;
+      this.profileKey             = result.profileKey;
+      this.profileName            = result.profileName;
+      this.profileAvatar          = result.profileAvatar;
+      this.profileSharing         = result.profileSharing;
+      this.unidentifiedAccessMode = result.unidentifiedAccessMode;
+      this.forceSmsSelection      = result.forceSmsSelection;
+
+      this.participants.clear();
+      this.participants.addAll(result.participants);
+      this.resolving = false;
+
+      if (!listeners.isEmpty()) {
+        for (Recipient recipient : participants) recipient.addListener(this);
+      }
+
+      notifyAll();
+    }
+
+    notifyListeners();
+  }
+
   Recipient(@NonNull Context context, @NonNull Address address, @NonNull RecipientDetails details) {
     this.context                = context;
     this.address                = address;
@@ -394,6 +409,32 @@ public class Recipient implements RecipientModifiedListener {
     EventBus.getDefault().post(new ProfilePictureModifiedEvent(this));
   }
 
+  /**
+   * Applies a contact's profile in one go, notifying listeners once. Null fields are left untouched.
+   * Mirrors {@code RecipientDatabase#setContactProfiles}.
+   */
+  public void setContactProfile(@Nullable String profileName, @Nullable byte[] profileKey, @Nullable String profileAvatar) {
+    boolean avatarChanged;
+
+    synchronized (this) {
+      avatarChanged = profileAvatar != null && !profileAvatar.equals(this.profileAvatar);
+
+      if (profileName != null) {
+        this.name        = profileName;
+        this.profileName = profileName;
+      }
+
+      if (profileKey    != null) this.profileKey    = profileKey;
+      if (profileAvatar != null) this.profileAvatar = profileAvatar;
+
+      this.profileSharing = true;
+      this.registered     = RegisteredState.REGISTERED;
+    }
+
+    notifyListeners();
+    if (avatarChanged) EventBus.getDefault().post(new ProfilePictureModifiedEvent(this));
+  }
+
   public synchronized boolean isProfileSharing() {
     return profileSharing;
   }
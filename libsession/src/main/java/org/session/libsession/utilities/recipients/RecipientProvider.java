@@ -37,10 +37,14 @@ import org.session.libsession.utilities.SoftHashMap;
 import org.session.libsession.utilities.TextSecurePreferences;
 import org.session.libsession.utilities.Util;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 
@@ -54,6 +58,8 @@ class RecipientProvider {
   private static final RecipientCache  recipientCache         = new RecipientCache();
   private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
 
+  private static final RecipientSettingsLoader settingsLoader = new RecipientSettingsLoader(addresses -> MessagingModuleConfiguration.shared.getStorage().getRecipientSettings(addresses));
+
   private static final Map<String, RecipientDetails> STATIC_DETAILS = new HashMap<String, RecipientDetails>() {{
     put("262966", new RecipientDetails("Amazon", null, false, false, null, null));
   }};
@@ -77,6 +83,49 @@ class RecipientProvider {
     return cachedRecipient;
   }
 
+  /**
+   * Resolves many recipients at once. The settings of all the addresses that aren't cached yet are
+   * loaded in bulk, rather than with one query per recipient.
+   */
+  @NonNull List<Recipient> getRecipients(@NonNull Context context, @NonNull Collection<Address> addresses, boolean asynchronous) {
+    Set<Address> toLoad = new HashSet<>();
+
+    for (Address address : addresses) {
+      Recipient cachedRecipient = recipientCache.get(address);
+
+      if (cachedRecipient == null || cachedRecipient.isResolving()) {
+        toLoad.add(address);
+      }
+    }
+
+    Map<Address, RecipientSettings> settings   = toLoad.isEmpty() ? new HashMap<>() : settingsLoader.getAll(toLoad);
+    List<Recipient>                 recipients = new ArrayList<>(addresses.size());
+
+    for (Address address : addresses) {
+      if (!toLoad.contains(address)) {
+        recipients.add(getRecipient(context, address, Optional.absent(), Optional.absent(), asynchronous));
+      } else if (address.isGroup()) {
+        recipients.add(getRecipient(context, address, Optional.fromNullable(settings.get(address)), Optional.absent(), asynchronous));
+      } else {
+        // With the settings at hand there is no more I/O involved, so there's no point in resolving asynchronously.
+        RecipientDetails details         = getIndividualRecipientDetails(context, address, settings.get(address));
+        Recipient        cachedRecipient = recipientCache.get(address);
+
+        if (cachedRecipient != null && cachedRecipient.isResolving()) {
+          // Resolved in place, as its listeners wouldn't hear about a replacement
+          cachedRecipient.updateRecipientDetails(details);
+          recipients.add(cachedRecipient);
+        } else {
+          Recipient recipient = new Recipient(context, address, details);
+          recipientCache.set(address, recipient);
+          recipients.add(recipient);
+        }
+      }
+    }
+
+    return recipients;
+  }
+
   @NonNull Optional<Recipient> getCached(@NonNull Address address) {
     return Optional.fromNullable(recipientCache.get(address));
   }
@@ -114,16 +163,17 @@ class RecipientProvider {
   }
 
   private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, @NonNull Address address, Optional<RecipientSettings> settings) {
-    if (!settings.isPresent()) {
-      settings = Optional.fromNullable(MessagingModuleConfiguration.shared.getStorage().getRecipientSettings(address));
-    }
+    if (settings.isPresent()) return getIndividualRecipientDetails(context, address, settings.get());
+    else                      return getIndividualRecipientDetails(context, address, settingsLoader.get(address));
+  }
 
-    if (!settings.isPresent() && STATIC_DETAILS.containsKey(address.serialize())) {
+  private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, @NonNull Address address, @Nullable RecipientSettings settings) {
+    if (settings == null && STATIC_DETAILS.containsKey(address.serialize())) {
       return STATIC_DETAILS.get(address.serialize());
     } else {
-      boolean systemContact = settings.isPresent() && !TextUtils.isEmpty(settings.get().getSystemDisplayName());
+      boolean systemContact = settings != null && !TextUtils.isEmpty(settings.getSystemDisplayName());
       boolean isLocalNumber = address.serialize().equals(TextSecurePreferences.getLocalNumber(context));
-      return new RecipientDetails(null, null, systemContact, isLocalNumber, settings.orNull(), null);
+      return new RecipientDetails(null, null, systemContact, isLocalNumber, settings, null);
     }
   }
 
@@ -134,20 +184,15 @@ class RecipientProvider {
     }
 
     if (!settings.isPresent()) {
-
-      settings = Optional.fromNullable(MessagingModuleConfiguration.shared.getStorage().getRecipientSettings(groupId));
+      settings = Optional.fromNullable(settingsLoader.get(groupId));
     }
 
     if (groupRecord.isPresent()) {
       String          title           = groupRecord.get().getTitle();
       List<Address>   memberAddresses = groupRecord.get().getMembers();
-      List<Recipient> members         = new LinkedList<>();
+      List<Recipient> members         = new LinkedList<>(getRecipients(context, memberAddresses, asynchronous));
       Long            avatarId        = null;
 
-      for (Address memberAddress : memberAddresses) {
-        members.add(getRecipient(context, memberAddress, Optional.absent(), Optional.absent(), asynchronous));
-      }
-
       if (groupRecord.get().getAvatar() != null && groupRecord.get().getAvatar().length > 0) {
         avatarId = groupRecord.get().getAvatarId();
       }
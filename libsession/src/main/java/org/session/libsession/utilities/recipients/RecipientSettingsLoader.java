@@ -0,0 +1,148 @@
+package org.session.libsession.utilities.recipients;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.session.libsession.utilities.Address;
+import org.session.libsession.utilities.recipients.Recipient.RecipientSettings;
+import org.session.libsignal.utilities.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Loads {@link RecipientSettings} for many addresses at once.
+ *
+ * Addresses are looked up in batches of at most {@link #MAX_BATCH_SIZE}, one query per batch. A
+ * lookup for an address that is already being loaded by another thread waits for that load
+ * instead of querying it again.
+ */
+class RecipientSettingsLoader {
+
+  /** Keeps the number of bound arguments of a single query well below SQLite's limit of 999. */
+  static final int MAX_BATCH_SIZE = 500;
+
+  interface Source {
+    /**
+     * @return the settings of the given addresses, addresses without any settings are left out.
+     */
+    @NonNull Map<Address, RecipientSettings> getRecipientSettings(@NonNull List<Address> addresses);
+  }
+
+  private final Source source;
+  private final int    maxBatchSize;
+
+  private final Map<Address, SettableFuture<RecipientSettings>> inFlight = new HashMap<>();
+
+  RecipientSettingsLoader(@NonNull Source source) {
+    this(source, MAX_BATCH_SIZE);
+  }
+
+  RecipientSettingsLoader(@NonNull Source source, int maxBatchSize) {
+    this.source       = source;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  @Nullable RecipientSettings get(@NonNull Address address) {
+    List<Address> addresses = new ArrayList<>(1);
+    addresses.add(address);
+
+    return getAll(addresses).get(address);
+  }
+
+  /**
+   * @return the settings of the given addresses, addresses without any settings are left out.
+   */
+  @NonNull Map<Address, RecipientSettings> getAll(@NonNull Collection<Address> addresses) {
+    List<Address>                                   toLoad  = new ArrayList<>(addresses.size());
+    Map<Address, SettableFuture<RecipientSettings>> waiting = new LinkedHashMap<>();
+
+    synchronized (inFlight) {
+      for (Address address : new LinkedHashSet<>(addresses)) {
+        SettableFuture<RecipientSettings> pending = inFlight.get(address);
+
+        if (pending != null) {
+          waiting.put(address, pending);
+        } else {
+          inFlight.put(address, new SettableFuture<>());
+          toLoad.add(address);
+        }
+      }
+    }
+
+    Map<Address, RecipientSettings> results = new HashMap<>(addresses.size());
+
+    for (int start = 0; start < toLoad.size(); start += maxBatchSize) {
+      List<Address> batch = toLoad.subList(start, Math.min(toLoad.size(), start + maxBatchSize));
+
+      try {
+        results.putAll(source.getRecipientSettings(batch));
+      } catch (RuntimeException e) {
+        fail(toLoad.subList(start, toLoad.size()), e);
+        throw e;
+      }
+
+      complete(batch, results);
+    }
+
+    for (Map.Entry<Address, SettableFuture<RecipientSettings>> entry : waiting.entrySet()) {
+      RecipientSettings settings = await(entry.getValue());
+      if (settings != null) results.put(entry.getKey(), settings);
+    }
+
+    return results;
+  }
+
+  private void complete(@NonNull List<Address> batch, @NonNull Map<Address, RecipientSettings> results) {
+    List<SettableFuture<RecipientSettings>> completed = new ArrayList<>(batch.size());
+
+    synchronized (inFlight) {
+      for (Address address : batch) {
+        completed.add(inFlight.remove(address));
+      }
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      completed.get(i).set(results.get(batch.get(i)));
+    }
+  }
+
+  private void fail(@NonNull List<Address> addresses, @NonNull RuntimeException cause) {
+    List<SettableFuture<RecipientSettings>> failed = new ArrayList<>(addresses.size());
+
+    synchronized (inFlight) {
+      for (Address address : addresses) {
+        failed.add(inFlight.remove(address));
+      }
+    }
+
+    for (SettableFuture<RecipientSettings> future : failed) {
+      future.setException(cause);
+    }
+  }
+
+  private static @Nullable RecipientSettings await(@NonNull SettableFuture<RecipientSettings> future) {
+    boolean interrupted = false;
+
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+          else                                          throw new AssertionError(e);
+        }
+      }
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package org.session.libsession.messaging.jobs
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class AttachmentUploadTrackerTest {
+
+    private val tracker = AttachmentUploadTracker()
+
+    @Test
+    fun `the message is resumed after its last upload only`() {
+        tracker.await("1", listOf(10L, 11L, 12L))
+
+        assertFalse(tracker.handleUploaded("1", 11L))
+        assertFalse(tracker.handleUploaded("1", 10L))
+        assertTrue(tracker.handleUploaded("1", 12L))
+    }
+
+    @Test
+    fun `messages are tracked separately`() {
+        tracker.await("1", listOf(10L))
+        tracker.await("2", listOf(20L, 21L))
+
+        assertFalse(tracker.handleUploaded("2", 20L))
+        assertTrue(tracker.handleUploaded("1", 10L))
+        assertTrue(tracker.handleUploaded("2", 21L))
+    }
+
+    @Test
+    fun `untracked messages are resumed after any upload`() {
+        assertTrue(tracker.handleUploaded("1", 10L))
+        assertTrue(tracker.handleUploaded("1", 11L))
+    }
+
+    @Test
+    fun `awaiting again replaces what the message was waiting for`() {
+        tracker.await("1", listOf(10L, 11L))
+        // e.g. 10 finished before the message send job ran again
+        tracker.await("1", listOf(11L))
+
+        assertTrue(tracker.handleUploaded("1", 11L))
+    }
+
+    @Test
+    fun `awaiting nothing stops tracking`() {
+        tracker.await("1", listOf(10L, 11L))
+        tracker.await("1", emptyList())
+
+        assertTrue(tracker.handleUploaded("1", 10L))
+    }
+
+    @Test
+    fun `failed messages stop being tracked`() {
+        tracker.await("1", listOf(10L, 11L))
+        tracker.handleFailed("1")
+
+        assertTrue(tracker.handleUploaded("1", 10L))
+    }
+
+    @Test
+    fun `concurrent uploads resume the message once`() {
+        val attachmentIDs = (0L until 10L).toList()
+        val executor = Executors.newFixedThreadPool(attachmentIDs.size)
+        val resumed = AtomicInteger()
+
+        try {
+            repeat(100) {
+                tracker.await("1", attachmentIDs)
+                resumed.set(0)
+
+                val start = CountDownLatch(1)
+                val done = CountDownLatch(attachmentIDs.size)
+                for (attachmentID in attachmentIDs) {
+                    executor.execute {
+                        start.await()
+                        if (tracker.handleUploaded("1", attachmentID)) { resumed.incrementAndGet() }
+                        done.countDown()
+                    }
+                }
+                start.countDown()
+                assertTrue(done.await(10, TimeUnit.SECONDS))
+
+                assertEquals(1, resumed.get())
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.session.libsession.messaging.jobs
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.session.libsession.messaging.utilities.Data
+import org.session.libsession.utilities.SilentLogger
+import org.session.libsignal.utilities.Log
+import java.util.concurrent.Executor
+
+class JobBookkeeperTest {
+
+    private class ManualExecutor : Executor {
+        val pending = ArrayDeque<Runnable>()
+
+        override fun execute(command: Runnable) {
+            pending.addLast(command)
+        }
+
+        fun runAll() {
+            while (pending.isNotEmpty()) { pending.removeFirst().run() }
+        }
+    }
+
+    private class TestJob(var state: Int = 0) : Job {
+        override var delegate: JobDelegate? = null
+        override var id: String? = null
+        override var failureCount = 0
+        override val maxFailureCount = 0
+
+        override fun execute() { }
+        override fun serialize() = Data.EMPTY
+        override fun getFactoryKey() = "TestJob"
+    }
+
+    /**
+     * Keeps the rows of a job table in memory, counting the transactions it's written in.
+     */
+    private class MemoryStore : JobBookkeeper.Store {
+        val rows = HashMap<String, Int>()
+        var transactionCount = 0
+        var writeCount = 0
+        var fails = false
+        var onWrite: () -> Unit = { }
+
+        override fun persistJobChanges(added: List<Job>, updated: List<Job>, finishedJobIDs: List<String>) {
+            onWrite()
+            if (fails) { throw IllegalStateException() }
+            transactionCount += 1
+            writeCount += added.size + updated.size + finishedJobIDs.size
+            added.forEach { rows[it.id!!] = (it as TestJob).state }
+            updated.forEach { job -> if (rows.containsKey(job.id!!)) { rows[job.id!!] = (job as TestJob).state } }
+            finishedJobIDs.forEach { rows.remove(it) }
+        }
+    }
+
+    private val store = MemoryStore()
+    private val executor = ManualExecutor()
+    private val persisted = mutableListOf<Job>()
+    private var now = 1_600_000_000_000L
+    private val bookkeeper = JobBookkeeper(store, executor, { now }) { job ->
+        // Jobs only run once they've been written
+        assertTrue(store.rows.containsKey(job.id!!))
+        persisted.add(job)
+    }
+
+    @Before
+    fun setUp() {
+        // Failed writes get logged, which android.util.Log doesn't support in unit tests
+        Log.initialize(SilentLogger)
+    }
+
+    @Test
+    fun `ids are unique and increasing within a millisecond and across clock changes`() {
+        val start = now * 1000
+        val ids = (1..5).map { bookkeeper.nextID().toLong() }
+        now -= 1000
+        val afterClockChange = bookkeeper.nextID().toLong()
+        now += 2000
+        val later = bookkeeper.nextID().toLong()
+
+        assertEquals((0L..4L).map { start + it }, ids)
+        assertEquals(ids.last() + 1, afterClockChange)
+        assertEquals(now * 1000, later)
+    }
+
+    @Test
+    fun `ids sort after those of resumed jobs`() {
+        bookkeeper.skipPast(((now + 60_000) * 1000).toString())
+        bookkeeper.skipPast("not a number")
+
+        assertEquals((now + 60_000) * 1000 + 1, bookkeeper.nextID().toLong())
+    }
+
+    @Test
+    fun `legacy ids sort before current ones and by their counter`() {
+        val legacyIDs = listOf("${now - 1000}0", "${now - 1000}2", "${now - 1000}10", "${now - 999}0")
+        val ids = (1..2).map { bookkeeper.nextID() }
+        val laterIDs = listOf(((now + 1) * 1000).toString(), ((now + 2) * 1000 + 1).toString())
+
+        val expected = legacyIDs + ids + laterIDs
+        assertEquals(expected, expected.reversed().sortedWith(JobBookkeeper.idComparator))
+        // Sorted as strings the counters, and the jobs from before and after the change, mix
+        assertTrue(expected.sorted() != expected)
+    }
+
+    @Test
+    fun `jobs added together are written in one transaction before they run`() {
+        val jobs = (1..50).map { TestJob() }
+        jobs.forEach { bookkeeper.add(it) }
+
+        assertTrue(persisted.isEmpty())
+        executor.runAll()
+
+        assertEquals(1, store.transactionCount)
+        assertEquals(jobs, persisted)
+    }
+
+    @Test
+    fun `updates are coalesced and dropped for finished jobs`() {
+        val jobs = (1..3).map { TestJob() }
+        jobs.forEach { bookkeeper.add(it) }
+        executor.runAll()
+
+        (1..10).forEach { state ->
+            jobs.forEach { it.state = state; bookkeeper.update(it) }
+        }
+        bookkeeper.finish(jobs[0].id!!)
+        bookkeeper.update(jobs[0])
+        executor.runAll()
+
+        assertEquals(2, store.transactionCount)
+        assertEquals(3 + 2 + 1, store.writeCount)
+        assertEquals(mapOf(jobs[1].id!! to 10, jobs[2].id!! to 10), store.rows)
+        assertEquals(0, bookkeeper.pendingCount)
+    }
+
+    @Test
+    fun `canceled jobs never run`() {
+        val jobs = (0..5).map { TestJob(it) }
+        val isOdd = { job: Job -> (job as TestJob).state % 2 == 1 }
+        jobs.take(3).forEach { bookkeeper.add(it) }
+        // Jobs that are being written when they're canceled are written, and then finished
+        store.onWrite = {
+            store.onWrite = { }
+            jobs.drop(3).forEach { bookkeeper.add(it) }
+            bookkeeper.cancel(isOdd)
+        }
+        executor.runAll()
+
+        assertEquals(listOf(jobs[0], jobs[2], jobs[4]), persisted)
+        assertEquals(persisted.map { it.id!! }.toSet(), store.rows.keys)
+        assertEquals(0, bookkeeper.pendingCount)
+    }
+
+    @Test
+    fun `jobs still run if they can't be written`() {
+        store.fails = true
+        val job = TestJob()
+        val bookkeeper = JobBookkeeper(store, executor, { now }) { persisted.add(it) }
+        bookkeeper.add(job)
+        executor.runAll()
+
+        assertEquals(listOf<Job>(job), persisted)
+        assertEquals(0, bookkeeper.pendingCount)
+    }
+
+    @Test
+    fun `a million jobs leave nothing behind`() {
+        val ticks = 1000
+        val jobsPerTick = 1000
+        var lastID = 0L
+
+        repeat(ticks) { tick ->
+            repeat(jobsPerTick) { bookkeeper.add(TestJob()) }
+            executor.runAll()
+            persisted.forEach { job ->
+                val id = job.id!!.toLong()
+                assertTrue(id > lastID)
+                lastID = id
+                bookkeeper.finish(job.id!!)
+            }
+            persisted.clear()
+            if (tick % 10 == 0) { now += 1 }
+        }
+        executor.runAll()
+
+        assertEquals(0, bookkeeper.pendingCount)
+        assertTrue(store.rows.isEmpty())
+        assertEquals(2 * ticks * jobsPerTick, store.writeCount)
+        // Each tick's jobs are added in one transaction, and finished along with the next tick's
+        assertEquals(ticks + 1, store.transactionCount)
+    }
+}
@@ -0,0 +1,195 @@
+package org.session.libsession.messaging.jobs
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.session.libsession.messaging.utilities.Data
+import org.session.libsession.utilities.SilentLogger
+import org.session.libsignal.utilities.Log
+import java.util.concurrent.Executor
+
+class JobLaneTest {
+
+    /**
+     * Holds on to the jobs a lane starts until the test runs them, so that a job counts as running
+     * from the moment it's started until the test lets it finish.
+     */
+    private class ManualExecutor : Executor {
+        val pending = ArrayDeque<Runnable>()
+
+        override fun execute(command: Runnable) {
+            pending.addLast(command)
+        }
+
+        fun runNext() {
+            pending.removeFirst().run()
+        }
+
+        fun runAll() {
+            while (pending.isNotEmpty()) { runNext() }
+        }
+    }
+
+    private class TestJob(val type: String, val name: String, val run: () -> Unit = {}) : Job {
+        override var delegate: JobDelegate? = null
+        override var id: String? = null
+        override var failureCount = 0
+        override val maxFailureCount = 0
+
+        override fun execute() = run()
+        override fun serialize() = Data.EMPTY
+        override fun getFactoryKey() = type
+    }
+
+    private val executor = ManualExecutor()
+    private val log = mutableListOf<String>()
+    private var now = 0L
+
+    private fun lane(concurrency: Int, policies: Map<String, JobLane.Policy>, maxSkips: Int = 8): JobLane {
+        return JobLane("test", concurrency, executor, policies, maxSkips, { now }) { job ->
+            log.add((job as TestJob).name)
+            job.execute()
+        }
+    }
+
+    @Before
+    fun setUp() {
+        // Failed jobs get logged, which android.util.Log doesn't support in unit tests
+        Log.initialize(SilentLogger)
+    }
+
+    private val rxPolicies = mapOf(
+        MessageReceiveJob.KEY to JobLane.Policy(1),
+        TrimThreadJob.KEY to JobLane.Policy(0)
+    )
+
+    private fun receive(name: String, run: () -> Unit = {}) = TestJob(MessageReceiveJob.KEY, name, run)
+    private fun trim(name: String, run: () -> Unit = {}) = TestJob(TrimThreadJob.KEY, name, run)
+
+    @Test
+    fun `higher priority jobs run first`() {
+        val lane = lane(1, rxPolicies)
+
+        (1..3).forEach { lane.add(trim("t$it")) }
+        (1..3).forEach { lane.add(receive("r$it")) }
+        executor.runAll()
+
+        assertEquals(listOf("t1", "r1", "r2", "r3", "t2", "t3"), log)
+    }
+
+    @Test
+    fun `jobs of a type don't run beyond its limit`() {
+        val lane = lane(3, mapOf(
+            MessageSendJob.KEY to JobLane.Policy(1, maxConcurrent = 1),
+            NotifyPNServerJob.KEY to JobLane.Policy(0, maxConcurrent = 1)
+        ))
+
+        (1..3).forEach { lane.add(TestJob(MessageSendJob.KEY, "s$it")) }
+        (1..3).forEach { lane.add(TestJob(NotifyPNServerJob.KEY, "n$it")) }
+
+        assertEquals(2, executor.pending.size)
+        assertEquals(2, lane.metrics.running)
+        assertEquals(4, lane.metrics.queueDepth)
+
+        executor.runAll()
+
+        assertEquals(listOf("s1", "n1", "s2", "n2", "s3", "n3"), log)
+    }
+
+    @Test
+    fun `types of the same priority take turns`() {
+        val lane = lane(1, mapOf())
+
+        (1..3).forEach { lane.add(TestJob("a", "a$it")) }
+        (1..3).forEach { lane.add(TestJob("b", "b$it")) }
+        lane.add(TestJob("c", "c1"))
+        executor.runAll()
+
+        assertEquals(listOf("a1", "b1", "c1", "a2", "b2", "a3", "b3"), log)
+    }
+
+    @Test
+    fun `low priority jobs aren't starved`() {
+        val lane = lane(1, rxPolicies, maxSkips = 2)
+
+        lane.add(receive("r0"))
+        lane.add(trim("t1"))
+        (1..6).forEach { lane.add(receive("r$it")) }
+        executor.runAll()
+
+        assertEquals(listOf("r0", "r1", "r2", "t1", "r3", "r4", "r5", "r6"), log)
+    }
+
+    @Test
+    fun `a failing job frees its slot`() {
+        val lane = lane(1, rxPolicies)
+
+        lane.add(receive("r1") { throw IllegalStateException() })
+        lane.add(receive("r2"))
+        executor.runAll()
+
+        assertEquals(listOf("r1", "r2"), log)
+        assertEquals(0, lane.metrics.running)
+    }
+
+    @Test
+    fun `metrics report queue depth and wait times`() {
+        val lane = lane(1, rxPolicies)
+
+        lane.add(receive("r1"))
+        now = 100
+        lane.add(receive("r2"))
+        lane.add(trim("t1"))
+
+        var metrics = lane.metrics
+        assertEquals(2, metrics.queueDepth)
+        assertEquals(1, metrics.running)
+        assertEquals(1, metrics.started)
+
+        now = 400
+        executor.runAll()
+
+        metrics = lane.metrics
+        assertEquals(0, metrics.queueDepth)
+        assertEquals(0, metrics.running)
+        assertEquals(3, metrics.started)
+        assertEquals(300, metrics.maxWaitMillis)
+        assertEquals(200, metrics.averageWaitMillis)
+    }
+
+    @Test
+    fun `receives stay responsive behind a backlog of trims`() {
+        val jobDuration = 10L
+        val receiveInterval = 30L
+        val receiveCount = 50
+        val lane = lane(1, rxPolicies)
+        val receiveWaits = mutableListOf<Long>()
+
+        // A thread's worth of trims is queued, then messages keep coming in while they run
+        (1..200).forEach { lane.add(trim("t$it") { now += jobDuration }) }
+        var received = 0
+        var nextReceive = 0L
+        while (executor.pending.isNotEmpty() || received < receiveCount) {
+            if (received < receiveCount && now >= nextReceive) {
+                val queuedAt = now
+                lane.add(receive("r$received") {
+                    receiveWaits.add(now - queuedAt)
+                    now += jobDuration
+                })
+                received += 1
+                nextReceive += receiveInterval
+            } else if (executor.pending.isNotEmpty()) {
+                executor.runNext()
+            } else {
+                now = nextReceive
+            }
+        }
+
+        assertEquals(receiveCount, receiveWaits.size)
+        assertEquals(200, log.count { it.startsWith("t") })
+        // A receive only ever waits for the job that's running, while the trims wait for everything
+        assertTrue(receiveWaits.toString(), receiveWaits.all { it <= jobDuration })
+        assertTrue(lane.metrics.maxWaitMillis >= 200 * jobDuration)
+    }
+}
@@ -0,0 +1,71 @@
+package org.session.libsession.messaging.jobs
+
+import com.esotericsoftware.kryo.Kryo
+import com.esotericsoftware.kryo.io.Input
+import com.esotericsoftware.kryo.io.Output
+import org.junit.Ignore
+import org.junit.Test
+import org.session.libsession.messaging.messages.visible.LinkPreview
+import org.session.libsession.messaging.messages.visible.Profile
+import org.session.libsession.messaging.messages.visible.Quote
+import org.session.libsession.messaging.messages.visible.VisibleMessage
+
+/**
+ * Compares the round-trip throughput of [JobPayloadCodec] with the previous fresh Kryo per job, for
+ * large messages with many attachments. It only reports the numbers, so it's ignored by default and
+ * meant to be run by hand.
+ */
+@Ignore("Benchmark")
+class JobPayloadCodecBenchmark {
+
+    private val publicKey = "05" + "ab".repeat(32)
+
+    private fun largeMessage(attachmentCount: Int): VisibleMessage {
+        val message = VisibleMessage()
+        message.sentTimestamp = 1_600_000_000_000
+        message.recipient = publicKey
+        message.sender = publicKey
+        message.text = "Lorem ipsum dolor sit amet. ".repeat(5_000)
+        message.attachmentIDs.addAll((1L..attachmentCount.toLong()))
+        message.quote = Quote(1_500_000_000_000, publicKey, "Quoted text", 42)
+        message.linkPreview = LinkPreview("Title", "https://getsession.org", 43)
+        message.profile = Profile("Alice", ByteArray(32) { it.toByte() }, "https://example.com/avatar")
+        return message
+    }
+
+    private fun legacyRoundTrip(value: Any): Any {
+        val kryo = Kryo()
+        kryo.isRegistrationRequired = false
+        val output = Output(ByteArray(4096), Job.MAX_BUFFER_SIZE)
+        kryo.writeClassAndObject(output, value)
+        output.close()
+        val decodingKryo = Kryo()
+        decodingKryo.isRegistrationRequired = false
+        return decodingKryo.readClassAndObject(Input(output.toBytes()))
+    }
+
+    private fun measure(name: String, iterations: Int, roundTrip: () -> Any) {
+        repeat(WARM_UP_ITERATIONS) { roundTrip() }
+        val start = System.nanoTime()
+        repeat(iterations) { roundTrip() }
+        val elapsedNanos = System.nanoTime() - start
+        val roundTripsPerSecond = iterations * 1_000_000_000.0 / elapsedNanos
+        println("$name: ${"%.1f".format(roundTripsPerSecond)} round trips/s (${elapsedNanos / iterations / 1000} us each)")
+    }
+
+    @Test
+    fun roundTripThroughput() {
+        for (attachmentCount in listOf(10, 100, 500)) {
+            val message = largeMessage(attachmentCount)
+            measure("Pooled codec, $attachmentCount attachments", ITERATIONS) {
+                JobPayloadCodec.decode(JobPayloadCodec.encode(message), VisibleMessage::class.java)
+            }
+            measure("Fresh Kryo per job, $attachmentCount attachments", ITERATIONS) { legacyRoundTrip(message) }
+        }
+    }
+
+    companion object {
+        private const val WARM_UP_ITERATIONS = 50
+        private const val ITERATIONS = 300
+    }
+}
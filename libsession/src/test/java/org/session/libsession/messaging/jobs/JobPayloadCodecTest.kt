@@ -0,0 +1,135 @@
+package org.session.libsession.messaging.jobs
+
+import com.esotericsoftware.kryo.Kryo
+import com.esotericsoftware.kryo.io.Output
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsession.messaging.messages.Destination
+import org.session.libsession.messaging.messages.Message
+import org.session.libsession.messaging.messages.visible.LinkPreview
+import org.session.libsession.messaging.messages.visible.Profile
+import org.session.libsession.messaging.messages.visible.Quote
+import org.session.libsession.messaging.messages.visible.VisibleMessage
+import org.session.libsession.snode.SnodeMessage
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class JobPayloadCodecTest {
+
+    private val publicKey = "05" + "ab".repeat(32)
+
+    private fun largeMessage(attachmentCount: Int = 500): VisibleMessage {
+        val message = VisibleMessage()
+        message.sentTimestamp = 1_600_000_000_000
+        message.recipient = publicKey
+        message.sender = publicKey
+        message.text = "Lorem ipsum dolor sit amet. ".repeat(5_000)
+        message.attachmentIDs.addAll((1L..attachmentCount.toLong()))
+        message.quote = Quote(1_500_000_000_000, publicKey, "Quoted text", 42)
+        message.linkPreview = LinkPreview("Title", "https://getsession.org", 43)
+        message.profile = Profile("Alice", ByteArray(32) { it.toByte() }, "https://example.com/avatar")
+        return message
+    }
+
+    private fun legacyEncode(value: Any, withClass: Boolean): ByteArray {
+        val kryo = Kryo()
+        kryo.isRegistrationRequired = false
+        val output = Output(ByteArray(4096), Job.MAX_BUFFER_SIZE)
+        if (withClass) { kryo.writeClassAndObject(output, value) } else { kryo.writeObject(output, value) }
+        output.close()
+        return output.toBytes()
+    }
+
+    private fun assertSameMessage(expected: VisibleMessage, actual: Message) {
+        actual as VisibleMessage
+        assertEquals(expected.sentTimestamp, actual.sentTimestamp)
+        assertEquals(expected.recipient, actual.recipient)
+        assertEquals(expected.text, actual.text)
+        assertEquals(expected.attachmentIDs, actual.attachmentIDs)
+        assertEquals(expected.quote!!.text, actual.quote!!.text)
+        assertEquals(expected.quote!!.attachmentID, actual.quote!!.attachmentID)
+        assertEquals(expected.linkPreview!!.url, actual.linkPreview!!.url)
+        assertEquals(expected.profile!!.displayName, actual.profile!!.displayName)
+        assertArrayEquals(expected.profile!!.profileKey, actual.profile!!.profileKey)
+    }
+
+    @Test
+    fun roundTripsLargeMessagesWithManyAttachments() {
+        val message = largeMessage()
+
+        val decoded = JobPayloadCodec.decode(JobPayloadCodec.encode(message), Message::class.java)
+
+        assertSameMessage(message, decoded)
+    }
+
+    @Test
+    fun roundTripsDestinationsAndSnodeMessages() {
+        val destination = JobPayloadCodec.decode(JobPayloadCodec.encode(Destination.OpenGroupV2("room", "https://server")), Destination::class.java)
+        val snodeMessage = SnodeMessage(publicKey, "data", 1000, 2000)
+
+        destination as Destination.OpenGroupV2
+        assertEquals("room", destination.room)
+        assertEquals("https://server", destination.server)
+        assertEquals(snodeMessage, JobPayloadCodec.decode(JobPayloadCodec.encode(snodeMessage), SnodeMessage::class.java))
+    }
+
+    @Test
+    fun decodesLegacyPayloads() {
+        val message = largeMessage(10)
+        val snodeMessage = SnodeMessage(publicKey, "data", 1000, 2000)
+
+        val decodedMessage = JobPayloadCodec.decode(legacyEncode(message, true), Message::class.java)
+        val decodedDestination = JobPayloadCodec.decode(legacyEncode(Destination.Contact(publicKey), true), Destination::class.java)
+        val decodedSnodeMessage = JobPayloadCodec.decode(legacyEncode(snodeMessage, false), SnodeMessage::class.java, JobPayloadCodec.LegacyFormat.OBJECT)
+
+        assertSameMessage(message, decodedMessage)
+        assertEquals(publicKey, (decodedDestination as Destination.Contact).publicKey)
+        assertEquals(snodeMessage, decodedSnodeMessage)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectsUnknownVersions() {
+        val encoded = JobPayloadCodec.encode(Destination.Contact(publicKey))
+        encoded[4] = 99
+        JobPayloadCodec.decode(encoded, Destination::class.java)
+    }
+
+    @Test
+    fun registeredClassesAreEncodedCompactly() {
+        val destination = Destination.ClosedGroup(publicKey)
+
+        val encoded = JobPayloadCodec.encode(destination)
+        val legacy = legacyEncode(destination, true)
+
+        assertTrue("${encoded.size} bytes vs ${legacy.size} bytes", encoded.size < legacy.size)
+    }
+
+    @Test
+    fun encodesConcurrently() {
+        val executor = Executors.newFixedThreadPool(8)
+        val tasks = (0 until 8).map { thread ->
+            executor.submit {
+                repeat(200) { index ->
+                    val message = largeMessage(thread * 10 + index % 10)
+                    assertSameMessage(message, JobPayloadCodec.decode(JobPayloadCodec.encode(message), Message::class.java))
+                }
+            }
+        }
+        tasks.forEach { it.get(1, TimeUnit.MINUTES) }
+        executor.shutdown()
+    }
+
+    @Test
+    fun reusesPooledKryoInstances() {
+        val createdKryoCount = AtomicInteger()
+        val codec = JobPayloadCodec.Codec { createdKryoCount.incrementAndGet(); JobPayloadCodec.newKryo() }
+        val message = largeMessage(10)
+
+        repeat(100) { codec.decode(codec.encode(message), Message::class.java, JobPayloadCodec.LegacyFormat.CLASS_AND_OBJECT) }
+
+        assertEquals(1, createdKryoCount.get())
+    }
+}
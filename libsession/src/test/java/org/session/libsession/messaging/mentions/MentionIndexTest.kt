@@ -0,0 +1,129 @@
+package org.session.libsession.messaging.mentions
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsession.messaging.contacts.Contact
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+class MentionIndexTest {
+
+    private fun publicKey(index: Int) = "05" + index.toString().padStart(64, '0')
+
+    private fun contact(index: Int, name: String?, nickname: String? = null): Contact {
+        val contact = Contact(publicKey(index))
+        contact.name = name
+        contact.nickname = nickname
+        return contact
+    }
+
+    private fun indexOf(vararg contacts: Contact): MentionIndex {
+        val index = MentionIndex()
+        index.addAll(contacts.map { it.sessionID }, contacts.associateBy { it.sessionID })
+        return index
+    }
+
+    @Test
+    fun ranksNameStartsBeforeLaterWordsThenAlphabetically() {
+        val index = indexOf(contact(1, "Mary Jones"), contact(2, "John Smith"), contact(3, "joanna"), contact(4, "Bob"), contact(5, "Ann Jo Jo"))
+
+        val names = index.search("jo", false).map { it.displayName }
+
+        assertEquals(listOf("joanna", "John Smith", "Ann Jo Jo", "Mary Jones"), names)
+    }
+
+    @Test
+    fun matchesAcrossWords() {
+        val index = indexOf(contact(1, "Mary Jane Smith"), contact(2, "Jane Doe"))
+
+        assertEquals(listOf("Mary Jane Smith"), index.search("jane sm", false).map { it.displayName })
+        assertEquals(listOf("Jane Doe", "Mary Jane Smith"), index.search("JANE", false).map { it.displayName })
+    }
+
+    @Test
+    fun shortQueriesReturnEveryoneAlphabetically() {
+        val index = indexOf(contact(1, "charlie"), contact(2, "Alice"), contact(3, "bob"), contact(4, null))
+
+        assertEquals(listOf("Alice", "bob", "charlie"), index.search("", false).map { it.displayName })
+        assertEquals(listOf("Alice", "bob", "charlie"), index.search("b", false).map { it.displayName })
+        assertEquals(4, index.publicKeys.size)
+    }
+
+    @Test
+    fun excludesTheGivenPublicKeyAndUsesOpenGroupNames() {
+        val index = indexOf(contact(1, "Alice"), contact(2, "Alan"))
+
+        val candidates = index.search("al", true, publicKey(2))
+
+        assertEquals(listOf(Mention(publicKey(1), "Alice (...00000001)")), candidates)
+    }
+
+    @Test
+    fun updatesReplaceThePreviousName() {
+        val index = indexOf(contact(1, "Alice"), contact(2, null))
+
+        index.update(contact(1, "Alice", "Wonder"))
+        index.update(contact(2, "Bob"))
+        index.update(contact(3, "Not a participant"))
+
+        assertTrue(index.search("al", false).isEmpty())
+        assertEquals(listOf("Wonder"), index.search("wo", false).map { it.displayName })
+        assertEquals(listOf("Bob"), index.search("bo", false).map { it.displayName })
+        assertTrue(index.search("not", false).isEmpty())
+    }
+
+    @Test
+    fun searchesLargeGroups() {
+        val contacts = (0 until 10_000).map { contact(it, "user$it member") }
+        val index = indexOf(*contacts.toTypedArray())
+
+        val candidates = index.search("user99", false)
+
+        // user99, user990-999 and user9900-9999
+        assertEquals(111, candidates.size)
+        assertEquals("user99 member", candidates.first().displayName)
+        assertEquals(10_000, index.search("member", false).size)
+    }
+
+    @Test
+    fun searchesWhileContactsUpdate() {
+        val contacts = (0 until 1000).map { contact(it, "user$it") }
+        val index = indexOf(*contacts.toTypedArray())
+        val executor = Executors.newFixedThreadPool(4)
+        val start = CountDownLatch(1)
+        val failure = AtomicReference<Throwable>()
+
+        for (writer in 0 until 2) {
+            executor.execute {
+                start.await()
+                try {
+                    for (round in 0 until 20) {
+                        for (i in writer until 1000 step 2) { index.update(contact(i, "user$i", "nick$i-$round")) }
+                    }
+                } catch (e: Throwable) {
+                    failure.compareAndSet(null, e)
+                }
+            }
+        }
+        for (reader in 0 until 2) {
+            executor.execute {
+                start.await()
+                try {
+                    repeat(2000) { index.search("ni", false); index.search("user1", false) }
+                } catch (e: Throwable) {
+                    failure.compareAndSet(null, e)
+                }
+            }
+        }
+        start.countDown()
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES))
+
+        assertEquals(null, failure.get())
+        assertEquals(1000, index.search("nick", false).size)
+        assertTrue(index.search("user", false).isEmpty())
+    }
+}
@@ -0,0 +1,176 @@
+package org.session.libsession.messaging.sending_receiving
+
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+class KeyPairRotationCoordinatorTest {
+
+    private val executor = Executors.newCachedThreadPool()
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    private fun members(count: Int) = (0 until count).map { "05" + it.toString().padStart(64, '0') }
+
+    /**
+     * Completes each rotation from another thread after a short while, the way a network send would.
+     */
+    private fun delayed(block: () -> Unit): Promise<Unit, Exception> {
+        val deferred = deferred<Unit, Exception>()
+        executor.execute {
+            Thread.sleep(2)
+            block()
+            deferred.resolve(Unit)
+        }
+        return deferred.promise
+    }
+
+    private fun awaitAll(promises: List<Promise<Unit, Exception>>): Throwable? {
+        val latch = CountDownLatch(promises.size)
+        val failure = AtomicReference<Throwable>()
+        for (promise in promises) {
+            promise.success { latch.countDown() }.fail { failure.compareAndSet(null, it); latch.countDown() }
+        }
+        assertTrue(latch.await(1, TimeUnit.MINUTES))
+        return failure.get()
+    }
+
+    @Test
+    fun concurrentRemovalsNeverOverlapAndAreAllCovered() {
+        val clock = AtomicLong()
+        val active = AtomicInteger()
+        val maxActive = AtomicInteger()
+        val rotations = AtomicInteger()
+        val lastCompletedStart = AtomicLong()
+        val coordinator = KeyPairRotationCoordinator(executor) { _, _ ->
+            val startedAt = clock.incrementAndGet()
+            val current = active.incrementAndGet()
+            maxActive.accumulateAndGet(current) { a, b -> maxOf(a, b) }
+            rotations.incrementAndGet()
+            delayed {
+                active.decrementAndGet()
+                lastCompletedStart.accumulateAndGet(startedAt) { a, b -> maxOf(a, b) }
+            }
+        }
+        val requests = 200
+        val start = CountDownLatch(1)
+        val uncovered = AtomicInteger()
+        val promises = Collections.synchronizedList(mutableListOf<Promise<Unit, Exception>>())
+        val callers = (0 until requests).map { index ->
+            executor.submit {
+                start.await()
+                val requestedAt = clock.incrementAndGet()
+                val promise = coordinator.requestRotation("group", members(100 - index / 2))
+                promise.success { if (lastCompletedStart.get() < requestedAt) { uncovered.incrementAndGet() } }
+                promises.add(promise)
+            }
+        }
+        start.countDown()
+        callers.forEach { it.get(1, TimeUnit.MINUTES) }
+
+        assertEquals(null, awaitAll(promises))
+        assertEquals(1, maxActive.get())
+        assertEquals(0, uncovered.get())
+        assertTrue("${rotations.get()} rotations for $requests requests", rotations.get() < requests)
+    }
+
+    @Test
+    fun followUpRotationTargetsTheLatestMembers() {
+        val targets = Collections.synchronizedList(mutableListOf<Collection<String>>())
+        val release = CountDownLatch(1)
+        val coordinator = KeyPairRotationCoordinator(executor) { _, targetMembers ->
+            targets.add(targetMembers)
+            delayed { release.await() }
+        }
+
+        val promises = (5 downTo 1).map { coordinator.requestRotation("group", members(it)) }
+        release.countDown()
+
+        assertEquals(null, awaitAll(promises))
+        assertEquals(members(1), targets.last())
+        assertTrue(targets.size <= 2)
+    }
+
+    @Test
+    fun groupsRotateInParallel() {
+        val bothStarted = CountDownLatch(2)
+        val coordinator = KeyPairRotationCoordinator(executor) { _, _ ->
+            bothStarted.countDown()
+            delayed { bothStarted.await() }
+        }
+
+        val promises = listOf(coordinator.requestRotation("group1", members(3)), coordinator.requestRotation("group2", members(3)))
+
+        assertEquals(null, awaitAll(promises))
+    }
+
+    @Test
+    fun failedRotationDoesNotBlockTheGroup() {
+        val attempts = AtomicInteger()
+        val coordinator = KeyPairRotationCoordinator(executor) { _, _ ->
+            if (attempts.incrementAndGet() == 1) { throw IllegalStateException() }
+            delayed { }
+        }
+
+        val failure = awaitAll(listOf(coordinator.requestRotation("group", members(3))))
+        assertTrue(failure is IllegalStateException)
+
+        assertEquals(null, awaitAll(listOf(coordinator.requestRotation("group", members(2)))))
+        assertEquals(2, attempts.get())
+    }
+
+    @Test
+    fun encryptsInParallelAndKeepsTheOrder() {
+        val publicKeys = members(100)
+        val active = AtomicInteger()
+        val maxActive = AtomicInteger()
+        val threads = ConcurrentHashMap.newKeySet<Thread>()
+        val pool = Executors.newFixedThreadPool(3)
+        try {
+            val ciphertexts = KeyPairRotationCoordinator.encryptForEach(byteArrayOf(1, 2), publicKeys, pool, 3) { plaintext, publicKey ->
+                maxActive.accumulateAndGet(active.incrementAndGet()) { a, b -> maxOf(a, b) }
+                threads.add(Thread.currentThread())
+                Thread.sleep(1)
+                active.decrementAndGet()
+                plaintext + publicKey.toByteArray()
+            }
+
+            assertEquals(publicKeys.size, ciphertexts.size)
+            for ((index, publicKey) in publicKeys.withIndex()) {
+                assertArrayEquals(byteArrayOf(1, 2) + publicKey.toByteArray(), ciphertexts[index])
+            }
+            assertTrue(maxActive.get() <= 3)
+            assertTrue(threads.size > 1)
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun encryptionFailuresAreRethrown() {
+        val pool = Executors.newFixedThreadPool(2)
+        try {
+            KeyPairRotationCoordinator.encryptForEach(byteArrayOf(), members(10), pool, 2) { _, publicKey ->
+                if (publicKey == members(10)[7]) { throw IllegalArgumentException() }
+                byteArrayOf()
+            }
+        } finally {
+            pool.shutdown()
+        }
+    }
+}
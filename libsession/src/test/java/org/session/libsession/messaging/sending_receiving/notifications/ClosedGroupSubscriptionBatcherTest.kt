@@ -0,0 +1,262 @@
+package org.session.libsession.messaging.sending_receiving.notifications
+
+import com.sun.net.httpserver.HttpServer
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.task
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.session.libsession.messaging.sending_receiving.notifications.ClosedGroupSubscriptionBatcher.Operation
+import org.session.libsession.messaging.sending_receiving.notifications.PushNotificationAPI.ClosedGroupOperation
+import org.session.libsession.utilities.SilentLogger
+import org.session.libsignal.utilities.JsonUtil
+import org.session.libsignal.utilities.Log
+import java.net.HttpURLConnection
+import java.net.InetSocketAddress
+import java.net.URL
+import java.util.Collections
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+class ClosedGroupSubscriptionBatcherTest {
+
+    private val userPublicKey = "05" + "aa".repeat(32)
+
+    private lateinit var server: StandInNotificationServer
+    private lateinit var executor: ScheduledExecutorService
+
+    @Before
+    fun setUp() {
+        // Failures get logged, which android.util.Log doesn't support in unit tests
+        Log.initialize(SilentLogger)
+        server = StandInNotificationServer()
+        executor = Executors.newSingleThreadScheduledExecutor()
+    }
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+        server.stop()
+    }
+
+    private fun groupPublicKey(index: Int) = "05" + index.toString().padStart(64, '0')
+
+    private fun subscribe(index: Int, publicKey: String = userPublicKey) = Operation(ClosedGroupOperation.Subscribe, groupPublicKey(index), publicKey)
+
+    private fun unsubscribe(index: Int) = Operation(ClosedGroupOperation.Unsubscribe, groupPublicKey(index), userPublicKey)
+
+    private fun batcher(store: MemoryStore = MemoryStore(), windowMs: Long = 100) =
+        ClosedGroupSubscriptionBatcher(HttpTransport(server.url), store, executor, windowMs)
+
+    private fun awaitIdle(batcher: ClosedGroupSubscriptionBatcher) {
+        val deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10)
+        while (batcher.pendingOperations.isNotEmpty() && System.currentTimeMillis() < deadline) { Thread.sleep(10) }
+        assertTrue(batcher.pendingOperations.isEmpty())
+    }
+
+    @Test
+    fun coalescesOperationsWithinTheWindowIntoOneRequest() {
+        val store = MemoryStore()
+        val batcher = batcher(store)
+
+        for (index in 0 until 50) { batcher.enqueue(subscribe(index)) }
+        awaitIdle(batcher)
+
+        assertEquals(1, server.batchRequests.size)
+        assertEquals(0, server.individualRequests.size)
+        assertEquals((0 until 50).map { groupPublicKey(it) }.toSet(), server.subscriptions[userPublicKey])
+        assertNull(store.serialized)
+    }
+
+    @Test
+    fun keepsOnlyTheLatestOperationPerGroup() {
+        val batcher = batcher()
+
+        batcher.enqueue(subscribe(1))
+        batcher.enqueue(subscribe(2))
+        batcher.enqueue(unsubscribe(1))
+        awaitIdle(batcher)
+
+        assertEquals(1, server.batchRequests.size)
+        assertEquals(2, server.batchRequests[0].size)
+        assertEquals(setOf(groupPublicKey(2)), server.subscriptions[userPublicKey])
+    }
+
+    @Test
+    fun sendsOneBatchPerPublicKey() {
+        val otherPublicKey = "05" + "bb".repeat(32)
+        val batcher = batcher()
+
+        batcher.enqueue(subscribe(1))
+        batcher.enqueue(subscribe(2, otherPublicKey))
+        awaitIdle(batcher)
+
+        assertEquals(2, server.batchRequests.size)
+        assertEquals(setOf(groupPublicKey(2)), server.subscriptions[otherPublicKey])
+    }
+
+    @Test
+    fun pendingOperationsSurviveRestarts() {
+        val store = MemoryStore()
+        server.isAvailable = false
+        val batcher = batcher(store, windowMs = 60_000)
+
+        batcher.enqueue(subscribe(1))
+        batcher.enqueue(subscribe(2))
+        executor.shutdownNow()
+
+        // Restart
+        executor = Executors.newSingleThreadScheduledExecutor()
+        server.isAvailable = true
+        val restarted = batcher(store)
+        restarted.resume()
+        awaitIdle(restarted)
+
+        assertEquals(setOf(groupPublicKey(1), groupPublicKey(2)), server.subscriptions[userPublicKey])
+        assertNull(store.serialized)
+    }
+
+    @Test
+    fun retriesFailedBatches() {
+        val store = MemoryStore()
+        val batcher = batcher(store)
+        server.failuresLeft = 1
+
+        batcher.enqueue(subscribe(1))
+        awaitIdle(batcher)
+
+        assertEquals(2, server.batchRequests.size)
+        assertEquals(setOf(groupPublicKey(1)), server.subscriptions[userPublicKey])
+    }
+
+    @Test
+    fun fallsBackOnIndividualRequestsIfBatchingIsUnsupported() {
+        server.isBatchingSupported = false
+        val batcher = batcher()
+
+        for (index in 0 until 5) { batcher.enqueue(subscribe(index)) }
+        awaitIdle(batcher)
+        batcher.enqueue(subscribe(5))
+        awaitIdle(batcher)
+
+        assertFalse(batcher.isBatchingSupported)
+        assertEquals(1, server.batchRequests.size)
+        assertEquals(6, server.individualRequests.size)
+        assertEquals((0 until 6).map { groupPublicKey(it) }.toSet(), server.subscriptions[userPublicKey])
+    }
+
+    @Test
+    fun serializesOperations() {
+        val operations = listOf(subscribe(1), unsubscribe(2))
+
+        assertEquals(operations, ClosedGroupSubscriptionBatcher.deserialize(ClosedGroupSubscriptionBatcher.serialize(operations)))
+        assertNull(ClosedGroupSubscriptionBatcher.serialize(listOf()))
+        assertTrue(ClosedGroupSubscriptionBatcher.deserialize("garbage").isEmpty())
+    }
+
+    private class MemoryStore : ClosedGroupSubscriptionBatcher.Store {
+        @Volatile var serialized: String? = null
+
+        override fun load(): String? = serialized
+        override fun save(serialized: String?) { this.serialized = serialized }
+    }
+
+    /**
+     * Talks to the stand-in server directly rather than through an onion request.
+     */
+    private class HttpTransport(private val url: String) : ClosedGroupSubscriptionBatcher.Transport {
+
+        override fun sendBatch(publicKey: String, operations: List<Operation>): Promise<Boolean, Exception> = task {
+            val (status, json) = post("closed_group_operations", ClosedGroupSubscriptionBatcher.getBatchParameters(publicKey, operations))
+            if (status == 404) { return@task false }
+            if (status != 200 || json["code"] != 1) { throw Exception("Batch failed with status code $status.") }
+            true
+        }
+
+        override fun send(operation: Operation): Promise<Unit, Exception> = task {
+            val parameters = mapOf( "closedGroupPublicKey" to operation.closedGroupPublicKey, "pubKey" to operation.publicKey )
+            val (status, json) = post(operation.operation.rawValue, parameters)
+            if (status != 200 || json["code"] != 1) { throw Exception("Operation failed with status code $status.") }
+        }
+
+        private fun post(path: String, parameters: Map<String, Any>): Pair<Int, Map<*, *>> {
+            val connection = URL("$url/$path").openConnection() as HttpURLConnection
+            connection.requestMethod = "POST"
+            connection.doOutput = true
+            connection.setRequestProperty("Content-Type", "application/json")
+            connection.outputStream.use { it.write(JsonUtil.toJson(parameters).toByteArray()) }
+            val status = connection.responseCode
+            val stream = if (status < 400) connection.inputStream else connection.errorStream
+            val body = stream.use { String(it.readBytes()) }
+            return status to JsonUtil.fromJson(body, Map::class.java)
+        }
+    }
+
+    /**
+     * Mimics the subscription endpoints of the push notification server.
+     */
+    private class StandInNotificationServer {
+        private val httpServer = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+
+        val url = "http://127.0.0.1:${httpServer.address.port}"
+        val batchRequests: MutableList<List<Map<*, *>>> = Collections.synchronizedList(mutableListOf())
+        val individualRequests: MutableList<Map<*, *>> = Collections.synchronizedList(mutableListOf())
+        val subscriptions = mutableMapOf<String, MutableSet<String>>()
+
+        @Volatile var isAvailable = true
+        @Volatile var isBatchingSupported = true
+        @Volatile var failuresLeft = 0
+
+        init {
+            httpServer.createContext("/") { exchange ->
+                val json = JsonUtil.fromJson(String(exchange.requestBody.readBytes()), Map::class.java)
+                val path = exchange.requestURI.path.removePrefix("/")
+                val (status, response) = handle(path, json)
+                val bytes = JsonUtil.toJson(response).toByteArray()
+                exchange.sendResponseHeaders(status, bytes.size.toLong())
+                exchange.responseBody.use { it.write(bytes) }
+            }
+            httpServer.start()
+        }
+
+        @Synchronized
+        private fun handle(path: String, json: Map<*, *>): Pair<Int, Map<String, Any>> {
+            if (!isAvailable) { return 503 to mapOf( "code" to 0, "message" to "Unavailable" ) }
+            val publicKey = json["pubKey"] as String
+            when (path) {
+                "closed_group_operations" -> {
+                    val operations = (json["operations"] as List<*>).map { it as Map<*, *> }
+                    batchRequests.add(operations)
+                    if (!isBatchingSupported) { return 404 to mapOf( "code" to 0, "message" to "Not found" ) }
+                    if (failuresLeft > 0) {
+                        failuresLeft -= 1
+                        return 500 to mapOf( "code" to 0, "message" to "Internal error" )
+                    }
+                    operations.forEach { apply(it["operation"] as String, it["closedGroupPublicKey"] as String, publicKey) }
+                }
+                else -> {
+                    individualRequests.add(json)
+                    apply(path, json["closedGroupPublicKey"] as String, publicKey)
+                }
+            }
+            return 200 to mapOf( "code" to 1 )
+        }
+
+        private fun apply(operation: String, closedGroupPublicKey: String, publicKey: String) {
+            val groups = subscriptions.getOrPut(publicKey) { mutableSetOf() }
+            when (operation) {
+                ClosedGroupOperation.Subscribe.rawValue -> groups.add(closedGroupPublicKey)
+                ClosedGroupOperation.Unsubscribe.rawValue -> groups.remove(closedGroupPublicKey)
+            }
+        }
+
+        fun stop() {
+            httpServer.stop(0)
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.session.libsession.messaging.sending_receiving.pollers
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsession.messaging.sending_receiving.pollers.ClosedGroupPollScheduler.ActivityBasedIntervalPolicy
+import org.session.libsession.messaging.sending_receiving.pollers.ClosedGroupPollScheduler.ExponentialIntervalPolicy
+import org.session.libsession.messaging.sending_receiving.pollers.ClosedGroupPollScheduler.RequestBudget
+import org.session.libsignal.utilities.Snode
+
+class ClosedGroupPollSchedulerTest {
+
+    private class Request(val time: Long, val snode: Snode?, val groupPublicKeys: List<String>)
+
+    /**
+     * Records the requests it's asked to make, and completes them right away with the message
+     * counts set for each group.
+     */
+    private inner class FakeTransport(override val maxGroupsPerRequest: Int) : ClosedGroupPollScheduler.Transport {
+        val swarms = HashMap<String, Set<Snode>>()
+        val messageCounts = HashMap<String, Int>()
+        val lastMessageTimes = HashMap<String, Long>()
+        val requests = mutableListOf<Request>()
+
+        override fun getSwarm(groupPublicKey: String) = swarms[groupPublicKey]
+
+        override fun getLastMessageTime(groupPublicKey: String) = lastMessageTimes[groupPublicKey]
+
+        override fun poll(snode: Snode?, groupPublicKeys: List<String>, onCompleted: (Map<String, Int>) -> Unit) {
+            requests.add(Request(now, snode, groupPublicKeys))
+            onCompleted(groupPublicKeys.associateWith { messageCounts[it] ?: 0 })
+        }
+    }
+
+    private var now = 1_600_000_000_000L
+    private val snodes = (1..6).map { Snode("https://10.0.0.$it", 22021, null) }
+
+    private fun scheduler(transport: FakeTransport, policy: ClosedGroupPollScheduler.IntervalPolicy, budget: RequestBudget): ClosedGroupPollScheduler {
+        return ClosedGroupPollScheduler(transport, policy, budget, { now })
+    }
+
+    /**
+     * Ticks the scheduler whenever it asks to be, or a poll completes, until [duration] has passed.
+     */
+    private fun run(scheduler: ClosedGroupPollScheduler, transport: FakeTransport, duration: Long) {
+        val end = now + duration
+        while (now < end) {
+            val requestCount = transport.requests.size
+            val delay = scheduler.tick()
+            // The fake transport completes polls right away, which calls for another tick
+            if (transport.requests.size > requestCount) { continue }
+            now += maxOf(delay ?: return, 1)
+        }
+    }
+
+    @Test
+    fun `polls stay within the request budget`() {
+        val transport = FakeTransport(1)
+        val scheduler = scheduler(transport, ExponentialIntervalPolicy(2000, 60_000), RequestBudget(10, 1000))
+        (1..50).forEach { scheduler.add("group$it") }
+        (1..50).step(5).forEach { transport.messageCounts["group$it"] = 1 }
+
+        val duration = 10 * 60 * 1000L
+        val start = now
+        run(scheduler, transport, duration)
+
+        val polled = transport.requests.flatMap { it.groupPublicKeys }.toSet()
+        assertEquals(50, polled.size)
+        // Every window of time holds at most a full burst plus what refilled during it
+        val times = transport.requests.map { it.time - start }
+        times.forEachIndexed { i, time ->
+            val window = times.drop(i).takeWhile { it < time + 5000 }
+            assertTrue("${window.size} requests in 5s at $time", window.size <= 10 + 5)
+        }
+        assertTrue(transport.requests.size <= 10 + duration / 1000)
+        // The budget is what limits busy groups
+        assertTrue(transport.requests.size >= duration / 1000 - 10)
+    }
+
+    @Test
+    fun `groups that are due while the budget is used up are polled most overdue first`() {
+        val transport = FakeTransport(1)
+        val scheduler = scheduler(transport, ExponentialIntervalPolicy(1000, 1000), RequestBudget(2, 1000))
+        (1..4).forEach { scheduler.add("group$it"); now += 1 }
+
+        assertEquals(1000L, scheduler.tick())
+        assertEquals(listOf("group1", "group2"), transport.requests.flatMap { it.groupPublicKeys })
+
+        now += 1000
+        scheduler.tick()
+        assertEquals("group3", transport.requests.last().groupPublicKeys.single())
+        now += 1000
+        scheduler.tick()
+        assertEquals("group4", transport.requests.last().groupPublicKeys.single())
+    }
+
+    @Test
+    fun `groups sharing a snode are polled together`() {
+        val transport = FakeTransport(3)
+        transport.swarms["a1"] = setOf(snodes[0], snodes[1])
+        transport.swarms["a2"] = setOf(snodes[1], snodes[2])
+        transport.swarms["a3"] = setOf(snodes[1])
+        transport.swarms["a4"] = setOf(snodes[1])
+        transport.swarms["b1"] = setOf(snodes[4], snodes[5])
+        val scheduler = scheduler(transport, ExponentialIntervalPolicy(1000, 1000), RequestBudget(10, 1000))
+        listOf("a1", "b1", "a2", "a3", "a4", "c1").forEach { scheduler.add(it) }
+
+        scheduler.tick()
+
+        val requests = transport.requests.associateBy { it.groupPublicKeys.first() }
+        assertEquals(4, transport.requests.size)
+        assertEquals(listOf("a1", "a2", "a3"), requests["a1"]!!.groupPublicKeys)
+        assertEquals(snodes[1], requests["a1"]!!.snode)
+        assertTrue(requests["b1"]!!.snode in transport.swarms["b1"]!!)
+        assertEquals(listOf("a4"), requests["a4"]!!.groupPublicKeys)
+        // Groups without a known swarm are left to the transport
+        assertNull(requests["c1"]!!.snode)
+    }
+
+    @Test
+    fun `groups that aren't due yet fill up requests that go out anyway`() {
+        val transport = FakeTransport(2)
+        transport.swarms["active"] = setOf(snodes[0])
+        transport.swarms["quiet"] = setOf(snodes[0])
+        transport.messageCounts["active"] = 1
+        val scheduler = scheduler(transport, ExponentialIntervalPolicy(1000, 60_000), RequestBudget(10, 1000))
+        scheduler.add("active")
+        scheduler.add("quiet")
+
+        run(scheduler, transport, 60_000)
+
+        // The quiet group is never due before the active one polls it along
+        assertTrue(transport.requests.all { it.groupPublicKeys == listOf("active", "quiet") })
+        assertEquals(60, transport.requests.size)
+    }
+
+    @Test
+    fun `exponential policy backs off from quiet groups`() {
+        val transport = FakeTransport(1)
+        val scheduler = scheduler(transport, ExponentialIntervalPolicy(1000, 8000), RequestBudget(10, 1000))
+        scheduler.add("group")
+
+        val start = now
+        run(scheduler, transport, 40_000)
+        transport.messageCounts["group"] = 1
+        run(scheduler, transport, 2000)
+
+        val times = transport.requests.map { it.time - start }
+        assertEquals(listOf(0L, 2000, 6000, 14_000, 22_000, 30_000, 38_000, 46_000, 47_000), times)
+    }
+
+    @Test
+    fun `activity based policy polls recently active groups more often`() {
+        val transport = FakeTransport(1)
+        val policy = ActivityBasedIntervalPolicy(4000, 4 * 60 * 1000, 12 * 60 * 60 * 1000, 5 * 60 * 1000)
+        val scheduler = scheduler(transport, policy, RequestBudget(10, 1000))
+        transport.lastMessageTimes["recent"] = now - 60 * 1000
+        transport.lastMessageTimes["inactive"] = now - 24 * 60 * 60 * 1000
+        scheduler.add("recent")
+        scheduler.add("inactive")
+
+        run(scheduler, transport, 30 * 60 * 1000)
+
+        val pollCounts = transport.requests.groupingBy { it.groupPublicKeys.single() }.eachCount()
+        assertEquals(8, pollCounts["inactive"])
+        assertTrue(pollCounts.toString(), pollCounts["recent"]!! > 20 * pollCounts["inactive"]!!)
+    }
+
+    @Test
+    fun `activity based policy picks up messages that weren't polled`() {
+        val transport = FakeTransport(1)
+        val policy = ActivityBasedIntervalPolicy(4000, 4 * 60 * 1000, 12 * 60 * 60 * 1000, 5 * 60 * 1000)
+        val scheduler = scheduler(transport, policy, RequestBudget(10, 1000))
+        transport.lastMessageTimes["group"] = now - 24 * 60 * 60 * 1000
+        scheduler.add("group")
+
+        run(scheduler, transport, 10 * 60 * 1000)
+        assertEquals(3, transport.requests.size)
+
+        // A message is sent in the group, which the scheduler's polls never see
+        transport.lastMessageTimes["group"] = now
+        run(scheduler, transport, 10 * 60 * 1000)
+
+        // Only the poll that was already scheduled waits for the full interval
+        val times = transport.requests.drop(3).map { it.time }
+        assertTrue(times.toString(), times.size > 10)
+        assertTrue(times.zipWithNext { a, b -> b - a }.all { it < 60 * 1000 })
+    }
+
+    @Test
+    fun `removed groups aren't polled again`() {
+        val transport = FakeTransport(1)
+        val scheduler = scheduler(transport, ExponentialIntervalPolicy(1000, 1000), RequestBudget(10, 1000))
+        scheduler.add("group1")
+        scheduler.add("group2")
+        scheduler.tick()
+
+        scheduler.remove("group1")
+        now += 1000
+        scheduler.tick()
+        scheduler.remove("group2")
+        now += 1000
+
+        assertNull(scheduler.tick())
+        assertEquals(listOf("group1", "group2", "group2"), transport.requests.flatMap { it.groupPublicKeys })
+        assertTrue(scheduler.groupPublicKeys.isEmpty())
+    }
+}
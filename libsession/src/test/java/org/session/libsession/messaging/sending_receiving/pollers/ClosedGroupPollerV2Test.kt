@@ -0,0 +1,61 @@
+package org.session.libsession.messaging.sending_receiving.pollers
+
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsession.messaging.sending_receiving.pollers.ClosedGroupPollScheduler.ExponentialIntervalPolicy
+import org.session.libsignal.utilities.Snode
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ClosedGroupPollerV2Test {
+
+    /**
+     * Completes polls right away on the thread that asked for them, or on a thread of its own.
+     */
+    private inner class CountingTransport(private val completesAsynchronously: Boolean, pollCount: Int) : ClosedGroupPollScheduler.Transport {
+        val polled = CountDownLatch(pollCount)
+
+        override val maxGroupsPerRequest = 1
+
+        override fun getSwarm(groupPublicKey: String): Set<Snode>? = null
+
+        override fun getLastMessageTime(groupPublicKey: String): Long? = null
+
+        override fun poll(snode: Snode?, groupPublicKeys: List<String>, onCompleted: (Map<String, Int>) -> Unit) {
+            polled.countDown()
+            val complete = { onCompleted(groupPublicKeys.associateWith { 0 }) }
+            if (completesAsynchronously) completionExecutor.execute(complete) else complete()
+        }
+    }
+
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private val completionExecutor = Executors.newSingleThreadExecutor()
+
+    @After
+    fun tearDown() {
+        // Completions schedule ticks, so they have to stop first
+        completionExecutor.shutdownNow()
+        completionExecutor.awaitTermination(10, TimeUnit.SECONDS)
+        executor.shutdownNow()
+    }
+
+    private fun assertKeepsPolling(transport: CountingTransport) {
+        val poller = ClosedGroupPollerV2(executor, transport, ExponentialIntervalPolicy(20, 20))
+        poller.startPolling("05group")
+
+        // Polls that complete while a tick is running, and the ticks those schedule, must both go ahead
+        assertTrue("Polling stopped", transport.polled.await(10, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun `groups keep being polled when polls complete during a tick`() {
+        assertKeepsPolling(CountingTransport(false, 10))
+    }
+
+    @Test
+    fun `groups keep being polled when polls complete after a tick`() {
+        assertKeepsPolling(CountingTransport(true, 10))
+    }
+}
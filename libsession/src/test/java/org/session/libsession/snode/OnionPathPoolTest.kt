@@ -0,0 +1,285 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.DirectDispatcher
+import nl.komponents.kovenant.Kovenant
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.session.libsession.utilities.SilentLogger
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+import kotlin.random.Random
+
+class OnionPathPoolTest {
+
+    // Runs promise callbacks right away, so that nothing happens between steps of the simulation
+    private val directContext = Kovenant.createContext {
+        callbackContext.dispatcher = DirectDispatcher.instance
+        workerContext.dispatcher = DirectDispatcher.instance
+    }
+
+    private var now = 0L
+
+    /**
+     * Stands in for a network of snodes. Building a path takes [buildTime] and only ever picks a
+     * guard snode that's up, as guard snodes are tested, while requests fail if any snode on their
+     * path is down.
+     */
+    private inner class SimulatedNetwork(snodeCount: Int, private val buildTime: Long, seed: Int = 0) {
+        val random = Random(seed)
+        val snodes = (1..snodeCount).map { Snode("https://10.0.0.$it", 22021, null) }
+        val latencies = snodes.associateWith { 50L + random.nextLong(200) }
+        val downSnodes = mutableSetOf<Snode>()
+        val paths = mutableListOf<List<Snode>>()
+        var buildCount = 0
+        val pendingBuildCount: Int
+            get() = pendingBuilds.size
+        private val pendingBuilds = mutableListOf<Pair<Long, () -> Unit>>()
+
+        val builder = object : OnionPathPool.Builder {
+
+            override fun buildPath(snodesToExclude: Set<Snode>): Promise<List<Snode>, Exception> {
+                buildCount += 1
+                val deferred = deferred<List<Snode>, Exception>(directContext)
+                pendingBuilds.add(Pair(now + buildTime, {
+                    val candidates = snodes.minus(snodesToExclude)
+                    val guardSnode = candidates.filter { it !in downSnodes }.random(random)
+                    deferred.resolve(listOf( guardSnode ) + candidates.minus(guardSnode).shuffled(random).take(2))
+                }))
+                return deferred.promise
+            }
+
+            override fun onPathsChanged(paths: List<List<Snode>>) {
+                this@SimulatedNetwork.paths.clear()
+                this@SimulatedNetwork.paths.addAll(paths)
+            }
+        }
+
+        val nextBuildTime: Long?
+            get() = pendingBuilds.map { it.first }.minOrNull()
+
+        /**
+         * Moves the clock to [time], finishing the builds that are done by then.
+         */
+        fun advance(time: Long) {
+            while (true) {
+                val build = pendingBuilds.filter { it.first <= time }.minByOrNull { it.first } ?: break
+                pendingBuilds.remove(build)
+                now = build.first
+                build.second()
+            }
+            now = time
+        }
+
+        fun getLatency(path: List<Snode>) = path.sumOf { latencies[it]!! }
+
+        fun isUp(path: List<Snode>) = path.none { it in downSnodes }
+    }
+
+    private fun pool(network: SimulatedNetwork, targetSpareCount: Int, maxSpareAge: Long = 10 * 60 * 1000): OnionPathPool {
+        return OnionPathPool(network.builder, 2, targetSpareCount, 3, maxSpareAge, { now })
+    }
+
+    /**
+     * Gets a path, moving the clock along until one has been built if needed.
+     */
+    private fun getPath(pool: OnionPathPool, network: SimulatedNetwork, snodeToExclude: Snode? = null): List<Snode> {
+        return getPath(pool.getPath(snodeToExclude), network)
+    }
+
+    private fun getPath(promise: Promise<List<Snode>, Exception>, network: SimulatedNetwork): List<Snode> {
+        while (!promise.isDone()) { network.advance(network.nextBuildTime!!) }
+        return promise.get()
+    }
+
+    @Before
+    fun setUp() {
+        // Failed builds get logged, which android.util.Log doesn't support in unit tests
+        Log.initialize(SilentLogger)
+    }
+
+    @Test
+    fun `spares are built in the background one at a time`() {
+        val network = SimulatedNetwork(30, 1000)
+        val pool = pool(network, 2)
+
+        // The first request waits for a path, after which the rest are built for the pool
+        getPath(pool, network)
+        assertEquals(1, pool.paths.size)
+        while (network.pendingBuildCount > 0) {
+            assertEquals(1, network.pendingBuildCount)
+            network.advance(network.nextBuildTime!!)
+        }
+
+        assertEquals(2, pool.paths.size)
+        assertEquals(2, pool.spareCount)
+        assertEquals(4, network.buildCount)
+        // Paths and spares don't share snodes
+        assertEquals(4 * 3, pool.getSnodesInUse().size)
+    }
+
+    @Test
+    fun `requests go over the path with the best score`() {
+        val network = SimulatedNetwork(30, 1000)
+        val pool = pool(network, 0)
+        getPath(pool, network)
+        network.advance(now + 10_000)
+        val (fast, slow) = pool.paths
+
+        pool.reportSuccess(fast, 100)
+        pool.reportSuccess(slow, 250)
+        assertEquals(fast, getPath(pool, network))
+
+        pool.reportFailure(fast)
+        pool.reportFailure(fast)
+        assertEquals(slow, getPath(pool, network))
+
+        pool.reportSuccess(fast, 100)
+        assertEquals(fast, getPath(pool, network))
+    }
+
+    @Test
+    fun `failing paths are swapped for spares right away`() {
+        val network = SimulatedNetwork(30, 1000)
+        val pool = pool(network, 2)
+        getPath(pool, network)
+        network.advance(now + 10_000)
+        val failingPath = pool.paths[0]
+        val spares = pool.getSnodesInUse().minus(pool.paths.flatten())
+
+        // The path is swapped, but a single failure doesn't put the blame on its snodes
+        assertFalse(pool.reportFailure(failingPath))
+
+        assertEquals(2, pool.paths.size)
+        assertFalse(failingPath in pool.paths)
+        assertTrue(spares.containsAll(pool.paths.last()))
+        assertEquals(pool.paths, network.paths)
+        assertEquals(1, pool.spareCount)
+        // Without waiting for the spare to be replaced
+        assertTrue(pool.getPath(null).isDone())
+        network.advance(now + 1000)
+        assertEquals(2, pool.spareCount)
+    }
+
+    @Test
+    fun `paths without spares are dropped after repeated failures`() {
+        val network = SimulatedNetwork(30, 1000)
+        val pool = pool(network, 0)
+        getPath(pool, network)
+        network.advance(now + 10_000)
+        val failingPath = pool.paths[0]
+
+        assertFalse(pool.reportFailure(failingPath))
+        pool.reportSuccess(failingPath, 100)
+        assertFalse(pool.reportFailure(failingPath))
+        assertFalse(pool.reportFailure(failingPath))
+        assertTrue(pool.reportFailure(failingPath))
+
+        assertEquals(listOf(pool.paths[0]), network.paths)
+        network.advance(now + 1000)
+        assertEquals(2, pool.paths.size)
+        assertFalse(failingPath in pool.paths)
+    }
+
+    @Test
+    fun `spares are used when all paths contain the snode to exclude`() {
+        val network = SimulatedNetwork(30, 1000)
+        val pool = pool(network, 1)
+        pool.restore(listOf(network.snodes.subList(0, 3), listOf(network.snodes[3], network.snodes[1], network.snodes[4])))
+        pool.getPath(null)
+        network.advance(now + 10_000)
+        assertEquals(1, pool.spareCount)
+
+        val promise = pool.getPath(network.snodes[1])
+
+        assertTrue(promise.isDone())
+        assertFalse(network.snodes[1] in promise.get())
+        assertEquals(1, network.buildCount)
+    }
+
+    @Test
+    fun `old spares are rebuilt`() {
+        val network = SimulatedNetwork(30, 1000)
+        val pool = pool(network, 2, maxSpareAge = 60_000)
+        getPath(pool, network)
+        network.advance(now + 10_000)
+        assertEquals(4, network.buildCount)
+
+        now += 61_000
+        getPath(pool, network)
+        network.advance(now + 10_000)
+
+        assertEquals(2, pool.spareCount)
+        assertEquals(6, network.buildCount)
+    }
+
+    private class SimulationResult(val requestTimes: List<Long>, val pathWaitCount: Int)
+
+    /**
+     * Sends requests back to back, at most one every half a second, for an hour while a snode goes down
+     * for a minute every 30 seconds. Records how long each request took, including waiting for a path
+     * to be built, failed attempts and the request itself.
+     */
+    private fun simulate(targetSpareCount: Int): SimulationResult {
+        val failureTimeout = 2000L
+        val network = SimulatedNetwork(40, 3000, seed = 1)
+        val pool = pool(network, targetSpareCount)
+        val outages = mutableListOf<Pair<Long, Snode>>()
+        var nextOutageTime = 0L
+        val requestTimes = mutableListOf<Long>()
+        var pathWaitCount = 0
+        var requestTime = 0L
+        while (requestTime < 60 * 60 * 1000) {
+            network.advance(requestTime)
+            while (nextOutageTime <= now) {
+                val snode = network.snodes.random(network.random)
+                network.downSnodes.add(snode)
+                outages.add(Pair(nextOutageTime + 60_000, snode))
+                nextOutageTime += 30_000
+            }
+            outages.filter { it.first <= now }.forEach { outage ->
+                outages.remove(outage)
+                network.downSnodes.remove(outage.second)
+            }
+            val destination = network.snodes.random(network.random)
+            while (true) {
+                val promise = pool.getPath(destination)
+                if (!promise.isDone()) { pathWaitCount += 1 }
+                val path = getPath(promise, network)
+                if (network.isUp(path)) {
+                    now += network.getLatency(path)
+                    pool.reportSuccess(path, network.getLatency(path))
+                    break
+                }
+                network.advance(now + failureTimeout)
+                pool.reportFailure(path)
+            }
+            requestTimes.add(now - requestTime)
+            requestTime = maxOf(requestTime + 500, now)
+        }
+        return SimulationResult(requestTimes, pathWaitCount)
+    }
+
+    private fun List<Long>.percentile(percentile: Double): Long {
+        return sorted()[((size - 1) * percentile).toInt()]
+    }
+
+    @Test
+    fun `spares keep the tail latency down`() {
+        val withoutSpares = simulate(0)
+        val withSpares = simulate(2)
+
+        val message = "p50: ${withoutSpares.requestTimes.percentile(0.5)} -> ${withSpares.requestTimes.percentile(0.5)} ms, " +
+            "p99.9: ${withoutSpares.requestTimes.percentile(0.999)} -> ${withSpares.requestTimes.percentile(0.999)} ms, " +
+            "max: ${withoutSpares.requestTimes.maxOrNull()} -> ${withSpares.requestTimes.maxOrNull()} ms, " +
+            "path waits: ${withoutSpares.pathWaitCount} -> ${withSpares.pathWaitCount}"
+        // Requests rarely have to wait for a path to be built
+        assertTrue(message, withSpares.pathWaitCount * 4 <= withoutSpares.pathWaitCount)
+        assertTrue(message, withSpares.requestTimes.percentile(0.999) < withoutSpares.requestTimes.percentile(0.999))
+        assertTrue(message, withSpares.requestTimes.maxOrNull()!! < withoutSpares.requestTimes.maxOrNull()!!)
+    }
+}
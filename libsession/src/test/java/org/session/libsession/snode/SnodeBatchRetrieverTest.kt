@@ -0,0 +1,238 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Promise
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import org.session.libsession.utilities.SilentLogger
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+
+class SnodeBatchRetrieverTest {
+
+    private class HTTPException(val statusCode: Int, val json: Map<*, *>? = null) : Exception("HTTP request failed with status code $statusCode.")
+
+    /**
+     * Stands in for a snode: stores messages by public key, and answers retrieves and, if it
+     * supports them, batches of retrieves the way a storage server does.
+     */
+    private class LocalSnode(val snode: Snode, var supportsBatches: Boolean = true) {
+        val messages = HashMap<String, MutableList<String>>()
+        val movedPublicKeys = mutableSetOf<String>()
+        val requests = mutableListOf<String>()
+        var isDown = false
+        // The error the snode rejects batches with as a whole, if any
+        var batchError: HTTPException? = null
+
+        fun store(publicKey: String, vararg hashes: String) {
+            messages.getOrPut(publicKey) { mutableListOf() }.addAll(hashes)
+        }
+
+        fun handle(method: Snode.Method, parameters: Map<String, Any>): RawResponsePromise {
+            requests.add(method.rawValue)
+            if (isDown) { return Promise.ofFail(HTTPException(503)) }
+            return when (method) {
+                Snode.Method.GetMessages -> {
+                    val (statusCode, body) = retrieve(parameters)
+                    if (statusCode == 200) Promise.of(body) else Promise.ofFail(HTTPException(statusCode))
+                }
+                Snode.Method.Batch -> {
+                    if (!supportsBatches) { return Promise.ofFail(HTTPException(404)) }
+                    batchError?.let { return Promise.ofFail(it) }
+                    val results = (parameters["requests"] as List<*>).map { request ->
+                        val request = request as Map<*, *>
+                        assertEquals(Snode.Method.GetMessages.rawValue, request["method"])
+                        @Suppress("UNCHECKED_CAST") val parameters = request["params"] as Map<String, Any>
+                        val (statusCode, body) = retrieve(parameters)
+                        mapOf( "code" to statusCode, "body" to body )
+                    }
+                    Promise.of(mapOf( "results" to results ))
+                }
+                else -> Promise.ofFail(HTTPException(400))
+            }
+        }
+
+        private fun retrieve(parameters: Map<String, Any>): Pair<Int, Map<*, *>> {
+            val publicKey = parameters["pubKey"] as String
+            if (publicKey in movedPublicKeys) { return Pair(421, mapOf( "snodes" to listOf<Any>() )) }
+            val hashes = messages[publicKey] ?: listOf<String>()
+            val lastHash = parameters["lastHash"] as String
+            val newHashes = hashes.drop(hashes.indexOf(lastHash) + 1)
+            return Pair(200, mapOf( "messages" to newHashes.map { mapOf( "hash" to it, "data" to "" ) } ))
+        }
+    }
+
+    private val localSnode = LocalSnode(Snode("https://127.0.0.1", 22021, null))
+    private val snode = localSnode.snode
+    private val lastHashes = HashMap<String, String>()
+    private val errors = mutableListOf<Pair<Int, String>>()
+    private val errorBodies = mutableListOf<Map<*, *>?>()
+    private var now = 0L
+
+    private val retriever = SnodeBatchRetriever(object : SnodeBatchRetriever.Transport {
+
+        override fun getRetrieveParameters(snode: Snode, publicKey: String): Map<String, Any> {
+            return mapOf( "pubKey" to publicKey, "lastHash" to (lastHashes[publicKey] ?: "") )
+        }
+
+        override fun invoke(method: Snode.Method, snode: Snode, publicKey: String, parameters: Map<String, Any>): RawResponsePromise {
+            assertEquals(localSnode.snode, snode)
+            return localSnode.handle(method, parameters)
+        }
+
+        override fun getSnodeError(exception: Exception): Pair<Int, Map<*, *>?>? {
+            val httpException = exception as? HTTPException ?: return null
+            return Pair(httpException.statusCode, httpException.json)
+        }
+
+        override fun handleError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String) {
+            errors.add(Pair(statusCode, publicKey))
+            errorBodies.add(json)
+        }
+    }, { now })
+
+    @Before
+    fun setUp() {
+        // Fallbacks get logged, which android.util.Log doesn't support in unit tests
+        Log.initialize(SilentLogger)
+    }
+
+    /**
+     * Retrieves the messages of the given public keys, moving their last hashes along like the
+     * snode API does.
+     */
+    private fun retrieve(publicKeys: List<String>): Map<String, List<String>> {
+        val rawResponses = retriever.retrieve(snode, publicKeys).get()
+        return rawResponses.mapValues { (publicKey, rawResponse) ->
+            val hashes = (rawResponse["messages"] as List<*>).map { (it as Map<*, *>)["hash"] as String }
+            hashes.lastOrNull()?.let { lastHashes[publicKey] = it }
+            hashes
+        }
+    }
+
+    @Test
+    fun `public keys on the same snode are retrieved in one request`() {
+        val publicKeys = (1..5).map { "05group$it" }
+        publicKeys.forEach { localSnode.store(it, "$it-a", "$it-b") }
+
+        assertEquals(publicKeys.associateWith { listOf("$it-a", "$it-b") }, retrieve(publicKeys))
+        assertEquals(listOf("batch"), localSnode.requests)
+
+        localSnode.store(publicKeys[2], "${publicKeys[2]}-c")
+        val secondRetrieve = retrieve(publicKeys)
+
+        // Each public key only gets the messages after its own last hash
+        assertEquals(publicKeys.associateWith { if (it == publicKeys[2]) listOf("$it-c") else listOf() }, secondRetrieve)
+        assertEquals(listOf("batch", "batch"), localSnode.requests)
+    }
+
+    @Test
+    fun `large batches are split`() {
+        val publicKeys = (1..SnodeBatchRetriever.maxBatchSize * 2 + 1).map { "05group$it" }
+        publicKeys.forEach { localSnode.store(it, "$it-a") }
+
+        assertEquals(publicKeys.associateWith { listOf("$it-a") }, retrieve(publicKeys))
+        assertEquals(listOf("batch", "batch", "batch"), localSnode.requests)
+    }
+
+    @Test
+    fun `snodes without batch support get separate retrieves`() {
+        localSnode.supportsBatches = false
+        val publicKeys = (1..3).map { "05group$it" }
+        publicKeys.forEach { localSnode.store(it, "$it-a") }
+
+        assertEquals(publicKeys.associateWith { listOf("$it-a") }, retrieve(publicKeys))
+        assertEquals(listOf("batch", "retrieve", "retrieve", "retrieve"), localSnode.requests)
+        assertTrue(errors.isEmpty())
+
+        // The snode isn't sent batches again until it's had time to be updated
+        localSnode.requests.clear()
+        now += 30 * 60 * 1000
+        retrieve(publicKeys)
+        assertEquals(listOf("retrieve", "retrieve", "retrieve"), localSnode.requests)
+
+        localSnode.supportsBatches = true
+        localSnode.requests.clear()
+        now += 30 * 60 * 1000
+        retrieve(publicKeys)
+        assertEquals(listOf("batch"), localSnode.requests)
+    }
+
+    @Test
+    fun `failed retrieves in a batch are handled per public key`() {
+        val publicKeys = (1..3).map { "05group$it" }
+        publicKeys.forEach { localSnode.store(it, "$it-a") }
+        localSnode.movedPublicKeys.add(publicKeys[1])
+
+        assertEquals(setOf(publicKeys[0], publicKeys[2]), retrieve(publicKeys).keys)
+        assertEquals(listOf(Pair(421, publicKeys[1])), errors)
+    }
+
+    @Test
+    fun `batches that are rejected as a whole don't mark the snode as unsupported`() {
+        val publicKeys = listOf("05group1", "05group2")
+        localSnode.batchError = HTTPException(400)
+
+        try {
+            retrieve(publicKeys)
+            fail()
+        } catch (e: HTTPException) {
+            assertEquals(400, e.statusCode)
+        }
+        localSnode.batchError = null
+        retrieve(publicKeys)
+
+        assertEquals(listOf("batch", "batch"), localSnode.requests)
+        assertTrue(errors.isEmpty())
+    }
+
+    @Test
+    fun `batches rejected with a 421 are handled for every public key`() {
+        val publicKeys = (1..3).map { "05group$it" }
+        val swarm = mapOf( "snodes" to listOf<Any>() )
+        localSnode.batchError = HTTPException(421, swarm)
+
+        try {
+            retrieve(publicKeys)
+            fail()
+        } catch (e: HTTPException) {
+            assertEquals(421, e.statusCode)
+        }
+
+        assertEquals(publicKeys.map { Pair(421, it) }, errors)
+        // The swarm in the response only belongs to the public key the batch was sent for
+        assertEquals(listOf(swarm, null, null), errorBodies)
+    }
+
+    @Test
+    fun `failed batches aren't retried separately`() {
+        localSnode.isDown = true
+
+        try {
+            retrieve(listOf("05group1", "05group2"))
+            fail()
+        } catch (e: HTTPException) {
+            assertEquals(503, e.statusCode)
+        }
+        localSnode.isDown = false
+        retrieve(listOf("05group1", "05group2"))
+
+        assertEquals(listOf("batch", "batch"), localSnode.requests)
+    }
+
+    @Test
+    fun `separate retrieves only fail if all of them do`() {
+        localSnode.supportsBatches = false
+        localSnode.movedPublicKeys.add("05group2")
+
+        assertEquals(setOf("05group1"), retrieve(listOf("05group1", "05group2")).keys)
+        try {
+            retrieve(listOf("05group2"))
+            fail()
+        } catch (e: HTTPException) {
+            assertEquals(421, e.statusCode)
+        }
+    }
+}
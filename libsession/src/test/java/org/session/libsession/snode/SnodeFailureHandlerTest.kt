@@ -0,0 +1,84 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.session.libsession.utilities.SilentLogger
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+import java.util.Random
+
+class SnodeFailureHandlerTest {
+
+    private val now = 1_600_000_000_000L
+    private val snodes = (1..5).map { Snode("https://10.0.0.$it", 22021, null) }
+    private val publicKey = "05" + "0".repeat(64)
+    private val health = SnodeHealthRegistry(3, 10 * 60 * 1000L, 30 * 60 * 1000L, 32, Random(0), { now })
+    private val store = MemoryStore()
+    private val handler = SnodeFailureHandler(health, store)
+
+    @Before
+    fun setUp() {
+        Log.initialize(SilentLogger)
+        store.pool = snodes.toSet()
+        store.swarms[publicKey] = snodes.take(3).toSet()
+    }
+
+    @Test
+    fun `a snode that keeps failing as an onion hop is dropped from the pool`() {
+        val snode = snodes[0]
+
+        // "Next node not found" is only counted once per failure, so the third one drops the snode
+        assertFalse(handler.handleFailure(snode))
+        assertFalse(handler.handleFailure(snode))
+        assertTrue(snode in store.pool)
+        assertTrue(handler.handleFailure(snode))
+
+        assertEquals(snodes.drop(1).toSet(), store.pool)
+        // Only the swarms it failed for lose it
+        assertTrue(snode in store.swarms[publicKey]!!)
+    }
+
+    @Test
+    fun `onion hop and direct failures add up`() {
+        val snode = snodes[1]
+
+        assertFalse(handler.handleFailure(snode))
+        assertFalse(handler.handleFailure(snode, publicKey))
+        assertTrue(handler.handleFailure(snode, publicKey))
+
+        assertFalse(snode in store.pool)
+        assertEquals(setOf(snodes[0], snodes[2]), store.swarms[publicKey])
+        // The count starts over, without bringing the snode back
+        assertFalse(handler.handleFailure(snode))
+        assertFalse(snode in store.pool)
+    }
+
+    @Test
+    fun `snodes are only dropped from swarms they belong to`() {
+        handler.dropSnodeFromSwarmIfNeeded(snodes[4], publicKey)
+        handler.dropSnodeFromSwarmIfNeeded(snodes[0], "05" + "1".repeat(64))
+
+        assertEquals(snodes.take(3).toSet(), store.swarms[publicKey])
+        assertEquals(0, store.swarmWriteCount)
+    }
+
+    private class MemoryStore : SnodeFailureHandler.Store {
+        var pool = setOf<Snode>()
+        val swarms = mutableMapOf<String, Set<Snode>>()
+        var swarmWriteCount = 0
+
+        override fun getSnodePool() = pool
+
+        override fun setSnodePool(newValue: Set<Snode>) { pool = newValue }
+
+        override fun getSwarm(publicKey: String) = swarms[publicKey]
+
+        override fun setSwarm(publicKey: String, newValue: Set<Snode>) {
+            swarms[publicKey] = newValue
+            swarmWriteCount += 1
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsignal.utilities.Snode
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class SnodeHealthRegistryTest {
+
+    @Volatile private var now = 1_600_000_000_000L
+    private val snodes = (1..10).map { Snode("https://10.0.0.$it", 22021, null) }
+    private val minute = 60 * 1000L
+
+    private fun registry(random: Random = Random(0)): SnodeHealthRegistry {
+        return SnodeHealthRegistry(3, 10 * minute, 30 * minute, 100, random, { now })
+    }
+
+    /**
+     * Runs `work` on `threadCount` threads at once, and rethrows the first error any of them ran into.
+     */
+    private fun runConcurrently(threadCount: Int, work: (Int) -> Unit) {
+        val start = CountDownLatch(1)
+        var error: Throwable? = null
+        val threads = (0 until threadCount).map { i ->
+            thread {
+                start.await()
+                try {
+                    work(i)
+                } catch (e: Throwable) {
+                    synchronized(this) { if (error == null) { error = e } }
+                }
+            }
+        }
+        start.countDown()
+        threads.forEach { it.join(TimeUnit.SECONDS.toMillis(30)) }
+        assertTrue("Threads didn't finish", threads.none { it.isAlive })
+        error?.let { throw it }
+    }
+
+    /**
+     * @return How often each snode was picked out of `snodes` in `count` tries.
+     */
+    private fun SnodeHealthRegistry.countChoices(snodes: List<Snode>, count: Int): Map<Snode, Int> {
+        return (0 until count).map { choose(snodes)!! }.groupingBy { it }.eachCount()
+    }
+
+    @Test
+    fun `snodes are dropped after repeated failures`() {
+        val registry = registry()
+        val snode = snodes[0]
+
+        assertFalse(registry.recordFailure(snode))
+        assertFalse(registry.recordFailure(snode))
+        assertTrue(registry.recordFailure(snode))
+
+        // The count starts over once the snode has been reported
+        assertEquals(0, registry.getFailureCount(snode))
+        assertFalse(registry.recordFailure(snode))
+    }
+
+    @Test
+    fun `old failures are forgotten`() {
+        val registry = registry()
+        val snode = snodes[0]
+
+        registry.recordFailure(snode)
+        registry.recordFailure(snode)
+        now += 10 * minute
+        assertEquals(1, registry.getFailureCount(snode))
+        assertFalse(registry.recordFailure(snode))
+        now += 25 * minute
+        assertEquals(0, registry.getFailureCount(snode))
+        assertFalse(registry.recordFailure(snode))
+        assertFalse(registry.recordFailure(snode))
+        assertTrue(registry.recordFailure(snode))
+    }
+
+    @Test
+    fun `success rates recover over time`() {
+        val registry = registry()
+        val snode = snodes[0]
+        assertEquals(1.0, registry.getSuccessRate(snode), 0.0)
+
+        repeat(9) { registry.recordFailure(snode) }
+        assertEquals(0.1, registry.getSuccessRate(snode), 0.001)
+        repeat(10) { registry.recordSuccess(snode) }
+        assertEquals(0.55, registry.getSuccessRate(snode), 0.001)
+
+        // Failures from an hour ago count for a quarter as much as new successes
+        now += 60 * minute
+        repeat(10) { registry.recordSuccess(snode) }
+        assertEquals(13.5 / 15.75, registry.getSuccessRate(snode), 0.001)
+    }
+
+    @Test
+    fun `latency percentiles cover the most recent samples`() {
+        val registry = registry()
+        val snode = snodes[0]
+        assertNull(registry.getLatencyPercentile(snode, 0.5))
+
+        (1..100L).shuffled(Random(1)).forEach { registry.recordSuccess(snode, it) }
+        assertEquals(50L, registry.getLatencyPercentile(snode, 0.5))
+        assertEquals(90L, registry.getLatencyPercentile(snode, 0.9))
+
+        (1001..1100L).forEach { registry.recordSuccess(snode, it) }
+        assertEquals(1050L, registry.getLatencyPercentile(snode, 0.5))
+        assertEquals(1001L, registry.getLatencyPercentile(snode, 0.0))
+    }
+
+    @Test
+    fun `healthy snodes are picked more often`() {
+        val registry = registry()
+        val (fast, slow, failing, unknown) = snodes
+        repeat(20) { registry.recordSuccess(fast, 100) }
+        repeat(20) { registry.recordSuccess(slow, 3000) }
+        repeat(2) { registry.recordSuccess(failing, 100) }
+        repeat(20) { registry.recordFailure(failing) }
+
+        val counts = registry.countChoices(listOf(fast, slow, failing, unknown), 10_000)
+
+        assertTrue(counts.toString(), counts[fast]!! > 2 * counts[slow]!!)
+        assertTrue(counts.toString(), counts[slow]!! > counts[failing]!!)
+        // Unknown snodes are assumed to be as fast as the average, and get a chance to prove themselves
+        assertTrue(counts.toString(), counts[unknown]!! > counts[slow]!!)
+        // No snode is ruled out entirely
+        assertTrue(counts.toString(), counts[failing]!! > 0)
+    }
+
+    @Test
+    fun `snodes are picked without repeats`() {
+        val registry = registry()
+        repeat(20) { registry.recordFailure(snodes[0]) }
+
+        repeat(100) {
+            val choice = registry.choose(snodes, 4)
+            assertEquals(4, choice.toSet().size)
+            assertTrue(snodes.containsAll(choice))
+        }
+        assertEquals(snodes.toSet(), registry.choose(snodes, 20).toSet())
+        assertTrue(registry.choose(listOf(), 2).isEmpty())
+        assertNull(registry.choose(listOf()))
+    }
+
+    @Test
+    fun `concurrent failures report a snode exactly once per threshold`() {
+        val registry = registry()
+        val reportCounts = snodes.map { AtomicInteger() }
+
+        runConcurrently(8) {
+            repeat(30_000) { i ->
+                val index = i % snodes.size
+                if (registry.recordFailure(snodes[index])) { reportCounts[index].incrementAndGet() }
+            }
+        }
+
+        // Every snode failed 8 * 3000 times, so the counts would be off if any update was lost
+        reportCounts.forEach { assertEquals(8 * 3000 / 3, it.get()) }
+        snodes.forEach { assertEquals(0, registry.getFailureCount(it)) }
+    }
+
+    @Test
+    fun `concurrent updates and choices stay consistent`() {
+        val registry = registry(Random(2))
+        val choiceCount = AtomicInteger()
+
+        runConcurrently(8) { i ->
+            val random = Random(i.toLong())
+            repeat(20_000) { j ->
+                val snode = snodes[random.nextInt(snodes.size)]
+                when (i % 4) {
+                    0 -> registry.recordSuccess(snode, 100L + random.nextInt(100))
+                    1 -> registry.recordFailure(snode)
+                    2 -> {
+                        val choice = registry.choose(snodes, 3)
+                        assertEquals(3, choice.toSet().size)
+                        choiceCount.incrementAndGet()
+                    }
+                    else -> {
+                        assertTrue(registry.getSuccessRate(snode) in 0.0..1.0)
+                        registry.getLatencyPercentile(snode, 0.99)?.let { assertTrue(it in 100L..199L) }
+                        // The clock moves on while other threads work
+                        if (j % 1000 == 0) { now += 1000 }
+                    }
+                }
+            }
+        }
+
+        assertEquals(2 * 20_000, choiceCount.get())
+        snodes.forEach { snode ->
+            // Half of the requests per snode succeeded, and the rest failed
+            assertEquals(0.5, registry.getSuccessRate(snode), 0.05)
+            assertTrue(registry.getLatencyPercentile(snode, 0.5)!! in 100L..199L)
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.session.libsession.utilities
+
+import org.session.libsignal.utilities.Log
+
+/**
+ * Logger that drops everything, for tests of code that logs.
+ */
+object SilentLogger : Log.Logger() {
+    override fun v(tag: String?, message: String?, t: Throwable?) { }
+    override fun d(tag: String?, message: String?, t: Throwable?) { }
+    override fun i(tag: String?, message: String?, t: Throwable?) { }
+    override fun w(tag: String?, message: String?, t: Throwable?) { }
+    override fun e(tag: String?, message: String?, t: Throwable?) { }
+    override fun wtf(tag: String?, message: String?, t: Throwable?) { }
+    override fun blockUntilAllWritesFinished() { }
+}
@@ -0,0 +1,135 @@
+package org.session.libsession.utilities.recipients
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import org.session.libsession.utilities.Address
+import org.session.libsession.utilities.recipients.Recipient.RecipientSettings
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+class RecipientSettingsLoaderTest {
+
+    private fun address(index: Int) = Address.fromSerialized("05" + index.toString().padStart(64, '0'))
+
+    private fun settings(name: String) = RecipientSettings(false, 0, Recipient.VibrateState.DEFAULT, Recipient.VibrateState.DEFAULT,
+        null, null, null, -1, 0, Recipient.RegisteredState.REGISTERED, null, null, null, null, null, name, null,
+        false, null, Recipient.UnidentifiedAccessMode.DISABLED, false)
+
+    /** Stand-in for the recipient table, counting how often it gets queried. */
+    private class FakeDatabase(val rows: Map<Address, RecipientSettings>) : RecipientSettingsLoader.Source {
+        val roundTrips = AtomicInteger()
+        val queriedAddresses: MutableList<Address> = Collections.synchronizedList(mutableListOf())
+
+        override fun getRecipientSettings(addresses: List<Address>): Map<Address, RecipientSettings> {
+            roundTrips.incrementAndGet()
+            queriedAddresses.addAll(addresses)
+            return addresses.mapNotNull { address -> rows[address]?.let { address to it } }.toMap()
+        }
+    }
+
+    @Test
+    fun loadsThousandRecipientsInTwoRoundTrips() {
+        val addresses = (0 until 1000).map { address(it) }
+        val database = FakeDatabase(addresses.associateWith { settings(it.serialize()) })
+        val loader = RecipientSettingsLoader(database)
+
+        val result = loader.getAll(addresses)
+
+        assertEquals(2, database.roundTrips.get())
+        assertEquals(1000, database.queriedAddresses.toSet().size)
+        assertEquals(1000, result.size)
+        for (address in addresses) {
+            assertEquals(address.serialize(), result[address]!!.profileName)
+        }
+    }
+
+    @Test
+    fun queriesDuplicateAddressesOnce() {
+        val addresses = (0 until 10).map { address(it % 5) }
+        val database = FakeDatabase(addresses.associateWith { settings(it.serialize()) })
+        val loader = RecipientSettingsLoader(database)
+
+        assertEquals(5, loader.getAll(addresses).size)
+        assertEquals(1, database.roundTrips.get())
+        assertEquals(5, database.queriedAddresses.size)
+    }
+
+    @Test
+    fun leavesOutAddressesWithoutSettings() {
+        val known = address(1)
+        val database = FakeDatabase(mapOf(known to settings("known")))
+        val loader = RecipientSettingsLoader(database)
+
+        val result = loader.getAll(listOf(known, address(2)))
+
+        assertEquals(setOf(known), result.keys)
+        assertNull(loader.get(address(2)))
+    }
+
+    @Test
+    fun concurrentRequestsForTheSameAddressShareOneQuery() {
+        val address = address(1)
+        val queryStarted = CountDownLatch(1)
+        val releaseQuery = CountDownLatch(1)
+        val roundTrips = AtomicInteger()
+        val expected = settings("shared")
+        val loader = RecipientSettingsLoader(RecipientSettingsLoader.Source { addresses ->
+            roundTrips.incrementAndGet()
+            queryStarted.countDown()
+            releaseQuery.await()
+            addresses.associateWith { expected }
+        })
+
+        val first = AtomicReference<RecipientSettings>()
+        val second = AtomicReference<RecipientSettings>()
+        val firstThread = Thread { first.set(loader.get(address)) }
+        firstThread.start()
+        queryStarted.await()
+
+        val secondThread = Thread { second.set(loader.get(address)) }
+        secondThread.start()
+        while (secondThread.state != Thread.State.WAITING) {
+            Thread.sleep(1)
+        }
+        releaseQuery.countDown()
+        firstThread.join()
+        secondThread.join()
+
+        assertEquals(1, roundTrips.get())
+        assertSame(expected, first.get())
+        assertSame(expected, second.get())
+    }
+
+    @Test
+    fun failuresReachWaitingRequests() {
+        val queryStarted = CountDownLatch(1)
+        val releaseQuery = CountDownLatch(1)
+        val loader = RecipientSettingsLoader(RecipientSettingsLoader.Source {
+            queryStarted.countDown()
+            releaseQuery.await()
+            throw IllegalStateException("database closed")
+        })
+
+        val firstThread = Thread { try { loader.get(address(1)) } catch (e: IllegalStateException) { } }
+        firstThread.start()
+        queryStarted.await()
+
+        val failure = AtomicReference<Throwable>()
+        val secondThread = Thread { try { loader.get(address(1)); fail() } catch (e: Throwable) { failure.set(e) } }
+        secondThread.start()
+        while (secondThread.state != Thread.State.WAITING) {
+            Thread.sleep(1)
+        }
+        releaseQuery.countDown()
+        firstThread.join()
+        secondThread.join()
+
+        assertTrue(failure.get() is IllegalStateException)
+    }
+}
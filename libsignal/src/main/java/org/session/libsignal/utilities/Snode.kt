@@ -6,7 +6,8 @@ class Snode(val address: String, val port: Int, val publicKeySet: KeySet?) {
     public enum class Method(val rawValue: String) {
         GetSwarm("get_snodes_for_pubkey"),
         GetMessages("retrieve"),
-        SendMessage("store")
+        SendMessage("store"),
+        Batch("batch")
     }
 
     data class KeySet(val ed25519Key: String, val x25519Key: String)